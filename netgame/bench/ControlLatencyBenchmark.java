@@ -0,0 +1,134 @@
+package netgame.bench;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import netgame.common.Client;
+import netgame.common.Hub;
+import netgame.draw.raster.LatencyRecorder;
+
+/**
+ * Checks that control messages are not delayed by a backlog of bulk messages.
+ * A hub is started, and a "slow" client connects to it.  The slow client 
+ * sends a flood of large messages (about 5000 per second), which the hub echoes back, but it takes
+ * a millisecond to handle each message that it receives, so the link from
+ * the hub to the slow client is saturated and the hub's outgoing queue for
+ * that client grows.  While that is going on, other clients connect and
+ * disconnect, and the program measures how long it takes for the slow client
+ * to be told about each new player.  The delay should stay small, however
+ * large the backlog gets.  The slow client's probe round trip times are also
+ * reported.  The socket buffers on the saturated link are limited to 16K, 
+ * so that most of the backlog is in the hub's queue rather than in the
+ * operating system.
+ *
+ * <p>At the end, the program checks the delays against bounds, and exits with
+ * status 1 if the slowest notice of a new player, or the 99th percentile of
+ * the round trip times, is over its bound, or if some notices never arrived;
+ * otherwise, the exit status is 0.  The backlog grows to many seconds of work
+ * for the slow client, so a control message that waited behind it would miss
+ * the bounds by far.
+ * 
+ * <p>Command-line arguments, all optional:  the port to use (default 32005),
+ * the number of players that connect (default 20), and the bounds in
+ * milliseconds on the delay of a new-player notice (default 250) and on the
+ * round trip time (default 500).
+ */
+public class ControlLatencyBenchmark {
+
+    private static final LatencyRecorder presenceDelay = new LatencyRecorder();
+    private static final LatencyRecorder roundTrips = new LatencyRecorder();
+    private static volatile long connectStarted;
+    private static final AtomicLong bulkReceived = new AtomicLong();
+
+    private static class SlowClient extends Client {
+        SlowClient(int port) throws IOException {
+            super("localhost", port);
+        }
+        protected void messageReceived(Object message) {
+            bulkReceived.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        protected void playerConnected(int newPlayerID) {
+            if (newPlayerID != getID())
+                presenceDelay.record(System.nanoTime() - connectStarted);
+        }
+        protected void roundTripMeasured(long nanos) {
+            roundTrips.record(nanos);
+        }
+    }
+
+    private static class QuietClient extends Client {
+        QuietClient(int port) throws IOException {
+            super("localhost", port);
+        }
+        protected void messageReceived(Object message) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 32005;
+        int players = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int presenceBound = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+        int roundTripBound = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+        Hub hub = new Hub(port);
+        hub.setSendBufferSize(16*1024);
+        final SlowClient slow = new SlowClient(port);
+        slow.setReceiveBufferSize(16*1024);
+        slow.setProbeInterval(100);
+        Thread flooder = new Thread() {
+            public void run() {
+                byte[] payload = new byte[4000];
+                while (true) {
+                    try {
+                        for (int i = 0; i < 5; i++) {
+                            slow.send(payload);
+                            slow.resetOutput();  // Without a reset, the same array would only be sent once.
+                        }
+                        Thread.sleep(1);
+                    }
+                    catch (Exception e) {
+                        return;
+                    }
+                }
+            }
+        };
+        flooder.setDaemon(true);
+        flooder.start();
+        Thread.sleep(2000);
+        for (int i = 0; i < players; i++) {
+            connectStarted = System.nanoTime();
+            QuietClient quiet = new QuietClient(port);
+            Thread.sleep(250);
+            System.out.println("player " + quiet.getID() + " connected;  bulk messages still in flight: " 
+                    + (slow.getMessagesSent() - bulkReceived.get()));
+            quiet.disconnect();
+        }
+        System.out.println("Delay until slow client sees a new player: " + presenceDelay);
+        System.out.println("Slow client round trip times:            " + roundTrips);
+        boolean failed = false;
+        if (presenceDelay.getCount() < players) {
+            System.out.println("FAILED: only " + presenceDelay.getCount() + " of " + players + " new players were seen.");
+            failed = true;
+        }
+        else if (presenceDelay.getMaxNanos() > presenceBound * 1000000L) {
+            System.out.println("FAILED: a new player was seen after more than " + presenceBound + " ms.");
+            failed = true;
+        }
+        if (roundTrips.getCount() == 0) {
+            System.out.println("FAILED: no round trips were measured.");
+            failed = true;
+        }
+        else if (roundTrips.getPercentileNanos(99) > roundTripBound * 1000000L) {
+            System.out.println("FAILED: the 99th percentile round trip time is over " + roundTripBound + " ms.");
+            failed = true;
+        }
+        if (!failed)
+            System.out.println("Passed:  control messages stayed within " + presenceBound + " ms and "
+                    + roundTripBound + " ms.");
+        System.exit(failed ? 1 : 0);
+    }
+
+}
@@ -0,0 +1,120 @@
+package netgame.bench;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import netgame.common.Client;
+import netgame.common.ForwardedMessage;
+import netgame.common.LoopbackTransport;
+import netgame.common.TcpTransport;
+import netgame.common.Transport;
+import netgame.draw.DrawHub;
+import netgame.draw.ViewportMessage;
+import netgame.draw.raster.DrawOp;
+
+/**
+ * Measures how fast a DrawHub fans drawing items out to many clients.  A hub
+ * is started, and a number of clients connect to it, each with a viewport of
+ * 400 by 300 pixels at a random place in a drawing of 4000 by 3000 pixels.
+ * Then every client sends a number of short lines inside its own viewport, as
+ * fast as it can, and the program reports how long it took until every item
+ * had been delivered to every client whose viewport it intersects, along
+ * with the number of items sent by the hub and the rate at which they were
+ * delivered.  Since a DrawHub does not send an item back to the client that
+ * drew it, the number of deliveries depends on how much the viewports overlap.
+ *
+ * <p>By default, the hub and the clients are connected by a LoopbackTransport,
+ * so the numbers show the cost of the hub's own work and of serializing the
+ * messages, without the network stack, and thousands of clients can run in
+ * one program without using any ports.  With the transport "tcp", they are
+ * connected by TCP on localhost instead, for comparison.
+ *
+ * <p>Command-line arguments, all optional:  the number of clients (default 500),
+ * the number of items that each client sends (default 200), the transport,
+ * "loopback" or "tcp" (default loopback), and the port (default 32010).
+ * Each connection uses two threads in the hub and two in the client.
+ */
+public class FanoutBenchmark {
+
+    private static final AtomicLong delivered = new AtomicLong();
+
+    private static class DrawingClient extends Client {
+        DrawingClient(Transport transport, int port) throws IOException {
+            super(transport, "localhost", port);
+        }
+        protected void extraHandshake(ObjectInputStream in, ObjectOutputStream out) throws IOException {
+            try {
+                in.readObject();  // The CursorOffer, which is not used.
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException("Illegal response from server.");
+            }
+        }
+        protected void messageReceived(Object message) {
+            if (message instanceof ForwardedMessage && ((ForwardedMessage)message).message instanceof String)
+                delivered.incrementAndGet();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int itemCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        boolean tcp = args.length > 2 && args[2].equalsIgnoreCase("tcp");
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 32010;
+        Transport transport = tcp ? new TcpTransport() : new LoopbackTransport();
+        DrawHub hub = new DrawHub(transport, port);
+        Random rand = new Random(1);
+        System.out.println("Connecting " + clientCount + " clients with " + (tcp ? "TCP" : "the loopback transport") + "...");
+        long start = System.nanoTime();
+        List<DrawingClient> clients = new ArrayList<DrawingClient>();
+        List<Rectangle> viewports = new ArrayList<Rectangle>();
+        for (int i = 0; i < clientCount; i++) {
+            DrawingClient c = new DrawingClient(transport, port);
+            Rectangle viewport = new Rectangle(rand.nextInt(3600), rand.nextInt(2700), 400, 300);
+            c.sendAsync(new ViewportMessage(viewport)).get(10, TimeUnit.SECONDS);
+            clients.add(c);
+            viewports.add(viewport);
+        }
+        System.out.printf("  connected in %.0f ms%n", (System.nanoTime() - start) / 1e6);
+
+        long itemsBefore = hub.getItemsSent();
+        start = System.nanoTime();
+        List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < itemCount; i++) {
+            for (int j = 0; j < clientCount; j++) {
+                Rectangle v = viewports.get(j);
+                int x = v.x + rand.nextInt(v.width), y = v.y + rand.nextInt(v.height);
+                String item = DrawOp.line(Color.BLACK, 3, x, y, x + rand.nextInt(21) - 10, y + rand.nextInt(21) - 10)
+                        .toString();
+                if (i == itemCount - 1)
+                    done.add(clients.get(j).sendAsync(item));  // Completes when the hub has handled them all.
+                else
+                    clients.get(j).send(item);
+            }
+        }
+        for (CompletableFuture<Void> f : done)
+            f.get(5, TimeUnit.MINUTES);
+        long expected = hub.getItemsSent() - itemsBefore;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (delivered.get() < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long items = (long)clientCount * itemCount;
+        System.out.printf("  %,d items drawn, %,d deliveries (%.1f per item), %,d filtered out%n",
+                items, delivered.get(), (double)delivered.get() / items, hub.getItemsFiltered());
+        System.out.printf("  all delivered after %.0f ms: %,.0f items/s in, %,.0f deliveries/s out%n",
+                seconds * 1000, items / seconds, delivered.get() / seconds);
+        if (delivered.get() < expected)
+            System.out.println("  Only " + delivered.get() + " of " + expected + " deliveries arrived.");
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,115 @@
+package netgame.bench;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import netgame.common.Hub;
+
+/**
+ * Simulates the storm of connections that a hub gets when it restarts and all
+ * of its clients reconnect at once.  A hub is started, a number of "stalled"
+ * sockets connect to it and never say anything, and then a pool of threads
+ * opens a large number of connections as fast as it can.  Each of those does
+ * the client's side of the handshake and then stays connected without reading
+ * anything more, so the clients cost the benchmark very little and the hub
+ * does nearly all of the work.  Once a second, the program prints the rate at
+ * which the hub accepted connections and completed handshakes, the number of
+ * handshakes in progress, and the number that have timed out.  The stalled
+ * sockets should time out after the handshake timeout without keeping the
+ * other connections out for longer than that.
+ *
+ * <p>Command-line arguments, all optional:  the port to use (default 32007),
+ * the number of clients (default 5000), the number of stalled sockets (default
+ * 100), the number of threads that open connections (default 64), the
+ * hub's handshake timeout in milliseconds (default 5000), and the hub's
+ * presence window in milliseconds (default 20).  Every batch of new players
+ * is sent to every player who is already connected, so a longer presence
+ * window lets the hub spend more of its time on handshakes.
+ */
+public class HandshakeStormBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 32007;
+        int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int stalledCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int timeout = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+        int window = args.length > 5 ? Integer.parseInt(args[5]) : 20;
+        Hub hub = new Hub(port, 4096);
+        hub.setHandshakeTimeout(timeout);
+        hub.setPresenceWindow(window);
+        final List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < stalledCount; i++)
+            sockets.add(new Socket("localhost", port));
+        final AtomicInteger remaining = new AtomicInteger(clientCount);
+        final AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        Thread[] connectors = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            connectors[i] = new Thread() {
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        try {
+                            Socket s = connect(port);
+                            synchronized(sockets) {
+                                sockets.add(s);
+                            }
+                        }
+                        catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            connectors[i].start();
+        }
+        long prevAccepted = 0, prevCompleted = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread t : connectors) {
+                t.join(1000);
+                if (t.isAlive()) {
+                    running = true;
+                    break;
+                }
+            }
+            long accepted = hub.getConnectionsAccepted(), completed = hub.getHandshakesCompleted();
+            System.out.printf("accepted %5d/s  completed %5d/s  in progress %3d  timed out %4d  failed %4d%n",
+                    accepted - prevAccepted, completed - prevCompleted, hub.getHandshakesInProgress(),
+                    hub.getHandshakesTimedOut(), hub.getHandshakesFailed());
+            prevAccepted = accepted;
+            prevCompleted = completed;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d clients connected in %.1f s (%.0f handshakes per second); %d could not connect%n",
+                clientCount - failures.get(), seconds, (clientCount - failures.get()) / seconds, failures.get());
+        System.out.println("Handshakes timed out: " + hub.getHandshakesTimedOut());
+        synchronized(sockets) {
+            for (Socket s : sockets)
+                s.close();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens a connection and does the client's side of the handshake, as
+     * described in the documentation of the Hub class.
+     */
+    private static Socket connect(int port) throws IOException, ClassNotFoundException {
+        Socket s = new Socket("localhost", port);
+        ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
+        out.writeObject("Hello Hub");
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(s.getInputStream());
+        in.readObject();  // The ID,
+        in.readObject();  //    the session token,
+        in.readObject();  //    and whether relay mode is used.
+        return s;
+    }
+
+}
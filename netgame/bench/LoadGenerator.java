@@ -0,0 +1,244 @@
+package netgame.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import netgame.common.Client;
+import netgame.draw.raster.LatencyRecorder;
+
+/**
+ * A LoadGenerator connects a number of synthetic NetDraw clients to a hub
+ * and has each of them send random line items at a fixed rate, as if a
+ * user were dragging the mouse.  Every client sends probe messages, and
+ * the round trip times of all the clients are collected in one
+ * LatencyRecorder.  The load can be started and stopped by another
+ * program, which can read the statistics while the load is running, or
+ * the class can be run as a program.  See main().
+ *
+ * <p>The clients can be connected through a {@link ShapingProxy}, to see what
+ * slow or unreliable links do to the hub and the clients.  Since the clients
+ * connect one at a time, the proxy's connection n is the nth client that was
+ * started, and a program can change the link or stall a connection through
+ * getProxy() while the load is running.
+ */
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final ShapingProxy proxy;  // The proxy that the clients connect through, or null.
+    private final List<LoadClient> clients = new ArrayList<LoadClient>();
+    private final List<Thread> senders = new ArrayList<Thread>();
+    private final LatencyRecorder roundTrips = new LatencyRecorder();
+    private volatile boolean running;
+
+    /**
+     * A synthetic client.  It counts the messages it receives, but does nothing else with them.
+     */
+    private class LoadClient extends Client {
+        LoadClient() throws IOException {
+            super(host, port);
+        }
+        protected void messageReceived(Object message) {
+        }
+        protected void roundTripMeasured(long nanos) {
+            roundTrips.record(nanos);
+        }
+    }
+
+    /**
+     * Creates a LoadGenerator for the hub at a given host and port.  No
+     * connections are opened until start() is called.
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.proxy = null;
+    }
+
+    /**
+     * Creates a LoadGenerator whose clients connect to a hub through a proxy
+     * that is running in this program.
+     */
+    public LoadGenerator(ShapingProxy proxy) {
+        this.host = "localhost";
+        this.port = proxy.getPort();
+        this.proxy = proxy;
+    }
+
+    /**
+     * Returns the proxy that the clients connect through, or null if they connect directly.
+     */
+    public ShapingProxy getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Connects clientCount clients to the hub and starts a thread for each one
+     * that sends opsPerSecond line items per second.
+     * @param probeInterval milliseconds between round trip probes for each client.
+     * @throws IOException if a connection can't be opened.  Clients that were
+     *    already connected are left running; call stop() to close them.
+     */
+    public void start(int clientCount, final int opsPerSecond, int probeInterval) throws IOException {
+        running = true;
+        for (int i = 0; i < clientCount; i++) {
+            final LoadClient client = new LoadClient();
+            client.setProbeInterval(probeInterval);
+            synchronized(clients) {
+                clients.add(client);
+            }
+            Thread sender = new Thread("load sender " + client.getID()) {
+                public void run() {
+                    sendLines(client, opsPerSecond);
+                }
+            };
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+    }
+
+    /**
+     * Stops the sending threads and disconnects all the clients.
+     */
+    public void stop() {
+        running = false;
+        for (Thread t : senders) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        senders.clear();
+        synchronized(clients) {
+            for (Client c : clients)
+                c.disconnect();
+            clients.clear();
+        }
+    }
+
+    /**
+     * Returns the recorder that holds the round trip times measured by all the clients.
+     */
+    public LatencyRecorder getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * Returns the total number of messages sent by all the clients.
+     */
+    public long getMessagesSent() {
+        long total = 0;
+        synchronized(clients) {
+            for (Client c : clients)
+                total += c.getMessagesSent();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total number of messages received by all the clients.
+     */
+    public long getMessagesReceived() {
+        long total = 0;
+        synchronized(clients) {
+            for (Client c : clients)
+                total += c.getMessagesReceived();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the largest outgoing backlog of any of the clients.
+     */
+    public int getMaxOutgoingBacklog() {
+        int max = 0;
+        synchronized(clients) {
+            for (Client c : clients)
+                max = Math.max(max, c.getOutgoingBacklog());
+        }
+        return max;
+    }
+
+    /**
+     * Sends random freehand curves from one client, opsPerSecond segments per second.
+     */
+    private void sendLines(Client client, int opsPerSecond) {
+        Random rand = new Random(client.getID());
+        long pause = 1000000000L / Math.max(1, opsPerSecond);
+        long next = System.nanoTime();
+        int x = rand.nextInt(800), y = rand.nextInt(600);
+        while (running) {
+            int nx = Math.max(0, Math.min(799, x + rand.nextInt(21) - 10));
+            int ny = Math.max(0, Math.min(599, y + rand.nextInt(21) - 10));
+            try {
+                client.send("line 0 0 0 3 " + nx + " " + ny + " " + x + " " + y);
+            }
+            catch (IllegalStateException e) {
+                return;  // The connection has been closed.
+            }
+            x = nx;
+            y = ny;
+            next += pause;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                }
+                catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a load test and prints statistics once a second.  The command-line
+     * arguments are the host and port of the hub, the number of clients, the 
+     * number of items per second for each client, and the length of the test
+     * in seconds.  The defaults are localhost, 32001, 10, 50, and 10.
+     * If there are more arguments, they are the latency and jitter in
+     * milliseconds and the bandwidth in kilobytes per second (0 for no limit)
+     * of a ShapingProxy, which listens on the hub's port plus one.  Then the
+     * clients connect through the proxy, the first one is stalled for two
+     * seconds halfway through the test, and the throughput of each connection
+     * is printed at the end.
+     */
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 32001;
+        int clientCount = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int rate = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        ShapingProxy proxy = null;
+        if (args.length > 5) {
+            proxy = new ShapingProxy(port + 1, host, port);
+            proxy.setLink(Integer.parseInt(args[5]), args.length > 6 ? Integer.parseInt(args[6]) : 0,
+                    args.length > 7 ? Long.parseLong(args[7]) * 1024 : 0);
+        }
+        LoadGenerator load = proxy == null ? new LoadGenerator(host, port) : new LoadGenerator(proxy);
+        load.start(clientCount, rate, 200);
+        long prevSent = 0, prevReceived = 0;
+        for (int i = 0; i < seconds; i++) {
+            if (proxy != null && i == seconds / 2) {
+                System.out.println("stalling connection 1 for 2 seconds");
+                proxy.stall(1, 2000);
+            }
+            Thread.sleep(1000);
+            long sent = load.getMessagesSent(), received = load.getMessagesReceived();
+            System.out.println("sent " + (sent - prevSent) + "/s  received " + (received - prevReceived) 
+                    + "/s  max backlog " + load.getMaxOutgoingBacklog() + "  RTT " + load.getRoundTrips());
+            prevSent = sent;
+            prevReceived = received;
+        }
+        if (proxy != null) {
+            for (ShapingProxy.Stats s : proxy.getStats())
+                System.out.println(s);
+        }
+        load.stop();
+        System.out.println("Round trip times: " + load.getRoundTrips());
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,161 @@
+package netgame.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import netgame.common.Client;
+import netgame.common.Hub;
+
+/**
+ * Measures the cost of telling clients about each other during a reconnect
+ * storm.  A hub is started and a number of clients connect to it.  Then nine
+ * tenths of the clients disconnect at once, while the rest watch them go;
+ * then the rest disconnect too, and the same number of new clients connect
+ * as fast as a pool of threads can open them, as happens when every client
+ * comes back after a network outage.  For the disconnects and for the
+ * reconnects, the program reports the bytes that the hub wrote,
+ * the number of versions of the player list that it sent, and how long it
+ * took for every client to know about every other client.  For comparison,
+ * it also reports the bytes that would be needed just for the ints in the
+ * player lists if every change were sent to every client with the complete
+ * list of players.
+ *
+ * <p>Command-line arguments, all optional:  the port to use (default 32006),
+ * the number of clients (default 5000), the number of threads that open
+ * connections (default 32), and the hub's presence window in milliseconds
+ * (default 20).  With thousands of clients, the program needs a lot of
+ * threads, since the hub and each client use two threads per connection.
+ */
+public class PresenceStormBenchmark {
+
+    private static volatile int target;  // Number of players that a client should see.
+    private static final AtomicInteger complete = new AtomicInteger();  // Clients that see target players.
+
+    private static class StormClient extends Client {
+        private boolean done;
+        StormClient(int port) throws IOException {
+            super("localhost", port);
+        }
+        protected void messageReceived(Object message) {
+        }
+        protected void playerConnected(int newPlayerID) {
+            check();
+        }
+        protected void playerDisconnected(int departingPlayerID) {
+            check();
+        }
+        private void check() {
+            if (!done && connectedPlayerIDs.length == target) {
+                done = true;
+                complete.incrementAndGet();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 32006;
+        final int clientCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        Hub hub = new Hub(port);
+        hub.setPresenceWindow(window);
+        System.out.println("Connecting " + clientCount + " clients...");
+        List<StormClient> clients = connect(port, clientCount, threads, clientCount);
+
+        System.out.println("\nNine tenths of the clients disconnect.");
+        int observer = clientCount / 10;  // A tenth of the clients stay connected to watch the others leave.
+        List<StormClient> leaving = clients.subList(observer, clientCount);
+        complete.set(0);
+        target = observer;
+        for (StormClient c : clients.subList(0, observer))
+            c.done = false;
+        long bytes = hub.getBytesSent();
+        long version = hub.getPresenceVersion();
+        long start = System.nanoTime();
+        for (StormClient c : leaving)
+            c.disconnect();
+        await(observer);
+        report(hub, bytes, version, start, fullListBytes(clientCount, observer));
+        for (StormClient c : clients.subList(0, observer))
+            c.disconnect();
+        Thread.sleep(500);
+
+        System.out.println("\nThe same number of clients reconnect.");
+        bytes = hub.getBytesSent();
+        version = hub.getPresenceVersion();
+        start = System.nanoTime();
+        connect(port, clientCount, threads, clientCount);
+        await(clientCount);
+        report(hub, bytes, version, start, fullListBytes(0, clientCount));
+        System.exit(0);
+    }
+
+    /**
+     * Connects count clients, using a number of threads, and waits until all of
+     * them see expected players.
+     */
+    private static List<StormClient> connect(final int port, final int count, int threads, int expected)
+            throws InterruptedException {
+        final List<StormClient> clients = new ArrayList<StormClient>();
+        final AtomicInteger remaining = new AtomicInteger(count);
+        complete.set(0);
+        target = expected;
+        Thread[] connectors = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            connectors[i] = new Thread() {
+                public void run() {
+                    while (remaining.getAndDecrement() > 0) {
+                        try {
+                            StormClient c = new StormClient(port);
+                            synchronized(clients) {
+                                clients.add(c);
+                            }
+                        }
+                        catch (IOException e) {
+                            System.out.println("Can't connect: " + e);
+                        }
+                    }
+                }
+            };
+            connectors[i].start();
+        }
+        for (Thread t : connectors)
+            t.join();
+        await(expected);
+        return clients;
+    }
+
+    /**
+     * Waits until count clients see the target number of players, or until a minute has passed.
+     */
+    private static void await(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (complete.get() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        if (complete.get() < count)
+            System.out.println("Only " + complete.get() + " of " + count + " clients caught up.");
+    }
+
+    private static void report(Hub hub, long bytes, long version, long start, long fullList) {
+        long sent = hub.getBytesSent() - bytes;
+        System.out.printf("  all clients caught up after %.0f ms%n", (System.nanoTime() - start) / 1e6);
+        System.out.printf("  hub wrote %,d bytes in %d versions of the player list%n",
+                sent, hub.getPresenceVersion() - version);
+        System.out.printf("  complete lists on every change would need %,d bytes for the IDs alone%n", fullList);
+    }
+
+    /**
+     * Returns the bytes that the IDs in complete player lists take, four bytes
+     * per ID, if the number of players goes one at a time from "from" to "to"
+     * and everyone who is connected after each change is sent the complete list.
+     */
+    private static long fullListBytes(int from, int to) {
+        long total = 0;
+        int step = to > from ? 1 : -1;
+        for (int players = from + step; players != to + step; players += step)
+            total += 4L * players * players;
+        return total;
+    }
+
+}
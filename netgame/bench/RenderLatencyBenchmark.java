@@ -0,0 +1,86 @@
+package netgame.bench;
+
+import java.awt.Color;
+import java.util.Random;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.RenderLoop;
+
+/**
+ * Measures the delay between "user input" and its appearance in a published
+ * frame of a RenderLoop, while other threads flood the loop with remote items,
+ * as happens when a NetDraw client receives heavy traffic from the hub.  A
+ * local item (a short thick line, like one mouse drag event) is submitted
+ * every 10 milliseconds.  The remote threads submit random thick lines as fast
+ * as they can, or at a fixed total rate.  At the end, the latency statistics
+ * for local and remote items and the number of frames are printed.
+ * 
+ * <p>Command-line arguments, all optional:  the run time in seconds (default 10),
+ * the number of remote threads (default 2), and the total remote rate in items
+ * per second (default 0, meaning as fast as possible).
+ */
+public class RenderLatencyBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int remoteThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int remoteRate = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final RenderLoop renderer = new RenderLoop(800, 600, null);
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final long[] remoteSubmitted = new long[remoteThreads];
+        Thread[] flooders = new Thread[remoteThreads];
+        for (int t = 0; t < remoteThreads; t++) {
+            final int id = t;
+            final long pauseNanos = remoteRate > 0 ? 1000000000L * remoteThreads / remoteRate : 0;
+            flooders[t] = new Thread() {
+                public void run() {
+                    Random rand = new Random(id);
+                    long next = System.nanoTime();
+                    while (System.nanoTime() < end) {
+                        int x = rand.nextInt(800), y = rand.nextInt(600);
+                        renderer.submit(DrawOp.line(new Color(rand.nextInt(0xFFFFFF)), 6 + rand.nextInt(3),
+                                x, y, x + rand.nextInt(41) - 20, y + rand.nextInt(41) - 20), false);
+                        remoteSubmitted[id]++;
+                        if (pauseNanos > 0) {
+                            next += pauseNanos;
+                            long wait = next - System.nanoTime();
+                            if (wait > 0)
+                                sleepNanos(wait);
+                        }
+                    }
+                }
+            };
+            flooders[t].start();
+        }
+        Random rand = new Random();
+        int x = 400, y = 300;
+        while (System.nanoTime() < end) {
+            int nx = Math.max(0, Math.min(799, x + rand.nextInt(11) - 5));
+            int ny = Math.max(0, Math.min(599, y + rand.nextInt(11) - 5));
+            renderer.submit(DrawOp.line(Color.BLACK, 7, nx, ny, x, y), true);
+            x = nx;
+            y = ny;
+            Thread.sleep(10);
+        }
+        for (Thread t : flooders)
+            t.join();
+        Thread.sleep(200);
+        long total = 0;
+        for (long n : remoteSubmitted)
+            total += n;
+        System.out.println("Remote items submitted: " + total + " (" + (total / seconds) + " per second)");
+        System.out.println("Remote items drawn:     " + renderer.getRemoteLatency().getCount());
+        System.out.println("Frames published:       " + renderer.getFramesPublished());
+        System.out.println("Local input to frame:   " + renderer.getLocalLatency());
+        System.out.println("Remote item to frame:   " + renderer.getRemoteLatency());
+        renderer.shutdown();
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        }
+        catch (InterruptedException e) {
+        }
+    }
+
+}
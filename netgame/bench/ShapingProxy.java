@@ -0,0 +1,489 @@
+package netgame.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import netgame.common.TcpTransport;
+import netgame.common.TokenBucket;
+import netgame.common.Transport;
+
+/**
+ * A ShapingProxy sits between clients and a hub and makes the connections
+ * behave like slow or unreliable network links, so that what happens on a
+ * bad link, such as messages piling up in the hub's outgoing queues, can be
+ * reproduced on one machine.  Clients connect to the proxy's port instead of
+ * the hub's.  For each connection, the proxy opens a connection to the hub
+ * and copies the bytes in both directions.  In each direction, the bytes are
+ * delayed by a latency plus a random jitter, limited to a bandwidth, and held
+ * back entirely while the connection is stalled.  As on a real connection,
+ * bytes are never reordered, so jitter can only delay bytes behind bytes that
+ * were delayed more.  At most MAX_BUFFERED bytes are held in each direction;
+ * beyond that, the proxy stops reading, and flow control pushes back on the
+ * sender, as a full buffer in a router would.
+ *
+ * <p>The connections are numbered 1, 2, 3, ..., in the order in which they are
+ * accepted, so a program that opens its connections one at a time, such as
+ * a {@link LoadGenerator}, knows which is which.  The link settings and stalls
+ * can be changed at any time, for all connections or for one, and getStats()
+ * returns the number of bytes that have been copied on each connection.
+ * Each connection uses four threads.
+ *
+ * <p>The proxy can also be run as a program; see main().
+ */
+public class ShapingProxy {
+
+    /**
+     * The most bytes that are held in each direction of a connection.
+     */
+    public static final int MAX_BUFFERED = 1 << 20;
+
+    private static final int CHUNK_SIZE = 8192;      // The most bytes read at once.
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /**
+     * The settings for a link.  A bandwidth of zero means no limit.
+     */
+    private static final class Link {
+        final int latencyMillis, jitterMillis;
+        final long bytesPerSecond;
+        Link(int latencyMillis, int jitterMillis, long bytesPerSecond) {
+            if (latencyMillis < 0 || jitterMillis < 0 || bytesPerSecond < 0)
+                throw new IllegalArgumentException("Link settings can't be negative.");
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * The number of bytes copied on one connection, at the time getStats() was called.
+     */
+    public static final class Stats {
+        public final int id;
+        public final long bytesToHub, bytesToClient;
+        public final int bufferedToHub, bufferedToClient;  // Bytes read and not yet delivered.
+        public final double seconds;                       // Time since the connection was accepted.
+        public final boolean open;
+        Stats(int id, long bytesToHub, long bytesToClient, int bufferedToHub, int bufferedToClient,
+                double seconds, boolean open) {
+            this.id = id;
+            this.bytesToHub = bytesToHub;
+            this.bytesToClient = bytesToClient;
+            this.bufferedToHub = bufferedToHub;
+            this.bufferedToClient = bufferedToClient;
+            this.seconds = seconds;
+            this.open = open;
+        }
+        public String toString() {
+            return String.format("connection %d: %.1f KB/s to hub, %.1f KB/s to client, "
+                    + "%d and %d bytes buffered%s", id, bytesToHub / 1024.0 / seconds,
+                    bytesToClient / 1024.0 / seconds, bufferedToHub, bufferedToClient, open ? "" : ", closed");
+        }
+    }
+
+    private final Transport transport;
+    private final Transport.Listener listener;
+    private final int port;
+    private final String hubHost;
+    private final int hubPort;
+    private volatile Link link = new Link(0, 0, 0);  // For connections that have no settings of their own.
+    private final Map<Integer,ProxyConnection> connections = new TreeMap<Integer,ProxyConnection>();  // By ID.
+    private int nextID = 1;
+    private volatile boolean closed;
+
+    /**
+     * Creates a proxy that listens on a port on this computer and forwards the
+     * connections to a hub, using TCP.
+     * @throws IOException if the proxy can't listen on the port.
+     */
+    public ShapingProxy(int port, String hubHost, int hubPort) throws IOException {
+        this(new TcpTransport(), port, hubHost, hubPort);
+    }
+
+    /**
+     * Creates a proxy that accepts connections and opens connections to the hub
+     * through a given transport.
+     * @throws IOException if the proxy can't listen on the port.
+     */
+    public ShapingProxy(Transport transport, int port, String hubHost, int hubPort) throws IOException {
+        this.transport = transport;
+        this.port = port;
+        this.hubHost = hubHost;
+        this.hubPort = hubPort;
+        listener = transport.listen(port, 0);
+        Thread acceptor = new Thread("Shaping proxy on port " + port) {
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port where the proxy listens for clients.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sets the link for every connection that has not been given its own
+     * settings with setLink(id,...), including connections opened later.
+     * The settings apply in each direction, so the added round trip time is
+     * twice the latency.
+     * @param latencyMillis the delay added to every byte.
+     * @param jitterMillis the most random delay added to each chunk of bytes, on top of the latency.
+     * @param bytesPerSecond the bandwidth, or zero for no limit.
+     */
+    public void setLink(int latencyMillis, int jitterMillis, long bytesPerSecond) {
+        link = new Link(latencyMillis, jitterMillis, bytesPerSecond);
+    }
+
+    /**
+     * Sets the link for one connection.  Nothing is done if there is no such connection.
+     */
+    public void setLink(int id, int latencyMillis, int jitterMillis, long bytesPerSecond) {
+        ProxyConnection c = find(id);
+        if (c != null)
+            c.link = new Link(latencyMillis, jitterMillis, bytesPerSecond);
+    }
+
+    /**
+     * Stops delivering bytes on every open connection, in both directions, for
+     * a number of milliseconds.  Bytes are still read until the buffers are full.
+     */
+    public void stall(int millis) {
+        long until = System.nanoTime() + millis*1000000L;
+        synchronized(connections) {
+            for (ProxyConnection c : connections.values())
+                c.stalledUntil = until;
+        }
+    }
+
+    /**
+     * Stalls one connection, as stall() does for all of them.
+     */
+    public void stall(int id, int millis) {
+        ProxyConnection c = find(id);
+        if (c != null)
+            c.stalledUntil = System.nanoTime() + millis*1000000L;
+    }
+
+    /**
+     * Returns the numbers of bytes copied on each connection that has been
+     * accepted, including the ones that are closed, in order of their IDs.
+     */
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<Stats>();
+        long now = System.nanoTime();
+        synchronized(connections) {
+            for (ProxyConnection c : connections.values()) {
+                stats.add(new Stats(c.id, c.toHub.bytes.get(), c.toClient.bytes.get(), c.toHub.buffered(),
+                        c.toClient.buffered(), Math.max(1, now - c.opened) / 1e9, !c.closed));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Stops accepting connections and closes all the connections.
+     */
+    public void close() {
+        closed = true;
+        try {
+            listener.close();
+        }
+        catch (IOException e) {
+        }
+        synchronized(connections) {
+            for (ProxyConnection c : connections.values())
+                c.close();
+        }
+    }
+
+    private ProxyConnection find(int id) {
+        synchronized(connections) {
+            return connections.get(id);
+        }
+    }
+
+    /**
+     * The run() method of the thread that accepts connections.  The connection
+     * to the hub is opened before anything is copied; if it can't be opened,
+     * the client's connection is closed.
+     */
+    private void acceptConnections() {
+        while (!closed) {
+            Transport.Connection client;
+            try {
+                client = listener.accept();
+            }
+            catch (IOException e) {
+                if (!closed)
+                    System.out.println("Shaping proxy stopped accepting connections: " + e);
+                return;
+            }
+            Transport.Connection hub;
+            try {
+                hub = transport.connect(hubHost, hubPort, CONNECT_TIMEOUT, 0);
+            }
+            catch (IOException e) {
+                System.out.println("Shaping proxy can't connect to the hub: " + e);
+                try {
+                    client.close();
+                }
+                catch (IOException e1) {
+                }
+                continue;
+            }
+            ProxyConnection c;
+            synchronized(connections) {
+                c = new ProxyConnection(nextID++, client, hub);
+                connections.put(c.id, c);
+            }
+            c.start();
+        }
+    }
+
+    /**
+     * One client's connection and the proxy's connection to the hub for it.
+     */
+    private class ProxyConnection {
+        final int id;
+        final Transport.Connection client, hub;
+        final Direction toHub, toClient;
+        final long opened = System.nanoTime();
+        volatile Link link;          // This connection's own settings, or null to use the proxy's.
+        volatile long stalledUntil;  // Value of System.nanoTime() when a stall ends.
+        volatile boolean closed;
+        ProxyConnection(int id, Transport.Connection client, Transport.Connection hub) {
+            this.id = id;
+            this.client = client;
+            this.hub = hub;
+            stalledUntil = opened;
+            toHub = new Direction(this, client, hub);
+            toClient = new Direction(this, hub, client);
+        }
+        Link getLink() {
+            Link l = link;
+            return l != null ? l : ShapingProxy.this.link;
+        }
+        void start() {
+            toHub.start("proxy " + id + " to hub");
+            toClient.start("proxy " + id + " to client");
+        }
+        void close() {
+            closed = true;
+            try {
+                client.close();
+            }
+            catch (IOException e) {
+            }
+            try {
+                hub.close();
+            }
+            catch (IOException e) {
+            }
+            toHub.wake();
+            toClient.wake();
+        }
+    }
+
+    /**
+     * A chunk of bytes that was read, with the time when it is to be delivered.
+     * A chunk with null data marks the end of the stream.
+     */
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final long deliverAt;
+        Chunk(byte[] data, int length, long deliverAt) {
+            this.data = data;
+            this.length = length;
+            this.deliverAt = deliverAt;
+        }
+    }
+
+    /**
+     * One direction of a connection.  A reader thread reads chunks of bytes and
+     * gives each one a delivery time, and a writer thread writes them when the
+     * time comes, as fast as the bandwidth allows.  When the stream ends, the
+     * bytes that were read in this direction are delivered, and then the whole
+     * connection is closed, since a Transport.Connection can't be half closed.
+     */
+    private static class Direction {
+        private final ProxyConnection connection;
+        private final Transport.Connection from, to;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+        private int buffered;              // Total length of the chunks.
+        private long lastDelivery;         // The delivery time of the most recent chunk.
+        private TokenBucket bucket;        // Used only by the writer; null when there is no limit.
+        private long bucketRate;
+        final AtomicLong bytes = new AtomicLong();  // Bytes delivered.
+        Direction(ProxyConnection connection, Transport.Connection from, Transport.Connection to) {
+            this.connection = connection;
+            this.from = from;
+            this.to = to;
+        }
+        void start(String name) {
+            Thread reader = new Thread(name + " reader") {
+                public void run() {
+                    read();
+                }
+            };
+            Thread writer = new Thread(name + " writer") {
+                public void run() {
+                    write();
+                }
+            };
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+        synchronized int buffered() {
+            return buffered;
+        }
+        synchronized void wake() {
+            notifyAll();
+        }
+        private void read() {
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    byte[] data = new byte[CHUNK_SIZE];
+                    int n = in.read(data);
+                    if (n < 0)
+                        break;
+                    Link link = connection.getLink();
+                    long delay = link.latencyMillis
+                            + (link.jitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextInt(link.jitterMillis + 1));
+                    if (!add(new Chunk(data, n, System.nanoTime() + delay*1000000L)))
+                        return;
+                }
+            }
+            catch (IOException e) {
+            }
+            catch (InterruptedException e) {
+            }
+            try {
+                add(new Chunk(null, 0, 0));
+            }
+            catch (InterruptedException e) {
+            }
+        }
+        /**
+         * Adds a chunk, waiting while the buffer is full, and returns false if
+         * the connection has been closed.
+         */
+        private synchronized boolean add(Chunk chunk) throws InterruptedException {
+            while (buffered > 0 && buffered + chunk.length > MAX_BUFFERED && !connection.closed)
+                wait();
+            if (connection.closed)
+                return false;
+            long deliverAt = Math.max(chunk.deliverAt, lastDelivery);  // Never ahead of earlier bytes.
+            lastDelivery = deliverAt;
+            chunks.add(new Chunk(chunk.data, chunk.length, deliverAt));
+            buffered += chunk.length;
+            notifyAll();
+            return true;
+        }
+        private synchronized Chunk take() throws InterruptedException {
+            while (chunks.isEmpty() && !connection.closed)
+                wait();
+            return connection.closed ? null : chunks.peek();
+        }
+        private synchronized void remove(Chunk chunk) {
+            chunks.remove();
+            buffered -= chunk.length;
+            notifyAll();
+        }
+        private void write() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = take();
+                    if (chunk == null || chunk.data == null)
+                        break;
+                    sleepUntil(chunk.deliverAt);
+                    sleepUntil(connection.stalledUntil);
+                    long rate = connection.getLink().bytesPerSecond;
+                    if (rate != bucketRate) {
+                        bucketRate = rate;
+                        bucket = rate == 0 ? null : new TokenBucket(rate, Math.min(rate, CHUNK_SIZE));
+                    }
+                    if (bucket != null) {
+                        long wait = bucket.take(chunk.length);
+                        if (wait > 0)
+                            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    }
+                    sleepUntil(connection.stalledUntil);  // In case a stall began while waiting.
+                    out.write(chunk.data, 0, chunk.length);
+                    bytes.addAndGet(chunk.length);
+                    remove(chunk);
+                }
+            }
+            catch (IOException e) {
+            }
+            catch (InterruptedException e) {
+            }
+            connection.close();
+        }
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        while (wait > 0) {
+            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            wait = nanoTime - System.nanoTime();
+        }
+    }
+
+    /**
+     * Runs a proxy and prints the throughput of each open connection once a
+     * second, until the program is killed.  The command-line arguments, all
+     * optional, are the port where the proxy listens (default 32002), the host
+     * and port of the hub (default localhost and 32001), the latency and
+     * jitter in milliseconds (default 50 and 10), and the bandwidth in
+     * kilobytes per second for each direction of each connection (default 0,
+     * meaning no limit).
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 32002;
+        String hubHost = args.length > 1 ? args[1] : "localhost";
+        int hubPort = args.length > 2 ? Integer.parseInt(args[2]) : 32001;
+        int latency = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        int jitter = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        long bandwidth = args.length > 5 ? Long.parseLong(args[5]) * 1024 : 0;
+        ShapingProxy proxy = new ShapingProxy(port, hubHost, hubPort);
+        proxy.setLink(latency, jitter, bandwidth);
+        System.out.println("Proxy on port " + port + " for " + hubHost + ":" + hubPort + ", latency " + latency
+                + " ms, jitter " + jitter + " ms, " + (bandwidth == 0 ? "no bandwidth limit" : args[5] + " KB/s"));
+        Map<Integer,long[]> previous = new TreeMap<Integer,long[]>();
+        while (true) {
+            Thread.sleep(1000);
+            for (Stats s : proxy.getStats()) {
+                long[] prev = previous.get(s.id);
+                if (!s.open) {
+                    previous.remove(s.id);
+                    continue;
+                }
+                if (prev == null)
+                    prev = new long[2];
+                System.out.printf("connection %d: %.1f KB/s to hub, %.1f KB/s to client, %d and %d bytes buffered%n",
+                        s.id, (s.bytesToHub - prev[0]) / 1024.0, (s.bytesToClient - prev[1]) / 1024.0,
+                        s.bufferedToHub, s.bufferedToClient);
+                previous.put(s.id, new long[] { s.bytesToHub, s.bytesToClient });
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package netgame.bench;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.DrawStyle;
+import netgame.draw.raster.Rasterizer;
+import netgame.draw.raster.RenderLoop;
+import netgame.draw.raster.TiledCanvas;
+
+/**
+ * Measures how fast thick freehand strokes are rasterized when the connected
+ * lines of a stroke are drawn as one path, compared to one drawLine() for each
+ * line.  For each of the widths 10, 15, and 20, the program makes random strokes
+ * of short connected lines, in the order in which NetDraw produces them, and
+ * the same lines with their endpoints swapped, which no longer connect, so each
+ * is drawn by itself, with almost the same pixels.  Each list is submitted to
+ * a RenderLoop as remote items and timed until the last item is published,
+ * and then drawn by a Rasterizer with one thread, as when a session is opened.
+ * The number of lines drawn per second is printed for each case.
+ *
+ * <p>Command-line arguments, all optional:  the number of lines for each width
+ * (default 200000) and the number of lines in a stroke (default 50).
+ */
+public class StrokeRenderBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int strokeLength = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        ForkJoinPool pool = new ForkJoinPool(1);
+        System.out.println("width  lines        render loop (lines/s)    rasterizer (lines/s)");
+        for (int strokeIndex = 6; strokeIndex <= 8; strokeIndex++) {
+            List<DrawOp> connected = makeStrokes(itemCount, strokeLength, strokeIndex);
+            List<DrawOp> separate = new ArrayList<DrawOp>(connected.size());
+            for (DrawOp op : connected) {
+                separate.add(DrawOp.line(op.getColor(), op.strokeIndex, op.x2, op.y2, op.x1, op.y1)
+                        .inStroke(op.stroke));
+            }
+            for (int pass = 0; pass < 2; pass++) {  // The first pass warms up the JIT.
+                for (List<DrawOp> ops : List.of(separate, connected)) {
+                    double loopRate = ops.size() / renderLoopSeconds(ops);
+                    double rasterRate = ops.size() / rasterizerSeconds(ops, pool);
+                    if (pass == 1) {
+                        System.out.printf("%5d  %-9s  %,22.0f  %,22.0f%n", DrawStyle.getStrokeWidth(strokeIndex),
+                                ops == connected ? "path" : "separate", loopRate, rasterRate);
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Makes random strokes of short connected lines.  As in NetDraw, each line
+     * goes from the new mouse position back to the previous one.
+     */
+    private static List<DrawOp> makeStrokes(int itemCount, int strokeLength, int strokeIndex) {
+        Random rand = new Random(strokeIndex);
+        List<DrawOp> ops = new ArrayList<DrawOp>(itemCount);
+        int strokeCount = 0;
+        while (ops.size() < itemCount) {
+            long stroke = DrawOp.strokeId(1, ++strokeCount);
+            Color color = new Color(rand.nextInt(0xFFFFFF));
+            int x = rand.nextInt(800), y = rand.nextInt(600);
+            for (int j = 0; j < strokeLength && ops.size() < itemCount; j++) {
+                int nx = Math.max(0, Math.min(799, x + rand.nextInt(21) - 10));
+                int ny = Math.max(0, Math.min(599, y + rand.nextInt(21) - 10));
+                ops.add(DrawOp.line(color, strokeIndex, nx, ny, x, y).inStroke(stroke));
+                x = nx;
+                y = ny;
+            }
+        }
+        return ops;
+    }
+
+    private static double renderLoopSeconds(List<DrawOp> ops) throws InterruptedException {
+        RenderLoop renderer = new RenderLoop(800, 600, null);
+        long start = System.nanoTime();
+        for (DrawOp op : ops)
+            renderer.submit(op, false);
+        while (renderer.getRemoteLatency().getCount() < ops.size())
+            Thread.sleep(1);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        renderer.shutdown();
+        return seconds;
+    }
+
+    private static double rasterizerSeconds(List<DrawOp> ops, ForkJoinPool pool) {
+        TiledCanvas canvas = new TiledCanvas(800, 600);
+        long start = System.nanoTime();
+        new Rasterizer(pool).render(canvas, ops);
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+}
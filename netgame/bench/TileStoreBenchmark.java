@@ -0,0 +1,69 @@
+package netgame.bench;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.Random;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.TileStore;
+import netgame.draw.raster.TiledCanvas;
+
+/**
+ * Shows how the heap that a TiledCanvas needs grows with the size of the
+ * canvas, with its tiles on the heap and with its tiles in a TileStore.  For
+ * canvases of increasing size, the program draws random strokes of thick
+ * lines, the same number for each square megapixel, one item at a time as a
+ * long-lived canvas would get them.  Then it prints the heap in use after a
+ * garbage collection, the direct memory and spill file used by the store, and
+ * the time taken.  Without a store, the heap grows with the area that has
+ * been drawn on; with a store, it should stay about the same.  Canvases on the
+ * heap are skipped once they would not fit in the maximum heap.
+ *
+ * <p>Command-line arguments, all optional:  the width and height of the largest
+ * canvas (default 16384), the number of items per megapixel (default 2000),
+ * and the direct memory budget of the store in megabytes (default 64).
+ */
+public class TileStoreBenchmark {
+
+    public static void main(String[] args) {
+        int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int density = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long budget = (args.length > 2 ? Long.parseLong(args[2]) : 64) << 20;
+        System.out.println("   size   store    heap MB  direct MB  mapped MB  stored MB   seconds");
+        for (int size = 2048; size <= maxSize; size *= 2) {
+            long pixels = (long)size*size;
+            if (4*pixels < Runtime.getRuntime().maxMemory() / 2)
+                run(size, density, null);
+            TileStore store = new TileStore(budget, TileStore.DEFAULT_HOT_TILES, null);
+            run(size, density, store);
+            store.close();
+        }
+    }
+
+    private static void run(int size, int density, TileStore store) {
+        TiledCanvas canvas = new TiledCanvas(new Rectangle(0, 0, size, size), store);
+        Random rand = new Random(size);
+        long items = (long)size*size / 1000000 * density;
+        long start = System.nanoTime();
+        for (long i = 0; i < items; i += 20) {
+            Color color = new Color(rand.nextInt(0xFFFFFF));
+            int x = rand.nextInt(size), y = rand.nextInt(size);
+            for (int j = 0; j < 20; j++) {
+                int nx = x + rand.nextInt(41) - 20, ny = y + rand.nextInt(41) - 20;
+                canvas.apply(DrawOp.line(color, 6, x, y, nx, ny));
+                x = nx;
+                y = ny;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        double heap = (rt.totalMemory() - rt.freeMemory()) / 1048576.0;
+        if (store == null)
+            System.out.printf("%7d  %6s  %9.1f  %9s  %9s  %9s  %8.1f%n", size, "no", heap, "-", "-", "-", seconds);
+        else
+            System.out.printf("%7d  %6s  %9.1f  %9.1f  %9.1f  %9.1f  %8.1f%n", size, "yes", heap,
+                    store.getDirectBytes() / 1048576.0, store.getMappedBytes() / 1048576.0,
+                    store.getStoredBytes() / 1048576.0, seconds);
+    }
+
+}
@@ -0,0 +1,131 @@
+package netgame.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import netgame.common.Client;
+import netgame.common.TrafficCapture;
+import netgame.common.TrafficRecorder;
+
+/**
+ * Replays a capture file that was written by a TrafficRecorder against a hub.
+ * Each player in the capture is played by a synthetic client, which connects
+ * when the player connected, sends the same messages in the same order, and
+ * disconnects when the player disconnected.  A player that was already
+ * connected when recording started is connected just before its first message.
+ * The records are replayed by one thread in the order in which they were
+ * recorded, at the recorded speed, at a multiple of it, or as fast as possible,
+ * so two hubs can be compared on exactly the same workload.
+ *
+ * <p>The messages are sent unchanged, so if they contain player IDs, as the
+ * stroke numbers of NetDraw items do, they refer to the IDs of the recorded
+ * players.  They match the IDs of the synthetic clients if the hub is started
+ * fresh for the replay and the capture was started when its hub was.
+ *
+ * <p>At the end, the program waits until the hub has processed every message
+ * from the clients that are still connected, and prints how long the replay
+ * took, how far it fell behind the schedule, and how many messages the clients
+ * received.
+ *
+ * <p>Command-line arguments:  the capture file, and optionally the speed, which
+ * is a multiple of the recorded speed or "max" (default 1), the host of the hub
+ * (default localhost), and its port (default 32001).
+ */
+public class TrafficReplayer {
+
+    /**
+     * A synthetic client.  It ignores the messages that it receives; the Client
+     * class counts them.
+     */
+    private static class ReplayClient extends Client {
+        CompletableFuture<Void> lastAck;  // For the last message sent.
+        ReplayClient(String host, int port) throws IOException {
+            super(host, port);
+        }
+        protected void messageReceived(Object message) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java netgame.bench.TrafficReplayer <capture> [<speed>|max] [<host>] [<port>]");
+            return;
+        }
+        File file = new File(args[0]);
+        double speed = 1;  // Zero means as fast as possible.
+        if (args.length > 1) {
+            speed = args[1].equals("max") ? 0 : Double.parseDouble(args[1]);
+            if (speed < 0 || (speed == 0 && !args[1].equals("max")))
+                throw new IllegalArgumentException("The speed must be positive.");
+        }
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 32001;
+
+        Map<Integer,ReplayClient> clients = new HashMap<Integer,ReplayClient>();
+        List<ReplayClient> all = new ArrayList<ReplayClient>();
+        TrafficCapture capture = new TrafficCapture(file);
+        long messages = 0, bytes = 0, maxLagNanos = 0;
+        long start = System.nanoTime();
+        TrafficCapture.Record record;
+        while ((record = capture.next()) != null) {
+            if (speed > 0) {
+                long due = start + (long)(record.getMicros() * 1000 / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                else
+                    maxLagNanos = Math.max(maxLagNanos, -wait);
+            }
+            int player = record.getPlayerID();
+            ReplayClient client = clients.get(player);
+            if (record.getKind() == TrafficRecorder.DISCONNECT) {
+                if (client != null) {
+                    client.disconnect();
+                    clients.remove(player);
+                }
+                continue;
+            }
+            if (client == null) {
+                client = new ReplayClient(host, port);
+                clients.put(player, client);
+                all.add(client);
+            }
+            if (record.getKind() == TrafficRecorder.MESSAGE) {
+                client.lastAck = client.sendAsync(record.getMessage());
+                messages++;
+                bytes += record.getSize();
+            }
+        }
+        capture.close();
+        double sent = (System.nanoTime() - start) / 1e9;
+        for (ReplayClient client : clients.values()) {
+            if (client.lastAck != null) {
+                try {
+                    client.lastAck.get(60, TimeUnit.SECONDS);
+                }
+                catch (Exception e) {
+                    System.out.println("A message was not acknowledged: " + e);
+                }
+            }
+        }
+        double done = (System.nanoTime() - start) / 1e9;
+        long received = 0;
+        for (ReplayClient client : all)
+            received += client.getMessagesReceived();
+        System.out.printf("Replayed %,d messages (%,d bytes) from %d players in %.2f s (%.0f messages per second)%n",
+                messages, bytes, all.size(), sent, messages / sent);
+        System.out.printf("All messages processed by the hub after %.2f s%n", done);
+        if (speed > 0)
+            System.out.printf("Fell behind the schedule by up to %.1f ms%n", maxLagNanos / 1e6);
+        System.out.printf("Clients received %,d messages%n", received);
+        for (ReplayClient client : clients.values())
+            client.disconnect();
+        System.exit(0);
+    }
+
+}
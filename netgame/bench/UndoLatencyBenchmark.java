@@ -0,0 +1,93 @@
+package netgame.bench;
+
+import java.awt.Color;
+import java.util.Random;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.LatencyRecorder;
+import netgame.draw.raster.RenderLoop;
+
+/**
+ * Measures how long it takes a RenderLoop to undo and redo a stroke when the
+ * history of the drawing is very long.  The program first fills the history
+ * with random strokes of connected thick lines, as if many users had been
+ * drawing for a long time, and waits until all of them have been drawn.  Then
+ * it undoes and redoes strokes, one at a time, and prints the delay from
+ * submitting each undo or redo to the publication of a frame that shows it,
+ * along with the average number of items that had to be drawn again.  This is
+ * done first for the most recent strokes, which is the usual case, and then
+ * for strokes chosen at random from the whole history, which is the worst case.
+ *
+ * <p>Command-line arguments, all optional:  the number of items in the history
+ * (default 1000000), the number of lines in a stroke (default 20), and the
+ * number of strokes to undo and redo in each test (default 200).
+ */
+public class UndoLatencyBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int strokeLength = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        RenderLoop renderer = new RenderLoop(800, 600, null);
+        Random rand = new Random(1);
+        long[] strokes = new long[(itemCount + strokeLength - 1) / strokeLength];
+        int strokeCount = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < itemCount; i += strokeLength) {
+            long stroke = DrawOp.strokeId(1 + rand.nextInt(8), strokeCount + 1);
+            strokes[strokeCount++] = stroke;
+            Color color = new Color(rand.nextInt(0xFFFFFF));
+            int x = rand.nextInt(800), y = rand.nextInt(600);
+            for (int j = 0; j < strokeLength && i + j < itemCount; j++) {
+                int nx = Math.max(0, Math.min(799, x + rand.nextInt(21) - 10));
+                int ny = Math.max(0, Math.min(599, y + rand.nextInt(21) - 10));
+                renderer.submit(DrawOp.line(color, 6, x, y, nx, ny).inStroke(stroke), false);
+                x = nx;
+                y = ny;
+            }
+        }
+        while (renderer.getHistory().size() < itemCount)
+            Thread.sleep(10);
+        System.out.printf("Drew %,d items in %d strokes in %.1f s%n",
+                itemCount, strokeCount, (System.nanoTime() - start) / 1e9);
+
+        long[] recent = new long[trials];
+        for (int i = 0; i < trials; i++)
+            recent[i] = strokes[strokeCount - 1 - i];
+        run(renderer, "Undo recent strokes:   ", recent, true);
+        run(renderer, "Redo recent strokes:   ", reversed(recent), false);
+
+        long[] random = new long[trials];
+        for (int i = 0; i < trials; i++)
+            random[i] = strokes[rand.nextInt(strokeCount)];
+        run(renderer, "Undo random strokes:   ", random, true);
+        run(renderer, "Redo random strokes:   ", reversed(random), false);
+        renderer.shutdown();
+    }
+
+    private static long[] reversed(long[] strokes) {
+        long[] r = new long[strokes.length];
+        for (int i = 0; i < strokes.length; i++)
+            r[i] = strokes[strokes.length - 1 - i];
+        return r;
+    }
+
+    /**
+     * Undoes or redoes each of a list of strokes, waiting for each one to be
+     * published before going on to the next, and prints the statistics.
+     */
+    private static void run(RenderLoop renderer, String label, long[] strokes, boolean undo)
+            throws InterruptedException {
+        LatencyRecorder latency = renderer.getLocalLatency();
+        latency.reset();
+        long redrawn = renderer.getItemsRedrawn();
+        for (long stroke : strokes) {
+            long count = latency.getCount();
+            renderer.submit(undo ? DrawOp.undo(stroke) : DrawOp.redo(stroke), true);
+            while (latency.getCount() == count)
+                Thread.sleep(1);
+        }
+        System.out.println(label + latency);
+        System.out.printf("    items drawn again: %,d per stroke%n", (renderer.getItemsRedrawn() - redrawn) / strokes.length);
+    }
+
+}
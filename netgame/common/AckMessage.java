@@ -0,0 +1,21 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * An AckMessage is sent by the Hub to a Client that has asked for
+ * acknowledgements.  It says how many of the client's application messages
+ * the hub has processed, counting the ones that the client sent before it
+ * asked.  The count is cumulative, so a newer AckMessage that is queued
+ * replaces an older one that has not been sent yet.  This package private
+ * class is only used internally.
+ */
+final class AckMessage implements Serializable {
+   
+   public final long processed;
+   
+   public AckMessage(long processed) {
+      this.processed = processed;
+   }
+   
+}
@@ -0,0 +1,25 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * An AckRequest is sent by a Client the first time that it calls sendAsync(),
+ * to ask the Hub to acknowledge the application messages that it processes
+ * from then on.  It goes in the same lane as application messages, and it
+ * tells the hub how many application messages the client had sent before it,
+ * so that both ends number the messages in the same way.  The client sends it
+ * again if messages might have been lost while resuming a connection.  This
+ * package private class is only used internally.
+ */
+final class AckRequest implements Serializable {
+   
+   /**
+    * The number of application messages that the client sent before this one.
+    */
+   public final long sent;
+   
+   public AckRequest(long sent) {
+      this.sent = sent;
+   }
+   
+}
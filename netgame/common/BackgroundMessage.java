@@ -0,0 +1,22 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A marker for application messages that should not delay other traffic,
+ * such as the pieces of a large file that is being transferred.  When a Hub
+ * or a Client sends a message that implements this interface, the message
+ * waits in a background lane, behind the ordinary application messages:
+ * at most one background message is sent for each batch of ordinary ones,
+ * so a steady stream of small messages is only ever held up by one background
+ * message.  Large data should therefore be split into several messages of
+ * moderate size.
+ * 
+ * <p>Background messages stay in order among themselves, but ordinary messages
+ * that are sent later can overtake them, so a background message must not
+ * depend on the ordinary messages around it.  Since acknowledgements count
+ * messages in the order in which they are processed, sendAsync() should not
+ * be used for background messages.
+ */
+public interface BackgroundMessage extends Serializable {
+}
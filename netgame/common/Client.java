@@ -1,11 +1,21 @@
 package netgame.common;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -33,6 +43,33 @@ import java.util.concurrent.LinkedBlockingQueue;
  * the getID() method.  The protected variable connectedPlayerIDs
  * contains the ID numbers of all clients currently connected to the
  * hub, including this one.
+ * <p>A client can measure the round trip time to the hub by sending
+ * probe messages, which the hub echoes straight back.  Call 
+ * setProbeInterval() to turn this on.  The most recent round trip
+ * time, the number of messages sent and received, and the number of
+ * messages waiting to be transmitted can be read at any time, for
+ * example to show them to the user or to collect statistics in a
+ * load test.
+ * <p>If setResumeTimeout() has been called, a connection that is lost because
+ * of a network error is resumed automatically, if possible, without losing
+ * any messages.  See the Hub class for details.
+ * <p>Outgoing messages wait in a queue with three lanes, so internal control
+ * messages, such as probes, are not delayed behind application messages, and
+ * application messages are not delayed behind {@link BackgroundMessage
+ * BackgroundMessages}.
+ * <p>A client that is created with the constructor that takes no parameters is
+ * not connected.  Its connectAsync() method opens the connection in another
+ * thread, with a time limit, and returns a CompletableFuture that completes
+ * when the client is connected, so that a GUI does not freeze while it waits
+ * for a slow or unreachable hub.  The sendAsync() method is like send(), but
+ * returns a CompletableFuture that completes when the hub has processed the
+ * message.  By default, the methods that subclasses override to handle events
+ * are called in the thread that receives messages from the hub;
+ * setCallbackExecutor() can be used to run them somewhere else, such as on the
+ * Swing event dispatch thread.
+ * <p>The connection is opened by a {@link Transport}, which is TCP unless
+ * another transport is given to the constructor or to setTransport().  A
+ * client must use the same transport as its hub.
  */
 abstract public class Client {
    
@@ -50,6 +87,23 @@ abstract public class Client {
     */
    private volatile boolean autoreset;
    
+   private volatile int probeInterval;          // Milliseconds between probes; 0 means no probes.
+   private volatile long roundTripNanos = -1;   // Most recent measured round trip time.
+   private volatile long smoothedRoundTripNanos = -1;  // Exponentially weighted average of round trip times.
+   private final AtomicLong messagesSent = new AtomicLong();
+   private final AtomicLong messagesReceived = new AtomicLong();
+   private volatile int receiveBufferSize;      // SO_RCVBUF for the socket; 0 means the system default.
+   private volatile int resumeTimeout;          // Milliseconds to spend trying to resume; 0 means never.
+   private volatile Executor callbackExecutor;  // Runs the callbacks; null means the receive thread does.
+   private volatile Transport transport = new TcpTransport();  // Opens connections to the hub.
+   
+   private final ArrayDeque<PendingAck> pendingAcks = new ArrayDeque<PendingAck>();  // In order of seq.
+   private boolean acksRequested;               // Set when the first AckRequest is sent; guarded,
+                                                //    like the numbering of messages, by pendingAcks.
+   private CompletableFuture<Integer> connectFuture;  // Set by connectAsync(); guarded by this.
+   
+   private static final int REPLAY_CAPACITY = 1024;  // Number of sent messages kept for resuming.
+   
    /**
     * Constructor opens a connection to a Hub.  This constructor will 
     * block while waiting for the connection to be established.
@@ -58,7 +112,30 @@ abstract public class Client {
     * @throws IOException if any I/O exception occurs while trying to connect.
     */
    public Client(String hubHostName, int hubPort) throws IOException {
-      connection = new ConnectionToHub(hubHostName, hubPort);
+      this(new TcpTransport(), hubHostName, hubPort);
+   }
+   
+   /**
+    * Constructor opens a connection to a Hub with a specified transport, such
+    * as a LoopbackTransport, which must be the one that the Hub uses.  This
+    * constructor will block while waiting for the connection to be established.
+    * @param transport    The transport that opens the connection.
+    * @param hubHostName  The host name (or IP address) of the computer where the Hub is running.
+    * @param hubPort      The port number on which the Hub is listening for connection requests.
+    * @throws IOException if any I/O exception occurs while trying to connect.
+    */
+   public Client(Transport transport, String hubHostName, int hubPort) throws IOException {
+      this.transport = transport;
+      ConnectionToHub c = new ConnectionToHub(hubHostName, hubPort, 0);
+      connection = c;
+      c.start();
+   }
+   
+   /**
+    * Creates a client that is not connected.  Call connectAsync() to connect
+    * it to a hub.  Until it is connected, messages can't be sent.
+    */
+   protected Client() {
    }
 
    // ---------------- Methods that subclasses can override --------------------------
@@ -130,6 +207,27 @@ abstract public class Client {
    protected void extraHandshake(ObjectInputStream in, ObjectOutputStream out) 
                                                             throws IOException {
    }
+   
+   /**
+    * This method is called each time the round trip time to the hub has been
+    * measured, if probes have been turned on with setProbeInterval().  It is
+    * called in the thread that receives messages from the hub, or by the
+    * callback executor if one has been set.  The method in this class does nothing.
+    * @param nanos the round trip time, in nanoseconds.
+    */
+   protected void roundTripMeasured(long nanos) { }
+   
+   /**
+    * This method is called after a connection that was lost has been resumed,
+    * if resuming has been turned on with setResumeTimeout().  It is called in
+    * the thread that resumed the connection, or by the callback executor if one
+    * has been set, after the messages that the hub
+    * missed have been sent again, but possibly before the messages that this
+    * client missed have arrived.  The method in this class does nothing.
+    * @param complete true if no messages were lost in either direction, false
+    *    if some messages were too old to be sent again.
+    */
+   protected void connectionResumed(boolean complete) { }
 
    // ----------------------- Methods meant to be called by users of this class -----------
    
@@ -138,8 +236,77 @@ abstract public class Client {
     * If the connection is already closed, this method has no effect.
     */
    public void disconnect() {
-      if (!connection.closed)
-         connection.send(new DisconnectMessage("Goodbye Hub"));
+      ConnectionToHub c;
+      synchronized(this) {
+         c = connection;
+         if (c == null) {  // Not connected yet; the connection is closed if it is opened anyway.
+            if (connectFuture != null)
+               connectFuture.cancel(false);
+            return;
+         }
+      }
+      if (!c.closed)  // Goes in the bulk lane, so that messages already sent are delivered first.
+         c.outgoingMessages.add(new DisconnectMessage("Goodbye Hub"), LaneQueue.BULK);
+   }
+   
+   /**
+    * Connects this client to a hub, if it was created with the constructor that
+    * takes no parameters.  The connection is opened and the handshake is done
+    * in a separate thread, so this method returns at once.  The future that it
+    * returns completes with the ID of this client when the connection has been
+    * established, or exceptionally, with an IOException, if the connection
+    * can't be opened or the handshake can't be completed within the time limit.
+    * Calling disconnect() before the connection is established cancels the
+    * future.  The future is completed by the callback executor, if one has been
+    * set, before any of the other callbacks for the connection are called.
+    * @param hubHostName  The host name (or IP address) of the computer where the Hub is running.
+    * @param hubPort      The port number on which the Hub is listening for connection requests.
+    * @param timeoutMillis the time limit for connecting and doing the handshake,
+    *    in milliseconds, or 0 for no limit.
+    * @throws IllegalStateException if this client is already connected or connecting.
+    */
+   public CompletableFuture<Integer> connectAsync(final String hubHostName, final int hubPort, 
+                                                                final int timeoutMillis) {
+      if (timeoutMillis < 0)
+         throw new IllegalArgumentException("Timeout can't be negative.");
+      final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+      synchronized(this) {
+         if (connection != null || connectFuture != null)
+            throw new IllegalStateException("This client is already connected or connecting.");
+         connectFuture = future;
+      }
+      Thread connector = new Thread("Client connect") {
+         public void run() {
+            final ConnectionToHub c;
+            try {
+               c = new ConnectionToHub(hubHostName, hubPort, timeoutMillis);
+            }
+            catch (final IOException e) {
+               deliver(new Runnable() {
+                  public void run() {
+                     future.completeExceptionally(e);
+                  }
+               });
+               return;
+            }
+            synchronized(Client.this) {
+               if (future.isDone()) {  // Cancelled by disconnect().
+                  c.close();
+                  return;
+               }
+               connection = c;
+            }
+            deliver(new Runnable() {
+               public void run() {
+                  future.complete(c.id_number);
+               }
+            });
+            c.start();
+         }
+      };
+      connector.setDaemon(true);
+      connector.start();
+      return future;
    }
    
    /**
@@ -155,13 +322,164 @@ abstract public class Client {
     *    because of a network error.
     */
    public void send(Object message) {
-      if (message == null)
-         throw new IllegalArgumentException("Null cannot be sent as a message.");
-      if (! (message instanceof Serializable))
-         throw new IllegalArgumentException("Messages must implement the Serializable interface.");
-      if (connection.closed)
-         throw new IllegalStateException("Message cannot be sent because the connection is closed.");
-      connection.send(message);
+      send(message, null);
+   }
+   
+   /**
+    * Sends a message to the hub, like send(), and returns a future that
+    * completes when the hub has processed the message; that is, when the hub's
+    * messageReceived() method has returned, which for a Hub that forwards
+    * messages means that the message has been queued for every client.  In
+    * relay mode, the message is processed when it has been queued for every
+    * client.  The hub acknowledges the messages that it has processed with a
+    * running count, so one acknowledgement can complete many futures.  The
+    * future completes exceptionally, with an IOException, if the connection is
+    * closed first, or if the connection is resumed after some messages to the
+    * hub were lost.  Futures are completed by the callback executor, if one
+    * has been set, and otherwise by the thread that receives messages.
+    * @throws IllegalArgumentException if message is null or is not Serializable.
+    * @throws IllegalStateException if the connection has already been closed
+    *    or has not been opened.
+    */
+   public CompletableFuture<Void> sendAsync(Object message) {
+      CompletableFuture<Void> ack = new CompletableFuture<Void>();
+      send(message, ack);
+      return ack;
+   }
+   
+   /**
+    * Sets the executor that calls the methods that subclasses override to
+    * handle events, such as messageReceived() and playerConnected(), and that
+    * completes the futures returned by connectAsync() and sendAsync().  By
+    * default, they are called directly in the thread that receives messages from
+    * the hub.  The executor should run tasks one at a time, in order, or the
+    * callbacks might be called in a different order than the events happened.
+    * Note that connectedPlayerIDs is changed in the receive thread, so when an
+    * executor is used, it can already include changes that a callback has not
+    * been told about yet.
+    * @param executor the executor, or null to call the callbacks in the receive thread.
+    */
+   public void setCallbackExecutor(Executor executor) {
+      callbackExecutor = executor;
+   }
+   
+   /**
+    * Returns the executor that calls the callbacks, or null if they are called
+    * in the thread that receives messages from the hub.
+    */
+   public Executor getCallbackExecutor() {
+      return callbackExecutor;
+   }
+   
+   /**
+    * Sets the time between probe messages that are sent to measure the
+    * round trip time to the hub.  A value of zero, which is the default,
+    * turns probes off.
+    * @param millis the time between probes, in milliseconds.
+    */
+   public void setProbeInterval(int millis) {
+      if (millis < 0)
+         throw new IllegalArgumentException("Probe interval can't be negative.");
+      probeInterval = millis;
+   }
+   
+   /**
+    * Returns the time between probe messages, in milliseconds, or 0 if probes are off.
+    */
+   public int getProbeInterval() {
+      return probeInterval;
+   }
+   
+   /**
+    * Returns the most recently measured round trip time to the hub, in
+    * nanoseconds, or -1 if no measurement has been made.
+    */
+   public long getRoundTripNanos() {
+      return roundTripNanos;
+   }
+   
+   /**
+    * Returns a smoothed round trip time to the hub, in nanoseconds, or -1 if
+    * no measurement has been made.  Each new measurement contributes 1/8 of
+    * the new value, as for TCP's smoothed round trip time.
+    */
+   public long getSmoothedRoundTripNanos() {
+      return smoothedRoundTripNanos;
+   }
+   
+   /**
+    * Returns the number of messages that have been passed to send().
+    */
+   public long getMessagesSent() {
+      return messagesSent.get();
+   }
+   
+   /**
+    * Returns the number of messages that have been passed to messageReceived().
+    */
+   public long getMessagesReceived() {
+      return messagesReceived.get();
+   }
+   
+   /**
+    * Sets the size of the socket receive buffer for the connection to the hub.
+    * Messages in the receive buffer have already been sent by the hub, so a
+    * control message from the hub can't go ahead of them; limiting the buffer
+    * size limits that delay when this client can't keep up with its incoming
+    * messages.  By default, the operating system's default size is used.
+    * @throws IOException if the buffer size can't be set.
+    */
+   public void setReceiveBufferSize(int bytes) throws IOException {
+      receiveBufferSize = bytes;
+      ConnectionToHub c = connection;
+      if (c != null)
+         c.socket.setReceiveBufferSize(bytes);
+   }
+   
+   /**
+    * Sets the transport that connectAsync() uses to open the connection, and
+    * that is used to resume it.  The default is TCP.  This must be called
+    * before connecting.
+    * @throws IllegalStateException if this client is already connected or connecting.
+    */
+   synchronized public void setTransport(Transport transport) {
+      if (transport == null)
+         throw new IllegalArgumentException("Transport can't be null.");
+      if (connection != null || connectFuture != null)
+         throw new IllegalStateException("This client is already connected or connecting.");
+      this.transport = transport;
+   }
+   
+   /**
+    * Sets how long this client will keep trying to resume its connection to the
+    * hub, in milliseconds, if the connection is lost because of a network error.
+    * The hub must also allow resuming; see Hub.setResumeTimeout().  While the
+    * client is trying, messages that are sent are queued, and when the connection
+    * is resumed, any messages that were lost in either direction are sent again.
+    * If the time runs out, connectionClosedByError() is called as usual.  A value
+    * of zero, which is the default, turns resuming off.
+    */
+   public void setResumeTimeout(int millis) {
+      if (millis < 0)
+         throw new IllegalArgumentException("Resume timeout can't be negative.");
+      resumeTimeout = millis;
+   }
+   
+   /**
+    * Returns the time that this client spends trying to resume a lost connection.
+    */
+   public int getResumeTimeout() {
+      return resumeTimeout;
+   }
+   
+   /**
+    * Returns the number of messages that are waiting in the queue of outgoing
+    * messages.  A number that keeps growing means that the messages are being
+    * sent faster than the network can carry them.
+    */
+   public int getOutgoingBacklog() {
+      ConnectionToHub c = connection;
+      return c == null ? 0 : c.outgoingMessages.size();
    }
 
    /**
@@ -172,10 +490,11 @@ abstract public class Client {
     * sequence if some client disconnects or because some client does not
     * completely connect because of an exception.  (This can include an
     * exception in the "extra handshake" part, if there is one, of the 
-    * connection setup.)
+    * connection setup.)  The ID is -1 if this client has not connected yet.
     */
    public int getID() {
-      return connection.id_number;
+      ConnectionToHub c = connection;
+      return c == null ? -1 : c.id_number;
    }
    
    /**
@@ -188,7 +507,7 @@ abstract public class Client {
     * has been reset in the meantime.
     */
    public void resetOutput() {
-      connection.send(new ResetSignal()); // A ResetSignal in the output stream is seen as a signal to reset
+      connected().send(new ResetSignal()); // A ResetSignal in the output stream is seen as a signal to reset
    }
    
    /**
@@ -211,7 +530,107 @@ abstract public class Client {
 
    //------------- Private implementation part of the class -----------------------------
    
-   private final ConnectionToHub connection;  // Represents the network connection to the hub.
+   private volatile ConnectionToHub connection;  // Represents the network connection to the hub;
+                                                 //    null until a client made by Client() connects.
+   
+   /**
+    * A future from sendAsync(), with the number of the message that it waits for.
+    */
+   private static final class PendingAck {
+      final long seq;
+      final CompletableFuture<Void> future;
+      PendingAck(long seq, CompletableFuture<Void> future) {
+         this.seq = seq;
+         this.future = future;
+      }
+   }
+   
+   /**
+    * Returns the connection, or throws an IllegalStateException if there is none yet.
+    */
+   private ConnectionToHub connected() {
+      ConnectionToHub c = connection;
+      if (c == null)
+         throw new IllegalStateException("The client is not connected to a hub.");
+      return c;
+   }
+   
+   /**
+    * Queues an application message, numbering it for acknowledgements.  If ack
+    * is non-null, it is completed when the hub acknowledges the message.  The
+    * first time that an acknowledgement is wanted, the hub is asked to send them.
+    */
+   private void send(Object message, CompletableFuture<Void> ack) {
+      if (message == null)
+         throw new IllegalArgumentException("Null cannot be sent as a message.");
+      if (! (message instanceof Serializable))
+         throw new IllegalArgumentException("Messages must implement the Serializable interface.");
+      ConnectionToHub c = connected();
+      synchronized(pendingAcks) {  // So that messages are queued in the order of their numbers.
+         if (c.closed)  // Checked while holding the lock, so that close() fails every pending ack.
+            throw new IllegalStateException("Message cannot be sent because the connection is closed.");
+         long seq = messagesSent.incrementAndGet();
+         if (ack != null) {
+            if ( ! acksRequested ) {
+               acksRequested = true;
+               c.send(new AckRequest(seq - 1));
+            }
+            pendingAcks.add(new PendingAck(seq, ack));
+         }
+         c.send(message);
+      }
+   }
+   
+   /**
+    * Completes the futures for the messages that the hub has processed.
+    */
+   private void acknowledged(long processed) {
+      final List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+      synchronized(pendingAcks) {
+         while ( ! pendingAcks.isEmpty() && pendingAcks.peek().seq <= processed )
+            done.add(pendingAcks.poll().future);
+      }
+      if (done.isEmpty())
+         return;
+      deliver(new Runnable() {
+         public void run() {
+            for (CompletableFuture<Void> future : done)
+               future.complete(null);
+         }
+      });
+   }
+   
+   /**
+    * Completes the futures for all messages that have not been acknowledged
+    * with an IOException.
+    */
+   private void failAcks(String reason) {
+      final List<CompletableFuture<Void>> failed = new ArrayList<CompletableFuture<Void>>();
+      synchronized(pendingAcks) {
+         while ( ! pendingAcks.isEmpty() )
+            failed.add(pendingAcks.poll().future);
+      }
+      if (failed.isEmpty())
+         return;
+      final IOException e = new IOException(reason);
+      deliver(new Runnable() {
+         public void run() {
+            for (CompletableFuture<Void> future : failed)
+               future.completeExceptionally(e);
+         }
+      });
+   }
+   
+   /**
+    * Runs a callback with the callback executor, or right away if there is none.
+    */
+   private void deliver(Runnable callback) {
+      Executor executor = callbackExecutor;
+      if (executor == null)
+         callback.run();
+      else
+         executor.execute(callback);
+   }
    
    /**
     *  This private class handles the actual communication with the server.
@@ -219,43 +638,83 @@ abstract public class Client {
    private  class ConnectionToHub {
 
       private final int id_number;               // The ID of this client, assigned by the hub.
-      private final Socket socket;               // The socket that is connected to the Hub.
-      private final ObjectInputStream in;        // A stream for sending messages to the Hub.
-      private final ObjectOutputStream out;      // A stream for receiving messages from the Hub.
-      private final SendThread sendThread;       // The thread that sends messages to the Hub.
-      private final ReceiveThread receiveThread; // The thread that receives messages from the Hub.
+      private final String host;                 // Where the hub is, for resuming the connection.
+      private final int port;
+      private final long sessionToken;           // Identifies this client's session to the hub.
+      private Transport.Connection socket;       // The connection to the Hub.
+      private ObjectInputStream in;              // A stream for sending messages to the Hub.
+      private ObjectOutputStream out;            // A stream for receiving messages from the Hub.
+      private final boolean relay;               // Whether the hub uses relay mode for this connection.
+      private DataInputStream frameIn;           // In relay mode, frames are read from this stream...
+      private DataOutputStream frameOut;         //    ...and written to this one, after the handshake.
+      private SendThread sendThread;             // The thread that sends messages to the Hub.
+      private ReceiveThread receiveThread;       // The thread that receives messages from the Hub.
 
-      private final LinkedBlockingQueue<Object> outgoingMessages;  // Queue of messages waiting to be transmitted.
+      private final LaneQueue outgoingMessages;  // Queue of messages waiting to be transmitted.
+      private final ReplayRing sent = new ReplayRing(REPLAY_CAPACITY);  // Messages recently written.
+      private volatile long received;      // Number of messages read from the hub, not counting probes.
+      private long presenceVersion = -1;   // Version of connectedPlayerIDs; -1 until the first snapshot.
+      private boolean presenceRequested;   // True while waiting for a snapshot that was asked for.
 
       private volatile boolean closed;     // This is set to true when the connection is closing.
                                            // For one thing, this will prevent errors from being
                                            // reported when exceptions are generated because the
                                            // connection is being closed in the normal way.
+      private volatile int generation;     // Incremented when the socket is lost, so that the threads
+                                           //    that were using it know to stop.
       
       /**
        * Constructor opens the connection and sends the string "Hello Hub"
        * to the hub.  The hub responds with an object of type Integer representing
-       * the ID number of the client.  The extraHandshake() method is then called
-       * to do any other required startup communication.  Finally, threads
-       * are created to handle sending and receiving messages.
+       * the ID number of the client, followed by the session token and a Boolean
+       * that says whether the hub uses relay mode.  The extraHandshake() method is then called to do any other required startup
+       * communication.  The threads that send and receive messages are created
+       * by start(), once the connection has been stored in the client.
+       * @param timeout the time limit for connecting and for the whole handshake,
+       *    in milliseconds, or 0 for no limit.
        */
-      ConnectionToHub(String host, int port) throws IOException {
-         outgoingMessages = new LinkedBlockingQueue<Object>();
-         socket = new Socket(host,port);
-         out = new ObjectOutputStream(socket.getOutputStream());
-         out.writeObject("Hello Hub");
-         out.flush();
-         in = new ObjectInputStream(socket.getInputStream());
+      ConnectionToHub(String host, int port, int timeout) throws IOException {
+         this.host = host;
+         this.port = port;
+         outgoingMessages = new LaneQueue();
+         long deadline = System.currentTimeMillis() + timeout;
+         socket = transport.connect(host, port, timeout, receiveBufferSize);
          try {
-            Object response = in.readObject();
-            id_number = ((Integer)response).intValue();
+            if (timeout > 0)  // Reads that would go past the deadline throw a SocketTimeoutException.
+               socket.setReadTimeout((int)Math.max(1, deadline - System.currentTimeMillis()));
+            out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject("Hello Hub");
+            out.flush();
+            in = new ObjectInputStream(socket.getInputStream());
+            try {
+               Object response = in.readObject();
+               id_number = ((Integer)response).intValue();
+               sessionToken = ((Long)in.readObject()).longValue();
+               relay = ((Boolean)in.readObject()).booleanValue();
+            }
+            catch (IOException e) {
+               throw e;
+            }
+            catch (Exception e){
+               throw new IOException("Illegal response from server.");
+            }
+            extraHandshake(in,out);  // Will throw an IOException if handshake doesn't succeed.
+            socket.setReadTimeout(0);
+            if (relay)
+               openFrameStreams(socket);
          }
-         catch (Exception e){
-            throw new IOException("Illegal response from server.");
+         catch (IOException e) {
+            socket.close();
+            throw e;
          }
-         extraHandshake(in,out);  // Will throw an IOException if handshake doesn't succeed.
-         sendThread = new SendThread();
-         receiveThread = new ReceiveThread();
+      }
+      
+      /**
+       * Creates and starts the threads that send and receive messages.
+       */
+      void start() {
+         sendThread = new SendThread(0);
+         receiveThread = new ReceiveThread(0);
          sendThread.start();
          receiveThread.start();
       }
@@ -263,11 +722,17 @@ abstract public class Client {
       /**
        * This method is called to close the connection.  It can be called from outside
        * this class, and it is also used internally for closing the connection.
+       * Messages that are waiting to be acknowledged never will be.
        */
       void close() {
-         closed = true;
-         sendThread.interrupt();
-         receiveThread.interrupt();
+         synchronized(pendingAcks) {
+            closed = true;
+         }
+         failAcks("The connection was closed before the hub acknowledged the message.");
+         if (sendThread != null)
+            sendThread.interrupt();
+         if (receiveThread != null)
+            receiveThread.interrupt();
          try {
             socket.close();
          }
@@ -275,6 +740,162 @@ abstract public class Client {
          }
       }
       
+      /**
+       * Creates the streams that are used for frames in relay mode.  This is
+       * done after the handshake, which is always done with object streams.
+       */
+      private void openFrameStreams(Transport.Connection s) throws IOException {
+         frameIn = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+         frameOut = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      }
+      
+      /**
+       * Writes one message to the hub, without flushing.  In relay mode, an
+       * application message is written as a MESSAGE frame, which the hub forwards
+       * without reading it, and anything else as an OBJECT frame.
+       */
+      private void write(Object message) throws IOException {
+         if ( ! relay ) {
+            if (autoreset)
+               out.reset();
+            out.writeObject(message);
+            return;
+         }
+         byte kind;
+         byte[] payload;
+         if (message instanceof ProbeMessage) {
+            kind = RelayFrame.PROBE;
+            payload = new byte[8];
+            ByteBuffer.wrap(payload).putLong(((ProbeMessage)message).sentNanos);
+         }
+         else {
+            boolean internal = message instanceof DisconnectMessage || message instanceof PresenceRequest
+                                    || message instanceof AckRequest;
+            kind = internal ? RelayFrame.OBJECT : RelayFrame.MESSAGE;
+            payload = RelayFrame.serialize(message);
+         }
+         frameOut.writeInt(1 + payload.length);
+         frameOut.writeByte(kind);
+         frameOut.write(payload);
+      }
+      
+      private void flush() throws IOException {
+         if (relay)
+            frameOut.flush();
+         else
+            out.flush();
+      }
+      
+      /**
+       * Reads one message from the hub.  In relay mode, a MESSAGE frame is
+       * returned as a ForwardedMessage from the player who sent it.
+       */
+      private Object read() throws IOException, ClassNotFoundException {
+         if ( ! relay )
+            return in.readObject();
+         int length = frameIn.readInt() - 5;
+         byte kind = frameIn.readByte();
+         int sender = frameIn.readInt();
+         if (length < 0 || length > RelayFrame.MAX_PAYLOAD)
+            throw new IOException("Illegal frame length " + length);
+         if (kind == RelayFrame.PROBE) {
+            long sentNanos = frameIn.readLong();
+            frameIn.skipBytes(length - 8);
+            return new ProbeMessage(sentNanos);
+         }
+         byte[] payload = new byte[length];
+         frameIn.readFully(payload);
+         Object obj = RelayFrame.deserialize(payload);
+         if (kind == RelayFrame.MESSAGE)
+            return new ForwardedMessage(sender, obj);
+         return obj;
+      }
+      
+      /**
+       * Applies a PresenceMessage from the hub to connectedPlayerIDs, and calls
+       * playerConnected() and playerDisconnected() for the changes.  If a version
+       * has been missed, the delta is ignored and the hub is asked for the full
+       * list; when it comes, the callbacks are called for the differences between
+       * the old and new lists.  This is only called by the receive thread.
+       */
+      private void presenceReceived(PresenceMessage msg) {
+         if (msg.players != null) {
+            int[] old = connectedPlayerIDs;
+            boolean first = presenceVersion < 0;
+            connectedPlayerIDs = msg.players;
+            presenceVersion = msg.version;
+            presenceRequested = false;
+            if (first)
+               presenceChanged(msg.joined, new int[0]);
+            else
+               presenceChanged(difference(msg.players, old), difference(old, msg.players));
+            return;
+         }
+         if (msg.version <= presenceVersion || presenceRequested)
+            return;  // Already covered by a snapshot, or a snapshot is on its way.
+         if (msg.version != presenceVersion + 1) {
+            presenceRequested = true;
+            send(new PresenceRequest(presenceVersion));
+            return;
+         }
+         presenceVersion = msg.version;
+         connectedPlayerIDs = applyDelta(connectedPlayerIDs, msg.joined, msg.left);
+         presenceChanged(msg.joined, msg.left);
+      }
+      
+      /**
+       * Calls playerDisconnected() for the players who left, then playerConnected()
+       * for the players who joined, as a single callback.
+       */
+      private void presenceChanged(final int[] joined, final int[] left) {
+         if (joined.length == 0 && left.length == 0)
+            return;
+         deliver(new Runnable() {
+            public void run() {
+               for (int ID : left)
+                  playerDisconnected(ID);
+               for (int ID : joined)
+                  playerConnected(ID);
+            }
+         });
+      }
+      
+      /**
+       * Returns the IDs in the sorted list a that are not in the sorted list b.
+       */
+      private int[] difference(int[] a, int[] b) {
+         int[] result = new int[a.length];
+         int count = 0;
+         for (int ID : a)
+            if (Arrays.binarySearch(b, ID) < 0)
+               result[count++] = ID;
+         return Arrays.copyOf(result, count);
+      }
+      
+      /**
+       * Returns a new sorted list of players, made by adding joined to and
+       * removing left from the sorted list players.
+       */
+      private int[] applyDelta(int[] players, int[] joined, int[] left) {
+         int[] added = joined.clone();
+         int[] removed = left.clone();
+         Arrays.sort(added);
+         Arrays.sort(removed);
+         int[] result = new int[players.length + added.length];
+         int count = 0;
+         int i = 0, j = 0;
+         while (i < players.length || j < added.length) {
+            int ID;
+            if (j == added.length || (i < players.length && players[i] < added[j]))
+               ID = players[i++];
+            else
+               ID = added[j++];
+            if ((count == 0 || result[count-1] != ID) && Arrays.binarySearch(removed, ID) < 0)
+               result[count++] = ID;
+         }
+         return Arrays.copyOf(result, count);
+      }
+      
       /**
        * This method is called to transmit a message to the Hub.
        * @param message the message, which must be a Serializable object.
@@ -285,47 +906,218 @@ abstract public class Client {
       
       /**
        * This method is called by the threads that do input and output
-       * on the connection when an IOException occurs.
+       * on the connection when an IOException occurs.  If resuming is
+       * turned on, the socket is abandoned and a thread is started that
+       * tries to resume the connection; otherwise, the connection is closed.
+       * Errors from threads that used an earlier socket are ignored.
        */
-      synchronized void closedByError(String message) {
-         if (! closed ) {
-            connectionClosedByError(message);
+      synchronized void closedByError(String message, int gen) {
+         if ( closed || gen != generation )
+            return;
+         if (resumeTimeout > 0) {
+            generation++;
+            sendThread.interrupt();
+            receiveThread.interrupt();
+            try {
+               socket.close();
+            }
+            catch (IOException e) {
+            }
+            new ResumeThread(message, receiveThread).start();
+         }
+         else {
+            reportError(message);
             close();
          }
       }
       
+      /**
+       * Calls connectionClosedByError(), with the callback executor if there is one.
+       */
+      private void reportError(final String message) {
+         deliver(new Runnable() {
+            public void run() {
+               connectionClosedByError(message);
+            }
+         });
+      }
+      
+      /**
+       * Opens a new socket and asks the hub to resume this client's session on it.
+       * If the hub agrees, the messages that the hub missed are sent, and new
+       * threads are started to use the new socket.
+       * @return true if the connection was resumed, false if the hub no longer
+       *    knows about the session.
+       * @throws IOException if an error occurs, in which case it's worth trying again.
+       */
+      private boolean resumeSession() throws IOException {
+         Transport.Connection s = transport.connect(host, port, 0, receiveBufferSize);
+         try {
+            ObjectOutputStream o = new ObjectOutputStream(s.getOutputStream());
+            o.writeObject(new ResumeRequest(sessionToken, received));
+            o.flush();
+            ObjectInputStream i = new ObjectInputStream(s.getInputStream());
+            Object response;
+            try {
+               response = i.readObject();
+            }
+            catch (ClassNotFoundException e) {
+               throw new IOException("Illegal response from server.");
+            }
+            if ( ! (response instanceof ResumeReply) ) {
+               s.close();
+               return false;
+            }
+            ResumeReply reply = (ResumeReply)response;
+            extraHandshake(i,o);
+            List<Object> replay = sent.since(reply.received);
+            synchronized(this) {
+               if (closed) {
+                  s.close();
+                  return true;
+               }
+               socket = s;
+               in = i;
+               out = o;
+               if (relay)
+                  openFrameStreams(s);
+               if (replay != null) {
+                  for (Object message : replay)
+                     write(message);
+                  flush();
+               }
+               received = reply.resumeFrom;
+               sendThread = new SendThread(generation);
+               receiveThread = new ReceiveThread(generation);
+               sendThread.start();
+               receiveThread.start();
+            }
+            if (replay == null)
+               failAcks("Messages to the hub might have been lost while the connection was down.");
+            if (replay == null || ! reply.complete)
+               resyncAcks();
+            final boolean complete = reply.complete && replay != null;
+            deliver(new Runnable() {
+               public void run() {
+                  connectionResumed(complete);
+               }
+            });
+            return true;
+         }
+         catch (IOException e) {
+            s.close();
+            throw e;
+         }
+      }
+      
+      /**
+       * After a connection has been resumed with messages lost, tells the hub
+       * again how many application messages have been sent, if acknowledgements
+       * are on, so that both ends number the messages in the same way again and
+       * an acknowledgement that was lost on the way from the hub is sent again.
+       */
+      private void resyncAcks() {
+         synchronized(pendingAcks) {
+            if (acksRequested)
+               send(new AckRequest(messagesSent.get()));
+         }
+      }
+      
+      /**
+       * This class defines a thread that tries to resume the connection after
+       * the socket has been lost.  It tries again after each failure, waiting
+       * a little longer each time, until the resume timeout runs out.
+       */
+      private class ResumeThread extends Thread {
+         private final String errorMessage;  // Reported if the connection can't be resumed.
+         private final Thread oldReceive;    // The receive thread that used the lost socket.
+         ResumeThread(String errorMessage, Thread oldReceive) {
+            this.errorMessage = errorMessage;
+            this.oldReceive = oldReceive;
+            setDaemon(true);
+         }
+         public void run() {
+            System.out.println("Connection to hub lost; trying to resume.");
+            try {
+               oldReceive.join(1000);  // So that the count of received messages no longer changes.
+            }
+            catch (InterruptedException e) {
+            }
+            long deadline = System.currentTimeMillis() + resumeTimeout;
+            int delay = 20;
+            boolean expired = false;
+            while ( ! closed && ! expired && System.currentTimeMillis() < deadline ) {
+               try {
+                  if (resumeSession())
+                     return;
+                  expired = true;
+               }
+               catch (IOException e) {
+                  try {
+                     Thread.sleep(delay);
+                  }
+                  catch (InterruptedException e1) {
+                  }
+                  delay = Math.min(2*delay, 1000);
+               }
+            }
+            synchronized(ConnectionToHub.this) {
+               if (closed)
+                  return;
+               reportError(errorMessage);
+               close();
+            }
+         }
+      }
+      
       /**
        * This class defines a thread that sends messages to the Hub.
        */
       private class SendThread extends Thread {
+         private final int gen;  // The generation of the connection that this thread serves.
+         SendThread(int gen) {
+            this.gen = gen;
+         }
          public void run() {
             System.out.println("Client send thread started.");
             try {
-               while ( ! closed ) {
-                  Object message = outgoingMessages.take();
+               long nextProbe = System.currentTimeMillis();
+               while ( ! closed && gen == generation ) {
+                  int interval = probeInterval;
+                  long wait = interval > 0 ? nextProbe - System.currentTimeMillis() : 1000;
+                  Object message = outgoingMessages.poll(Math.max(wait,0));
+                  if (interval > 0 && System.currentTimeMillis() >= nextProbe) {
+                     write(new ProbeMessage(System.nanoTime()));
+                     flush();
+                     nextProbe = System.currentTimeMillis() + interval;
+                  }
+                  if (message == null)
+                     continue;
                   if (message instanceof ResetSignal) {
-                     out.reset();
+                     if ( ! relay )  // In relay mode, each message is serialized separately anyway.
+                        out.reset();
                   }
                   else {
-                     if (autoreset)
-                        out.reset();
-                     out.writeObject(message);
-                     out.flush();
+                     sent.add(message);  // Before writing, in case the write fails after sending part of it.
+                     write(message);
                      if (message instanceof DisconnectMessage) {
+                        flush();
                         close();
                      }
+                     else if ( ! relay || outgoingMessages.size() == 0 )
+                        flush();  // In relay mode, frames that are already queued share a flush.
                   }
                }
             }
             catch (IOException e) {
-               if ( ! closed ) {
-                  closedByError("IO error occurred while trying to send message.");
+               if ( ! closed && gen == generation ) {
+                  closedByError("IO error occurred while trying to send message.", gen);
                   System.out.println("Client send thread terminated by IOException: " + e);
                }
             }
             catch (Exception e) {
-               if ( ! closed ) {
-                  closedByError("Unexpected internal error in send thread: " + e);
+               if ( ! closed && gen == generation ) {
+                  closedByError("Unexpected internal error in send thread: " + e, gen);
                   System.out.println("\nUnexpected error shuts down client send thread:");
                   e.printStackTrace();
                }
@@ -340,36 +1132,67 @@ abstract public class Client {
        * This class defines a thread that reads messages from the Hub.
        */
       private class ReceiveThread extends Thread {
+         private final int gen;  // The generation of the connection that this thread serves.
+         ReceiveThread(int gen) {
+            this.gen = gen;
+         }
          public void run() {
             System.out.println("Client receive thread started.");
             try {
-               while ( ! closed ) {
-                  Object obj = in.readObject();
+               while ( ! closed && gen == generation ) {
+                  Object obj = read();
+                  synchronized(ConnectionToHub.this) {
+                     if (gen != generation)
+                        break;  // The connection is being resumed, and the hub will send this message again.
+                     if ( ! (obj instanceof ProbeMessage) )
+                        received++;
+                  }
                   if (obj instanceof DisconnectMessage) {
                      close();
-                     serverShutdown(((DisconnectMessage)obj).message);
+                     final String message = ((DisconnectMessage)obj).message;
+                     deliver(new Runnable() {
+                        public void run() {
+                           serverShutdown(message);
+                        }
+                     });
+                  }
+                  else if (obj instanceof PresenceMessage) {
+                     presenceReceived((PresenceMessage)obj);
                   }
-                  else if (obj instanceof StatusMessage) {
-                     StatusMessage msg = (StatusMessage)obj;
-                     connectedPlayerIDs = msg.players;
-                     if (msg.connecting)
-                        playerConnected(msg.playerID);
-                     else
-                        playerDisconnected(msg.playerID);
+                  else if (obj instanceof AckMessage) {
+                     acknowledged(((AckMessage)obj).processed);
+                  }
+                  else if (obj instanceof ProbeMessage) {
+                     final long nanos = System.nanoTime() - ((ProbeMessage)obj).sentNanos;
+                     roundTripNanos = nanos;
+                     long smoothed = smoothedRoundTripNanos;
+                     smoothedRoundTripNanos = smoothed < 0 ? nanos : smoothed + (nanos - smoothed)/8;
+                     deliver(new Runnable() {
+                        public void run() {
+                           roundTripMeasured(nanos);
+                        }
+                     });
+                  }
+                  else {
+                     messagesReceived.incrementAndGet();
+                     final Object message = obj;
+                     deliver(new Runnable() {
+                        public void run() {
+                           messageReceived(message);
+                        }
+                     });
                   }
-                  else
-                     messageReceived(obj);
                }
             }
             catch (IOException e) {
-               if ( ! closed ) {
-                  closedByError("IO error occurred while waiting to receive  message.");
+               if ( ! closed && gen == generation ) {
+                  closedByError("IO error occurred while waiting to receive  message.", gen);
                   System.out.println("Client receive thread terminated by IOException: " + e);
                }
             }
             catch (Exception e) {
-               if ( ! closed ) {
-                  closedByError("Unexpected internal error in receive thread: " + e);
+               if ( ! closed && gen == generation ) {
+                  closedByError("Unexpected internal error in receive thread: " + e, gen);
                   System.out.println("\nUnexpected error shuts down client receive thread:");
                   e.printStackTrace();
                }
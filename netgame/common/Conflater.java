@@ -0,0 +1,29 @@
+package netgame.common;
+
+import java.util.List;
+
+/**
+ * A Conflater can be installed in a Hub, with the Hub's setConflater() method,
+ * to reduce the number of messages that are sent to a client that has fallen
+ * behind.  When the hub's queue of outgoing application messages for a client
+ * holds more than one message, the hub takes a run of them from the queue and
+ * passes it to the conflater, which returns a list of messages to send in their
+ * place, for example by merging several small messages into one.  The result
+ * must have exactly the same effect on the client as the original messages.
+ * The conflater is called in the connection's send thread, so it must be safe
+ * to call from several threads at once.
+ */
+public interface Conflater {
+
+   /**
+    * Returns a list of messages that is equivalent, for the specified client, to
+    * a list of messages that were waiting to be sent to that client.  The list
+    * never contains internal messages of the netgame.common package.  The method
+    * can return the same list, possibly modified, or a new list.
+    * @param recipientID the ID of the client that will receive the messages.
+    * @param messages the messages that are waiting, in the order in which they
+    *    were queued.
+    */
+   List<Object> conflate(int recipientID, List<Object> messages);
+   
+}
@@ -0,0 +1,52 @@
+package netgame.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that counts the bytes that are read through it.  It is used
+ * by the Hub to find out how many bytes each message from a client took, so
+ * that the client's byte rate limit can be enforced.  The count is only read
+ * and written by the thread that reads from the stream.
+ */
+class CountingInputStream extends FilterInputStream {
+
+   private long count;
+   
+   CountingInputStream(InputStream in) {
+      super(in);
+   }
+   
+   /**
+    * Returns the number of bytes that have been read so far.
+    */
+   long getCount() {
+      return count;
+   }
+   
+   public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+         count++;
+      return b;
+   }
+   
+   public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+         count += n;
+      return n;
+   }
+   
+   public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+   }
+   
+   public boolean markSupported() {
+      return false;
+   }
+
+}
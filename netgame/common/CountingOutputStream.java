@@ -0,0 +1,32 @@
+package netgame.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An output stream that adds the number of bytes written through it to a
+ * counter.  It is used by the Hub to count the bytes that it sends to all of
+ * its clients, so the counter can be shared by many streams.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+   private final AtomicLong count;
+   
+   CountingOutputStream(OutputStream out, AtomicLong count) {
+      super(out);
+      this.count = count;
+   }
+   
+   public void write(int b) throws IOException {
+      out.write(b);
+      count.incrementAndGet();
+   }
+   
+   public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);  // Not super.write(), which writes one byte at a time.
+      count.addAndGet(len);
+   }
+
+}
@@ -0,0 +1,28 @@
+package netgame.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a call of a hub's messageReceived() method,
+ * which is where a subclass does its work for each message.
+ */
+@Name("netgame.MessageDispatched")
+@Label("Message Dispatched")
+@Category({"NetGame", "Hub"})
+@Description("A message from a client processed by messageReceived()")
+@Threshold("1 ms")
+@StackTrace(false)
+final class DispatchEvent extends jdk.jfr.Event {
+
+   @Label("Player ID")
+   int playerID;
+
+   @Label("Message Type")
+   String messageType;
+
+}
@@ -0,0 +1,36 @@
+package netgame.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a message put in the queue of outgoing
+ * messages of one of a hub's connections, with the length of the queue after
+ * it was added.  This happens for every message to every client, so the event
+ * is off unless a recording turns it on.
+ */
+@Name("netgame.MessageQueued")
+@Label("Message Queued")
+@Category({"NetGame", "Hub"})
+@Description("A message added to the outgoing queue of a connection to a client")
+@Enabled(false)
+@Threshold("0 ms")
+@StackTrace(false)
+final class EnqueueEvent extends jdk.jfr.Event {
+
+   @Label("Player ID")
+   int playerID;
+
+   @Label("Message Type")
+   String messageType;
+
+   @Label("Queue Depth")
+   @Description("Messages waiting in the queue, including this one")
+   int queueDepth;
+
+}
@@ -0,0 +1,32 @@
+package netgame.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for the handshake of a new connection to a
+ * hub, which either opens a session for a new player or resumes a lost one.
+ */
+@Name("netgame.Handshake")
+@Label("Handshake")
+@Category({"NetGame", "Hub"})
+@Description("The handshake of a connection accepted by a hub")
+@Threshold("0 ms")
+@StackTrace(false)
+final class HandshakeEvent extends jdk.jfr.Event {
+
+   @Label("Player ID")
+   @Description("The player whose session was opened or resumed, or 0")
+   int playerID;
+
+   @Label("Resumed")
+   boolean resumed;
+
+   @Label("Succeeded")
+   boolean succeeded;
+
+}
@@ -1,11 +1,28 @@
 package netgame.common;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -28,18 +45,78 @@ import java.util.concurrent.LinkedBlockingQueue;
  * client with the specified ID number.  If the same object is transmitted
  * more than once, it might be necessary to use the resetOutput() or
  * setAutoReset(true) methods.  See those methods for details.
+ * <p>Messages are normally processed one at a time, by a single thread.  A
+ * subclass that does a lot of work for each message can use more threads with
+ * setDispatchThreads(); the messages of each player are still processed in
+ * order, and the subclass can say which messages need to be processed in order
+ * with all the others by overriding requiresGlobalOrder().
+ * <p>The rate at which each client can send messages can be limited, in
+ * messages per second and in bytes per second, with setRateLimits() or
+ * setPlayerRateLimits().  A client that goes over its limit is throttled:
+ * the hub simply stops reading from that client's socket until the client
+ * is back within its limit, so TCP flow control slows the client down,
+ * and its messages are never piled up in the hub.  The total time that
+ * a player has been throttled is returned by getThrottledNanos().
+ * <p>The messages waiting to be sent to each client are kept in three lanes.
+ * Internal control messages, such as notices that players have connected or
+ * disconnected, go ahead of application messages, so they are delivered 
+ * promptly even when a client has a large backlog of application messages.
+ * Application messages that implement {@link BackgroundMessage}, such as the
+ * pieces of a large file, go behind the other application messages, so they
+ * don't hold them up.  (Messages that have already been handed to the operating system can't be
+ * overtaken, so on a slow link it can also help to limit the socket send
+ * buffer with setSendBufferSize().)
+ * <p>Optionally, a {@link Conflater} can be installed with setConflater().
+ * When a client has fallen behind, so that several application messages are
+ * waiting to be sent to it, the conflater can replace them with fewer messages
+ * that have the same effect, so the client catches up sooner.
+ * <p>If the connection to a client is lost, for example because of a brief
+ * network outage, the client can open a new connection and resume its old
+ * session, if resuming has been turned on with setResumeTimeout() in both the
+ * hub and the client.  Each side keeps the messages that it has most recently
+ * written in a bounded replay ring, and each side counts the messages that it
+ * reads, so a client that resumes is sent exactly the messages that it missed,
+ * and it sends the hub exactly the ones that the hub missed.  The player keeps
+ * its ID, and messages for it keep piling up while it is away; other players
+ * are only told that it has disconnected if it does not come back within the
+ * timeout.  If the messages that it missed are no longer in the ring, the gap
+ * is skipped, and playerResumed() is called to let a subclass send the player
+ * whatever it needs to catch up.
+ * <p>The traffic from all clients can be recorded in a capture file by a
+ * {@link TrafficRecorder}, installed with setTrafficRecorder(), and replayed
+ * later, to reproduce a problem or to compare two versions of a hub.
+ * <p>Connections are opened by a {@link Transport}, which is TCP unless another
+ * transport is given to the constructor.  With a {@link LoopbackTransport}, a
+ * hub and its clients can run in one program without using the network.
+ * <p>For profiling with Java Flight Recorder, the hub emits events in the
+ * category "NetGame" for the handshakes, for messages received from clients
+ * and processed by messageReceived(), and for messages queued for and written
+ * to each client, with the depth of the queue.  Each has a threshold, so that
+ * only the slow ones are recorded, and the event for queued messages is off
+ * unless a recording turns it on.  An event that is not enabled costs only a
+ * check; its fields are filled in only when it is going to be recorded.
  * <p>(Certain messages that are defined by package private classes in
  * the package netgame.common, are for internal use only.  These messages
  * do not result in a call to messageReceived, and they are not seen
- * by clients.)
+ * by clients.  For example, a probe message that a client sends to measure
+ * its round trip time is sent straight back to that client.)
  * 
  * <p>The communication protocol that is used internally goes as follows:
  *  <ul>
  *  <li>When the server receives a connection request, it expects to
- *  read a string from the client.  The string is "Hello Hub".</li>
+ *  read a string from the client.  The string is "Hello Hub".  The steps
+ *  up to the point where the client is connected are the handshake, which
+ *  is done by a separate pool of threads.  Only a limited number of
+ *  handshakes are done at once, and each has to finish within a time limit;
+ *  see setMaxConcurrentHandshakes() and setHandshakeTimeout().</li>
  *  <li>The server responds by sending an object of type Integer 
  *  representing the unique ID number that has been assigned to the client.
- *  Clients are assigned the IDs 1, 2, 3, ..., in the order they connect.</li>
+ *  Clients are assigned the IDs 1, 2, 3, ..., in the order they connect.
+ *  This is followed by a Long, the token that identifies the client's session,
+ *  and a Boolean that tells whether the connection will use relay mode.
+ *  (A client that is resuming a session sends a ResumeRequest instead of the
+ *  string, and the server answers with a ResumeReply instead of the ID and
+ *  token, or with a string and closes the connection if the session is gone.)</li>
  *  <li>The extraHandshake() method is called.  This method does nothing
  *  in this class, but subclasses of Hub can override to do extra setup
  *  or checking before the connection is considered to be created.
@@ -47,10 +124,17 @@ import java.util.concurrent.LinkedBlockingQueue;
  *  never considered connected, but that client's ID will not be reused.</li>
  *  <li>All connected clients, including the one that has just connected,
  *  are notified of the new client.  (The playerConnected() method in
- *  the client will be called.)</li>
+ *  the client will be called.)  The notice is a PresenceMessage that only
+ *  lists the changes, except that the new client gets the full list of
+ *  players.  Changes that come close together are sent as one message; see
+ *  setPresenceWindow().</li>
  *  <li>Once a client has successfully connected, the client can send messages to
  *  the server.  Messages received from a client are passed to the
- *  messageReceived() method.</li>
+ *  messageReceived() method.  A client that wants to know when its messages
+ *  have been handled sends an AckRequest, and from then on, after each of its
+ *  messages has been processed, it is sent an AckMessage with the number of
+ *  its messages processed so far.  In relay mode, a message counts as
+ *  processed once it has been queued for every client.</li>
  *  <li>If the client's disconnect() method is called, the hub is notified,
  *  and it in turn notifies all connected clients, not including the one
  *  that just disconnected.  (The clients' playerDisconnected() method
@@ -70,7 +154,8 @@ public class Hub {
    /**
     * A queue of messages received from clients.  When a method is received,
     * it is placed in this queue.  A separate thread takes messages from the
-    * queue and processes them (in the order in which they were received).
+    * queue and processes them (in the order in which they were received),
+    * or hands them out to several threads; see setDispatchThreads().
     */
    private LinkedBlockingQueue<Message> incomingMessages;
    
@@ -80,40 +165,128 @@ public class Hub {
     */
    private volatile boolean autoreset;
    
-   private ServerSocket serverSocket;  // Listens for connections.
+   /**
+    * The default limits on the rate of incoming messages from each client, in
+    * messages per second and bytes per second.  Zero means no limit.
+    */
+   private volatile double messageRateLimit, byteRateLimit;
+   
+   private volatile int sendBufferSize;  // SO_SNDBUF for new connections; 0 means the system default.
+   
+   private volatile Conflater conflater;  // If non-null, used to merge queued messages for laggards.
+   private final AtomicLong messagesConflated = new AtomicLong();  // Messages saved by the conflater.
+   
+   private static final int MAX_BATCH = 32;  // Maximum number of messages written or conflated at once.  Since
+                                             //    a batch counts as one bulk message for the lane weights,
+                                             //    a control message can wait for this many bulk messages.
+   private static final int SLAB_SIZE = 1 << 20;  // Size of the buffers that frames are read into in relay mode.
+   
+   private volatile boolean relayMode;  // Whether new connections use relay mode.
+   
+   private volatile TrafficRecorder recorder;  // If non-null, records the messages from clients.
+   
+   private volatile int dispatchThreads = 1;  // Threads that call messageReceived().
+   private final AtomicInteger dispatchesPending = new AtomicInteger();  // Messages handed to dispatch
+                                                                         //    lanes and not yet processed.
+   
+   private volatile int presenceWindow = 20;  // Milliseconds over which presence changes are batched.
+   private long presenceVersion;           // Version of the list of players that clients have been sent.
+   private final TreeSet<Integer> announcedPlayers = new TreeSet<Integer>();  // That list of players.
+   private final List<Integer> pendingJoins = new ArrayList<Integer>();   // Changes to announcedPlayers
+   private final List<Integer> pendingLeaves = new ArrayList<Integer>();  //    that have not been sent.
+   private static final int PLAYERS_PER_WINDOW_MILLI = 20;  // Players per millisecond added to the window.
+   private long lastPresenceFlush;         // When changes were last sent, from System.currentTimeMillis().
+   private boolean presenceFlushScheduled; // True if a thread is waiting to send the pending changes.
+   
+   private final AtomicLong bytesSent = new AtomicLong();  // Bytes written to all clients.
+   
+   private volatile int resumeTimeout;  // Milliseconds that a lost connection can be resumed; 0 means never.
+   private volatile int replayCapacity = 1024;  // Size of the replay ring of new connections.
+   private final Map<Long,ConnectionToClient> sessions = new HashMap<Long,ConnectionToClient>();  // By token.
+   private final SecureRandom random = new SecureRandom();  // For session tokens.
+   
+   private final Transport transport;  // Opens the listener.
+   private Transport.Listener serverSocket;  // Listens for connections.
    private Thread serverThread;        // Accepts connections on serverSocket
    volatile private boolean shutdown;  // Set to true when the Hub is not listening.
+   private final int backlog;          // Length of the queue of connections that have not been accepted.
+   
+   private static final int DEFAULT_BACKLOG = 1024;
+   
+   private volatile int handshakeTimeout = 10000;  // Milliseconds allowed for a handshake; 0 means no limit.
+   private int maxHandshakes = 64;      // Handshakes that can be in progress at once.
+   private int handshakesInProgress;    // Both are guarded by the lock handshakeLimit.
+   private final Object handshakeLimit = new Object();
+   private final ExecutorService handshakeExecutor = Executors.newCachedThreadPool(daemonThreads("Hub handshake"));
+   // Runs the handshake deadlines, closes suspended connections that are not resumed in time,
+   // and sends the changes to the list of players at the end of each presence window.
+   private final ScheduledExecutorService scheduler = 
+                                    Executors.newSingleThreadScheduledExecutor(daemonThreads("Hub timer"));
+   private final AtomicLong connectionsAccepted = new AtomicLong();
+   private final AtomicLong handshakesCompleted = new AtomicLong();
+   private final AtomicLong handshakesFailed = new AtomicLong();   // Not counting the ones that timed out.
+   private final AtomicLong handshakesTimedOut = new AtomicLong();
    
    private int nextClientID = 1;  // The id number that will be assigned to
                                   // the next client that connects.
    
    /**
     * Creates a Hub listening on a specified port, and starts a thread for
-    * processing messages that are received from clients.
+    * processing messages that are received from clients.  The backlog of
+    * connections that have not yet been accepted is 1024.
     * @param port  the port on which the server will listen.
     * @throws IOException if it is not possible to create a listening socket on the specified port.
     */
    public Hub(int port) throws IOException {
+      this(port, DEFAULT_BACKLOG);
+   }
+   
+   /**
+    * Creates a Hub listening on a specified port, with a specified backlog.
+    * Connections wait in the backlog, which is kept by the operating system,
+    * while the hub is busy with as many handshakes as it allows at once (see
+    * setMaxConcurrentHandshakes()).  When the backlog is full, new connection
+    * requests are refused or retried by the client's operating system.  The
+    * operating system might use a smaller backlog than the one requested.
+    * @param port  the port on which the server will listen.
+    * @param backlog  the maximum length of the queue of connections waiting
+    *    to be accepted; zero or less means a default chosen by the system.
+    * @throws IOException if it is not possible to create a listening socket on the specified port.
+    */
+   public Hub(int port, int backlog) throws IOException {
+      this(new TcpTransport(), port, backlog);
+   }
+   
+   /**
+    * Creates a Hub that accepts connections from a specified transport, with
+    * a backlog of 1024.  Clients must connect with the same transport.
+    * @param transport  the transport that opens connections.
+    * @param port  the port on which the server will listen.
+    * @throws IOException if the transport can't listen on the specified port.
+    */
+   public Hub(Transport transport, int port) throws IOException {
+      this(transport, port, DEFAULT_BACKLOG);
+   }
+   
+   /**
+    * Creates a Hub that accepts connections from a specified transport, such
+    * as a LoopbackTransport.  Clients must connect with the same transport.
+    * @param transport  the transport that opens connections.
+    * @param port  the port on which the server will listen.
+    * @param backlog  the maximum length of the queue of connections waiting
+    *    to be accepted; zero or less means a default chosen by the transport.
+    * @throws IOException if the transport can't listen on the specified port.
+    */
+   public Hub(Transport transport, int port, int backlog) throws IOException {
+      this.transport = transport;
+      this.backlog = backlog;
       playerConnections = new TreeMap<Integer, ConnectionToClient>();
       incomingMessages = new LinkedBlockingQueue<Message>();
-      serverSocket = new ServerSocket(port);
+      serverSocket = transport.listen(port, backlog);
       System.out.println("Listening for client connections on port " + port);
       serverThread = new ServerThread();
       serverThread.start();
-      Thread readerThread = new Thread(){
-         public void run() {
-            while (true) {
-               try {
-                  Message msg = incomingMessages.take();
-                  messageReceived(msg.playerConnection, msg.message);
-               }
-               catch (Exception e) {
-                  System.out.println("Exception while handling received message:");
-                  e.printStackTrace();
-               }
-            }
-         }
-      };
+      Thread readerThread = new Dispatcher();
       readerThread.setDaemon(true);
       readerThread.start();
    }
@@ -153,6 +326,37 @@ public class Hub {
    protected void playerDisconnected(int playerID) {
    }
       
+   /**
+    * This method is called just after a player has resumed a connection that
+    * was lost, and the messages that it missed while it was away have been
+    * sent to it, or skipped because they were no longer available.  It is
+    * called in the same thread as messageReceived().  The method in this class
+    * does nothing.
+    * @param playerID the ID number of the player.
+    * @param complete true if the player was sent all the messages that it
+    *    missed, false if some were skipped.
+    */
+   protected void playerResumed(int playerID, boolean complete) {
+   }
+   
+   /**
+    * When there is more than one dispatch thread (see setDispatchThreads()),
+    * this method is called for each message before it is processed, to ask
+    * whether the message has to be processed in order with the messages from
+    * all players, rather than only with the messages from the same player.  If
+    * so, the hub waits until every message received before it has been processed,
+    * and then processes it while no other message is being processed, holding
+    * the lock on the hub, just as when there is only one dispatch thread.  This
+    * method is called by a single thread, which hands out all the messages, so
+    * it should return quickly, and it should look only at the message.  The
+    * method in this class returns false.
+    * @param playerID the ID number of the player who sent the message.
+    * @param message the message, which has not been processed yet.
+    */
+   protected boolean requiresGlobalOrder(int playerID, Object message) {
+      return false;
+   }
+   
    /**
     * This method is called after a connection request has been received to do 
     * extra checking or set up before the connection is fully established.
@@ -203,14 +407,15 @@ public class Hub {
       }
       catch (IOException e) {
       }
+      serverThread.interrupt();  // In case it is waiting for a handshake to finish.
       serverThread = null;
       serverSocket = null;
    }
    
    
    /**
-    * Restarts listening and accepting new clients.  This would only be used if
-    * the shutDownHub() method has been called previously.
+    * Restarts listening and accepting new clients, with the same transport.
+    * This would only be used if the shutDownHub() method has been called previously.
     * @param port the port on which the server should listen.
     * @throws IOException if it is impossible to create a listening socket on the specified port.
     */
@@ -218,7 +423,7 @@ public class Hub {
       if (serverThread != null && serverThread.isAlive())
          throw new IllegalStateException("Server is already listening for connections.");
       shutdown = false;
-      serverSocket = new ServerSocket(port);
+      serverSocket = transport.listen(port, backlog);
       serverThread = new ServerThread();
       serverThread.start();
    }
@@ -314,31 +519,424 @@ public class Hub {
       return autoreset;
    }
    
+   /**
+    * Sets the size of the socket send buffer for connections that are opened
+    * after this method is called.  Data in the send buffer has already left the
+    * hub's outgoing queue, so a control message can't go ahead of it; a smaller
+    * buffer therefore means less delay for control messages when a client is
+    * not keeping up.  A value of zero, which is the default, means that the
+    * operating system's default is used.
+    */
+   public void setSendBufferSize(int bytes) {
+      if (bytes < 0)
+         throw new IllegalArgumentException("Buffer size can't be negative.");
+      sendBufferSize = bytes;
+   }
+   
+   /**
+    * Installs a Conflater that will be used to reduce the number of messages sent
+    * to clients that have fallen behind, or removes it if the parameter is null.
+    * By default, there is no conflater.
+    */
+   public void setConflater(Conflater conflater) {
+      this.conflater = conflater;
+   }
+   
+   /**
+    * Returns the current Conflater, or null if there is none.
+    */
+   public Conflater getConflater() {
+      return conflater;
+   }
+   
+   /**
+    * Returns the total number of messages that the conflater has removed from
+    * the queues of outgoing messages, that is, the number of messages that were
+    * passed to the conflater minus the number that it returned.
+    */
+   public long getMessagesConflated() {
+      return messagesConflated.get();
+   }
+   
+   /**
+    * Turns relay mode on or off for connections that are opened after this
+    * method is called.  It should be called before any clients connect.
+    * In relay mode, the hub is a pure forwarder:  each application message is
+    * carried as a separate frame of bytes, which the hub forwards to all
+    * connected clients, with the ID of the sender added, without ever turning
+    * it into an object.  The frames are read into direct buffers, and each frame
+    * is shared by all the clients that it is sent to; frames are written with
+    * gathering writes, many at a time.  The clients see no difference, since
+    * a message from another client still arrives as a ForwardedMessage.  But
+    * messageReceived() is not called for application messages, so a subclass
+    * that overrides it will not see them, and there is no conflation.  Internal
+    * messages and messages sent by the hub itself work as usual.
+    */
+   public void setRelayMode(boolean relay) {
+      relayMode = relay;
+   }
+   
+   /**
+    * Returns true if new connections will use relay mode.
+    */
+   public boolean isRelayMode() {
+      return relayMode;
+   }
+   
+   /**
+    * Installs a recorder that writes the traffic from all clients to a capture
+    * file, or removes it if the parameter is null.  The recorder is not closed
+    * when it is removed.  The capture can be replayed against any hub; see
+    * netgame.bench.TrafficReplayer.
+    */
+   public void setTrafficRecorder(TrafficRecorder recorder) {
+      this.recorder = recorder;
+   }
+   
+   /**
+    * Returns the recorder installed with setTrafficRecorder(), or null.
+    */
+   public TrafficRecorder getTrafficRecorder() {
+      return recorder;
+   }
+   
+   /**
+    * Sets the time over which changes to the list of players are batched.
+    * When a player connects or disconnects, the other players are told at
+    * once if nothing has been sent to them about players in the last window;
+    * otherwise the change is held until the window ends, and all the changes
+    * from the window are sent as one message.  This keeps a storm of connects,
+    * such as all the clients reconnecting after a network outage, from turning
+    * into a storm of messages.  Since every batch is sent to every player, the
+    * window is stretched by a millisecond for every 20 connected players, so
+    * that the time the hub spends on sending changes stays about the same as the
+    * number of players grows.  The default is 20 milliseconds.  A value of zero
+    * means that every change is sent at once.
+    */
+   public void setPresenceWindow(int millis) {
+      presenceWindow = Math.max(0, millis);
+   }
+   
+   /**
+    * Returns the time over which changes to the list of players are batched.
+    */
+   public int getPresenceWindow() {
+      return presenceWindow;
+   }
+   
+   /**
+    * Returns the version of the list of players that was most recently sent to
+    * the clients.  The version goes up by one for each batch of changes, so it
+    * is the number of messages about players that each client has been sent.
+    */
+   synchronized public long getPresenceVersion() {
+      return presenceVersion;
+   }
+   
+   /**
+    * Returns the total number of bytes that the hub has written to all of its
+    * clients, including the handshakes and internal messages.
+    */
+   public long getBytesSent() {
+      return bytesSent.get();
+   }
+   
+   /**
+    * Sets the time that a new connection has to complete its handshake, in
+    * milliseconds.  The handshake is the exchange that comes before the player
+    * is connected:  the hello string or resume request from the client, the
+    * reply from the hub, and extraHandshake().  A connection that takes longer,
+    * for example because the client stalled or the network dropped it halfway,
+    * is closed, so that it does not hold on to a thread and a place among the
+    * handshakes in progress.  The default is 10 seconds.  Zero means no limit.
+    */
+   public void setHandshakeTimeout(int millis) {
+      handshakeTimeout = Math.max(0, millis);
+   }
+   
+   /**
+    * Returns the time that a new connection has to complete its handshake.
+    */
+   public int getHandshakeTimeout() {
+      return handshakeTimeout;
+   }
+   
+   /**
+    * Sets the number of handshakes that can be in progress at once.  When that
+    * many are in progress, the hub stops accepting connections until one of
+    * them finishes, and new connections wait in the backlog.  This keeps a storm
+    * of connections, such as every client reconnecting after the hub restarts,
+    * from starting thousands of handshakes that compete with each other and
+    * with the players who are already connected.  The default is 64.
+    */
+   public void setMaxConcurrentHandshakes(int max) {
+      synchronized(handshakeLimit) {
+         maxHandshakes = Math.max(1, max);
+         handshakeLimit.notifyAll();
+      }
+   }
+   
+   /**
+    * Returns the number of handshakes that can be in progress at once.
+    */
+   public int getMaxConcurrentHandshakes() {
+      synchronized(handshakeLimit) {
+         return maxHandshakes;
+      }
+   }
+   
+   /**
+    * Sets the number of threads that call messageReceived().  With the default,
+    * one, messages are processed one at a time, in the order in which they were
+    * received, and messageReceived() is called while holding the lock on the
+    * hub, so it never runs at the same time as any other synchronized method of
+    * the hub, such as playerConnected().  That is simple, but a subclass that
+    * does real work for each message can then use only one processor.
+    * <p>With more than one thread, each player's messages are handed to one of
+    * the threads, chosen by the player's ID, so the messages of one player are
+    * still processed one at a time and in order, but the messages of different
+    * players are processed in parallel, and messageReceived() is called without
+    * holding the lock on the hub.  A subclass that uses this must make its
+    * messageReceived() and playerResumed() methods thread-safe, and it can
+    * override requiresGlobalOrder() to pick out the messages that still need to
+    * be processed in order with every other message.  The number of threads
+    * can be changed at any time; the change takes effect after the messages
+    * that are already being processed are finished.  In relay mode, this
+    * applies only to messages that are not relayed.
+    * @param threads the number of threads; values less than one mean one.
+    */
+   public void setDispatchThreads(int threads) {
+      dispatchThreads = Math.max(1, threads);
+   }
+   
+   /**
+    * Returns the number of threads that call messageReceived().
+    */
+   public int getDispatchThreads() {
+      return dispatchThreads;
+   }
+   
+   /**
+    * Returns the number of handshakes that are in progress now.
+    */
+   public int getHandshakesInProgress() {
+      synchronized(handshakeLimit) {
+         return handshakesInProgress;
+      }
+   }
+   
+   /**
+    * Returns the total number of connections that the hub has accepted.  Each
+    * one either completes its handshake, fails, or times out.  Comparing the
+    * counts at two times gives the rate at which the hub is taking connections.
+    */
+   public long getConnectionsAccepted() {
+      return connectionsAccepted.get();
+   }
+   
+   /**
+    * Returns the number of connections that completed their handshake, including
+    * those that resumed an old session.
+    */
+   public long getHandshakesCompleted() {
+      return handshakesCompleted.get();
+   }
+   
+   /**
+    * Returns the number of connections that were closed because of an error
+    * or a wrong reply during their handshake.
+    */
+   public long getHandshakesFailed() {
+      return handshakesFailed.get();
+   }
+   
+   /**
+    * Returns the number of connections that were closed because their handshake
+    * took longer than the handshake timeout.
+    */
+   public long getHandshakesTimedOut() {
+      return handshakesTimedOut.get();
+   }
+   
+   /**
+    * Sets how long a player whose connection has been lost can take to resume it,
+    * in milliseconds.  During this time, the player stays in the list of players,
+    * and messages for it are queued.  A value of zero, which is the default,
+    * turns resuming off, so a lost connection is closed at once.
+    */
+   public void setResumeTimeout(int millis) {
+      if (millis < 0)
+         throw new IllegalArgumentException("Resume timeout can't be negative.");
+      resumeTimeout = millis;
+   }
+   
+   /**
+    * Returns the time allowed for resuming a lost connection, in milliseconds.
+    */
+   public int getResumeTimeout() {
+      return resumeTimeout;
+   }
+   
+   /**
+    * Sets the number of messages that are kept for each player, so they can be
+    * sent again if the player resumes a lost connection.  The new capacity applies
+    * to players that connect after it is set.  The default is 1024.
+    */
+   public void setReplayCapacity(int messages) {
+      if (messages < 1)
+         throw new IllegalArgumentException("Replay capacity must be positive.");
+      replayCapacity = messages;
+   }
+   
+   /**
+    * Returns the number of messages that are kept for resuming each new connection.
+    */
+   public int getReplayCapacity() {
+      return replayCapacity;
+   }
+   
+   /**
+    * Discards the application messages that are waiting to be sent to a player.
+    * (Internal messages, such as notices that players have connected or disconnected,
+    * are kept, and so are BackgroundMessages, which don't depend on the messages
+    * around them.)  This can be used, for example, in playerResumed(), before sending
+    * a player a complete new state that makes the waiting messages unnecessary.
+    * @return true if the player exists, false if not.
+    */
+   synchronized public boolean discardQueuedMessages(int playerID) {
+      ConnectionToClient pc = playerConnections.get(playerID);
+      if (pc == null)
+         return false;
+      pc.outgoingMessages.clear(LaneQueue.BULK);
+      return true;
+   }
+   
+   /**
+    * Sets the default limits on the rate at which each client can send
+    * messages.  The limits apply to all current and future players that
+    * do not have their own limits set by setPlayerRateLimits().  A client
+    * can send a burst of up to one second's worth of messages at once; 
+    * after that, the hub stops reading from the client's connection until
+    * the average rate is back within the limits.
+    * @param messagesPerSecond the maximum number of messages per second,
+    *    or zero for no limit.
+    * @param bytesPerSecond the maximum number of bytes per second, or zero
+    *    for no limit.
+    */
+   public void setRateLimits(double messagesPerSecond, double bytesPerSecond) {
+      if (messagesPerSecond < 0 || bytesPerSecond < 0)
+         throw new IllegalArgumentException("Rate limits can't be negative.");
+      messageRateLimit = messagesPerSecond;
+      byteRateLimit = bytesPerSecond;
+   }
+   
+   /**
+    * Returns the default limit on messages per second from each client, or
+    * zero if there is no limit.
+    */
+   public double getMessageRateLimit() {
+      return messageRateLimit;
+   }
+   
+   /**
+    * Returns the default limit on bytes per second from each client, or
+    * zero if there is no limit.
+    */
+   public double getByteRateLimit() {
+      return byteRateLimit;
+   }
+   
+   /**
+    * Sets the rate limits for one connected player, replacing the default
+    * limits for that player.  A negative value means that the default limit
+    * should be used; zero means no limit.
+    * @return true if the specified player exists, false if not.
+    */
+   synchronized public boolean setPlayerRateLimits(int playerID, double messagesPerSecond, double bytesPerSecond) {
+      ConnectionToClient pc = playerConnections.get(playerID);
+      if (pc == null)
+         return false;
+      pc.playerMessageRate = messagesPerSecond;
+      pc.playerByteRate = bytesPerSecond;
+      return true;
+   }
+   
+   /**
+    * Returns the total time that the hub has stopped reading from a player's
+    * connection because the player went over its rate limits.
+    * @return the time in nanoseconds, or -1 if there is no such player.
+    */
+   synchronized public long getThrottledNanos(int playerID) {
+      ConnectionToClient pc = playerConnections.get(playerID);
+      if (pc == null)
+         return -1;
+      return pc.throttledNanos;
+   }
+   
 
    //------------------------- private implementation part ---------------------------------------
    
    
    synchronized private void messageReceived(ConnectionToClient fromConnection, Object message) {
+      dispatch(fromConnection, message);
+   }
+   
+   /**
+    * Processes one message from a client.  This is called while holding the lock on
+    * the hub, except by the lanes of the dispatcher when there is more than one.
+    */
+   private void dispatch(ConnectionToClient fromConnection, Object message) {
              // Note: DisconnectMessage is handled in the ConnectionToClient class.
       int sender = fromConnection.getPlayer();
-      messageReceived(sender,message);
+      if (message instanceof ResumeReply)  // Put in the queue by the connection itself when it was resumed.
+         playerResumed(sender, ((ResumeReply)message).complete);
+      else if (message instanceof AckRequest)
+         fromConnection.acksRequested(((AckRequest)message).sent);
+      else {
+         DispatchEvent event = new DispatchEvent();
+         event.begin();
+         try {
+            messageReceived(sender,message);
+         }
+         finally {
+            fromConnection.processed();
+            if (event.shouldCommit()) {
+               event.playerID = sender;
+               event.messageType = message.getClass().getName();
+               event.commit();
+            }
+         }
+      }
    }
    
    
+   /**
+    * Forwards a frame that was received in relay mode to all connected clients.
+    */
+   synchronized private void relayToAll(RelayFrame frame) {
+      for (ConnectionToClient pc : playerConnections.values())
+         pc.send(frame);
+   }
+   
    synchronized private void acceptConnection(ConnectionToClient newConnection) {
       int ID = newConnection.getPlayer();
       playerConnections.put(ID,newConnection);
-      StatusMessage sm = new StatusMessage(ID,true,getPlayerList());
-      sendToAll(sm);
+      TrafficRecorder r = recorder;
+      if (r != null)
+         r.connected(ID);
+      presenceChanged(ID,true);
       playerConnected(ID);
       System.out.println("Connection accepted from client number " + ID);
    }
    
    synchronized private void clientDisconnected(int playerID) {
       if (playerConnections.containsKey(playerID)) {
-         playerConnections.remove(playerID);
-         StatusMessage sm = new StatusMessage(playerID,false,getPlayerList());
-         sendToAll(sm);
+         ConnectionToClient pc = playerConnections.remove(playerID);
+         sessions.remove(pc.sessionToken);
+         TrafficRecorder r = recorder;
+         if (r != null)
+            r.disconnected(playerID);
+         presenceChanged(playerID,false);
          playerDisconnected(playerID);
          System.out.println("Connection with client number " + playerID + " closed by DisconnectMessage from client.");
       }
@@ -346,27 +944,252 @@ public class Hub {
    
    synchronized private void connectionToClientClosedWithError( ConnectionToClient playerConnection, String message ) {
       int ID = playerConnection.getPlayer();
+      sessions.remove(playerConnection.sessionToken);
       if (playerConnections.remove(ID) != null) {
-         StatusMessage sm = new StatusMessage(ID,false,getPlayerList());
-         sendToAll(sm);
+         TrafficRecorder r = recorder;
+         if (r != null)
+            r.disconnected(ID);
+         presenceChanged(ID,false);
+         playerDisconnected(ID);
       }
    }
    
+   /**
+    * Records that a player has connected or disconnected, and sends the change
+    * to the clients now, or schedules it to be sent at the end of the current
+    * presence window.  A player who leaves in the same window in which it joined
+    * is never announced at all.
+    */
+   synchronized private void presenceChanged(int playerID, boolean joined) {
+      if (joined)
+         pendingJoins.add(playerID);
+      else if ( ! pendingJoins.remove((Integer)playerID) )
+         pendingLeaves.add(playerID);
+      if (presenceFlushScheduled)
+         return;
+      int window = presenceWindow;
+      if (window > 0)
+         window += playerConnections.size() / PLAYERS_PER_WINDOW_MILLI;  // Each batch goes to every player.
+      long wait = lastPresenceFlush + window - System.currentTimeMillis();
+      if (wait <= 0) {
+         flushPresence();
+         return;
+      }
+      presenceFlushScheduled = true;
+      scheduler.schedule(new Runnable() {
+         public void run() {
+            synchronized(Hub.this) {
+               presenceFlushScheduled = false;
+               flushPresence();
+            }
+         }
+      }, wait, TimeUnit.MILLISECONDS);
+   }
+   
+   /**
+    * Sends the pending changes to the list of players as a new version.  Players
+    * who are in the batch as new players get the full list; everyone else gets
+    * only the changes.
+    */
+   synchronized private void flushPresence() {
+      lastPresenceFlush = System.currentTimeMillis();
+      if (pendingJoins.isEmpty() && pendingLeaves.isEmpty())
+         return;
+      int[] joined = toArray(pendingJoins);
+      int[] left = toArray(pendingLeaves);
+      pendingJoins.clear();
+      pendingLeaves.clear();
+      for (int ID : left)
+         announcedPlayers.remove(ID);
+      for (int ID : joined)
+         announcedPlayers.add(ID);
+      presenceVersion++;
+      PresenceMessage delta = new PresenceMessage(presenceVersion, joined, left, null);
+      PresenceMessage snapshot = null;
+      Set<Integer> newcomers = new TreeSet<Integer>();
+      for (int ID : joined)
+         newcomers.add(ID);
+      for (ConnectionToClient pc : playerConnections.values()) {
+         if ( ! newcomers.contains(pc.getPlayer()) )
+            pc.send(delta);
+         else {
+            if (snapshot == null)
+               snapshot = new PresenceMessage(presenceVersion, joined, left, toArray(announcedPlayers));
+            pc.send(snapshot);
+         }
+      }
+   }
+   
+   /**
+    * Sends one client the full list of players, as of the current version.
+    * This is done when the client asks for it and when a connection has been
+    * resumed after the messages that the client missed were lost.
+    */
+   synchronized private void sendPresenceSnapshot(ConnectionToClient pc) {
+      pc.send(new PresenceMessage(presenceVersion, new int[0], new int[0], toArray(announcedPlayers)));
+   }
+   
+   private static int[] toArray(Collection<Integer> IDs) {
+      int[] array = new int[IDs.size()];
+      int i = 0;
+      for (int ID : IDs)
+         array[i++] = ID;
+      return array;
+   }
+   
+   synchronized private long startSession(ConnectionToClient connection) {
+      long token;
+      do {
+         token = random.nextLong();
+      } while (token == 0 || sessions.containsKey(token));
+      sessions.put(token, connection);
+      return token;
+   }
+   
+   synchronized private void endSession(long token) {
+      sessions.remove(token);
+   }
+   
+   synchronized private ConnectionToClient findSession(long token) {
+      return resumeTimeout > 0 ? sessions.get(token) : null;
+   }
+   
    private class Message {
       ConnectionToClient playerConnection;
       Object message;
    }
    
-   private class ServerThread extends Thread {  // Listens for connection requests from clients.
+   /**
+    * Takes the messages from the incomingMessages queue and processes them, or, when
+    * there is more than one dispatch thread, hands them out to a set of lanes,
+    * each with its own thread.  A player's messages always go to the same lane.
+    * A message that needs global order is processed by this thread, once every
+    * lane is idle.  The lanes are replaced, after they are idle, when the number
+    * of dispatch threads changes.
+    */
+   private class Dispatcher extends Thread {
+      private final List<DispatchLane> lanes = new ArrayList<DispatchLane>();
+      public void run() {
+         while (true) {
+            try {
+               Message msg = incomingMessages.take();
+               int threads = dispatchThreads;
+               if (threads != Math.max(1, lanes.size())) {
+                  awaitLanes();
+                  for (DispatchLane lane : lanes)
+                     lane.interrupt();
+                  lanes.clear();
+                  for (int i = 0; threads > 1 && i < threads; i++) {
+                     DispatchLane lane = new DispatchLane(i);
+                     lane.setDaemon(true);
+                     lane.start();
+                     lanes.add(lane);
+                  }
+               }
+               if (lanes.isEmpty() || needsGlobalOrder(msg)) {
+                  awaitLanes();
+                  messageReceived(msg.playerConnection, msg.message);
+               }
+               else {
+                  dispatchesPending.incrementAndGet();
+                  lanes.get(Math.floorMod(msg.playerConnection.getPlayer(), lanes.size())).queue.add(msg);
+               }
+            }
+            catch (Exception e) {
+               System.out.println("Exception while handling received message:");
+               e.printStackTrace();
+            }
+         }
+      }
+      private boolean needsGlobalOrder(Message msg) {
+         if (msg.message instanceof ResumeReply)  // playerResumed() is never called in parallel.
+            return true;
+         if (msg.message instanceof AckRequest)
+            return false;
+         return requiresGlobalOrder(msg.playerConnection.getPlayer(), msg.message);
+      }
+      private void awaitLanes() throws InterruptedException {
+         synchronized(dispatchesPending) {
+            while (dispatchesPending.get() > 0)
+               dispatchesPending.wait();
+         }
+      }
+   }
+   
+   /**
+    * One of the threads that process messages when there is more than one
+    * dispatch thread.  It stops when it is interrupted, which is done only
+    * when its queue is empty.
+    */
+   private class DispatchLane extends Thread {
+      private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+      DispatchLane(int number) {
+         super("Hub dispatcher " + number);
+      }
+      public void run() {
+         while (true) {
+            Message msg;
+            try {
+               msg = queue.take();
+            }
+            catch (InterruptedException e) {
+               return;
+            }
+            try {
+               dispatch(msg.playerConnection, msg.message);
+            }
+            catch (Exception e) {
+               System.out.println("Exception while handling received message:");
+               e.printStackTrace();
+            }
+            finally {
+               if (dispatchesPending.decrementAndGet() == 0) {
+                  synchronized(dispatchesPending) {
+                     dispatchesPending.notifyAll();
+                  }
+               }
+            }
+         }
+      }
+   }
+   
+   /**
+    * Listens for connection requests from clients.  Each connection is handed
+    * to the handshake executor, but only while fewer than the maximum number of
+    * handshakes are in progress; otherwise, this thread waits, and connection
+    * requests stay in the backlog.
+    */
+   private class ServerThread extends Thread {
+      private final Transport.Listener listener = serverSocket;
       public void run() {
          try {
             while ( ! shutdown ) {
-               Socket connection = serverSocket.accept();
+               synchronized(handshakeLimit) {
+                  while (handshakesInProgress >= maxHandshakes)
+                     handshakeLimit.wait();
+                  handshakesInProgress++;
+               }
+               Transport.Connection connection;
+               try {
+                  connection = listener.accept();
+               }
+               catch (IOException e) {
+                  handshakeFinished();
+                  throw e;
+               }
                if (shutdown) {
+                  handshakeFinished();
+                  connection.close();
                   System.out.println("Listener socket has shut down.");
                   break;
                }
-               new ConnectionToClient(incomingMessages,connection);
+               connectionsAccepted.incrementAndGet();
+               final ConnectionToClient newConnection = new ConnectionToClient(incomingMessages,connection);
+               handshakeExecutor.execute(new Runnable() {
+                  public void run() {
+                     newConnection.handshake();
+                  }
+               });
             }
          }
          catch (Exception e) {
@@ -379,24 +1202,59 @@ public class Hub {
    }
    
    
+   private void handshakeFinished() {
+      synchronized(handshakeLimit) {
+         handshakesInProgress--;
+         handshakeLimit.notifyAll();
+      }
+   }
+   
+   private static ThreadFactory daemonThreads(final String name) {
+      return new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+         }
+      };
+   }
+   
+   
    private class ConnectionToClient { // Handles communication with one client.
 
       private int playerID;  // The ID number for this player.
+      private long sessionToken;  // Identifies this player's session in a ResumeRequest.
       private BlockingQueue<Message> incomingMessages;
-      private LinkedBlockingQueue<Object> outgoingMessages;
-      private Socket connection;
+      private LaneQueue outgoingMessages;
+      private Transport.Connection connection;
+      private boolean relay;      // Whether this connection uses relay mode; set during the handshake.
+      private CountingInputStream countingIn;  // Counts the bytes read from the client.
       private ObjectInputStream in;
       private ObjectOutputStream out;
       private volatile boolean closed;  // Set to true when connection is closing normally.
+      private volatile boolean suspended;  // True while the connection is lost but can still be resumed.
+      private volatile ScheduledFuture<?> expiry;  // Closes a suspended connection that is not resumed in time.
+      private volatile int generation;  // Incremented each time the connection is suspended, so that the
+                                        //    threads that were using the old socket know to stop.
+      private ReplayRing sent;          // The most recent messages written to the client.
+      private ByteBuffer slab;          // Where frames are read in relay mode; used by the receive thread.
+      private volatile long received;   // Number of messages read from the client, not counting probes.
+      private volatile boolean acksWanted;  // Set when the client asks for acknowledgements.
+      private volatile long processed;  // Application messages from the client that have been processed;
+                                        //    only changed by one thread, as explained in processed().
       private Thread sendThread; // Handles setup, then handles outgoing messages.
       private volatile Thread receiveThread; // Created only after connection is open.
       
-      ConnectionToClient(BlockingQueue<Message> receivedMessageQueue, Socket connection)  {
+      private volatile double playerMessageRate = -1;  // This player's limits; negative means use
+      private volatile double playerByteRate = -1;     //    the hub's default limits.
+      private volatile long throttledNanos;            // Total time spent throttled.
+      private TokenBucket messageBucket, byteBucket;   // Used only by the receive thread;
+      private double bucketMessageRate, bucketByteRate; //   null when there is no limit.
+      
+      ConnectionToClient(BlockingQueue<Message> receivedMessageQueue, Transport.Connection connection)  {
          this.connection = connection;
          incomingMessages = receivedMessageQueue;
-         outgoingMessages = new LinkedBlockingQueue<Object>();
-         sendThread =  new SendThread();
-         sendThread.start();
+         outgoingMessages = new LaneQueue();
       }
       
       int getPlayer() {
@@ -405,7 +1263,11 @@ public class Hub {
       
       void close() {
          closed = true;
-         sendThread.interrupt();
+         ScheduledFuture<?> task = expiry;
+         if (task != null)
+            task.cancel(false);
+         if (sendThread != null)
+            sendThread.interrupt();
          if (receiveThread != null)
             receiveThread.interrupt();
          try {
@@ -421,77 +1283,462 @@ public class Hub {
             // discard other waiting messages, if any.
             outgoingMessages.clear();
          }
+         EnqueueEvent event = new EnqueueEvent();
+         event.begin();
          outgoingMessages.add(obj);
+         if (event.shouldCommit()) {
+            event.playerID = playerID;
+            event.messageType = obj.getClass().getName();
+            event.queueDepth = outgoingMessages.size();
+            event.commit();
+         }
+      }
+      
+      /**
+       * Turns on acknowledgements for this client, which has sent the given
+       * number of application messages before asking, and acknowledges them.
+       */
+      void acksRequested(long sent) {
+         processed = sent;
+         acksWanted = true;
+         outgoingMessages.replace(new AckMessage(sent), LaneQueue.CONTROL);
+      }
+      
+      /**
+       * Called after an application message from the client has been processed,
+       * to count it and, if the client wants them, to queue an acknowledgement.
+       * Acknowledgements that have not been sent yet are replaced by the new one,
+       * so a burst of messages is acknowledged by a single AckMessage.  This is
+       * called by the thread that processes this client's messages, or in relay
+       * mode by the receive thread, which also handles the AckRequest, so the
+       * count is only changed by one thread at a time.
+       */
+      void processed() {
+         long count = processed + 1;
+         processed = count;
+         if (acksWanted)
+            outgoingMessages.replace(new AckMessage(count), LaneQueue.CONTROL);
       }
       
-      private void closedWithError(String message) {
+      /**
+       * Called by the send or receive thread for a given generation of the
+       * connection when an error occurs.  If resuming is turned on, the connection
+       * is suspended; otherwise, it is closed.  Errors from the threads of an
+       * earlier generation are ignored.
+       */
+      private void closedWithError(String message, int gen) {
+         synchronized(this) {
+            if (closed || gen != generation)
+               return;
+            if (resumeTimeout > 0 && !shutdown) {
+               suspend();
+               System.out.println("Connection with client number " + playerID 
+                     + " lost; waiting for the client to resume.");
+               return;
+            }
+         }
          connectionToClientClosedWithError(this, message);
          close();
       }
       
       /**
-       * Handles the "handshake" that occurs before the connection is opened.
-       * Once that's done, it creates a thread for receiving incoming messages,
-       * and goes into an infinite loop in which it transmits outgoing messages.
+       * Stops using the current socket, while keeping the player connected, and
+       * schedules a task on the hub's scheduler that will close the connection if
+       * it is not resumed in time.  Messages for the player keep piling up in the
+       * outgoing queue.
        */
-      private class SendThread extends Thread {
-         public void run() {
-            try {
-               out = new ObjectOutputStream(connection.getOutputStream());
-               in = new ObjectInputStream(connection.getInputStream());
-               String handle = (String)in.readObject(); // first input must be "Hello Hub"
-               if ( ! "Hello Hub".equals(handle) )
-                  throw new Exception("Incorrect hello string received from client.");
-               synchronized(Hub.this) {
-                  playerID = nextClientID++; // Get a player ID for this player.
+      synchronized private void suspend() {
+         if (closed || suspended)
+            return;
+         suspended = true;
+         final int gen = ++generation;
+         sendThread.interrupt();
+         if (receiveThread != null)
+            receiveThread.interrupt();
+         try {
+            connection.close();
+         }
+         catch (IOException e) {
+         }
+         expiry = scheduler.schedule(new Runnable() {
+            public void run() {
+               synchronized(ConnectionToClient.this) {
+                  if (closed || !suspended || generation != gen)
+                     return;
                }
-               out.writeObject(playerID);  // send playerID to the client.
-               out.flush();
-               extraHandshake(playerID,in,out);  // Does any extra stuff before connection is fully established.
-               acceptConnection(ConnectionToClient.this);
-               receiveThread = new ReceiveThread();
-               receiveThread.start();
+               System.out.println("Connection with client number " + playerID + " was not resumed in time.");
+               connectionToClientClosedWithError(ConnectionToClient.this, "Connection was not resumed.");
+               close();
             }
-            catch (Exception e) {
-               try {
-                  closed = true;
+         }, resumeTimeout, TimeUnit.MILLISECONDS);
+      }
+      
+      /**
+       * Takes over a new socket from a client that is resuming this connection.
+       * This is called in the thread that read the ResumeRequest.  The old socket
+       * is abandoned, if the hub had not noticed already that it is dead.  Then the
+       * reply and the messages that the client missed are written to the new socket,
+       * and new threads are started to use it.
+       */
+      private void resume(Transport.Connection newConnection, CountingInputStream ci, ObjectInputStream i, 
+                                ObjectOutputStream o, long clientReceived) throws Exception {
+         Thread oldSend, oldReceive;
+         synchronized(this) {
+            if (closed)
+               throw new IOException("The session has been closed.");
+            suspend();
+            oldSend = sendThread;
+            oldReceive = receiveThread;
+         }
+         oldSend.join(1000);  // So the old threads are no longer using the queue, streams, and counts.
+         if (oldReceive != null)
+            oldReceive.join(1000);
+         List<Object> replay = sent.since(clientReceived);
+         long resumeFrom = replay == null ? sent.getCount() : clientReceived;
+         ResumeReply reply = new ResumeReply(playerID, received, resumeFrom, replay != null);
+         o.writeObject(reply);
+         o.flush();
+         extraHandshake(playerID,i,o);
+         o.flush();
+         synchronized(this) {
+            if (closed) {
+               newConnection.close();
+               return;
+            }
+            connection = newConnection;
+            countingIn = ci;
+            in = i;
+            out = o;
+            if (replay != null)
+               write(replay, null);
+            suspended = false;
+            expiry.cancel(false);
+            receiveThread = new ReceiveThread(generation);
+            receiveThread.start();
+            sendThread = new SendThread(generation);
+            sendThread.start();
+         }
+         System.out.println("Connection with client number " + playerID + " resumed" 
+               + (replay == null ? "; missed messages were no longer available." : 
+                      " with " + replay.size() + " missed messages."));
+         if (replay == null)
+            sendPresenceSnapshot(this);  // Changes to the list of players might have been missed.
+         Message msg = new Message();  // Tells the message processing thread to call playerResumed().
+         msg.playerConnection = this;
+         msg.message = reply;
+         incomingMessages.put(msg);
+      }
+      
+      /**
+       * Writes a list of messages to the client, and flushes the output.  In relay
+       * mode, all of them are written as frames with a single gathering write.
+       * @param headers  a direct buffer for the headers of the frames in relay
+       *    mode, which must have room for all of them, or null to allocate one.
+       */
+      private void write(List<Object> messages, ByteBuffer headers) throws IOException {
+         if ( ! relay ) {
+            for (Object message : messages) {
+               if (message instanceof ResetSignal)
+                  out.reset();
+               else {
+                  if (autoreset)
+                     out.reset();
+                  out.writeObject(message);
+               }
+            }
+            out.flush();
+            return;
+         }
+         if (headers == null || headers.capacity() < messages.size()*RelayFrame.HUB_HEADER_SIZE)
+            headers = ByteBuffer.allocateDirect(messages.size()*RelayFrame.HUB_HEADER_SIZE);
+         headers.clear();
+         ByteBuffer[] buffers = new ByteBuffer[2*messages.size()];
+         int count = 0;
+         for (Object message : messages) {
+            if (message instanceof ResetSignal)
+               continue;  // Every frame is serialized separately, so there is nothing to reset.
+            byte kind;
+            int sender = 0;
+            ByteBuffer payload;
+            if (message instanceof RelayFrame) {
+               RelayFrame frame = (RelayFrame)message;
+               kind = frame.kind;
+               sender = frame.senderID;
+               payload = frame.payload.duplicate();
+            }
+            else if (message instanceof ProbeMessage) {
+               kind = RelayFrame.PROBE;
+               payload = ByteBuffer.allocate(8).putLong(0, ((ProbeMessage)message).sentNanos);
+            }
+            else {
+               kind = RelayFrame.OBJECT;
+               payload = ByteBuffer.wrap(RelayFrame.serialize(message));
+            }
+            int start = headers.position();
+            RelayFrame.putHubHeader(headers, kind, sender, payload.remaining());
+            ByteBuffer header = headers.duplicate();
+            header.position(start).limit(headers.position());
+            buffers[count++] = header;
+            buffers[count++] = payload;
+         }
+         int first = 0;
+         while (first < count) {
+            bytesSent.addAndGet(connection.write(buffers, first, count - first));
+            while (first < count && !buffers[first].hasRemaining())
+               first++;
+         }
+      }
+      
+      /**
+       * Reads the next frame from a client in relay mode.  Payloads are read into
+       * slices of a large direct buffer, the slab, so that many frames share one
+       * allocation; a new slab is started when the current one is full.  The
+       * returned frame has the ID of this player as its sender.
+       */
+      private RelayFrame readFrame(ByteBuffer header) throws IOException {
+         header.clear();
+         readFully(header);
+         header.flip();
+         int length = header.getInt() - 1;
+         byte kind = header.get();
+         if (length < 0 || length > RelayFrame.MAX_PAYLOAD)
+            throw new IOException("Illegal frame length " + length);
+         ByteBuffer payload;
+         if (length > SLAB_SIZE/4)
+            payload = ByteBuffer.allocateDirect(length);
+         else {
+            if (slab == null || slab.remaining() < length)
+               slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            payload = slab.slice();
+            payload.limit(length);
+            slab.position(slab.position() + length);
+         }
+         readFully(payload);
+         payload.flip();
+         return new RelayFrame(playerID, kind, payload);
+      }
+      
+      private void readFully(ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            if (connection.read(buffer) < 0)
+               throw new EOFException("Connection closed by client.");
+         }
+      }
+      
+      /**
+       * Called by the receive thread after reading a message that took a given
+       * number of bytes.  If the client is over its rate limits, this method
+       * sleeps until it is back within them, so that nothing more is read from
+       * the client in the meantime.  The buckets are recreated if the limits
+       * have been changed.
+       */
+      private void throttle(long bytes) throws InterruptedException {
+         double msgRate = playerMessageRate >= 0 ? playerMessageRate : messageRateLimit;
+         double byteRate = playerByteRate >= 0 ? playerByteRate : byteRateLimit;
+         if (msgRate != bucketMessageRate) {
+            messageBucket = msgRate > 0 ? new TokenBucket(msgRate, Math.max(1, msgRate)) : null;
+            bucketMessageRate = msgRate;
+         }
+         if (byteRate != bucketByteRate) {
+            byteBucket = byteRate > 0 ? new TokenBucket(byteRate, Math.max(1, byteRate)) : null;
+            bucketByteRate = byteRate;
+         }
+         long wait = 0;
+         if (messageBucket != null)
+            wait = messageBucket.take(1);
+         if (byteBucket != null)
+            wait = Math.max(wait, byteBucket.take(bytes));
+         if (wait > 0) {
+            throttledNanos += wait;
+            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+         }
+      }
+      
+      /**
+       * Does the handshake for a new connection, and then starts the threads
+       * that send and receive messages.  This is run by the hub's handshake
+       * executor.  If the handshake is not done before the handshake timeout,
+       * the socket is closed by the hub's scheduler, which makes the handshake
+       * fail.  The deadline covers everything up to the point where the player
+       * is connected, or, for a client that is resuming, up to the point where
+       * the session is found.
+       */
+      void handshake() {
+         HandshakeEvent event = new HandshakeEvent();
+         event.begin();
+         final AtomicBoolean finished = new AtomicBoolean();  // Set by whichever comes first,
+                                                              //   the end of the handshake or the deadline.
+         ScheduledFuture<?> deadline = null;
+         int timeout = handshakeTimeout;
+         if (timeout > 0) {
+            deadline = scheduler.schedule(new Runnable() {
+               public void run() {
+                  if (finished.compareAndSet(false, true)) {
+                     try {
+                        connection.close();
+                     }
+                     catch (IOException e) {
+                     }
+                  }
+               }
+            }, timeout, TimeUnit.MILLISECONDS);
+         }
+         boolean released = false;  // Whether this connection's place among the handshakes was given up.
+         try {
+            if (sendBufferSize > 0)
+               connection.setSendBufferSize(sendBufferSize);
+            out = new ObjectOutputStream(new CountingOutputStream(connection.getOutputStream(), bytesSent));
+            countingIn = new CountingInputStream(connection.getInputStream());
+            in = new ObjectInputStream(countingIn);
+            Object handle = in.readObject(); // first input must be "Hello Hub" or a ResumeRequest
+            if (handle instanceof ResumeRequest) {
+               ConnectionToClient session = findSession(((ResumeRequest)handle).token);
+               if ( ! finished.compareAndSet(false, true) )
+                  throw new IOException("Handshake timed out.");
+               handshakeFinished();
+               released = true;
+               if (session == null) {
+                  out.writeObject("Unknown session.");
+                  out.flush();
                   connection.close();
+                  handshakesFailed.incrementAndGet();
                }
-               catch (Exception e1) {
+               else {
+                  session.resume(connection, countingIn, in, out, ((ResumeRequest)handle).received);
+                  handshakesCompleted.incrementAndGet();
+                  event.playerID = session.playerID;
+                  event.succeeded = true;
                }
+               event.resumed = true;
+               return;
+            }
+            if ( ! "Hello Hub".equals(handle) )
+               throw new Exception("Incorrect hello string received from client.");
+            synchronized(Hub.this) {
+               playerID = nextClientID++; // Get a player ID for this player.
+            }
+            sessionToken = startSession(ConnectionToClient.this);
+            sent = new ReplayRing(replayCapacity);
+            relay = relayMode;
+            out.writeObject(playerID);  // send playerID to the client.
+            out.writeObject(sessionToken);
+            out.writeObject(relay);
+            out.flush();
+            extraHandshake(playerID,in,out);  // Does any extra stuff before connection is fully established.
+            if ( ! finished.compareAndSet(false, true) )
+               throw new IOException("Handshake timed out.");
+            handshakeFinished();
+            released = true;
+            sendThread = new SendThread(0);
+            receiveThread = new ReceiveThread(0);
+            acceptConnection(ConnectionToClient.this);
+            sendThread.start();
+            receiveThread.start();
+            handshakesCompleted.incrementAndGet();
+            event.playerID = playerID;
+            event.succeeded = true;
+         }
+         catch (Exception e) {
+            endSession(sessionToken);
+            if ( ! released && ! finished.compareAndSet(false, true) ) {
+               handshakeFinished();  // The deadline passed and the timer closed the socket.
+               handshakesTimedOut.incrementAndGet();
+               System.out.println("Handshake with a new connection timed out.");
+            }
+            else {
+               if ( ! released )
+                  handshakeFinished();
+               handshakesFailed.incrementAndGet();
                System.out.println("\nError while setting up connection: " + e);
                e.printStackTrace();
-               return;
             }
             try {
-               while ( ! closed ) {  // Get messages from outgoingMessages queue and send them.
+               closed = true;
+               connection.close();
+            }
+            catch (Exception e1) {
+            }
+         }
+         finally {
+            if (deadline != null)
+               deadline.cancel(false);
+            event.commit();
+         }
+      }
+      
+      /**
+       * Commits a ReceiveEvent for a message, if it is enabled and took long enough.
+       */
+      private void received(ReceiveEvent event, Object message, long bytes) {
+         if (event.shouldCommit()) {
+            event.playerID = playerID;
+            event.messageType = message.getClass().getName();
+            event.bytes = bytes;
+            event.commit();
+         }
+      }
+      
+      /**
+       * This class defines a thread that sends messages to the client.
+       */
+      private class SendThread extends Thread {
+         private final int gen;  // The generation of the connection that this thread serves.
+         SendThread(int gen) {
+            this.gen = gen;
+         }
+         public void run() {
+            try {
+               List<Object> batch = new ArrayList<Object>();
+               ByteBuffer headers = relay ? ByteBuffer.allocateDirect(MAX_BATCH*RelayFrame.HUB_HEADER_SIZE) : null;
+               while ( ! closed && gen == generation ) {  // Get messages from outgoingMessages queue and send them.
                   try {
-                     Object message = outgoingMessages.take();
-                     if (message instanceof ResetSignal)
-                        out.reset();
+                     Conflater c = relay ? null : conflater;  // Relayed frames can't be conflated.
+                     batch.clear();
+                     List<Object> messages = batch;
+                     if (c == null && ! relay)
+                        batch.add(outgoingMessages.take());
                      else {
-                        if (autoreset)
-                           out.reset();
-                        out.writeObject(message);
-                        out.flush();
-                        if (message instanceof DisconnectMessage) // A signal to close the connection.
-                           close();
+                        outgoingMessages.takeBatch(batch, MAX_BATCH);
+                        if (c != null && batch.size() > 1 && !(batch.get(0) instanceof ResetSignal)) {
+                           int count = batch.size();
+                           messages = c.conflate(playerID, batch);
+                           messagesConflated.addAndGet(count - messages.size());
+                        }
+                     }
+                     boolean disconnect = false;
+                     for (Object message : messages) {
+                        if ( ! (message instanceof ProbeMessage || message instanceof ResetSignal) )
+                           sent.add(message);  // Before writing, since a failed write might still have
+                                               //    sent the message, or part of it.
+                        if (message instanceof DisconnectMessage)
+                           disconnect = true;  // A signal to close the connection.
+                     }
+                     WriteEvent event = new WriteEvent();
+                     event.begin();
+                     write(messages, headers);
+                     if (event.shouldCommit()) {
+                        event.playerID = playerID;
+                        event.messages = messages.size();
+                        event.queueDepth = outgoingMessages.size();
+                        event.commit();
                      }
+                     if (disconnect)
+                        close();
                   }
                   catch (InterruptedException e) {
-                     // should mean that connection is closing
+                     // should mean that connection is closing or being suspended
                   }
                }   
             }
             catch (IOException e) {
-               if (! closed) {
-                  closedWithError("Error while sending data to client.");
+               if (! closed && gen == generation) {
+                  closedWithError("Error while sending data to client.", gen);
                   System.out.println("Hub send thread terminated by IOException: " + e);
                }
             }
             catch (Exception e) {
-               if (! closed) {
-                  closedWithError("Internal Error: Unexpected exception in output thread: " + e);
+               if (! closed && gen == generation) {
+                  closedWithError("Internal Error: Unexpected exception in output thread: " + e, gen);
                   System.out.println("\nUnexpected error shuts down hub's send thread:");
                   e.printStackTrace();
                }
@@ -501,44 +1748,105 @@ public class Hub {
       
       /**
        * The ReceiveThread reads messages transmitted from the client.  Messages
-       * are dropped into an incomingMessages queue, which is shared by all clients.
+       * are dropped into an incomingMessages queue, which is shared by all clients,
+       * except that in relay mode, application messages are forwarded at once.
        * If a DisconnectMessage is received, however, it is a signal from the
-       * client that the client is disconnecting.
+       * client that the client is disconnecting.  After each message, the thread
+       * sleeps if the client is over its rate limits.
        */
       private class ReceiveThread extends Thread {
+         private final int gen;  // The generation of the connection that this thread serves.
+         ReceiveThread(int gen) {
+            this.gen = gen;
+         }
          public void run() {
             try {
-               while ( ! closed ) {
+               long bytesRead = countingIn.getCount();
+               ByteBuffer header = relay ? ByteBuffer.allocateDirect(RelayFrame.CLIENT_HEADER_SIZE) : null;
+               while ( ! closed && gen == generation ) {
                   try {
-                     Object message = in.readObject();
+                     Object message;
+                     long size;
+                     ReceiveEvent event = new ReceiveEvent();
+                     if (relay) {
+                        RelayFrame frame = readFrame(header);
+                        event.begin();
+                        size = RelayFrame.CLIENT_HEADER_SIZE + frame.payload.remaining();
+                        throttle(size);
+                        if (frame.kind == RelayFrame.MESSAGE) {
+                           received++;
+                           TrafficRecorder r = recorder;
+                           if (r != null)
+                              r.message(playerID, frame.payload);
+                           relayToAll(frame);  // The frame itself is forwarded; it is never decoded.
+                           processed();
+                           received(event, frame, size);
+                           continue;
+                        }
+                        else if (frame.kind == RelayFrame.PROBE)
+                           message = new ProbeMessage(frame.payload.getLong(0));
+                        else
+                           message = RelayFrame.deserialize(frame.payload);
+                     }
+                     else {
+                        message = in.readObject();
+                        event.begin();
+                        long count = countingIn.getCount();
+                        size = count - bytesRead;
+                        throttle(size);
+                        bytesRead = count;
+                     }
+                     if (message instanceof ProbeMessage) {
+                        send(message);  // Probes are echoed straight back to the client.
+                        continue;
+                     }
+                     if (message instanceof PresenceRequest) {
+                        received++;
+                        sendPresenceSnapshot(ConnectionToClient.this);
+                        continue;
+                     }
+                     if (relay && message instanceof AckRequest) {  // Relayed messages are counted here too.
+                        received++;
+                        acksRequested(((AckRequest)message).sent);
+                        continue;
+                     }
+                     received++;
+                     TrafficRecorder r = recorder;
+                     if (r != null && !(message instanceof AckRequest || message instanceof DisconnectMessage))
+                        r.message(playerID, message);
                      Message msg = new Message();
                      msg.playerConnection = ConnectionToClient.this;
                      msg.message = message;
-                     if ( ! (message instanceof DisconnectMessage) )
+                     if ( ! (message instanceof DisconnectMessage) ) {
                         incomingMessages.put(msg);
+                        received(event, message, size);
+                     }
                      else {
                         closed = true;
                         outgoingMessages.clear();
-                        out.writeObject("*goodbye*");
-                        out.flush();
-                        clientDisconnected(playerID);
+                        clientDisconnected(playerID);  // First, since the client might be gone already.
+                        try {
+                           write(Collections.<Object>singletonList("*goodbye*"), null);
+                        }
+                        catch (IOException e) {
+                        }
                         close();
                      }
                   }
                   catch (InterruptedException e) {
-                     // should mean that connection is closing
+                     // should mean that connection is closing or being suspended
                   }
                }
             }
             catch (IOException e) {
-               if (! closed) {
-                  closedWithError("Error while reading data from client.");
+               if (! closed && gen == generation) {
+                  closedWithError("Error while reading data from client.", gen);
                   System.out.println("Hub receive thread terminated by IOException: " + e);
                }
             }
             catch (Exception e) {
-               if ( ! closed ) {
-                  closedWithError("Internal Error: Unexpected exception in input thread: " + e);
+               if ( ! closed && gen == generation ) {
+                  closedWithError("Internal Error: Unexpected exception in input thread: " + e, gen);
                   System.out.println("\nUnexpected error shuts down hub's receive thread:");
                   e.printStackTrace();
                }
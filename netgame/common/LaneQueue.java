@@ -0,0 +1,203 @@
+package netgame.common;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A LaneQueue is the queue of outgoing messages for one connection, divided
+ * into priority lanes.  Lane 0 has the highest priority.  Each lane has a
+ * weight, which is the number of messages that can be taken from it in a row
+ * while a lower-priority lane is waiting.  When every non-empty lane has used
+ * up its weight, the weights are renewed.  With the default weights, up to
+ * eight control messages can go ahead of each bulk message, so a control
+ * message never waits for more than a few bulk messages, no matter how many
+ * are queued, and bulk traffic is never completely starved.  The third lane,
+ * for {@link BackgroundMessage BackgroundMessages}, gets one message for each
+ * bulk message or batch of bulk messages.
+ * 
+ * <p>Messages within one lane stay in order, but messages in different lanes
+ * can be reordered.  A message must therefore only be put in the control lane
+ * if its meaning does not depend on the bulk messages around it.  For that
+ * reason, a ResetSignal always goes in the bulk lane.
+ */
+final class LaneQueue {
+
+   static final int CONTROL = 0;  // Lane for status, disconnect, probe and other internal messages.
+   static final int BULK = 1;     // Lane for application messages.
+   static final int BACKGROUND = 2;  // Lane for application messages that implement BackgroundMessage.
+   
+   private static final int[] DEFAULT_WEIGHTS = { 8, 1, 1 };
+   
+   private final ArrayDeque<Object>[] lanes;
+   private final int[] weights;
+   private final int[] credits;   // The number of messages that can still be taken from each lane.
+   private int size;              // Total number of messages in all lanes.
+   private int lastLane;          // The lane of the message most recently returned by next().
+   
+   /**
+    * Creates a queue with a control lane, a bulk lane, and a background lane.
+    */
+   LaneQueue() {
+      this(DEFAULT_WEIGHTS);
+   }
+   
+   /**
+    * Creates a queue with one lane for each weight, in order of decreasing priority.
+    */
+   @SuppressWarnings({"unchecked","rawtypes"})
+   LaneQueue(int[] weights) {
+      this.weights = weights.clone();
+      credits = weights.clone();
+      lanes = new ArrayDeque[weights.length];
+      for (int i = 0; i < lanes.length; i++)
+         lanes[i] = new ArrayDeque<Object>();
+   }
+   
+   /**
+    * Returns the lane that is normally used for a message:  the control lane
+    * for the internal messages that are not tied to the order of application
+    * messages, the background lane for BackgroundMessages, and the bulk lane
+    * for everything else.
+    */
+   static int laneFor(Object message) {
+      if (message instanceof PresenceMessage || message instanceof DisconnectMessage 
+            || message instanceof ProbeMessage || message instanceof AckMessage)
+         return CONTROL;
+      else if (message instanceof BackgroundMessage)
+         return BACKGROUND;
+      else
+         return BULK;
+   }
+   
+   /**
+    * Adds a message to the lane given by laneFor(message).
+    */
+   void add(Object message) {
+      add(message, laneFor(message));
+   }
+   
+   /**
+    * Adds a message to a specified lane.
+    */
+   synchronized void add(Object message, int lane) {
+      lanes[lane].add(message);
+      size++;
+      notifyAll();
+   }
+   
+   /**
+    * Adds a message to a specified lane, unless the last message in that lane
+    * has the same class, in which case that message is replaced.  This is for
+    * messages such as acknowledgements, where a newer one says everything
+    * that an older one did.
+    */
+   synchronized void replace(Object message, int lane) {
+      ArrayDeque<Object> queue = lanes[lane];
+      Object last = queue.peekLast();
+      if (last != null && last.getClass() == message.getClass()) {
+         queue.pollLast();
+         queue.add(message);
+         return;
+      }
+      queue.add(message);
+      size++;
+      notifyAll();
+   }
+   
+   /**
+    * Removes and returns the next message, waiting if the queue is empty.
+    */
+   synchronized Object take() throws InterruptedException {
+      while (size == 0)
+         wait();
+      return next();
+   }
+   
+   /**
+    * Removes and returns the next message, waiting for at most the specified
+    * number of milliseconds if the queue is empty.  Returns null if there is
+    * still no message after that time.
+    */
+   synchronized Object poll(long millis) throws InterruptedException {
+      long end = System.currentTimeMillis() + millis;
+      while (size == 0) {
+         long wait = end - System.currentTimeMillis();
+         if (wait <= 0)
+            return null;
+         wait(wait);
+      }
+      return next();
+   }
+   
+   /**
+    * Waits until the queue is not empty, then removes the next message and adds
+    * it to batch.  If the message came from the bulk lane, then up to max-1 more
+    * messages are also taken from the bulk lane and added to batch, stopping at
+    * the first ResetSignal, which is left in the queue.  A ResetSignal that is
+    * the next message is returned in a batch by itself.  The whole batch uses
+    * a single credit of the bulk lane, so max should be small:  a control
+    * message that is added while a batch is being written waits for the whole
+    * batch.  Taking from the bulk lane also stops as soon as the control lane
+    * is not empty, so that a control message that is already waiting goes next.
+    */
+   synchronized void takeBatch(List<Object> batch, int max) throws InterruptedException {
+      while (size == 0)
+         wait();
+      Object first = next();
+      batch.add(first);
+      if (lastLane != BULK || first instanceof ResetSignal)
+         return;
+      ArrayDeque<Object> bulk = lanes[BULK];
+      while (batch.size() < max && !bulk.isEmpty() && !(bulk.peek() instanceof ResetSignal)
+            && lanes[CONTROL].isEmpty()) {
+         batch.add(bulk.poll());
+         size--;
+      }
+   }
+   
+   /**
+    * Returns the total number of messages in the queue.
+    */
+   synchronized int size() {
+      return size;
+   }
+   
+   /**
+    * Returns the number of messages in one lane.
+    */
+   synchronized int size(int lane) {
+      return lanes[lane].size();
+   }
+   
+   /**
+    * Removes all messages from all lanes.
+    */
+   synchronized void clear() {
+      for (ArrayDeque<Object> lane : lanes)
+         lane.clear();
+      size = 0;
+   }
+   
+   /**
+    * Removes all messages from one lane.
+    */
+   synchronized void clear(int lane) {
+      size -= lanes[lane].size();
+      lanes[lane].clear();
+   }
+   
+   private Object next() {
+      while (true) {
+         for (int i = 0; i < lanes.length; i++) {
+            if (credits[i] > 0 && !lanes[i].isEmpty()) {
+               credits[i]--;
+               size--;
+               lastLane = i;
+               return lanes[i].poll();
+            }
+         }
+         System.arraycopy(weights, 0, credits, 0, weights.length);
+      }
+   }
+   
+}
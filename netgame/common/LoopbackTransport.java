@@ -0,0 +1,330 @@
+package netgame.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Transport that connects hubs and clients in the same program through
+ * buffers in memory, without using the network.  Each LoopbackTransport
+ * object has its own set of ports, so separate tests don't interfere, and
+ * a hub and its clients must use the same object.  Host names are ignored.
+ *
+ * <p>Each direction of a connection is a ring buffer of a fixed size.  A
+ * writer waits while the buffer is full and a reader waits while it is
+ * empty, so a slow reader slows down the writer, just as TCP flow control
+ * would, and memory use is bounded.  A connection request waits while the
+ * listener's backlog is full.  As with a SocketChannel, interrupting a thread
+ * that is waiting to read or write closes the connection.  Closing one end
+ * lets the other end read what was already written, and then read end of
+ * stream; writing to it fails.  Buffer size hints are ignored.
+ */
+public class LoopbackTransport implements Transport {
+
+   /**
+    * The default size of the buffer for each direction of a connection.
+    */
+   public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+   private static final int DEFAULT_BACKLOG = 50;
+
+   private final int bufferSize;
+   private final Map<Integer,LoopbackListener> listeners = new HashMap<Integer,LoopbackListener>();  // By port.
+
+   /**
+    * Creates a transport whose connections have buffers of the default size.
+    */
+   public LoopbackTransport() {
+      this(DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+    * Creates a transport whose connections have buffers of a given size in
+    * each direction.
+    */
+   public LoopbackTransport(int bufferSize) {
+      if (bufferSize <= 0)
+         throw new IllegalArgumentException("Buffer size must be positive.");
+      this.bufferSize = bufferSize;
+   }
+
+   synchronized public Transport.Listener listen(int port, int backlog) throws IOException {
+      if (listeners.containsKey(port))
+         throw new BindException("Port " + port + " is already in use.");
+      LoopbackListener listener = new LoopbackListener(port, backlog > 0 ? backlog : DEFAULT_BACKLOG);
+      listeners.put(port, listener);
+      return listener;
+   }
+
+   public Transport.Connection connect(String host, int port, int timeoutMillis, int receiveBufferSize)
+                                                                                    throws IOException {
+      LoopbackListener listener;
+      synchronized(this) {
+         listener = listeners.get(port);
+      }
+      if (listener == null)
+         throw new ConnectException("Connection refused: nothing is listening on port " + port);
+      Pipe up = new Pipe(bufferSize);
+      Pipe down = new Pipe(bufferSize);
+      listener.offer(new End(up, down), timeoutMillis);
+      return new End(down, up);
+   }
+
+   synchronized private void unregister(LoopbackListener listener) {
+      if (listeners.get(listener.port) == listener)
+         listeners.remove(listener.port);
+   }
+
+   /**
+    * Holds the connections that have been requested and not yet accepted.
+    */
+   private class LoopbackListener implements Transport.Listener {
+      private final int port;
+      private final int backlog;
+      private final ArrayDeque<End> pending = new ArrayDeque<End>();
+      private boolean closed;
+      LoopbackListener(int port, int backlog) {
+         this.port = port;
+         this.backlog = backlog;
+      }
+      synchronized public Transport.Connection accept() throws IOException {
+         try {
+            while (pending.isEmpty() && !closed)
+               wait();
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection.");
+         }
+         if (closed)
+            throw new SocketException("The listener is closed.");
+         End end = pending.remove();
+         notifyAll();
+         return end;
+      }
+      /**
+       * Adds the hub's end of a new connection to the backlog, waiting for
+       * room if necessary.
+       */
+      synchronized void offer(End end, int timeoutMillis) throws IOException {
+         long deadline = System.currentTimeMillis() + timeoutMillis;
+         try {
+            while (pending.size() >= backlog && !closed) {
+               if (timeoutMillis == 0)
+                  wait();
+               else {
+                  long remaining = deadline - System.currentTimeMillis();
+                  if (remaining <= 0)
+                     throw new SocketTimeoutException("Connect timed out.");
+                  wait(remaining);
+               }
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting.");
+         }
+         if (closed)
+            throw new ConnectException("Connection refused: the listener on port " + port + " is closed.");
+         pending.add(end);
+         notifyAll();
+      }
+      public void close() {
+         synchronized(this) {
+            if (closed)
+               return;
+            closed = true;
+            for (End end : pending)
+               end.close();
+            pending.clear();
+            notifyAll();
+         }
+         unregister(this);
+      }
+   }
+
+   /**
+    * A ring buffer that carries the bytes of one direction of a connection.
+    */
+   private static class Pipe {
+      private final byte[] buffer;
+      private int start;     // Position of the first byte that has not been read.
+      private int count;     // Number of bytes that have been written and not read.
+      private boolean writerClosed, readerClosed;
+      Pipe(int size) {
+         buffer = new byte[size];
+      }
+      /**
+       * Reads at least one byte, waiting for data if there is none, and
+       * returns the number of bytes read, or -1 at end of stream.
+       */
+      synchronized int read(ByteBuffer dst, int timeoutMillis) throws IOException, InterruptedException {
+         if (!dst.hasRemaining())
+            return 0;
+         long deadline = System.currentTimeMillis() + timeoutMillis;
+         while (count == 0 && !writerClosed && !readerClosed) {
+            if (timeoutMillis == 0)
+               wait();
+            else {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0)
+                  throw new SocketTimeoutException("Read timed out.");
+               wait(remaining);
+            }
+         }
+         if (readerClosed)
+            throw new ClosedChannelException();
+         if (count == 0)
+            return -1;
+         int n = Math.min(count, dst.remaining());
+         int first = Math.min(n, buffer.length - start);
+         dst.put(buffer, start, first);
+         dst.put(buffer, 0, n - first);
+         start = (start + n) % buffer.length;
+         count -= n;
+         notifyAll();
+         return n;
+      }
+      /**
+       * Writes all the bytes of src, waiting for room as necessary.
+       */
+      synchronized int write(ByteBuffer src) throws IOException, InterruptedException {
+         int total = 0;
+         while (src.hasRemaining()) {
+            while (count == buffer.length && !writerClosed && !readerClosed)
+               wait();
+            if (writerClosed)
+               throw new ClosedChannelException();
+            if (readerClosed)
+               throw new SocketException("Connection closed by the other end.");
+            int end = (start + count) % buffer.length;
+            int n = Math.min(src.remaining(), buffer.length - count);
+            int first = Math.min(n, buffer.length - end);
+            src.get(buffer, end, first);
+            src.get(buffer, 0, n - first);
+            count += n;
+            total += n;
+            notifyAll();
+         }
+         return total;
+      }
+      synchronized int available() {
+         return count;
+      }
+      synchronized void closeReader() {
+         readerClosed = true;
+         notifyAll();
+      }
+      synchronized void closeWriter() {
+         writerClosed = true;
+         notifyAll();
+      }
+   }
+
+   /**
+    * One end of a connection, which reads from one pipe and writes to the other.
+    */
+   private static class End implements Transport.Connection {
+      private final Pipe in, out;
+      private volatile int readTimeout;
+      private volatile boolean open = true;
+      End(Pipe in, Pipe out) {
+         this.in = in;
+         this.out = out;
+      }
+      public int read(ByteBuffer dst) throws IOException {
+         try {
+            return in.read(dst, readTimeout);
+         }
+         catch (InterruptedException e) {
+            throw interrupted();
+         }
+      }
+      public int write(ByteBuffer src) throws IOException {
+         try {
+            return out.write(src);
+         }
+         catch (InterruptedException e) {
+            throw interrupted();
+         }
+      }
+      public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+         long total = 0;
+         for (int i = offset; i < offset + length; i++)
+            total += write(srcs[i]);
+         return total;
+      }
+      public long write(ByteBuffer[] srcs) throws IOException {
+         return write(srcs, 0, srcs.length);
+      }
+      /**
+       * Closes the connection because a thread was interrupted while waiting,
+       * and returns the exception to throw, as a SocketChannel would.
+       */
+      private IOException interrupted() {
+         close();
+         Thread.currentThread().interrupt();
+         return new ClosedByInterruptException();
+      }
+      public InputStream getInputStream() {
+         return new InputStream() {
+            public int read() throws IOException {
+               byte[] b = new byte[1];
+               int n = read(b, 0, 1);
+               return n < 0 ? -1 : b[0] & 0xFF;
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+               return End.this.read(ByteBuffer.wrap(b, off, len));
+            }
+            public int available() {
+               return in.available();
+            }
+            public void close() {
+               End.this.close();
+            }
+         };
+      }
+      public OutputStream getOutputStream() {
+         return new OutputStream() {
+            public void write(int b) throws IOException {
+               write(new byte[] { (byte)b }, 0, 1);
+            }
+            public void write(byte[] b, int off, int len) throws IOException {
+               End.this.write(ByteBuffer.wrap(b, off, len));
+            }
+            public void close() {
+               End.this.close();
+            }
+         };
+      }
+      public void setReadTimeout(int millis) {
+         if (millis < 0)
+            throw new IllegalArgumentException("Timeout can't be negative.");
+         readTimeout = millis;
+      }
+      public void setSendBufferSize(int bytes) {
+      }
+      public void setReceiveBufferSize(int bytes) {
+      }
+      public boolean isOpen() {
+         return open;
+      }
+      public void close() {
+         open = false;
+         in.closeReader();
+         out.closeWriter();
+      }
+   }
+
+}
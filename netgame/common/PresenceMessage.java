@@ -0,0 +1,49 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * The Hub sends PresenceMessages to tell clients which players have
+ * connected and disconnected.  Changes that happen close together are
+ * sent as one message, and each message has a version number, which is
+ * one more than the version of the previous message.  Usually, a message
+ * is a delta, which only lists the players that joined and left since the
+ * previous version.  A message can also carry a snapshot, the complete
+ * list of players as of its version; a player gets a snapshot when it
+ * connects, and when it asks for one with a PresenceRequest because it
+ * has missed a version.  This package private class is only used
+ * internally.  Users of the package will not see these messages; instead,
+ * the Client's playerConnected() or playerDisconnected() method will be
+ * called.
+ */
+final class PresenceMessage implements Serializable {
+   
+   /**
+    * The version of the list of players after this change.
+    */
+   public final long version;
+   
+   /**
+    * The players who have connected since the previous version.
+    */
+   public final int[] joined;
+   
+   /**
+    * The players who have disconnected since the previous version.
+    */
+   public final int[] left;
+   
+   /**
+    * The complete, sorted list of players as of this version, or null
+    * if this message is only a delta.
+    */
+   public final int[] players;
+   
+   public PresenceMessage(long version, int[] joined, int[] left, int[] players) {
+      this.version = version;
+      this.joined = joined;
+      this.left = left;
+      this.players = players;
+   }
+   
+}
@@ -0,0 +1,21 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A PresenceRequest is sent by a Client that has missed a version of the
+ * list of players, to ask the Hub for a snapshot of the complete list.
+ * This package private class is only used internally.
+ */
+final class PresenceRequest implements Serializable {
+   
+   /**
+    * The last version that the client has applied.
+    */
+   public final long version;
+   
+   public PresenceRequest(long version) {
+      this.version = version;
+   }
+   
+}
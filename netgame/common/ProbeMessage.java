@@ -0,0 +1,25 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A ProbeMessage is sent periodically by a Client to measure the round
+ * trip time to the Hub.  The Hub sends each ProbeMessage straight back
+ * to the client that sent it, and the client compares the time of arrival
+ * with the time stored in the message.  ProbeMessages are for internal use
+ * in the netgame.common package; users of the package see only the
+ * measured times.
+ */
+final class ProbeMessage implements Serializable {
+
+   /**
+    * The value of System.nanoTime() in the client when the probe was sent.
+    * The value is only meaningful to the client that sent the probe.
+    */
+   public final long sentNanos;
+   
+   public ProbeMessage(long sentNanos) {
+      this.sentNanos = sentNanos;
+   }
+   
+}
@@ -0,0 +1,35 @@
+package netgame.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a message that a hub's receive thread has
+ * read from a client.  It lasts from the end of the read until the message is
+ * in the queue of messages to be processed, so it is long when the client is
+ * throttled or the queue is full.
+ */
+@Name("netgame.MessageReceived")
+@Label("Message Received")
+@Category({"NetGame", "Hub"})
+@Description("A message read from a client and queued for processing")
+@Threshold("1 ms")
+@StackTrace(false)
+final class ReceiveEvent extends jdk.jfr.Event {
+
+   @Label("Player ID")
+   int playerID;
+
+   @Label("Message Type")
+   String messageType;
+
+   @Label("Size")
+   @DataAmount
+   long bytes;
+
+}
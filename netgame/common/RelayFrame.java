@@ -0,0 +1,82 @@
+package netgame.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A RelayFrame is a message in the form in which it is carried on a connection
+ * in relay mode (see Hub.setRelayMode()).  In relay mode, each message is a
+ * separate frame.  A frame from a client consists of a four-byte length, which
+ * counts the bytes that follow it, a one-byte kind, and the payload.  A frame
+ * from the hub has the ID of the sender, as four bytes, between the kind and
+ * the payload.  The payload of a MESSAGE frame is an application message,
+ * serialized on its own by the client that sent it; the hub does not look at
+ * it, and the clients that receive it wrap it in a ForwardedMessage.  The
+ * payload of an OBJECT frame is any other serialized object, such as an
+ * internal message or a message sent by the hub itself.  The payload of a
+ * PROBE frame is the eight-byte send time of a probe.  This package private
+ * class is only used internally.
+ */
+final class RelayFrame {
+   
+   static final byte MESSAGE = 1;
+   static final byte OBJECT = 2;
+   static final byte PROBE = 3;
+   
+   static final int CLIENT_HEADER_SIZE = 5;  // Length and kind.
+   static final int HUB_HEADER_SIZE = 9;     // Length, kind, and sender ID.
+   static final int MAX_PAYLOAD = 16 << 20;  // Larger frames are treated as an error.
+   
+   final int senderID;
+   final byte kind;
+   final ByteBuffer payload;  // Read only; each user should work with a duplicate().
+   
+   RelayFrame(int senderID, byte kind, ByteBuffer payload) {
+      this.senderID = senderID;
+      this.kind = kind;
+      this.payload = payload.asReadOnlyBuffer();
+   }
+   
+   /**
+    * Puts the header of a frame from the hub into a buffer.
+    */
+   static void putHubHeader(ByteBuffer buffer, byte kind, int senderID, int payloadLength) {
+      buffer.putInt(1 + 4 + payloadLength).put(kind).putInt(senderID);
+   }
+   
+   /**
+    * Serializes an object on its own, so that it can be read without
+    * anything else that was sent on the same connection.
+    */
+   static byte[] serialize(Object message) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(message);
+      out.close();
+      return bytes.toByteArray();
+   }
+   
+   /**
+    * Reads an object that was serialized by serialize().
+    */
+   static Object deserialize(byte[] bytes) throws IOException {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+         return in.readObject();
+      }
+      catch (ClassNotFoundException e) {
+         throw new IOException("Unknown class in message: " + e.getMessage());
+      }
+   }
+   
+   static Object deserialize(ByteBuffer payload) throws IOException {
+      byte[] bytes = new byte[payload.remaining()];
+      payload.duplicate().get(bytes);
+      return deserialize(bytes);
+   }
+   
+}
@@ -0,0 +1,57 @@
+package netgame.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ReplayRing holds the most recent messages that have been written to a
+ * connection, so that they can be sent again if the connection is lost and
+ * then resumed.  The messages are numbered 1, 2, 3, ... in the order in which
+ * they are added, and the ring remembers the last "capacity" of them.  Both
+ * ends of a connection count the messages they read in the same way, so the
+ * count that the other end reports when it resumes tells exactly which
+ * messages it is missing.  This package private class is only used internally.
+ */
+final class ReplayRing {
+   
+   private final Object[] messages;
+   private long count;  // The number of messages that have been added.
+   
+   ReplayRing(int capacity) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("Replay capacity must be positive.");
+      messages = new Object[capacity];
+   }
+   
+   /**
+    * Adds a message and returns its sequence number.
+    */
+   synchronized long add(Object message) {
+      messages[(int)(count % messages.length)] = message;
+      return ++count;
+   }
+   
+   /**
+    * Returns the sequence number of the most recently added message, which
+    * is the number of messages added so far.
+    */
+   synchronized long getCount() {
+      return count;
+   }
+   
+   /**
+    * Returns the messages with sequence numbers greater than seq, in order,
+    * or null if some of them are no longer in the ring or if seq is negative
+    * or larger than the number of messages that have been added.  (The value
+    * comes from the other end of the connection, so it can't be trusted.)
+    */
+   synchronized List<Object> since(long seq) {
+      if (seq < 0 || seq > count || seq < count - messages.length)
+         return null;
+      List<Object> list = new ArrayList<Object>((int)(count - seq));
+      for (long s = seq + 1; s <= count; s++)
+         list.add(messages[(int)((s - 1) % messages.length)]);
+      return list;
+   }
+   
+}
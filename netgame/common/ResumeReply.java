@@ -0,0 +1,29 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * The Hub's answer to a ResumeRequest, if the client's session still exists.
+ * It contains the number of messages that the hub had received from the client,
+ * so the client can send the ones that were lost, and the sequence number after
+ * which the hub will continue sending.  That is the client's own count if the
+ * hub still has every message that the client missed; if not, complete is false,
+ * and the messages in the gap are skipped.  The hub also uses a ResumeReply
+ * internally, to tell its message processing thread that a player has resumed.
+ * This package private class is only used internally.
+ */
+final class ResumeReply implements Serializable {
+   
+   public final int playerID;
+   public final long received;
+   public final long resumeFrom;
+   public final boolean complete;
+   
+   public ResumeReply(int playerID, long received, long resumeFrom, boolean complete) {
+      this.playerID = playerID;
+      this.received = received;
+      this.resumeFrom = resumeFrom;
+      this.complete = complete;
+   }
+   
+}
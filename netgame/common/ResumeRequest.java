@@ -0,0 +1,22 @@
+package netgame.common;
+
+import java.io.Serializable;
+
+/**
+ * A ResumeRequest is sent by a Client, in place of the usual "Hello Hub",
+ * when it opens a new connection to take the place of one that was lost.
+ * It contains the session token that the hub gave the client when it first
+ * connected and the number of messages that the client had received.  This
+ * package private class is only used internally.
+ */
+final class ResumeRequest implements Serializable {
+   
+   public final long token;
+   public final long received;
+   
+   public ResumeRequest(long token, long received) {
+      this.token = token;
+      this.received = received;
+   }
+   
+}
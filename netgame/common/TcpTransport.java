@@ -0,0 +1,99 @@
+package netgame.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The Transport that uses TCP.  A hub listens with a ServerSocketChannel,
+ * and each connection is a SocketChannel, whose socket supplies the streams.
+ * This is what a Hub and a Client use unless they are given another transport.
+ */
+public class TcpTransport implements Transport {
+
+   public Transport.Listener listen(int port, int backlog) throws IOException {
+      final ServerSocketChannel server = ServerSocketChannel.open();
+      try {
+         server.bind(new InetSocketAddress(port), backlog);
+      }
+      catch (IOException e) {
+         server.close();
+         throw e;
+      }
+      return new Transport.Listener() {
+         public Transport.Connection accept() throws IOException {
+            return new TcpConnection(server.accept());
+         }
+         public void close() throws IOException {
+            server.close();
+         }
+      };
+   }
+
+   public Transport.Connection connect(String host, int port, int timeoutMillis, int receiveBufferSize)
+                                                                                  throws IOException {
+      SocketChannel channel = SocketChannel.open();
+      try {
+         if (receiveBufferSize > 0)
+            channel.socket().setReceiveBufferSize(receiveBufferSize);
+         channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+      return new TcpConnection(channel);
+   }
+
+   /**
+    * A connection that is a SocketChannel.  The streams are the streams of
+    * the channel's socket.
+    */
+   private static class TcpConnection implements Transport.Connection {
+      private final SocketChannel channel;
+      private final Socket socket;
+      TcpConnection(SocketChannel channel) {
+         this.channel = channel;
+         this.socket = channel.socket();
+      }
+      public InputStream getInputStream() throws IOException {
+         return socket.getInputStream();
+      }
+      public OutputStream getOutputStream() throws IOException {
+         return socket.getOutputStream();
+      }
+      public void setReadTimeout(int millis) throws IOException {
+         socket.setSoTimeout(millis);
+      }
+      public void setSendBufferSize(int bytes) throws IOException {
+         socket.setSendBufferSize(bytes);
+      }
+      public void setReceiveBufferSize(int bytes) throws IOException {
+         socket.setReceiveBufferSize(bytes);
+      }
+      public int read(ByteBuffer dst) throws IOException {
+         return channel.read(dst);
+      }
+      public int write(ByteBuffer src) throws IOException {
+         return channel.write(src);
+      }
+      public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+         return channel.write(srcs, offset, length);
+      }
+      public long write(ByteBuffer[] srcs) throws IOException {
+         return channel.write(srcs);
+      }
+      public boolean isOpen() {
+         return channel.isOpen();
+      }
+      public void close() throws IOException {
+         channel.close();
+      }
+   }
+
+}
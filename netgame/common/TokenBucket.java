@@ -0,0 +1,57 @@
+package netgame.common;
+
+/**
+ * A token bucket limits the average rate of some activity while allowing
+ * short bursts.  Tokens are added to the bucket at a fixed rate, up to a
+ * maximum number (the burst size).  Each unit of activity takes one token.
+ * In this implementation, the number of tokens can become negative:  take()
+ * always succeeds, but it returns the time that the caller should wait
+ * before going on, so that the debt is paid off.  This makes it possible
+ * to account for an amount, such as the size of a message, that is only
+ * known after the activity has been done.
+ */
+public class TokenBucket {
+
+   private final double ratePerSecond;  // Tokens added per second.
+   private final double burst;          // Maximum number of tokens in the bucket.
+   private double tokens;               // Current number of tokens; can be negative.
+   private long lastRefill;             // Value of System.nanoTime() when tokens was last updated.
+   
+   /**
+    * Creates a full token bucket.
+    * @param ratePerSecond the number of tokens added per second.  Must be positive.
+    * @param burst the maximum number of tokens.  Must be positive.
+    */
+   public TokenBucket(double ratePerSecond, double burst) {
+      if (ratePerSecond <= 0 || burst <= 0)
+         throw new IllegalArgumentException("Rate and burst size must be positive.");
+      this.ratePerSecond = ratePerSecond;
+      this.burst = burst;
+      tokens = burst;
+      lastRefill = System.nanoTime();
+   }
+   
+   public double getRatePerSecond() {
+      return ratePerSecond;
+   }
+   
+   public double getBurst() {
+      return burst;
+   }
+   
+   /**
+    * Takes a number of tokens from the bucket and returns the number of
+    * nanoseconds that the caller should wait before the bucket is no longer
+    * in debt.  The return value is zero if there were enough tokens.
+    */
+   synchronized public long take(double count) {
+      long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerSecond / 1e9);
+      lastRefill = now;
+      tokens -= count;
+      if (tokens >= 0)
+         return 0;
+      return (long)Math.ceil(-tokens / ratePerSecond * 1e9);
+   }
+   
+}
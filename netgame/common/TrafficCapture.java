@@ -0,0 +1,156 @@
+package netgame.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A TrafficCapture reads the records of a capture file that was written by a
+ * {@link TrafficRecorder}, in the order in which they were recorded.  The
+ * messages are kept as bytes until getMessage() is called, so a capture can be
+ * read quickly, and a capture of messages whose classes are not available can
+ * still be examined.  A capture that ends in the middle of a record, as it will
+ * if the hub that wrote it was killed, is read up to the last complete record.
+ */
+public class TrafficCapture {
+
+   /**
+    * One record of a capture:  a player connected, sent a message, or disconnected.
+    */
+   public static final class Record {
+      private final byte kind;
+      private final long micros;
+      private final int playerID;
+      private final byte[] payload;
+      Record(byte kind, long micros, int playerID, byte[] payload) {
+         this.kind = kind;
+         this.micros = micros;
+         this.playerID = playerID;
+         this.payload = payload;
+      }
+      /**
+       * Returns TrafficRecorder.CONNECT, MESSAGE, or DISCONNECT.
+       */
+      public byte getKind() {
+         return kind;
+      }
+      /**
+       * Returns the time of the record, in microseconds since recording started.
+       */
+      public long getMicros() {
+         return micros;
+      }
+      /**
+       * Returns the ID that the hub had assigned to the player.
+       */
+      public int getPlayerID() {
+         return playerID;
+      }
+      /**
+       * Returns the size of the serialized message, or 0 if this is not a message.
+       */
+      public int getSize() {
+         return payload == null ? 0 : payload.length;
+      }
+      /**
+       * Deserializes the message of a MESSAGE record, or returns null for another kind.
+       * @throws IOException if the message can't be deserialized, for example
+       *    because its class is not available.
+       */
+      public Object getMessage() throws IOException {
+         return payload == null ? null : RelayFrame.deserialize(payload);
+      }
+   }
+
+   private final DataInputStream in;
+   private final long startTime;
+   private long micros;  // Time of the previous record.
+
+   /**
+    * Opens a capture file and reads its header.
+    * @throws IOException if the file can't be read or is not a capture file.
+    */
+   public TrafficCapture(File file) throws IOException {
+      this(new FileInputStream(file));
+   }
+
+   /**
+    * Reads the header of a capture from a stream.  The stream is closed when
+    * the capture is closed.
+    * @throws IOException if the stream can't be read or does not contain a capture.
+    */
+   public TrafficCapture(InputStream stream) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+      try {
+         if ( ! TrafficRecorder.MAGIC.equals(in.readUTF()) )
+            throw new IOException("Not a capture file.");
+         int version = in.readInt();
+         if (version != TrafficRecorder.VERSION)
+            throw new IOException("Unsupported capture version " + version + ".");
+         startTime = in.readLong();
+      }
+      catch (IOException e) {
+         in.close();
+         throw e instanceof EOFException ? new IOException("Not a capture file.") : e;
+      }
+   }
+
+   /**
+    * Returns the time when recording started, in milliseconds since the epoch.
+    */
+   public long getStartTime() {
+      return startTime;
+   }
+
+   /**
+    * Reads the next record, or returns null at the end of the capture.
+    * @throws IOException if an error occurs while reading, or a record is invalid.
+    */
+   public Record next() throws IOException {
+      int kind = in.read();
+      if (kind < 0)
+         return null;
+      try {
+         long time = micros + readVarint();
+         int playerID = (int)readVarint();
+         byte[] payload = null;
+         if (kind == TrafficRecorder.MESSAGE) {
+            long length = readVarint();
+            if (length > RelayFrame.MAX_PAYLOAD)
+               throw new IOException("Invalid record in capture.");
+            payload = new byte[(int)length];
+            in.readFully(payload);
+         }
+         else if (kind != TrafficRecorder.CONNECT && kind != TrafficRecorder.DISCONNECT)
+            throw new IOException("Invalid record in capture.");
+         micros = time;
+         return new Record((byte)kind, time, playerID, payload);
+      }
+      catch (EOFException e) {
+         return null;  // The last record is incomplete.
+      }
+   }
+
+   /**
+    * Closes the capture.
+    */
+   public void close() throws IOException {
+      in.close();
+   }
+
+   private long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = in.readUnsignedByte();
+         value |= (long)(b & 0x7F) << shift;
+         if ((b & 0x80) == 0)
+            return value;
+      }
+      throw new IOException("Invalid record in capture.");
+   }
+
+}
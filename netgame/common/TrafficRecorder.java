@@ -0,0 +1,235 @@
+package netgame.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TrafficRecorder writes everything that the clients of a hub send to it
+ * to a capture file, so that the same traffic can be replayed later against
+ * the same or a different hub; see {@link TrafficCapture}.  A recorder is
+ * installed with Hub.setTrafficRecorder().  It records when each player
+ * connects and disconnects and every application message that the hub reads
+ * from each player, with the time when it was read.  Internal messages, such
+ * as probes and acknowledgement requests, are not recorded.
+ *
+ * <p>Each message is recorded in the form that it has in relay mode, serialized
+ * on its own, so a relayed frame is recorded without being decoded.  In the
+ * normal mode, this means that the receive thread serializes each message
+ * once more, which is the main cost of recording.  The records are written to
+ * the file by a separate thread.  If that thread falls behind by more than
+ * QUEUE_CAPACITY records, the receive threads wait for it, which slows the
+ * clients down through TCP flow control; records are never dropped.
+ *
+ * <p>The file starts with the string "netgame capture" and a version number,
+ * written with DataOutputStream.writeUTF() and writeInt(), and the time when
+ * recording started, in milliseconds since the epoch.  Each record is a kind
+ * (CONNECT, MESSAGE, or DISCONNECT) in one byte, followed by the time since
+ * the previous record in microseconds, the player's ID, and, for a message,
+ * the length and bytes of the payload.  The three numbers are written as
+ * variable length integers, seven bits per byte, low order bits first, so a
+ * typical small message costs only a few bytes more than its payload.
+ */
+public class TrafficRecorder {
+
+   static final String MAGIC = "netgame capture";
+   static final int VERSION = 1;
+
+   public static final byte CONNECT = 1;
+   public static final byte MESSAGE = 2;
+   public static final byte DISCONNECT = 3;
+
+   private static final int QUEUE_CAPACITY = 1 << 16;  // Records waiting to be written.
+   private static final Record END = new Record(0, (byte)0, 0, null);  // Tells the writer to stop.
+
+   private final DataOutputStream out;
+   private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+   private final long startNanos;
+   private final Thread writer;
+   private final AtomicLong recorded = new AtomicLong();
+   private volatile boolean closed;
+   private volatile IOException error;  // The first error that the writer got, if any.
+
+   private static final class Record {
+      final long nanos;
+      final byte kind;
+      final int playerID;
+      final byte[] payload;
+      Record(long nanos, byte kind, int playerID, byte[] payload) {
+         this.nanos = nanos;
+         this.kind = kind;
+         this.playerID = playerID;
+         this.payload = payload;
+      }
+   }
+
+   /**
+    * Creates a recorder that writes to a file, replacing the file if it exists.
+    * @throws IOException if the file can't be created.
+    */
+   public TrafficRecorder(File file) throws IOException {
+      this(new FileOutputStream(file));
+   }
+
+   /**
+    * Creates a recorder that writes to a stream.  The stream is closed when
+    * the recorder is closed.
+    * @throws IOException if the header can't be written.
+    */
+   public TrafficRecorder(OutputStream stream) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(System.currentTimeMillis());
+      startNanos = System.nanoTime();
+      writer = new Thread("Traffic recorder") {
+         public void run() {
+            writeRecords();
+         }
+      };
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   /**
+    * Returns the number of records that have been recorded so far.
+    */
+   public long getRecordCount() {
+      return recorded.get();
+   }
+
+   /**
+    * Stops recording, writes the records that are still waiting, and closes
+    * the file.  Records that arrive after this is called are ignored.
+    * @throws IOException if an error occurred while writing the file, now or
+    *    earlier; recording stops at the first error.
+    */
+   public void close() throws IOException {
+      if (closed)
+         return;
+      closed = true;
+      try {
+         queue.put(END);
+         writer.join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (error != null)
+         throw error;
+   }
+
+   /**
+    * Records that a player has connected.
+    */
+   void connected(int playerID) {
+      add(CONNECT, playerID, null);
+   }
+
+   /**
+    * Records that a player has disconnected, or that its connection was lost
+    * and could not be resumed.
+    */
+   void disconnected(int playerID) {
+      add(DISCONNECT, playerID, null);
+   }
+
+   /**
+    * Records a message that was read from a player, by serializing it.  If the
+    * message can't be serialized, which would be odd since it was just read
+    * from a stream, it is not recorded.
+    */
+   void message(int playerID, Object message) {
+      try {
+         add(MESSAGE, playerID, RelayFrame.serialize(message));
+      }
+      catch (IOException e) {
+      }
+   }
+
+   /**
+    * Records the payload of a frame that was read from a player in relay mode.
+    */
+   void message(int playerID, ByteBuffer payload) {
+      byte[] bytes = new byte[payload.remaining()];
+      payload.duplicate().get(bytes);
+      add(MESSAGE, playerID, bytes);
+   }
+
+   private void add(byte kind, int playerID, byte[] payload) {
+      if (closed || error != null)
+         return;
+      try {
+         queue.put(new Record(System.nanoTime() - startNanos, kind, playerID, payload));
+         recorded.incrementAndGet();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();  // Let the caller see that it was interrupted.
+      }
+   }
+
+   /**
+    * Run by the writer thread, which takes records from the queue and writes
+    * them, until it gets END.  The stream is flushed whenever the queue is empty.
+    */
+   private void writeRecords() {
+      List<Record> batch = new ArrayList<Record>();
+      long previous = 0;  // Time of the previous record, in microseconds.
+      try {
+         try {
+            while (true) {
+               batch.clear();
+               batch.add(queue.take());
+               queue.drainTo(batch);
+               for (Record r : batch) {
+                  if (r == END) {
+                     out.close();
+                     return;
+                  }
+                  long micros = r.nanos / 1000;
+                  out.writeByte(r.kind);
+                  writeVarint(Math.max(0, micros - previous));
+                  previous = Math.max(previous, micros);
+                  writeVarint(r.playerID);
+                  if (r.kind == MESSAGE) {
+                     writeVarint(r.payload.length);
+                     out.write(r.payload);
+                  }
+               }
+               out.flush();
+            }
+         }
+         catch (IOException e) {
+            error = e;
+            try {
+               out.close();
+            }
+            catch (IOException e1) {
+            }
+            while (queue.take() != END) {
+                  // Discard records, so that no one waits for room in the queue.
+            }
+         }
+      }
+      catch (InterruptedException e) {
+      }
+   }
+
+   private void writeVarint(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+         out.writeByte((int)(value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.writeByte((int)value);
+   }
+
+}
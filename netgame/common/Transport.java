@@ -0,0 +1,78 @@
+package netgame.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A Transport opens the byte streams that a {@link Hub} and its {@link Client
+ * Clients} talk over.  The default, {@link TcpTransport}, uses TCP sockets.
+ * A {@link LoopbackTransport} connects hubs and clients in the same program
+ * through buffers in memory, so that tests and benchmarks can run thousands
+ * of clients without using the network, and without depending on the
+ * operating system's buffers and port numbers.  Everything above the
+ * transport, including the handshake, relay mode, and resuming lost
+ * connections, works in the same way with every transport.
+ */
+public interface Transport {
+
+   /**
+    * Starts listening for connections.
+    * @param port the port, which means whatever the transport says it means.
+    * @param backlog the maximum number of connections waiting to be accepted;
+    *    zero or less means a default chosen by the transport.
+    * @throws IOException if the transport can't listen on the port, for
+    *    example because something else is already listening on it.
+    */
+   Listener listen(int port, int backlog) throws IOException;
+
+   /**
+    * Opens a connection to a listener.
+    * @param timeoutMillis the time limit for opening the connection, or 0 for no limit.
+    * @param receiveBufferSize a hint for the size of the buffer for incoming
+    *    data, which has to be given before connecting to have its full effect
+    *    with TCP; 0 means the default.
+    * @throws IOException if the connection can't be opened in time.
+    */
+   Connection connect(String host, int port, int timeoutMillis, int receiveBufferSize) throws IOException;
+
+   /**
+    * Accepts the connections for a port.  Closing it makes a thread that is
+    * blocked in accept() throw an IOException.
+    */
+   interface Listener extends Closeable {
+      /**
+       * Waits for the next connection.
+       */
+      Connection accept() throws IOException;
+   }
+
+   /**
+    * One end of an open connection.  The data can be read and written either
+    * as streams or as a channel, but a program should not mix them in the
+    * same direction at the same time.  The channel is used in blocking mode.
+    * Closing an end closes it in both directions; the other end can still read
+    * what was written before, and then reads end of stream.
+    */
+   interface Connection extends ByteChannel, GatheringByteChannel {
+      InputStream getInputStream() throws IOException;
+      OutputStream getOutputStream() throws IOException;
+      /**
+       * Sets a time limit for each read, after which a
+       * java.net.SocketTimeoutException is thrown; 0 means no limit.
+       */
+      void setReadTimeout(int millis) throws IOException;
+      /**
+       * Hints at the size of the buffer for outgoing data, in bytes.
+       */
+      void setSendBufferSize(int bytes) throws IOException;
+      /**
+       * Hints at the size of the buffer for incoming data, in bytes.
+       */
+      void setReceiveBufferSize(int bytes) throws IOException;
+   }
+
+}
@@ -0,0 +1,33 @@
+package netgame.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for a batch of messages written by the send
+ * thread of one of a hub's connections.  A long write means that the client,
+ * or the network, is not keeping up.
+ */
+@Name("netgame.MessagesWritten")
+@Label("Messages Written")
+@Category({"NetGame", "Hub"})
+@Description("A batch of messages written to a client")
+@Threshold("1 ms")
+@StackTrace(false)
+final class WriteEvent extends jdk.jfr.Event {
+
+   @Label("Player ID")
+   int playerID;
+
+   @Label("Messages")
+   int messages;
+
+   @Label("Queue Depth")
+   @Description("Messages still waiting in the queue after the batch was taken")
+   int queueDepth;
+
+}
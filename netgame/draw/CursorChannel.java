@@ -0,0 +1,196 @@
+package netgame.draw;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import netgame.common.Client;
+
+/**
+ * The client side of the channel for cursor positions.  The position of the
+ * local cursor is set with moveTo(), and a daemon thread sends it to the hub
+ * at most once every SEND_INTERVAL milliseconds, and only if it has changed.
+ * So a fast-moving mouse produces a steady, limited stream of small packets,
+ * and the last position always gets sent.
+ * 
+ * <p>If the hub offered a datagram channel, the thread sends hello packets to
+ * it until the hub acknowledges one; from then on, positions are sent, and the
+ * positions of other clients' cursors are received, as datagrams.  Until then,
+ * or if there is no datagram channel, positions are sent as CursorMessages over
+ * the ordinary connection, which is slower but always works.  The hub then
+ * sends other clients' cursors over the ordinary connection as well, wrapped
+ * in ForwardedMessages, and the program has to handle them itself.  Cursor
+ * positions that arrive as datagrams are passed to the Listener.  Since
+ * datagrams can arrive out of order, a packet that is older than the newest
+ * one received for the same cursor is dropped.
+ */
+public class CursorChannel {
+
+    /**
+     * Notified when the cursor of another client moves.  The method is called in
+     * the channel's thread.  The coordinates are CursorMessage.HIDDEN if the cursor left the drawing.
+     */
+    public interface Listener {
+        void cursorMoved(int playerID, int x, int y);
+    }
+
+    public static final int SEND_INTERVAL = 16;     // Minimum milliseconds between positions that are sent.
+    private static final int HELLO_INTERVAL = 500;  // Milliseconds between hello packets.
+
+    private final Client client;
+    private final Listener listener;
+    private final DatagramSocket socket;  // Null if the hub has no datagram channel.
+    private final long token;
+    private volatile boolean acknowledged;  // Set when the hub has acknowledged a hello packet.
+    private volatile boolean closed;
+    private volatile long position = pack(CursorMessage.HIDDEN, CursorMessage.HIDDEN);
+    private long sentPosition = position; // Used only in the channel's thread.
+    private int seq;                      // Used only in the channel's thread.
+    private final Map<Integer,Integer> lastSeq = new HashMap<Integer,Integer>();  // Channel's thread only.
+
+    /**
+     * Creates a channel and starts its thread.
+     * @param client  the connection to the hub, used when datagrams can't be.
+     * @param hubHost  the host name of the hub.
+     * @param offer  the offer that the hub sent during the handshake, or null
+     *    if it sent none.
+     * @param listener  notified of the positions of other clients' cursors.
+     */
+    public CursorChannel(Client client, String hubHost, CursorOffer offer, Listener listener) {
+        this.client = client;
+        this.listener = listener;
+        DatagramSocket s = null;
+        if (offer != null && offer.udpPort >= 0) {
+            try {
+                s = new DatagramSocket();
+                s.connect(new InetSocketAddress(hubHost, offer.udpPort));
+                s.setSoTimeout(SEND_INTERVAL);
+            }
+            catch (IOException e) {
+                System.out.println("Can't open datagram channel for cursors; using the connection instead: " + e);
+                if (s != null)
+                    s.close();
+                s = null;
+            }
+        }
+        socket = s;
+        token = offer == null ? 0 : offer.token;
+        Thread thread = new Thread("NetDraw cursor channel") {
+            public void run() {
+                channelLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the position of the local cursor.  This can be called as often as
+     * the mouse moves; it does not block.
+     */
+    public void moveTo(int x, int y) {
+        position = pack(x,y);
+    }
+
+    /**
+     * Tells other clients that the local cursor has left the drawing.
+     */
+    public void hide() {
+        position = pack(CursorMessage.HIDDEN, CursorMessage.HIDDEN);
+    }
+
+    /**
+     * Tests whether cursor positions are currently being sent as datagrams.
+     */
+    public boolean isUsingDatagrams() {
+        return acknowledged;
+    }
+
+    /**
+     * Stops the channel's thread and closes its socket.
+     */
+    public void close() {
+        closed = true;
+        if (socket != null)
+            socket.close();
+    }
+
+    private void channelLoop() {
+        byte[] data = new byte[CursorRelay.HUB_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        long nextHello = 0;
+        long lastSend = 0;
+        boolean errorReported = false;
+        while (!closed) {
+            try {
+                long now = System.currentTimeMillis();
+                if (socket != null && !acknowledged && now >= nextHello) {
+                    send(0, CursorMessage.HIDDEN, CursorMessage.HIDDEN);
+                    nextHello = now + HELLO_INTERVAL;
+                }
+                long pos = position;
+                if (pos != sentPosition && now - lastSend >= SEND_INTERVAL) {
+                    int x = (int)(pos >> 32);
+                    int y = (int)pos;
+                    if (acknowledged)
+                        send(++seq, x, y);
+                    else
+                        client.send(new CursorMessage(x,y));
+                    sentPosition = pos;
+                    lastSend = now;
+                }
+                if (socket == null) {
+                    Thread.sleep(SEND_INTERVAL);
+                    continue;
+                }
+                try {
+                    packet.setLength(data.length);
+                    socket.receive(packet);
+                }
+                catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (packet.getLength() != CursorRelay.HUB_PACKET_SIZE)
+                    continue;
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                int sender = buffer.getInt();
+                int packetSeq = buffer.getInt();
+                if (sender == 0) {
+                    acknowledged = true;
+                    continue;
+                }
+                Integer last = lastSeq.get(sender);
+                if (last != null && packetSeq <= last)
+                    continue;  // Stale; a newer position has already arrived.
+                lastSeq.put(sender, packetSeq);
+                listener.cursorMoved(sender, buffer.getInt(), buffer.getInt());
+            }
+            catch (IllegalStateException e) {
+                closed = true;  // The connection to the hub has been closed.
+            }
+            catch (InterruptedException e) {
+            }
+            catch (IOException e) {
+                if (!closed && !errorReported) {  // Report only once, since the loop runs 60 times a second.
+                    System.out.println("Error in cursor channel: " + e);
+                    errorReported = true;
+                }
+            }
+        }
+    }
+
+    private void send(int seq, int x, int y) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CursorRelay.CLIENT_PACKET_SIZE);
+        buffer.putLong(token).putInt(seq).putInt(x).putInt(y);
+        socket.send(new DatagramPacket(buffer.array(), CursorRelay.CLIENT_PACKET_SIZE));
+    }
+
+    private static long pack(int x, int y) {
+        return ((long)x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+}
@@ -0,0 +1,23 @@
+package netgame.draw;
+
+import java.io.Serializable;
+
+/**
+ * The position of a client's mouse cursor, sent over the ordinary connection
+ * when the datagram channel for cursors can't be used.  A client sends it to
+ * the hub, and the hub forwards it, wrapped in a ForwardedMessage, to clients
+ * that don't have a datagram channel.  A position of (HIDDEN,HIDDEN) means that
+ * the cursor is not over the drawing.
+ */
+public final class CursorMessage implements Serializable {
+
+    public static final int HIDDEN = Integer.MIN_VALUE;
+
+    public final int x, y;
+
+    public CursorMessage(int x, int y) {
+        this.x = x;
+        this.y = y;
+    }
+
+}
@@ -0,0 +1,24 @@
+package netgame.draw;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a {@link DrawHub} to each client during the connection handshake,
+ * to offer a datagram channel for cursor positions.  The client sends its
+ * cursor packets to the given UDP port on the hub's host, starting each one
+ * with the token, which tells the hub which client the packet comes from.
+ * A port of -1 means that the hub has no datagram channel, and cursor
+ * positions must be sent as {@link CursorMessage CursorMessages} over the
+ * ordinary connection.
+ */
+public final class CursorOffer implements Serializable {
+
+    public final int udpPort;
+    public final long token;
+
+    public CursorOffer(int udpPort, long token) {
+        this.udpPort = udpPort;
+        this.token = token;
+    }
+
+}
@@ -0,0 +1,214 @@
+package netgame.draw;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import netgame.common.ForwardedMessage;
+
+/**
+ * The hub side of the datagram channel for cursor positions.  Each client is
+ * registered during its handshake and gets a random token.  A packet from a
+ * client consists of the token, a sequence number, and the x and y coordinates
+ * of its cursor; a packet to a client consists of the ID of the client whose
+ * cursor moved, the sequence number, and the coordinates.  A packet with
+ * sender ID 0 is an acknowledgment, which tells a client that its packets are
+ * getting through.  A client starts by sending packets with sequence number 0,
+ * which are only acknowledged, and the first packet that the relay gets from a
+ * client also tells it the address to which packets for that client are sent.
+ * 
+ * <p>Datagrams can be lost or arrive out of order, but only the newest position
+ * of a cursor matters, so a packet whose sequence number is not larger than
+ * that of the last packet from the same client is simply dropped.  The relay
+ * numbers the packets it sends for each cursor itself, so clients can drop
+ * stale packets in the same way.  A client whose address is not known yet gets
+ * cursor positions as CursorMessages over its ordinary connection instead.
+ */
+final class CursorRelay {
+
+    static final int CLIENT_PACKET_SIZE = 20;
+    static final int HUB_PACKET_SIZE = 16;
+
+    /**
+     * The state of one client's cursor.
+     */
+    private static final class Endpoint {
+        final int playerID;
+        volatile SocketAddress address;  // Where packets for this client go; null until known.
+        int lastSeq;                     // Sequence number of the newest packet from this client.
+        int outSeq;                      // Sequence number of the last packet relayed for this cursor.
+        Set<Integer> audience = new HashSet<Integer>();  // The clients that got the last position.
+        Endpoint(int playerID) {
+            this.playerID = playerID;
+        }
+    }
+
+    private final DrawHub hub;
+    private final DatagramSocket socket;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<Long,Endpoint> byToken = new ConcurrentHashMap<Long,Endpoint>();
+    private final Map<Integer,Endpoint> byPlayer = new ConcurrentHashMap<Integer,Endpoint>();
+    private final AtomicLong packetsRelayed = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    /**
+     * Opens a datagram socket on the given port and starts a daemon thread that
+     * relays the packets that arrive on it.
+     * @throws IOException if the socket can't be opened.
+     */
+    CursorRelay(DrawHub hub, int port) throws IOException {
+        this.hub = hub;
+        socket = new DatagramSocket(port);
+        Thread thread = new Thread("Cursor relay") {
+            public void run() {
+                receiveLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    long getPacketsRelayed() {
+        return packetsRelayed.get();
+    }
+
+    long getPacketsDropped() {
+        return packetsDropped.get();
+    }
+
+    /**
+     * Registers a client and returns the token that it must put in its packets.
+     * A client that is already registered, because it is resuming its connection,
+     * keeps its token.
+     */
+    long register(int playerID) {
+        Endpoint endpoint = byPlayer.get(playerID);
+        if (endpoint != null) {
+            for (Map.Entry<Long,Endpoint> e : byToken.entrySet()) {
+                if (e.getValue() == endpoint)
+                    return e.getKey();
+            }
+        }
+        endpoint = new Endpoint(playerID);
+        long token;
+        do {
+            token = random.nextLong();
+        } while (byToken.putIfAbsent(token, endpoint) != null);
+        byPlayer.put(playerID, endpoint);
+        return token;
+    }
+
+    void unregister(int playerID) {
+        Endpoint endpoint = byPlayer.remove(playerID);
+        if (endpoint != null)
+            byToken.values().remove(endpoint);
+    }
+
+    /**
+     * Closes the datagram socket, which ends the relay's thread.  After that,
+     * cursor positions are sent to every client over its ordinary connection.
+     */
+    void close() {
+        socket.close();
+    }
+
+    boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Sends a cursor position to the clients that should see it.  This is called
+     * for packets that arrive on the datagram socket and for CursorMessages that
+     * arrive over ordinary connections.
+     */
+    void relay(int senderID, int x, int y) {
+        Endpoint sender = byPlayer.get(senderID);
+        if (sender == null)
+            return;
+        int seq;
+        Set<Integer> recipients = new HashSet<Integer>(hub.cursorRecipients(senderID, x, y));
+        synchronized (sender) {
+            seq = ++sender.outSeq;
+            Set<Integer> previous = sender.audience;
+            sender.audience = new HashSet<Integer>(recipients);
+            recipients.addAll(previous);  // So that a cursor that leaves a viewport is seen to leave.
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HUB_PACKET_SIZE);
+        buffer.putInt(senderID).putInt(seq).putInt(x).putInt(y);
+        DatagramPacket packet = new DatagramPacket(buffer.array(), HUB_PACKET_SIZE);
+        ForwardedMessage message = null;
+        for (int id : recipients) {
+            if (id == senderID)
+                continue;
+            Endpoint to = byPlayer.get(id);
+            SocketAddress address = to == null || socket.isClosed() ? null : to.address;
+            if (address == null) {
+                if (message == null)
+                    message = new ForwardedMessage(senderID, new CursorMessage(x,y));
+                hub.sendToOne(id, message);
+            }
+            else {
+                packet.setSocketAddress(address);
+                try {
+                    socket.send(packet);
+                }
+                catch (IOException e) {
+                    // A lost cursor packet doesn't matter.
+                }
+            }
+            packetsRelayed.incrementAndGet();
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] data = new byte[CLIENT_PACKET_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        byte[] ack = new byte[HUB_PACKET_SIZE];  // All zero, so the sender ID is 0.
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                if (packet.getLength() != CLIENT_PACKET_SIZE)
+                    continue;
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                Endpoint endpoint = byToken.get(buffer.getLong());
+                if (endpoint == null)
+                    continue;
+                int seq = buffer.getInt();
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                SocketAddress from = packet.getSocketAddress();
+                if (seq == 0) {
+                    endpoint.address = from;
+                    socket.send(new DatagramPacket(ack, ack.length, from));
+                    continue;
+                }
+                synchronized (endpoint) {
+                    if (seq <= endpoint.lastSeq) {
+                        packetsDropped.incrementAndGet();
+                        continue;
+                    }
+                    endpoint.lastSeq = seq;
+                }
+                endpoint.address = from;
+                relay(endpoint.playerID, x, y);
+            }
+            catch (IOException e) {
+                if (!socket.isClosed())
+                    System.out.println("Error in cursor relay: " + e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,617 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import netgame.common.ForwardedMessage;
+import netgame.common.Hub;
+import netgame.common.TcpTransport;
+import netgame.common.Transport;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.DrawStyle;
+import netgame.draw.raster.TileDigests;
+
+/**
+ * A Hub for NetDraw that only sends each client the drawing items that it can
+ * see.  A client reports the part of the drawing that it shows by sending a
+ * {@link ViewportMessage}.  The hub keeps the viewports in a {@link ViewportIndex},
+ * and a drawing item is forwarded only to the clients whose viewports intersect
+ * the bounds of the item, which include the width of the stroke.  So the amount of
+ * data that a client receives depends on what it shows, not on the total amount
+ * of activity.  A "clear" is sent to everyone.  A client that has not reported
+ * a viewport gets every item, as with an ordinary Hub.  Items are not sent back
+ * to a client that has reported a viewport, since that client has already drawn
+ * them.  Messages that are not drawing items are forwarded to all clients.
+ * 
+ * <p>To be able to fill in the part of the drawing that becomes visible when a
+ * viewport moves, the hub keeps all the items since the most recent "clear".
+ * When a client moves its viewport, the hub answers with a {@link RegionMessage}
+ * that contains the items that intersect the newly exposed area.  Since the hub
+ * handles the messages from all clients one at a time, in order, the reply
+ * fits exactly between the items that the client got for its old viewport and
+ * the items that it gets for the new one.
+ * 
+ * <p>A client can check its picture against the hub's drawing by sending the
+ * {@link TileDigests} of the tiles that it shows in a {@link TileDigestMessage}.
+ * The hub keeps the digests of its own drawing up to date as items arrive, and
+ * answers with a RegionMessage that refills only the tiles whose digests differ,
+ * so a client that has missed items, for example because it resumed a lost
+ * connection after missing more items than the hub could replay, gets back only
+ * the part of the drawing that is wrong, and silent differences are found at
+ * the cost of a few bytes per tile.
+ * 
+ * <p>A user can undo and redo the strokes that the user drew.  Undo and redo
+ * items are sent to everyone, like a "clear", and an undo or redo of a stroke
+ * that belongs to someone else is ignored.  The hub does not draw anything, so
+ * instead of keeping pictures of the drawing, it remembers which strokes are
+ * undone and leaves their items out of the replies that fill in a region.
+ * 
+ * <p>The hub also relays the positions of the clients' mouse cursors.  These
+ * change often, and a lost or late position is soon replaced by a newer one,
+ * so they are sent as datagrams by a {@link CursorRelay} on the UDP port with
+ * the same number as the hub's port, instead of over the ordinary connections.
+ * During the handshake, the hub sends each client a {@link CursorOffer} that
+ * tells it where to send its cursor packets.  A client that can't use datagrams
+ * sends {@link CursorMessage CursorMessages} instead, and gets them in return.
+ * A cursor position is sent only to the clients whose viewport contains it.
+ * 
+ * <p>Finally, the hub passes around the images of custom stamps, which are
+ * identified by the hash of their data (see {@link netgame.draw.raster.StampCache}).
+ * The first time that the hub sees a stamp item with an image that it does not
+ * have, it sends a {@link StampRequest} to the client that drew the item, and
+ * keeps the image when it arrives, up to a limit on the total size, so each
+ * image normally crosses each connection at most once.  A client that gets a
+ * stamp item with an image that it does not have asks the hub in the same way;
+ * if the hub does not have the image yet either, it answers as soon as it
+ * does.  The images are sent as {@link StampChunk StampChunks}, which are
+ * background messages, so they never hold up the drawing.  A client draws the
+ * items that are waiting for an image again with the help of a {@link RegionRequest}.
+ * If the transfer from the drawing client fails, or the client answers with
+ * {@link StampUnavailable}, the hub forgets that it asked, and asks again the
+ * next time that the stamp is used; the clients that are waiting keep waiting.
+ */
+public class DrawHub extends Hub {
+
+    /**
+     * The limit on the total size of the stamp images that the hub keeps.
+     */
+    public static final long STAMP_BUDGET = 64L << 20;
+
+    private static final int MAX_REQUESTED_REGIONS = 16;  // The most regions in a RegionRequest.
+    private static final int MAX_DRAWING_SIZE = 1 << 15;  // The largest width or height in a TileDigestMessage
+                                                          //   or a viewport.
+
+    private final ViewportIndex viewports = new ViewportIndex();
+    private final Set<Integer> unrestricted = ConcurrentHashMap.newKeySet();  // Clients with no viewport.
+
+    private final List<DrawOp> items = new ArrayList<DrawOp>();  // Items since the last clear; used only for
+                                                                 //   messages that requiresGlobalOrder()
+                                                                 //   says are processed one at a time.
+    private final Set<Long> undone = new HashSet<Long>();  // Strokes that are undone; used like items.
+    private TileDigests digests;  // Of the visible items, for the drawing size in the most recent
+                                  //   TileDigestMessage, or null before the first; used like items.
+    private final AtomicLong itemsSent = new AtomicLong();
+    private final AtomicLong itemsFiltered = new AtomicLong();
+    private final AtomicLong stampBytesSent = new AtomicLong();
+    private final CursorRelay cursorRelay;  // Null if the datagram socket could not be opened.
+
+    // The state of the stamp images is guarded by the lock on stamps, since
+    // playerDisconnected() can be called while messageReceived() is running.
+    private final LinkedHashMap<String,byte[]> stamps = new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+    private long stampBytes;  // The total size of the images in stamps.
+    private final Map<String,Integer> stampSources = new HashMap<String,Integer>();  // Client asked for each image.
+    private final Map<String,Set<Integer>> stampWaiters = new HashMap<String,Set<Integer>>();  // Clients waiting for each.
+    private final StampAssembler stampAssembler = new StampAssembler();
+
+    /**
+     * Creates a DrawHub listening on a specified port.
+     * @throws IOException if it is not possible to create a listening socket on the specified port.
+     */
+    public DrawHub(int port) throws IOException {
+        this(new TcpTransport(), port);
+    }
+
+    /**
+     * Creates a DrawHub that accepts connections from a specified transport.
+     * Cursor positions are relayed as datagrams only with a TcpTransport; with
+     * any other transport, such as a LoopbackTransport, they are sent over the
+     * client connections, so the hub does not use the network at all.
+     * @throws IOException if the transport can't listen on the specified port.
+     */
+    public DrawHub(Transport transport, int port) throws IOException {
+        super(transport, port);
+        CursorRelay relay = null;
+        if (transport instanceof TcpTransport) {
+            try {
+                relay = new CursorRelay(this, port);
+            }
+            catch (IOException e) {
+                System.out.println("Can't open datagram socket for cursors on port " + port 
+                        + "; cursors will be sent over client connections.");
+            }
+        }
+        cursorRelay = relay;
+    }
+
+    /**
+     * Returns the number of times that a drawing item has been sent to a client.
+     */
+    public long getItemsSent() {
+        return itemsSent.get();
+    }
+
+    /**
+     * Returns the number of times that a drawing item was not sent to a client
+     * because it was outside that client's viewport.
+     */
+    public long getItemsFiltered() {
+        return itemsFiltered.get();
+    }
+
+    /**
+     * Returns the number of bytes of stamp images that have been sent to clients.
+     */
+    public long getStampBytesSent() {
+        return stampBytesSent.get();
+    }
+
+    /**
+     * Returns the viewport that a client has reported, or null if it has not reported one.
+     */
+    public Rectangle getViewport(int playerID) {
+        return viewports.get(playerID);
+    }
+
+    /**
+     * Returns the number of cursor positions that have been sent to clients.
+     */
+    public long getCursorsRelayed() {
+        return cursorRelay == null ? 0 : cursorRelay.getPacketsRelayed();
+    }
+
+    /**
+     * Returns the number of cursor packets that were dropped because they
+     * arrived after a newer packet from the same client.
+     */
+    public long getCursorsDropped() {
+        return cursorRelay == null ? 0 : cursorRelay.getPacketsDropped();
+    }
+
+    /**
+     * Sends the client a CursorOffer, which tells it how to send cursor positions.
+     * (A cursor relay might not exist yet if a client connects while the hub is
+     * still being constructed; that client just uses its ordinary connection.)
+     */
+    protected void extraHandshake(int playerID, ObjectInputStream in, ObjectOutputStream out) throws IOException {
+        CursorRelay relay = cursorRelay;
+        if (relay == null || relay.isClosed())
+            out.writeObject(new CursorOffer(-1, 0));
+        else
+            out.writeObject(new CursorOffer(relay.getPort(), relay.register(playerID)));
+        out.flush();
+    }
+
+    /**
+     * Also closes the cursor relay's datagram socket, so that it does not
+     * outlive the hub and its port can be used by another hub.  Clients that
+     * connect after restartServer() send their cursors over their ordinary
+     * connections.
+     */
+    public void shutdownServerSocket() {
+        super.shutdownServerSocket();
+        if (cursorRelay != null)
+            cursorRelay.close();
+    }
+
+    /**
+     * If a client has resumed its connection but missed items that were no longer
+     * available, the items that are waiting for it are discarded.  The client is
+     * expected to send a TileDigestMessage, and gets only the tiles that differ.
+     */
+    protected void playerResumed(int playerID, boolean complete) {
+        if (!complete)
+            discardQueuedMessages(playerID);
+    }
+
+    protected void playerConnected(int playerID) {
+        unrestricted.add(playerID);
+    }
+
+    protected void playerDisconnected(int playerID) {
+        unrestricted.remove(playerID);
+        viewports.remove(playerID);
+        if (cursorRelay != null)
+            cursorRelay.unregister(playerID);
+        synchronized (stamps) {
+            Iterator<Map.Entry<String,Integer>> sources = stampSources.entrySet().iterator();
+            while (sources.hasNext()) {
+                Map.Entry<String,Integer> source = sources.next();
+                if (source.getValue() == playerID) {
+                    stampAssembler.discard(source.getKey());
+                    sources.remove();  // The image will be asked for again when someone uses it.
+                }
+            }
+            for (Set<Integer> waiters : stampWaiters.values())
+                waiters.remove(playerID);
+        }
+    }
+
+    /**
+     * Says that every message has to be processed in order with all the others,
+     * except cursor positions and the messages that pass stamp images around,
+     * which do not use the list of items.  So a DrawHub can have more than one
+     * dispatch thread, and the drawing items, undo and redo, and the requests
+     * that read the items are still processed one at a time.
+     */
+    protected boolean requiresGlobalOrder(int playerID, Object message) {
+        return !(message instanceof CursorMessage || message instanceof StampRequest
+                || message instanceof StampChunk || message instanceof StampUnavailable);
+    }
+
+    protected void messageReceived(int playerID, Object message) {
+        if (message instanceof ViewportMessage) {
+            viewportChanged(playerID, ((ViewportMessage)message).viewport);
+            return;
+        }
+        if (message instanceof CursorMessage) {
+            CursorMessage cursor = (CursorMessage)message;
+            if (cursorRelay != null)
+                cursorRelay.relay(playerID, cursor.x, cursor.y);
+            else {
+                ForwardedMessage forward = new ForwardedMessage(playerID, cursor);
+                for (int id : cursorRecipients(playerID, cursor.x, cursor.y)) {
+                    if (id != playerID)
+                        sendToOne(id, forward);
+                }
+            }
+            return;
+        }
+        if (message instanceof StampRequest) {
+            stampRequested(playerID, ((StampRequest)message).hash);
+            return;
+        }
+        if (message instanceof StampChunk) {
+            stampChunkReceived(playerID, (StampChunk)message);
+            return;
+        }
+        if (message instanceof StampUnavailable) {
+            stampFailed(playerID, ((StampUnavailable)message).hash);
+            return;
+        }
+        if (message instanceof RegionRequest) {
+            Rectangle[] regions = ((RegionRequest)message).regions;
+            if (regions == null || regions.length == 0 || regions.length > MAX_REQUESTED_REGIONS)
+                return;
+            List<Rectangle> list = new ArrayList<Rectangle>(regions.length);
+            for (Rectangle r : regions) {
+                if (r == null || r.isEmpty())
+                    return;
+                list.add(new Rectangle(r));
+            }
+            sendRegions(playerID, list, false);
+            return;
+        }
+        if (message instanceof TileDigestMessage) {
+            compareDigests(playerID, (TileDigestMessage)message);
+            return;
+        }
+        List<DrawOp> ops = null;
+        if (message instanceof String) {
+            try {
+                ops = DrawOp.parseAll((String)message);
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        if (ops == null) {
+            super.messageReceived(playerID, message);
+            return;
+        }
+        ForwardedMessage forward = new ForwardedMessage(playerID, message);
+        if (ops.get(0).type == DrawOp.CLEAR) {
+            items.clear();
+            undone.clear();
+            if (digests != null)
+                digests.clear();
+            sendToAll(forward);
+            return;
+        }
+        if (ops.get(0).isUndoOrRedo()) {
+            DrawOp op = ops.get(0);
+            if (DrawOp.strokeOwner(op.stroke) != playerID)
+                return;  // Users can only undo and redo their own strokes.
+            boolean changed = op.type == DrawOp.UNDO ? undone.add(op.stroke) : undone.remove(op.stroke);
+            if (changed && digests != null) {
+                for (DrawOp item : items) {
+                    if (item.stroke != op.stroke)
+                        continue;
+                    if (op.type == DrawOp.UNDO)
+                        digests.remove(item);
+                    else
+                        digests.add(item);
+                }
+            }
+            sendToAll(forward);
+            return;
+        }
+        Rectangle bounds = null;
+        for (DrawOp op : ops) {
+            if (bounds == null)
+                bounds = op.getBounds();
+            else
+                bounds.add(op.getBounds());
+            items.add(op);
+            if (digests != null && isVisible(op))
+                digests.add(op);
+            if (op.asset != null)
+                checkStamp(playerID, op.asset);
+        }
+        List<Integer> recipients = new ArrayList<Integer>(unrestricted);
+        viewports.findIntersecting(bounds, recipients);
+        int sent = 0;
+        for (int id : recipients) {
+            if (id != playerID || unrestricted.contains(id)) {
+                if (sendToOne(id, forward))
+                    sent++;
+            }
+        }
+        itemsSent.addAndGet(sent);
+        itemsFiltered.addAndGet(Math.max(0, getPlayerList().length - recipients.size()));
+    }
+
+    /**
+     * Returns the IDs of the clients that should be sent the position of a
+     * cursor:  those whose viewport contains it, or all clients if the cursor
+     * is hidden, since any of them might be showing it.
+     */
+    List<Integer> cursorRecipients(int playerID, int x, int y) {
+        List<Integer> recipients = new ArrayList<Integer>();
+        if (x == CursorMessage.HIDDEN) {
+            for (int id : getPlayerList())
+                recipients.add(id);
+        }
+        else {
+            recipients.addAll(unrestricted);
+            viewports.findIntersecting(new Rectangle(x, y, 1, 1), recipients);
+        }
+        return recipients;
+    }
+
+    /**
+     * Records a client's new viewport and, if it had one before, sends it the
+     * items in the part of the new viewport that was outside the old one.  The
+     * check in ViewportMessage's constructor is skipped when the message is
+     * deserialized, so the viewport is checked here.  An empty viewport, or one
+     * that goes past the largest int, is ignored, and one that is wider or
+     * taller than MAX_DRAWING_SIZE is cut down to that size, since the index
+     * does work for every cell that a viewport covers.
+     */
+    private void viewportChanged(int playerID, Rectangle viewport) {
+        if (viewport == null || viewport.isEmpty()
+                || (long)viewport.x + viewport.width > Integer.MAX_VALUE
+                || (long)viewport.y + viewport.height > Integer.MAX_VALUE)
+            return;
+        viewport = new Rectangle(viewport.x, viewport.y, Math.min(viewport.width, MAX_DRAWING_SIZE), 
+                Math.min(viewport.height, MAX_DRAWING_SIZE));
+        Rectangle old = viewports.put(playerID, viewport);
+        unrestricted.remove(playerID);
+        if (old == null)
+            return;  // The client has been getting everything so far.
+        List<Rectangle> exposed = subtract(viewport, old);
+        if (!exposed.isEmpty())
+            sendRegions(playerID, exposed, false);
+    }
+
+    /**
+     * Compares the digests of a client's tiles with the hub's, and sends the
+     * client the tiles that differ.  Adjacent tiles in a row are sent as one
+     * region.  The hub's digests are computed from all the items if this is the
+     * first request, or if the client's drawing has a different size than the
+     * last one, which does not happen with NetDraw.
+     */
+    private void compareDigests(int playerID, TileDigestMessage message) {
+        if (message.width <= 0 || message.width > MAX_DRAWING_SIZE
+                || message.height <= 0 || message.height > MAX_DRAWING_SIZE 
+                || message.tiles == null || message.digests == null)
+            return;
+        if (digests == null || digests.getWidth() != message.width || digests.getHeight() != message.height) {
+            digests = new TileDigests(message.width, message.height);
+            for (DrawOp op : items) {
+                if (isVisible(op))
+                    digests.add(op);
+            }
+        }
+        Rectangle tiles = message.tiles;
+        long[] mine;
+        try {
+            mine = digests.get(tiles);
+        }
+        catch (IllegalArgumentException e) {
+            return;
+        }
+        if (mine.length != message.digests.length)
+            return;
+        List<Rectangle> differ = new ArrayList<Rectangle>();
+        for (int row = 0; row < tiles.height; row++) {
+            Rectangle run = null;
+            for (int col = 0; col < tiles.width; col++) {
+                int i = row*tiles.width + col;
+                if (mine[i] == message.digests[i]) {
+                    run = null;
+                    continue;
+                }
+                Rectangle bounds = digests.getTileBounds(tiles.x + col, tiles.y + row);
+                if (run == null) {
+                    run = bounds;
+                    differ.add(run);
+                }
+                else
+                    run.add(bounds);
+            }
+        }
+        sendRegions(playerID, differ, true);
+    }
+
+    /**
+     * Sends a client a RegionMessage with the visible items that intersect
+     * some regions.
+     */
+    private void sendRegions(int playerID, List<Rectangle> regions, boolean resync) {
+        List<String> found = new ArrayList<String>();
+        for (DrawOp op : items) {
+            if (!isVisible(op))
+                continue;
+            Rectangle bounds = op.getBounds();
+            for (Rectangle r : regions) {
+                if (r.intersects(bounds)) {
+                    found.add(op.toString());
+                    break;
+                }
+            }
+        }
+        sendToOne(playerID, new RegionMessage(regions.toArray(new Rectangle[regions.size()]), 
+                found.toArray(new String[found.size()]), resync));
+    }
+
+    /**
+     * Called for each custom stamp item.  If the hub does not have the image
+     * and has not asked for it, it asks the client that drew the item, which
+     * must have the image.
+     */
+    private void checkStamp(int playerID, String hash) {
+        synchronized (stamps) {
+            if (stamps.containsKey(hash) || stampSources.containsKey(hash))
+                return;
+            stampSources.put(hash, playerID);
+        }
+        sendToOne(playerID, new StampRequest(hash));
+    }
+
+    /**
+     * Answers a StampRequest with the image, if the hub has it, or otherwise
+     * remembers to send the image when it arrives.
+     */
+    private void stampRequested(int playerID, String hash) {
+        if (hash == null || !DrawStyle.isStampHash(hash))
+            return;
+        byte[] png;
+        synchronized (stamps) {
+            png = stamps.get(hash);
+            if (png == null) {
+                Set<Integer> waiters = stampWaiters.get(hash);
+                if (waiters == null) {
+                    waiters = new HashSet<Integer>();
+                    stampWaiters.put(hash, waiters);
+                }
+                waiters.add(playerID);
+                return;
+            }
+        }
+        sendStamp(playerID, hash, png);
+    }
+
+    /**
+     * Adds a piece of an image that the hub asked a client for.  Pieces from
+     * other clients are ignored.  When the image is complete, it is kept and
+     * sent to the clients that are waiting for it.  If the transfer fails, the
+     * image can be asked for again.
+     */
+    private void stampChunkReceived(int playerID, StampChunk chunk) {
+        Set<Integer> waiters;
+        byte[] png;
+        synchronized (stamps) {
+            Integer source = stampSources.get(chunk.hash);
+            if (source == null || source != playerID)
+                return;
+            try {
+                png = stampAssembler.add(chunk);
+            }
+            catch (IOException e) {
+                System.out.println("Bad stamp image from player #" + playerID + ": " + e.getMessage());
+                stampSources.remove(chunk.hash);
+                return;
+            }
+            if (png == null)
+                return;
+            stampSources.remove(chunk.hash);
+            stamps.put(chunk.hash, png);
+            stampBytes += png.length;
+            Iterator<byte[]> oldest = stamps.values().iterator();
+            while (stampBytes > STAMP_BUDGET && oldest.hasNext()) {
+                byte[] old = oldest.next();
+                if (old != png) {
+                    stampBytes -= old.length;
+                    oldest.remove();
+                }
+            }
+            waiters = stampWaiters.remove(chunk.hash);
+        }
+        if (waiters != null) {
+            for (int id : waiters)
+                sendStamp(id, chunk.hash, png);
+        }
+    }
+
+    /**
+     * Called when the client that the hub asked for an image does not have it.
+     */
+    private void stampFailed(int playerID, String hash) {
+        synchronized (stamps) {
+            Integer source = stampSources.get(hash);
+            if (source == null || source != playerID)
+                return;
+            stampSources.remove(hash);
+            stampAssembler.discard(hash);
+        }
+    }
+
+    private void sendStamp(int playerID, String hash, byte[] png) {
+        for (StampChunk chunk : StampChunk.split(hash, png)) {
+            if (!sendToOne(playerID, chunk))
+                return;
+        }
+        stampBytesSent.addAndGet(png.length);
+    }
+
+    /**
+     * Tests whether an item can be seen, that is, whether it does not belong
+     * to a stroke that is undone.
+     */
+    private boolean isVisible(DrawOp op) {
+        return op.stroke == 0 || !undone.contains(op.stroke);
+    }
+
+    /**
+     * Returns a list of at most four disjoint rectangles that cover the part of a
+     * that is not in b.
+     */
+    static List<Rectangle> subtract(Rectangle a, Rectangle b) {
+        List<Rectangle> parts = new ArrayList<Rectangle>(4);
+        Rectangle common = a.intersection(b);
+        if (common.isEmpty()) {
+            parts.add(new Rectangle(a));
+            return parts;
+        }
+        if (common.y > a.y)
+            parts.add(new Rectangle(a.x, a.y, a.width, common.y - a.y));
+        if (common.y + common.height < a.y + a.height)
+            parts.add(new Rectangle(a.x, common.y + common.height, a.width, a.y + a.height - common.y - common.height));
+        if (common.x > a.x)
+            parts.add(new Rectangle(a.x, common.y, common.x - a.x, common.height));
+        if (common.x + common.width < a.x + a.width)
+            parts.add(new Rectangle(common.x + common.width, common.y, a.x + a.width - common.x - common.width, common.height));
+        return parts;
+    }
+
+}
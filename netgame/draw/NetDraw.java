@@ -8,12 +8,36 @@ package netgame.draw;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.net.URL;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import netgame.common.*;
-import java.util.Scanner;
+import netgame.draw.raster.DrawOp;
+import netgame.draw.raster.DrawStyle;
+import netgame.draw.raster.DrawingHistory;
+import netgame.draw.raster.PngExporter;
+import netgame.draw.raster.RenderLoop;
+import netgame.draw.raster.StampCache;
 /**
  * This subclass of JPanel defines a client for the NetDraw application.
  * 
@@ -43,6 +67,58 @@ import java.util.Scanner;
  * the word "stamp" followed by 3 numbers.  The numbers are
  * the index of the stamp in the stamps array and the x and y 
  * coordinates where the stamp is placed.
+ * 
+ *    The "Custom Stamp..." command in the Tool menu lets the user pick an
+ * image file to use as a stamp.  The image is kept in a StampCache in the
+ * user's home directory, and stamp items refer to it by the hash of its data,
+ * so it is only sent to the hub, and from the hub to each other client, the
+ * first time that someone needs it.  A stamp item whose image has not arrived
+ * yet is drawn as nothing; when the image arrives, the client asks the hub for
+ * the items in the part of the drawing that those items cover again.
+ * 
+ *    The "Clear Drawing" command is also transmitted, as the string "clear".
+ * The format of the strings is defined by the DrawOp class in the package
+ * netgame.draw.raster, which also does the actual drawing.
+ * 
+ *    Every item that is drawn, locally or by another client, is added to
+ * the history of the drawing.  The File menu can save the history as a
+ * session file, open a saved session, and export the drawing, or its state
+ * after any number of items, as a PNG image.
+ * 
+ *    The Edit menu can undo and redo the user's own strokes:  a freehand curve
+ * from mouse press to mouse release, or a stamp.  Every item carries the number
+ * of its stroke, and an undo or redo is sent to the other clients as an item
+ * too, so it happens in every client's picture.  A "clear" can't be undone.
+ * 
+ *    The View menu, the mouse wheel, and dragging with the right or middle
+ * mouse button zoom and pan the display.  The zoom factor is a power of two.
+ * When zoomed out, the display shows a level of the mipmap pyramid that the
+ * RenderLoop keeps in each frame, so repainting costs as much as the pixels on
+ * the screen, not the pixels of the drawing.  Shortly after the view stops
+ * moving, the visible part of the drawing is reported to the hub as the
+ * client's viewport.
+ * 
+ *    After connecting, after a lost connection is resumed with messages missing,
+ * and every 30 seconds, the client sends the hub a digest of each visible tile
+ * of its picture, which says which items the tile shows, and the hub sends back
+ * the items for the tiles that differ from its own drawing, so only the wrong
+ * parts of the picture are drawn again.
+ * 
+ *    All drawing is done by a RenderLoop, which owns the off-screen copy
+ * of the drawing and draws on it in its own thread.  The Swing event thread
+ * (for the user's own drawing) and the network thread (for items from other
+ * clients) just add items to its queues, and the display shows the most
+ * recent frame published by the RenderLoop.  None of them ever waits for
+ * another.
+ * 
+ *    While connected, the client measures its round trip time to the hub
+ * with probe messages.  Once a second, the round trip time, the rates of
+ * items received and sent, the outgoing message backlog, and the frame
+ * time are shown in the message label, and optionally in an overlay on
+ * the display (see the View menu).  getPerformanceStats() returns the same
+ * numbers to a program.  For Java Flight Recorder, painting the display is
+ * recorded as an event when it is slow, along with the events of the
+ * RenderLoop and the hub.
  */
 public class NetDraw extends JPanel {
 
@@ -63,15 +139,42 @@ public class NetDraw extends JPanel {
 
     private JLabel message;           // For displaying messages to the user.
     private Display display;          // The display area where the drawing is shown.
-    private BufferedImage image;      // An off-screen copy of the drawing.
-    private Graphics2D imageGraphics; // For drawing to the off-screen copy.
-    private BufferedImage[] stamps;   // An array containing the 12 stamp images, created in constructor.
-    private int tool = -1;            // Current tool; -1 means curve, >= 0 is a stamp number.
+    private RenderLoop renderer;      // Draws the items and holds the off-screen copy of the drawing.
+    private boolean showOverlay;      // Whether the performance overlay is shown on the display.
+    private volatile PerformanceStats stats;  // Performance numbers, updated once a second.
+    private final AtomicLong opsIn = new AtomicLong();   // Number of items received from other clients.
+    private final AtomicLong opsOut = new AtomicLong();  // Number of items sent to the hub.
+    private int tool = -1;            // Current tool; -1 means curve, CUSTOM_STAMP means customStamp,
+                                      //   >= 0 is a stamp number.
+    private DrawOp customStamp;       // The custom stamp selected by the user, centered at (0,0), or null.
+    private final StampCache stampCache;  // Images of custom stamps; null if no directory could be used.
+    private final Map<String,Rectangle> missingStamps = new HashMap<String,Rectangle>();  // Images asked
+                                      //   for, and the area drawn without each; guarded by its own lock.
+    private final StampAssembler stampAssembler = new StampAssembler();  // Used only by the client's thread.
     private Color color;              // Current color for drawing lines.
-    private int lineWidthIndex;       // Current index into the strokeList array, for drawing lines.
+    private int lineWidthIndex;       // Current index into the stroke list of DrawStyle, for drawing lines.
+    private int strokeCount;          // Number of strokes that this user has started.
+    private long currentStroke;       // The stroke that the lines being drawn belong to.
+    private final Deque<Long> undoStack = new ArrayDeque<Long>();  // This user's strokes, most recent first.
+    private final Deque<Long> redoStack = new ArrayDeque<Long>();  // Strokes that were undone, most recent first.
+    private volatile CursorChannel cursorChannel;  // Sends and receives cursor positions; null if not connected.
+    private final Map<Integer,Point> remoteCursors = new ConcurrentHashMap<Integer,Point>();  // By player ID.
+    private volatile View view = new View(0, 0, 0);  // The zoom and pan of the display.
+    private Timer viewportTimer;      // Reports the viewport to the hub after the view stops moving.
+    private final List<DrawOp> resyncOps = new ArrayList<DrawOp>();  // Items sent after the tile digests;
+                                      //   this lock also guards resyncPending and resyncSent.
+    private boolean resyncPending;    // True from asking for the tile digests until the hub answers them.
+    private boolean resyncSent;       // True once the digests have been sent to the hub.
 
-    private static BasicStroke[] strokeList; // Strokes of different line widths, created in constructor.
-    private static int[] strokeWidths = { 1, 2, 3, 4, 5, 7, 10, 15, 20 };  // stroke widths for "Line Width" menu
+    private static final int CURSOR_SIZE = 20;  // Size of the area taken up by a remote cursor.
+    private static final int PORT = 32001;      // The port where NetDrawServer listens.
+    private static final int CONNECT_TIMEOUT = 10000;  // Milliseconds allowed for connecting to the server.
+    private static final int MAX_ZOOM = 3;             // The largest zoom is 2^MAX_ZOOM.
+    private static final int VIEWPORT_DELAY = 150;     // Milliseconds from the last view change to reporting the viewport.
+    private static final int CUSTOM_STAMP = -2;        // The value of tool for the custom stamp.
+    private static final int RESYNC_INTERVAL = 30000;  // Milliseconds between checks of the picture against the hub's.
+                                                       //   Items painted in a different order are not caught;
+                                                       //   see TileDigests.
 
     private static Color[] colorList = { // Standard colors for the "Curve Color" menu.
             Color.BLACK, Color.RED, new Color(0,180,0), Color.BLUE, Color.YELLOW, new Color(150,0,150)
@@ -81,17 +184,110 @@ public class NetDraw extends JPanel {
     };
 
 
+    /**
+     * The zoom and pan of the display.  The drawing is scaled by 2^zoom, and
+     * the point of the scaled drawing at (originX,originY) is shown at the top
+     * left corner of the display.  When zoom is negative, the scaled drawing
+     * is level -zoom of the mipmap pyramid.  A View is immutable, so the render
+     * thread and the network thread can use the current one without locking.
+     */
+    private static final class View {
+        final int zoom, originX, originY;
+        View(int zoom, int originX, int originY) {
+            this.zoom = zoom;
+            this.originX = originX;
+            this.originY = originY;
+        }
+        int scale(int v) {  // From drawing coordinates to scaled drawing coordinates.
+            return zoom >= 0 ? v << zoom : v >> -zoom;
+        }
+        int unscale(int v) {  // From scaled drawing coordinates to drawing coordinates.
+            return zoom >= 0 ? v >> zoom : v << -zoom;
+        }
+        Point toDrawing(int x, int y) {
+            return new Point(unscale(x + originX), unscale(y + originY));
+        }
+        Point toScreen(int x, int y) {
+            return new Point(scale(x) - originX, scale(y) - originY);
+        }
+        Rectangle toScreen(Rectangle r) {  // Rounded out to whole screen pixels.
+            int x1 = scale(r.x), y1 = scale(r.y);
+            int x2 = scale(r.x + r.width + (1 << Math.max(0, -zoom)) - 1);
+            int y2 = scale(r.y + r.height + (1 << Math.max(0, -zoom)) - 1);
+            return new Rectangle(x1 - originX, y1 - originY, x2 - x1, y2 - y1);
+        }
+    }
+
+
     /**
      * This class defines the display area of the panel, where
-     * the drawing is shown.  All drawing is actually done to the
-     * off-screen copy, image.  The paintComponent() method in this
-     * class simply copies the image to the display.
+     * the drawing is shown.  All drawing is actually done by the
+     * renderer.  The paintComponent() method in this class simply
+     * copies the visible part of the renderer's current frame to the
+     * display, from the level of the pyramid that matches the zoom.
      */
     private class Display extends JPanel {
         protected void paintComponent(Graphics g) {
-            synchronized( NetDraw.this ) {
-                g.drawImage(image,0,0,getWidth(),getHeight(),null);
+            PaintEvent event = new PaintEvent();
+            event.begin();
+            View v = view;
+            g.setColor(Color.GRAY);
+            g.fillRect(0, 0, getWidth(), getHeight());
+            Rectangle clip = g.getClipBounds();
+            if (clip == null)
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
+            RenderLoop.Frame frame = renderer.acquireFrame();
+            try {
+                BufferedImage image = frame.getLevel(Math.max(0, -v.zoom));
+                int magnify = Math.max(0, v.zoom);
+                Rectangle visible = clip.intersection(new Rectangle(-v.originX, -v.originY,
+                        image.getWidth() << magnify, image.getHeight() << magnify));
+                if (!visible.isEmpty()) {
+                    // Source rectangle in the image, rounded out to whole image pixels.
+                    int sx1 = (visible.x + v.originX) >> magnify;
+                    int sy1 = (visible.y + v.originY) >> magnify;
+                    int sx2 = (visible.x + visible.width + v.originX + (1 << magnify) - 1) >> magnify;
+                    int sy2 = (visible.y + visible.height + v.originY + (1 << magnify) - 1) >> magnify;
+                    g.drawImage(image, (sx1 << magnify) - v.originX, (sy1 << magnify) - v.originY,
+                            (sx2 << magnify) - v.originX, (sy2 << magnify) - v.originY,
+                            sx1, sy1, sx2, sy2, null);
+                }
+            }
+            finally {
+                renderer.releaseFrame(frame);
             }
+            paintCursors(g, v);
+            if (showOverlay)
+                paintOverlay(g);
+            if (event.shouldCommit()) {
+                event.zoom = v.zoom;
+                event.width = clip.width;
+                event.height = clip.height;
+                event.commit();
+            }
+        }
+        private void paintCursors(Graphics g, View v) {
+            g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+            for (Map.Entry<Integer,Point> cursor : remoteCursors.entrySet()) {
+                Point p = v.toScreen(cursor.getValue().x, cursor.getValue().y);
+                g.setColor(colorList[cursor.getKey() % colorList.length]);
+                g.drawOval(p.x - 4, p.y - 4, 8, 8);
+                g.drawString(cursor.getKey().toString(), p.x + 5, p.y + 14);
+            }
+        }
+        private void paintOverlay(Graphics g) {
+            String[] lines = stats.toLines();
+            g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            FontMetrics fm = g.getFontMetrics();
+            int width = 0;
+            for (String line : lines)
+                width = Math.max(width, fm.stringWidth(line));
+            int height = lines.length*fm.getHeight();
+            g.setColor(new Color(0,0,0,160));
+            g.fillRect(5, 5, width + 12, height + 8);
+            g.setColor(Color.GREEN);
+            for (int i = 0; i < lines.length; i++)
+                g.drawString(lines[i], 11, 9 + fm.getAscent() + i*fm.getHeight());
         }
     }
 
@@ -101,36 +297,77 @@ public class NetDraw extends JPanel {
      * and dragging.  All the actual work of drawing is actually done by 
      * calling the drawStamp() and drawLine() methods in the DrawPanel class.
      */
-    private class MouseHandler implements MouseListener, MouseMotionListener {
+    private class MouseHandler implements MouseListener, MouseMotionListener, MouseWheelListener {
         private int prevX, prevY;
         private boolean dragging;
+        private boolean panning;
         public void mousePressed(MouseEvent evt) {
-            if (dragging)
+            if (dragging || panning)
                 return;
+            Point p = SwingUtilities.convertPoint(NetDraw.this, evt.getPoint(), display);
+            if ( ! SwingUtilities.isLeftMouseButton(evt) ) {
+                panning = true;
+                prevX = p.x;
+                prevY = p.y;
+                return;
+            }
+            Point d = view.toDrawing(p.x, p.y);
             if (tool >= 0) {
-                drawStamp(tool, evt.getX(), evt.getY());
+                drawStamp(tool, d.x, d.y);
+                return;
+            }
+            if (tool == CUSTOM_STAMP) {
+                drawCustomStamp(d.x, d.y);
                 return;
             }
             dragging = true;
-            prevX = evt.getX();
-            prevY = evt.getY();
+            currentStroke = newStroke();
+            prevX = d.x;
+            prevY = d.y;
         }
         public void mouseDragged(MouseEvent evt) {
+            if (panning) {
+                Point p = SwingUtilities.convertPoint(NetDraw.this, evt.getPoint(), display);
+                View v = view;
+                setView(v.zoom, v.originX - (p.x - prevX), v.originY - (p.y - prevY));
+                prevX = p.x;
+                prevY = p.y;
+                return;
+            }
             if (!dragging)
                 return;
-            int thisX = evt.getX();
-            int thisY = evt.getY();
-            drawLine(color, lineWidthIndex, thisX, thisY, prevX, prevY);
-            prevX = thisX;
-            prevY = thisY;
+            Point p = SwingUtilities.convertPoint(NetDraw.this, evt.getPoint(), display);
+            Point d = view.toDrawing(p.x, p.y);
+            if (d.x == prevX && d.y == prevY)
+                return;  // Zoomed in, and still inside the same pixel of the drawing.
+            drawLine(color, lineWidthIndex, d.x, d.y, prevX, prevY);
+            prevX = d.x;
+            prevY = d.y;
+            mouseMoved(evt);
         }
         public void mouseReleased(MouseEvent evt) {
             dragging = false;
+            panning = false;
+        }
+        public void mouseMoved(MouseEvent evt) {
+            CursorChannel channel = cursorChannel;
+            if (channel != null) {
+                Point p = SwingUtilities.convertPoint(NetDraw.this, evt.getPoint(), display);
+                Point d = view.toDrawing(p.x, p.y);
+                channel.moveTo(d.x, d.y);
+            }
+        }
+        public void mouseWheelMoved(MouseWheelEvent evt) {
+            Point p = SwingUtilities.convertPoint(NetDraw.this, evt.getPoint(), display);
+            zoomTo(view.zoom - evt.getWheelRotation(), p);
         }
-        public void mouseMoved(MouseEvent evt) { }
         public void mouseClicked(MouseEvent evt) { }
         public void mouseEntered(MouseEvent evt) { }
-        public void mouseExited(MouseEvent evt) { }
+        public void mouseExited(MouseEvent evt) {
+            CursorChannel channel = cursorChannel;
+            if (channel != null)
+                channel.hide();
+        }
     }
 
 
@@ -149,27 +386,22 @@ public class NetDraw extends JPanel {
         message.setBackground(Color.LIGHT_GRAY);
         message.setOpaque(true);
         message.setBorder(BorderFactory.createEmptyBorder(3,3,3,3));
-        image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
-        imageGraphics = image.createGraphics();
-        imageGraphics.setColor(Color.WHITE);
-        imageGraphics.fillRect(0, 0, 800, 600);
-        color = Color.BLACK;
-        lineWidthIndex = 3;
-        strokeList = new BasicStroke[strokeWidths.length];
-        for (int i = 0; i < strokeList.length; i++) {
-            strokeList[i] = new BasicStroke(strokeWidths[i],BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
-        }
-        imageGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        stamps = new BufferedImage[12];
-        for (int i = 0; i < 12; i++) {
-            try {
-                String resname = "netgame/draw/stamps/icon" + i + ".png";
-                URL resloc = getClass().getClassLoader().getResource(resname);
-                stamps[i] = ImageIO.read(resloc);
+        renderer = new RenderLoop(800, 600, new RenderLoop.FrameListener() {
+            public void frameReady(Rectangle dirty) {
+                display.repaint(view.toScreen(dirty));
             }
-            catch (Exception e) {
+        });
+        viewportTimer = new Timer(VIEWPORT_DELAY, new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                if (client != null)
+                    sendViewport(client);
             }
-        }
+        });
+        viewportTimer.setRepeats(false);
+        stampCache = openStampCache();
+        DrawStyle.setStampCache(stampCache);
+        color = Color.BLACK;
+        lineWidthIndex = 3;
         setLayout(new BorderLayout(3,3));
         setBackground(Color.GRAY);
         setBorder(BorderFactory.createEmptyBorder(3,3,3,3));
@@ -178,28 +410,123 @@ public class NetDraw extends JPanel {
         MouseHandler hndl = new MouseHandler();
         addMouseListener(hndl);
         addMouseMotionListener(hndl);
+        addMouseWheelListener(hndl);
+        stats = new PerformanceStats(-1, -1, 0, 0, 0, 0, 0);
+        Timer statsTimer = new Timer(1000, new ActionListener() {
+            long prevTime = System.nanoTime();
+            long prevIn, prevOut;
+            public void actionPerformed(ActionEvent evt) {
+                long now = System.nanoTime();
+                double seconds = (now - prevTime) / 1e9;
+                long in = opsIn.get(), out = opsOut.get();
+                updateStats((in - prevIn) / seconds, (out - prevOut) / seconds);
+                prevTime = now;
+                prevIn = in;
+                prevOut = out;
+            }
+        });
+        statsTimer.start();
+        Timer resyncTimer = new Timer(RESYNC_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                if (client != null)
+                    requestResync(client);
+            }
+        });
+        resyncTimer.start();
+    }
+
+
+    /**
+     * Returns the most recent performance numbers, which are updated once a second.
+     */
+    public PerformanceStats getPerformanceStats() {
+        return stats;
+    }
+
+
+    /**
+     * Called once a second by a timer to collect a new set of performance numbers,
+     * show them in the message label if connected, and update the overlay.
+     */
+    private void updateStats(double inRate, double outRate) {
+        DrawClient c = client;
+        double rtt = -1, smoothedRtt = -1;
+        int backlog = 0;
+        if (c != null) {
+            rtt = c.getRoundTripNanos() / 1e6;
+            smoothedRtt = c.getSmoothedRoundTripNanos() / 1e6;
+            backlog = c.getOutgoingBacklog();
+        }
+        stats = new PerformanceStats(rtt < 0 ? -1 : rtt, smoothedRtt < 0 ? -1 : smoothedRtt, inRate, outRate, 
+                backlog, renderer.getLastFrameNanos() / 1e6, renderer.getLocalLatency().getPercentileNanos(99) / 1e6);
+        renderer.getLocalLatency().reset();
+        if (c != null)
+            message.setText(stats.toString());
+        if (showOverlay)
+            display.repaint();
     }
 
 
     /**
-     * Creates a menu bar containing just a Tool menu.
+     * Creates a menu bar containing File, Tool, Curve Color, Line Width,
+     * and Connection menus.
      * @return the menu bar that was created
      */
     public JMenuBar createMenuBar() {
         JMenuBar menuBar = new JMenuBar();
 
+        JMenu fileMenu = new JMenu("File");
+        menuBar.add(fileMenu);
+        ActionListener fileListener = new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                String cmd = evt.getActionCommand();
+                if (cmd.equals("Save Session..."))
+                    doSaveSession();
+                else if (cmd.equals("Open Session..."))
+                    doOpenSession();
+                else if (cmd.equals("Export PNG..."))
+                    doExport(false);
+                else
+                    doExport(true);
+            }
+        };
+        for (String cmd : new String[] { "Save Session...", "Open Session...", 
+                "Export PNG...", "Export PNG of Earlier Step..." }) {
+            JMenuItem item = new JMenuItem(cmd);
+            item.addActionListener(fileListener);
+            fileMenu.add(item);
+        }
+
+        JMenu editMenu = new JMenu("Edit");
+        menuBar.add(editMenu);
+        JMenuItem undo = new JMenuItem("Undo");
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+        undo.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                doUndo();
+            }
+        });
+        editMenu.add(undo);
+        JMenuItem redo = new JMenuItem("Redo");
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+        redo.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                doRedo();
+            }
+        });
+        editMenu.add(redo);
+
         JMenu toolMenu = new JMenu("Tool");
         menuBar.add(toolMenu);
         ActionListener toolListener = new ActionListener() { // listener fo Tools menu
             public void actionPerformed(ActionEvent evt) {
                 String cmd = evt.getActionCommand();
-                if (cmd.equals("Clear Drawing")) {
-                    imageGraphics.setColor(Color.WHITE);
-                    imageGraphics.fillRect(0, 0, display.getWidth(), display.getHeight());
-                    repaint();
-                }
+                if (cmd.equals("Clear Drawing"))
+                    drawClear();
                 else if (cmd.equals("DRAW FREEHAND CURVES"))
                     tool = -1;
+                else if (cmd.equals("Custom Stamp..."))
+                    doCustomStamp();
                 else // The tool is one of the stamps
                     tool = Integer.parseInt(cmd.substring(13));
             }
@@ -212,12 +539,18 @@ public class NetDraw extends JPanel {
         curves.addActionListener(toolListener);
         toolMenu.add(curves);
         toolMenu.addSeparator();
-        for (int i = 0; i < 12; i++) {
+        for (int i = 0; i < DrawStyle.STAMP_COUNT; i++) {
             JMenuItem item = new JMenuItem("Stamp Number " + i);
-            item.setIcon(new ImageIcon(stamps[i]));
+            if (DrawStyle.getStamp(i) != null)
+                item.setIcon(new ImageIcon(DrawStyle.getStamp(i)));
             item.addActionListener(toolListener);
             toolMenu.add(item);
         }
+        toolMenu.addSeparator();
+        JMenuItem custom = new JMenuItem("Custom Stamp...");
+        custom.addActionListener(toolListener);
+        custom.setEnabled(stampCache != null);
+        toolMenu.add(custom);
 
         JMenu colorMenu = new JMenu("Curve Color");
         menuBar.add(colorMenu);
@@ -251,20 +584,56 @@ public class NetDraw extends JPanel {
         ActionListener strokeListener = new ActionListener() {
             public void actionPerformed(ActionEvent evt) {
                 int w = Integer.parseInt(evt.getActionCommand());
-                for (int i = 0; i < strokeWidths.length; i++) {
-                    if (w == strokeWidths[i]) {
+                for (int i = 0; i < DrawStyle.getStrokeCount(); i++) {
+                    if (w == DrawStyle.getStrokeWidth(i)) {
                         lineWidthIndex = i;
                         break;
                     }
                 }
             }
         };
-        for (int w : strokeWidths) {
-            JMenuItem item = new JMenuItem("" + w);
+        for (int i = 0; i < DrawStyle.getStrokeCount(); i++) {
+            JMenuItem item = new JMenuItem("" + DrawStyle.getStrokeWidth(i));
             item.addActionListener(strokeListener);
             strokeMenu.add(item);
         }
 
+        JMenu viewMenu = new JMenu("View");
+        menuBar.add(viewMenu);
+        final JCheckBoxMenuItem overlay = new JCheckBoxMenuItem("Performance Overlay");
+        overlay.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                showOverlay = overlay.isSelected();
+                display.repaint();
+            }
+        });
+        viewMenu.add(overlay);
+        viewMenu.addSeparator();
+        JMenuItem zoomIn = new JMenuItem("Zoom In");
+        zoomIn.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS, InputEvent.CTRL_DOWN_MASK));
+        JMenuItem zoomOut = new JMenuItem("Zoom Out");
+        zoomOut.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, InputEvent.CTRL_DOWN_MASK));
+        JMenuItem actualSize = new JMenuItem("Actual Size");
+        actualSize.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, InputEvent.CTRL_DOWN_MASK));
+        ActionListener zoomListener = new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                Point center = new Point(display.getWidth()/2, display.getHeight()/2);
+                String cmd = evt.getActionCommand();
+                if (cmd.equals("Zoom In"))
+                    zoomTo(view.zoom + 1, center);
+                else if (cmd.equals("Zoom Out"))
+                    zoomTo(view.zoom - 1, center);
+                else
+                    zoomTo(0, center);
+            }
+        };
+        zoomIn.addActionListener(zoomListener);
+        zoomOut.addActionListener(zoomListener);
+        actualSize.addActionListener(zoomListener);
+        viewMenu.add(zoomIn);
+        viewMenu.add(zoomOut);
+        viewMenu.add(actualSize);
+
         JMenu connectMenu = new JMenu("Connection");
         menuBar.add(connectMenu);
         ActionListener connectListener = new ActionListener() {
@@ -301,9 +670,48 @@ public class NetDraw extends JPanel {
      * it to all the clients that are connected to the server.
      */
     private class DrawClient extends Client {
-        public DrawClient(String hubHostName, int hubPort) throws IOException {
-            super(hubHostName, hubPort);
-            myConnectionID = getID();
+        private volatile CursorOffer cursorOffer;  // Set by extraHandshake(), in the thread that connects.
+        /**
+         * Opens the channel for cursor positions, once the connection to the hub
+         * has been established.
+         */
+        void openCursorChannel(String hubHostName) {
+            cursorChannel = new CursorChannel(this, hubHostName, cursorOffer, new CursorChannel.Listener() {
+                public void cursorMoved(int playerID, int x, int y) {
+                    remoteCursorMoved(playerID, x, y);
+                }
+            });
+        }
+        protected void extraHandshake(ObjectInputStream in, ObjectOutputStream out) throws IOException {
+            try {
+                cursorOffer = (CursorOffer)in.readObject();
+            }
+            catch (Exception e) {
+                throw new IOException("Illegal response from server.");
+            }
+        }
+        protected void connectionResumed(boolean complete) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    message.setText("Connection resumed" + (complete ? "." : "; the picture is being checked."));
+                    if (!complete && client == DrawClient.this) {
+                        cancelResync();  // The digests or the answer might have been lost.
+                        requestResync(DrawClient.this);
+                    }
+                }
+            });
+        }
+        protected void connectionClosedByError(String errorMessage) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (client == DrawClient.this)
+                        doDisconnect();
+                    message.setText("Connection lost: " + errorMessage);
+                }
+            });
+        }
+        protected void playerDisconnected(int departingPlayerID) {
+            remoteCursorMoved(departingPlayerID, CursorMessage.HIDDEN, CursorMessage.HIDDEN);
         }
         protected void messageReceived(Object message) {
             if (message instanceof ForwardedMessage) {
@@ -314,16 +722,53 @@ public class NetDraw extends JPanel {
 
                     netMessageReceived((String)msg.message, msg.senderID);
                 }
+                else if (msg.message instanceof CursorMessage) {
+                    // A cursor position that came over the connection instead of as a datagram.
+                    CursorMessage cursor = (CursorMessage)msg.message;
+                    remoteCursorMoved(msg.senderID, cursor.x, cursor.y);
+                }
+            }
+            else if (message instanceof RegionMessage) {
+                // The server is filling in part of the drawing that just came into view,
+                // or that did not match when the tile digests were compared.
+                regionReceived((RegionMessage)message);
+            }
+            else if (message instanceof StampRequest) {
+                // The server wants the image of a custom stamp that this client used.
+                String hash = ((StampRequest)message).hash;
+                byte[] png = stampCache == null ? null : stampCache.get(hash);
+                if (png != null) {
+                    for (StampChunk chunk : StampChunk.split(hash, png))
+                        send(chunk);
+                }
+                else
+                    send(new StampUnavailable(hash));
+            }
+            else if (message instanceof StampChunk) {
+                StampChunk chunk = (StampChunk)message;
+                byte[] png;
+                try {
+                    png = stampAssembler.add(chunk);
+                }
+                catch (IOException e) {
+                    System.out.println("Bad stamp image from server: " + e.getMessage());
+                    send(new StampRequest(chunk.hash));  // Still in missingStamps, so ask again.
+                    return;
+                }
+                if (png != null)
+                    stampArrived(this, png);
             }
         }
     }
 
 
     private DrawClient client;        // Represents the connection to the server, or null if there is none.
+    private DrawClient connecting;    // A client whose connection is still being opened, or null.
     private int myConnectionID;       // Every client has an ID, assigned by the server; this is mine.
 
     private JMenuItem menuConnect;    // The "Connect" command in the Connection menu.
     private JMenuItem menuDisconnect; // The "Disconnect" command in the Connection menu.
+    private JFileChooser fileDialog;  // For selecting session and PNG files, created when first needed.
 
 
     /**
@@ -332,32 +777,169 @@ public class NetDraw extends JPanel {
      * on that host.  If successful, it should get a value for myConnectionID from the server.
      */
     private void doConnect() {
-        // TODO: Create a client (if there's not one already).
-        
-        
         String host = JOptionPane.showInputDialog(this, "Enter host name or IP");
-        
-        
-        
-        if(host != null){
-            
-            try{
-                
-            client = new DrawClient("localhost", 32001); // or you can use the host string (337)
-            message.setText(host + " is Connected......");
-            
-            }
-            catch (IOException e){
-                message.setText("Not Connected " + e);
-            }
-            
-        } else {
-            message.setText(host + " is NOT-Connected......");
+        if (host == null || host.trim().length() == 0) {
+            message.setText("Not Connected");
+            return;
         }
+        final String hubHost = host.trim();
+        final DrawClient c = new DrawClient();
+        c.setProbeInterval(1000);
+        c.setResumeTimeout(15000);
+        connecting = c;
+        message.setText("Connecting to " + hubHost + "......");
         menuConnect.setEnabled(false);
         menuDisconnect.setEnabled(true);
-        
+        // The connection is opened in another thread, so the window stays responsive
+        // while a slow or unreachable host is tried.
+        c.connectAsync(hubHost, PORT, CONNECT_TIMEOUT).whenComplete(new BiConsumer<Integer,Throwable>() {
+            public void accept(final Integer id, final Throwable error) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        connectFinished(c, hubHost, id, error);
+                    }
+                });
+            }
+        });
     }
+
+    /**
+     * Called on the event dispatch thread when an attempt to connect, started by
+     * doConnect(), has succeeded or failed.  Nothing is done if the user has
+     * disconnected in the meantime.
+     */
+    private void connectFinished(DrawClient c, String host, Integer id, Throwable error) {
+        if (connecting != c)
+            return;
+        connecting = null;
+        if (error != null) {
+            Throwable cause = error.getCause() != null ? error.getCause() : error;
+            message.setText("Not Connected " + cause);
+            menuConnect.setEnabled(true);
+            menuDisconnect.setEnabled(false);
+            return;
+        }
+        client = c;
+        myConnectionID = id;
+        undoStack.clear();  // Strokes drawn before connecting belong to no one that the hub knows.
+        redoStack.clear();
+        c.openCursorChannel(host);
+        sendViewport(c);
+        requestResync(c);  // Brings the picture up to date with the hub's drawing.
+        message.setText(host + " is Connected......");
+    }
+
+    /**
+     * Reports the part of the drawing that is visible on the display to the hub.
+     */
+    private void sendViewport(DrawClient c) {
+        Rectangle visible = visibleArea();
+        if (!visible.isEmpty())
+            c.send(new ViewportMessage(visible));
+    }
+
+    /**
+     * Returns the part of the drawing that is visible on the display.
+     */
+    private Rectangle visibleArea() {
+        View v = view;
+        Point topLeft = v.toDrawing(0, 0);
+        Point bottomRight = v.toDrawing(display.getWidth() + (1 << Math.max(0, v.zoom)) - 1,
+                display.getHeight() + (1 << Math.max(0, v.zoom)) - 1);
+        return new Rectangle(topLeft.x, topLeft.y, bottomRight.x - topLeft.x, bottomRight.y - topLeft.y)
+                .intersection(new Rectangle(0, 0, renderer.getWidth(), renderer.getHeight()));
+    }
+
+    /**
+     * Checks the visible part of the picture against the hub's drawing, unless
+     * a check is already under way.  The render thread gets the digests of the
+     * visible tiles, after the items that have been received so far, and sends
+     * them to the hub, which answers with the tiles that differ; see regionReceived().
+     * This is done when connecting, when a connection is resumed after messages
+     * were lost, and every RESYNC_INTERVAL milliseconds, to catch differences
+     * that nothing else would show.  A tile whose items are all there, but were
+     * painted in another order than the hub's, passes the check; that happens
+     * when this client's own item overlaps one that another client drew at the
+     * same time, and it is repaired only when the tile is filled in again.
+     */
+    private void requestResync(final DrawClient c) {
+        Rectangle visible = visibleArea();
+        if (visible.isEmpty())
+            return;
+        synchronized (resyncOps) {
+            if (resyncPending)
+                return;
+            resyncPending = true;
+        }
+        renderer.requestDigests(visible, new RenderLoop.DigestListener() {
+            public void digestsReady(Rectangle tiles, long[] digests) {
+                synchronized (resyncOps) {
+                    try {
+                        c.send(new TileDigestMessage(renderer.getWidth(), renderer.getHeight(), tiles, digests));
+                    }
+                    catch (IllegalStateException e) {
+                        resyncPending = false;  // The connection is closed.
+                        return;
+                    }
+                    resyncOps.clear();
+                    resyncSent = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets about a check of the picture, so that another one can be started.
+     */
+    private void cancelResync() {
+        synchronized (resyncOps) {
+            resyncOps.clear();
+            resyncPending = false;
+            resyncSent = false;
+        }
+    }
+
+    /**
+     * Changes the zoom, keeping the point of the drawing that is at a given point
+     * of the display in the same place, as far as possible.
+     */
+    private void zoomTo(int zoom, Point center) {
+        RenderLoop.Frame frame = renderer.acquireFrame();
+        int levels = frame.getLevelCount();
+        renderer.releaseFrame(frame);
+        zoom = Math.max(-(levels - 1), Math.min(MAX_ZOOM, zoom));
+        View v = view;
+        if (zoom == v.zoom)
+            return;
+        Point d = v.toDrawing(center.x, center.y);
+        View scaled = new View(zoom, 0, 0);
+        setView(zoom, scaled.scale(d.x) - center.x, scaled.scale(d.y) - center.y);
+    }
+
+    /**
+     * Sets the zoom and pan of the display.  The drawing is centered in a direction
+     * in which it is smaller than the display, and it can't be moved out of view.
+     * The viewport is reported to the hub when the view has not changed for a while.
+     */
+    private void setView(int zoom, int originX, int originY) {
+        int width = zoom >= 0 ? renderer.getWidth() << zoom : (renderer.getWidth() + (1 << -zoom) - 1) >> -zoom;
+        int height = zoom >= 0 ? renderer.getHeight() << zoom : (renderer.getHeight() + (1 << -zoom) - 1) >> -zoom;
+        if (width <= display.getWidth())
+            originX = -(display.getWidth() - width) / 2;
+        else
+            originX = Math.max(0, Math.min(width - display.getWidth(), originX));
+        if (height <= display.getHeight())
+            originY = -(display.getHeight() - height) / 2;
+        else
+            originY = Math.max(0, Math.min(height - display.getHeight(), originY));
+        View v = view;
+        if (v.zoom == zoom && v.originX == originX && v.originY == originY)
+            return;
+        view = new View(zoom, originX, originY);
+        display.repaint();
+        viewportTimer.restart();
+    }
+
     /**
      * This method is called in response to the "Disconnect" command in the Connection menu.
      * If a connection is open, this should close it down, and client should be reset to null.
@@ -366,10 +948,26 @@ public class NetDraw extends JPanel {
         // TODO: Close down the connection (if there is one).
 
 
+        if(connecting != null){
+            connecting.disconnect();  // Gives up on the connection that is being opened.
+            connecting = null;
+            message.setText("Not Connected");
+        }
         if(client != null){
 
             client.disconnect();
             client = null;
+            if (cursorChannel != null) {
+                cursorChannel.close();
+                cursorChannel = null;
+            }
+            remoteCursors.clear();
+            synchronized (missingStamps) {
+                missingStamps.clear();  // The requests were lost with the connection.
+            }
+            cancelResync();
+            display.repaint();
+            message.setText("Not Connected");
 
 
         }
@@ -381,7 +979,7 @@ public class NetDraw extends JPanel {
 
     /**
      * This method is called when the user places a stamp in the drawing.
-     * It draws the stamp to the image in this panel.  Furthermore, if there
+     * It passes the stamp to the renderer to be drawn.  Furthermore, if there
      * is a connection to a server, then this method also sends a message
      * to the server about the stamp.  NOTE: This method should NOT be
      * called in response to a message from the server, since that would
@@ -390,15 +988,120 @@ public class NetDraw extends JPanel {
      * @param x the x-coordinate where the stamp is to be placed
      * @param y the x-coordinate where the stamp is to be placed
      */
-    synchronized private void drawStamp(int stampNumber, int x, int y) {
-        BufferedImage img = stamps[stampNumber];
-        imageGraphics.drawImage(img, x - img.getWidth()/2, y - img.getHeight()/2, null);
-        display.repaint();
-        // TODO:  send this drawing operation over the network
-        if(client != null){
-            String message = "stamp " + stampNumber + " " + x + " " + y;
-            client.send(message);
+    private void drawStamp(int stampNumber, int x, int y) {
+        sendItem(DrawOp.stamp(stampNumber, x, y).inStroke(newStroke()));
+    }
+
+
+    /**
+     * This method is called when the user places the custom stamp in the drawing.
+     * Like drawStamp(), it draws the stamp and sends it to the server; the hub
+     * asks for the image later if it needs it.
+     */
+    private void drawCustomStamp(int x, int y) {
+        sendItem(DrawOp.stamp(customStamp.asset, customStamp.x2, customStamp.y2, x, y).inStroke(newStroke()));
+    }
+
+
+    /**
+     * This method is called in response to the "Custom Stamp..." command in the
+     * Tool menu.  It reads an image file selected by the user, adds it to the
+     * stamp cache as PNG data, and makes it the current tool.
+     */
+    private void doCustomStamp() {
+        File file = chooseFile("Select Stamp Image", false);
+        if (file == null)
+            return;
+        try {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null)
+                throw new IOException("The file does not contain an image that can be read.");
+            if (image.getWidth() > DrawStyle.MAX_CUSTOM_STAMP_SIZE || image.getHeight() > DrawStyle.MAX_CUSTOM_STAMP_SIZE)
+                throw new IOException("The image can be at most " + DrawStyle.MAX_CUSTOM_STAMP_SIZE 
+                        + " pixels wide and high.");
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            String hash = stampCache.add(png.toByteArray());
+            customStamp = DrawOp.stamp(hash, image.getWidth(), image.getHeight(), 0, 0);
+            tool = CUSTOM_STAMP;
+        }
+        catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Sorry, the image can't be used as a stamp:\n" + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Opens the cache of custom stamp images, in the directory .netdraw/stamps in
+     * the user's home directory, or else in the directory for temporary files.
+     * Returns null if neither can be used.
+     */
+    private static StampCache openStampCache() {
+        File[] dirs = {
+                new File(System.getProperty("user.home"), ".netdraw" + File.separator + "stamps"),
+                new File(System.getProperty("java.io.tmpdir"), "netdraw-stamps")
+        };
+        for (File dir : dirs) {
+            try {
+                return new StampCache(dir, StampCache.DEFAULT_BUDGET);
+            }
+            catch (IOException | SecurityException e) {
+            }
         }
+        return null;
+    }
+
+
+    /**
+     * Called for each custom stamp item from the server, before it is drawn.  If
+     * the image is not registered and not in the cache, the area of the item is
+     * remembered, and the image is asked for, unless it already has been.
+     * Without a cache, only the images that are registered with DrawStyle are used.
+     */
+    private void checkStamp(DrawOp op) {
+        if (stampCache != null ? stampCache.load(op.asset) : DrawStyle.getStamp(op.asset) != null)
+            return;
+        boolean ask;
+        synchronized (missingStamps) {
+            Rectangle area = missingStamps.get(op.asset);
+            ask = area == null;
+            if (ask)
+                missingStamps.put(op.asset, op.getBounds());
+            else
+                area.add(op.getBounds());
+        }
+        DrawClient c = client;
+        if (ask && c != null)
+            c.send(new StampRequest(op.asset));
+    }
+
+
+    /**
+     * Called in the client's thread when the image of a custom stamp has arrived
+     * from the server.  The image is added to the cache, or just registered with
+     * DrawStyle if there is no cache, and the client asks for the items in the
+     * area that was drawn without it, to draw them again.
+     */
+    private void stampArrived(DrawClient c, byte[] png) {
+        String hash;
+        try {
+            if (stampCache != null)
+                hash = stampCache.add(png);
+            else {
+                hash = StampCache.hash(png);
+                DrawStyle.addStamp(hash, StampCache.decode(png));
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Ignoring bad stamp image from server: " + e.getMessage());
+            return;
+        }
+        Rectangle area;
+        synchronized (missingStamps) {
+            area = missingStamps.remove(hash);
+        }
+        if (area != null)
+            c.send(new RegionRequest(new Rectangle[] { area }));
     }
 
 
@@ -416,26 +1119,135 @@ public class NetDraw extends JPanel {
      * @param x2 x-coord of the second endpoint
      * @param y2 x-coord of the second endpoint
      */
-    synchronized private void drawLine(Color lineColor, int strokeIndex, 
+    private void drawLine(Color lineColor, int strokeIndex, 
             int x1, int y1, int x2, int y2) {
-        Rectangle rect = new Rectangle(x1,y1);
-        rect.add(x2,y2);
-        rect.grow(12,12);
-        imageGraphics.setColor(lineColor);
-        imageGraphics.setStroke( strokeList[strokeIndex] );
-        imageGraphics.drawLine(x1, y1, x2, y2);
-        display.repaint(rect);
-        // TODO:  send this drawing operation over the network
+        sendItem(DrawOp.line(lineColor, strokeIndex, x1, y1, x2, y2).inStroke(currentStroke));
+    }
+
+
+    /**
+     * This method is called in response to the "Clear Drawing" command in the
+     * Tool menu.  It fills the image with white and, if there is a connection,
+     * sends a "clear" message so that every other client clears its drawing too.
+     */
+    private void drawClear() {
+        undoStack.clear();  // Nothing from before the clear can be seen again.
+        redoStack.clear();
+        sendItem(DrawOp.clear());
+    }
+
+
+    /**
+     * Starts a new stroke of this user, which can be undone, and returns its number.
+     */
+    private long newStroke() {
+        long stroke = DrawOp.strokeId(client == null ? 0 : myConnectionID, ++strokeCount);
+        undoStack.push(stroke);
+        redoStack.clear();
+        return stroke;
+    }
+
+
+    /**
+     * This method is called in response to the "Undo" command in the Edit menu.
+     * It hides this user's most recent stroke that is not already hidden, here
+     * and, if there is a connection, in every other client's picture.
+     */
+    private void doUndo() {
+        Long stroke = undoStack.poll();
+        if (stroke == null)
+            return;
+        redoStack.push(stroke);
+        sendItem(DrawOp.undo(stroke));
+    }
+
+
+    /**
+     * This method is called in response to the "Redo" command in the Edit menu.
+     * It shows the stroke that was most recently undone again.
+     */
+    private void doRedo() {
+        Long stroke = redoStack.poll();
+        if (stroke == null)
+            return;
+        undoStack.push(stroke);
+        sendItem(DrawOp.redo(stroke));
+    }
+
+
+    /**
+     * Draws an item of this user, and sends it to the server if there is a
+     * connection.  If the tile digests have been sent to the server and not yet
+     * answered, the item is also remembered, since the server's answer does not
+     * include it, but will replace the tiles where it has already been drawn.
+     */
+    private void sendItem(DrawOp op) {
+        renderer.submit(op, true);
         if(client != null){
+            synchronized (resyncOps) {
+                client.send(op.toString());
+                if (resyncSent)
+                    resyncOps.add(op);
+            }
+            opsOut.incrementAndGet();
+        }
+    }
 
-            String message = "line " + lineColor.getRed() + " " +
-                    lineColor.getGreen() + " " + lineColor.getBlue() + " " + strokeIndex +
-                    " " + x1 + " " + y1 + " " + x2 + " " + y2;
-            client.send(message);
 
+    /**
+     * This method is called when the cursor of another client moves, or when
+     * it leaves the drawing, in which case x and y are CursorMessage.HIDDEN.
+     * It can be called in any thread.
+     */
+    private void remoteCursorMoved(int playerID, int x, int y) {
+        Point old;
+        if (x == CursorMessage.HIDDEN)
+            old = remoteCursors.remove(playerID);
+        else {
+            old = remoteCursors.put(playerID, new Point(x,y));
+            Point p = view.toScreen(x, y);
+            display.repaint(p.x - CURSOR_SIZE/2, p.y - CURSOR_SIZE/2, CURSOR_SIZE, CURSOR_SIZE);
+        }
+        if (old != null) {
+            Point p = view.toScreen(old.x, old.y);
+            display.repaint(p.x - CURSOR_SIZE/2, p.y - CURSOR_SIZE/2, CURSOR_SIZE, CURSOR_SIZE);
         }
     }
 
+    /**
+     * This method is called when the server sends the drawing items for a part of
+     * the drawing that has just come into view, or that did not match the server's
+     * drawing.  The regions are cleared and the items are drawn, clipped to the
+     * regions.  In the answer to the tile digests, this user's items that were sent
+     * after the digests are drawn there as well.
+     */
+    private void regionReceived(RegionMessage region) {
+        List<DrawOp> ops = new ArrayList<DrawOp>(region.items.length);
+        for (String item : region.items) {
+            try {
+                ops.addAll(DrawOp.parseAll(item));
+            }
+            catch (IllegalArgumentException e) {
+                System.out.println("Ignoring bad item from server: " + e.getMessage());
+            }
+        }
+        for (DrawOp op : ops) {
+            if (op.asset != null)
+                checkStamp(op);
+        }
+        opsIn.addAndGet(ops.size());
+        if (region.resync) {
+            synchronized (resyncOps) {
+                ops.addAll(resyncOps);
+                resyncOps.clear();
+                resyncPending = false;
+                resyncSent = false;
+            }
+            if (region.regions.length == 0)
+                return;  // Everything matched.
+        }
+        renderer.refill(region.regions, ops);
+    }
 
     /**
      * This method is called when a string is received as a message from
@@ -452,51 +1264,149 @@ public class NetDraw extends JPanel {
      *    to the server.  If this is the same as my ID, the message
      *    should be ignored.
      */
-    synchronized private void netMessageReceived(String stringReceived, int senderID) {
-        // TODO:  react to a message received from the network
-        //synchronized private void drawStamp(int stampNumber, int x, int y) {
-
-        Scanner read = new Scanner(stringReceived);
+    private void netMessageReceived(String stringReceived, int senderID) {
+        if (senderID == myConnectionID)
+            return;
+        List<DrawOp> ops;
+        try {
+            ops = DrawOp.parseAll(stringReceived);  // A message can be a polyline made of several items.
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println("Ignoring bad message from client " + senderID + ": " + e.getMessage());
+            return;
+        }
+        for (DrawOp op : ops) {
+            opsIn.incrementAndGet();
+            if (op.asset != null)
+                checkStamp(op);
+            renderer.submit(op, false);
+        }
+    }
 
-        if(senderID != myConnectionID){
 
+    /**
+     * Saves the history of the drawing to a session file selected by the user.
+     */
+    private void doSaveSession() {
+        File file = chooseFile("Save Session", true);
+        if (file == null)
+            return;
+        DrawingHistory history = renderer.getHistory();
+        try (Writer out = new FileWriter(file)) {
+            history.save(out);
+            message.setText("Saved " + history.size() + " items to " + file.getName());
+        }
+        catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Sorry, the session could not be saved:\n" + e.getMessage());
+        }
+    }
 
-            if(read.next().equals("line")){
 
-                int[] data;
-                data = new int[8];
+    /**
+     * Replaces the drawing with one read from a session file selected by the
+     * user.  The items are rasterized in parallel, which is much faster than
+     * drawing them one at a time for a long session.  This is not allowed
+     * while connected, since the other clients would not see the new drawing.
+     */
+    private void doOpenSession() {
+        if (client != null) {
+            JOptionPane.showMessageDialog(this, "Please disconnect before opening a session.");
+            return;
+        }
+        File file = chooseFile("Open Session", false);
+        if (file == null)
+            return;
+        DrawingHistory loaded;
+        try (Reader in = new FileReader(file)) {
+            loaded = DrawingHistory.load(in);
+        }
+        catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Sorry, the session could not be opened:\n" + e.getMessage());
+            return;
+        }
+        if (stampCache != null) {
+            for (DrawOp op : loaded.toList()) {
+                if (op.asset != null)
+                    stampCache.load(op.asset);  // Custom stamps that are not in the cache are not shown.
+            }
+        }
+        renderer.replace(loaded);
+        message.setText("Opened " + file.getName() + " (" + loaded.size() + " items)");
+    }
 
-                for(int i = 0; i <= 7; i++){
 
-                    data[i] = read.nextInt();
+    /**
+     * Exports the drawing to a PNG file selected by the user.  If earlierStep
+     * is true, the user is asked how many items of the history to include;
+     * otherwise, the current drawing is exported.  The export is done in a 
+     * separate thread, so the user can keep drawing while it runs.
+     */
+    private void doExport(boolean earlierStep) {
+        final DrawingHistory hist = renderer.getHistory();
+        int count = hist.size();
+        if (earlierStep) {
+            String response = JOptionPane.showInputDialog(this, 
+                    "Export the drawing after how many items (0 to " + count + ")?", count);
+            if (response == null)
+                return;
+            try {
+                count = Integer.parseInt(response.trim());
+                if (count < 0 || count > hist.size())
+                    throw new NumberFormatException();
+            }
+            catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Please enter a number between 0 and " + hist.size() + ".");
+                return;
+            }
+        }
+        final File file = chooseFile("Export PNG", true);
+        if (file == null)
+            return;
+        final List<DrawOp> ops = hist.toList(count);
+        message.setText("Exporting " + file.getName() + "...");
+        Thread exporter = new Thread() {
+            public void run() {
+                String result;
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                    new PngExporter().export(ops, hist.getWidth(), hist.getHeight(), out);
+                    result = "Exported " + ops.size() + " items to " + file.getName();
                 }
-
-                Color newColor = new Color(data[0],data[1],data[2]);
-
-                ////Code to draw a line////
-
-                Rectangle rect = new Rectangle(data[4],data[5]);
-                rect.add(data[6],data[7]);
-                rect.grow(12,12);
-                imageGraphics.setColor(newColor);
-                imageGraphics.setStroke( strokeList[data[3]] );
-                imageGraphics.drawLine(data[4], data[5], data[6], data[7]);
-                display.repaint(rect);
-
-
-            } else  {
-
-                BufferedImage img = stamps[read.nextInt()];
-                imageGraphics.drawImage(img, read.nextInt() - img.getWidth()/2, read.nextInt() - img.getHeight()/2, null);
-                display.repaint();
-
-
-                
+                catch (IOException e) {
+                    result = "Export failed: " + e.getMessage();
+                }
+                final String text = result;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        message.setText(text);
+                    }
+                });
+            }
+        };
+        exporter.setDaemon(true);
+        exporter.start();
+    }
 
 
-            }
+    /**
+     * Shows a file dialog and returns the selected file, or null if the user cancels.
+     * When saving, the user is asked to confirm before an existing file is replaced.
+     */
+    private File chooseFile(String title, boolean save) {
+        if (fileDialog == null)
+            fileDialog = new JFileChooser();
+        fileDialog.setDialogTitle(title);
+        int option = save ? fileDialog.showSaveDialog(this) : fileDialog.showOpenDialog(this);
+        if (option != JFileChooser.APPROVE_OPTION)
+            return null;
+        File file = fileDialog.getSelectedFile();
+        if (save && file.exists()) {
+            int response = JOptionPane.showConfirmDialog(this, 
+                    "The file \"" + file.getName() + "\" already exists.\nDo you want to replace it?", 
+                    "Confirm Save", JOptionPane.YES_NO_OPTION);
+            if (response != JOptionPane.YES_OPTION)
+                return null;
         }
-
+        return file;
     }
 
 
@@ -1,23 +1,70 @@
 package netgame.draw;
 
-import netgame.common.Hub;
+import java.io.File;
+import java.io.IOException;
+import netgame.common.TrafficRecorder;
 
 /**
  * When this program is run, it starts a netgame Hub that will
  * listen on port 32001 until this program is shut down.  The
- * Hub is a basic hub that simply forwards any messages that it
- * gets from clients to all connected clients (including the
- * client who sent the message).
+ * Hub is a {@link DrawHub}, which forwards the drawing items
+ * that it gets from clients to the clients that can see them.
+ * If the program is run with the command line option -conflate,
+ * the hub will use a StrokeConflater to merge the drawing items
+ * that are waiting for clients that have fallen behind.  With the
+ * option -relay, the hub is a pure forwarder that passes the drawing
+ * items on without decoding them; every client then gets every item,
+ * and a client that joins late does not get the existing drawing.
+ * A client whose connection drops has 15 seconds to resume it.
+ * With the option -record followed by a file name, everything that
+ * the clients send is recorded in that file, which can be replayed
+ * with netgame.bench.TrafficReplayer.
  */
 public class NetDrawServer {
 
 	public static void main(String[] args) {
 		try {
-			new Hub(32001);
+			DrawHub hub = new DrawHub(32001);
+			hub.setResumeTimeout(15000);
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-conflate"))
+					hub.setConflater(new StrokeConflater());
+				else if (args[i].equals("-relay"))
+					hub.setRelayMode(true);
+				else if (args[i].equals("-record") && i + 1 < args.length)
+					record(hub, args[++i]);
+			}
 		}
 		catch (Exception e) {
 			System.out.println("Unable to start server on port 32001.");
 		}
 	}
 	
+	/**
+	 * Starts recording the traffic from the clients of a hub in a file, and
+	 * arranges for the file to be closed when the program ends.
+	 */
+	private static void record(DrawHub hub, String fileName) {
+		final TrafficRecorder recorder;
+		try {
+			recorder = new TrafficRecorder(new File(fileName));
+		}
+		catch (IOException e) {
+			System.out.println("Unable to record traffic in " + fileName + ": " + e);
+			return;
+		}
+		hub.setTrafficRecorder(recorder);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					recorder.close();
+				}
+				catch (IOException e) {
+					System.out.println("Error while recording traffic: " + e);
+				}
+			}
+		});
+		System.out.println("Recording traffic in " + fileName);
+	}
+	
 }
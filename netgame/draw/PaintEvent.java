@@ -0,0 +1,33 @@
+package netgame.draw;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for one call of the paintComponent() method of
+ * the display of a {@link NetDraw}, which copies part of the current frame to
+ * the screen.
+ */
+@Name("netdraw.DisplayPaint")
+@Label("Display Paint")
+@Category({"NetGame", "NetDraw"})
+@Description("The display of a NetDraw window painted on the event thread")
+@Threshold("5 ms")
+@StackTrace(false)
+final class PaintEvent extends jdk.jfr.Event {
+
+    @Label("Zoom")
+    @Description("The display shows the drawing scaled by 2 to this power")
+    int zoom;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+}
@@ -0,0 +1,56 @@
+package netgame.draw;
+
+/**
+ * An immutable snapshot of the performance numbers of a NetDraw client,
+ * as returned by NetDraw.getPerformanceStats().  The rates are averages
+ * over the interval between the previous snapshot and this one.  Times
+ * are in milliseconds; a round trip time of -1 means that no probe has
+ * returned yet (or that there is no connection).
+ */
+public class PerformanceStats {
+
+    public final double roundTripMillis;    // Most recent round trip time to the hub.
+    public final double smoothedRoundTripMillis;  // Smoothed round trip time to the hub.
+    public final double opsInPerSecond;     // Items received from other clients per second.
+    public final double opsOutPerSecond;    // Items sent to the hub per second.
+    public final int outgoingBacklog;       // Messages waiting in the client's outgoing queue.
+    public final double frameMillis;        // Time to draw and publish the most recent frame.
+    public final double inputLatencyMillis; // 99th percentile delay from local input to a published frame.
+
+    public PerformanceStats(double roundTripMillis, double smoothedRoundTripMillis, 
+            double opsInPerSecond, double opsOutPerSecond, int outgoingBacklog, 
+            double frameMillis, double inputLatencyMillis) {
+        this.roundTripMillis = roundTripMillis;
+        this.smoothedRoundTripMillis = smoothedRoundTripMillis;
+        this.opsInPerSecond = opsInPerSecond;
+        this.opsOutPerSecond = opsOutPerSecond;
+        this.outgoingBacklog = outgoingBacklog;
+        this.frameMillis = frameMillis;
+        this.inputLatencyMillis = inputLatencyMillis;
+    }
+
+    /**
+     * Returns the lines of text shown in the performance overlay of the display.
+     */
+    public String[] toLines() {
+        return new String[] {
+                "RTT:     " + (roundTripMillis < 0 ? "--" : String.format("%.1f ms (avg %.1f)", 
+                        roundTripMillis, smoothedRoundTripMillis)),
+                String.format("Ops in:  %.0f/s", opsInPerSecond),
+                String.format("Ops out: %.0f/s", opsOutPerSecond),
+                "Backlog: " + outgoingBacklog,
+                String.format("Frame:   %.2f ms", frameMillis),
+                String.format("Input:   %.1f ms (p99)", inputLatencyMillis)
+        };
+    }
+
+    /**
+     * Returns a one-line summary, suitable for a status bar.
+     */
+    public String toString() {
+        return (roundTripMillis < 0 ? "RTT --" : String.format("RTT %.1f ms", smoothedRoundTripMillis))
+                + String.format("  |  in %.0f ops/s  |  out %.0f ops/s  |  backlog %d  |  frame %.2f ms",
+                        opsInPerSecond, opsOutPerSecond, outgoingBacklog, frameMillis);
+    }
+
+}
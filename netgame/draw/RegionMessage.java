@@ -0,0 +1,35 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.io.Serializable;
+
+/**
+ * The reply of a {@link DrawHub} to a {@link ViewportMessage} that moves a
+ * client's viewport.  The regions are the newly exposed parts of the viewport,
+ * which the client has not been kept up to date on.  The items are all the
+ * drawing items since the most recent "clear" whose bounds intersect one of the
+ * regions, in the order in which they were drawn.  To bring the regions up to
+ * date, the client fills them with white and then draws the items, clipped to
+ * the regions.
+ *
+ * <p>The same kind of message answers a {@link RegionRequest} and, with resync
+ * set to true, a {@link TileDigestMessage}, whose regions are the tiles that did
+ * not match.
+ */
+public final class RegionMessage implements Serializable {
+
+    public final Rectangle[] regions;
+    public final String[] items;
+    public final boolean resync;  // True if this answers a TileDigestMessage.
+
+    public RegionMessage(Rectangle[] regions, String[] items) {
+        this(regions, items, false);
+    }
+
+    public RegionMessage(Rectangle[] regions, String[] items, boolean resync) {
+        this.regions = regions;
+        this.items = items;
+        this.resync = resync;
+    }
+
+}
@@ -0,0 +1,20 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.io.Serializable;
+
+/**
+ * Asks a {@link DrawHub} to send the items in some regions of the drawing again,
+ * in a {@link RegionMessage}.  A client sends this when the image of a custom
+ * stamp arrives after stamp items that use it have already been drawn, without
+ * the image, so that it can draw those parts of the drawing again.
+ */
+public final class RegionRequest implements Serializable {
+
+    public final Rectangle[] regions;
+
+    public RegionRequest(Rectangle[] regions) {
+        this.regions = regions;
+    }
+
+}
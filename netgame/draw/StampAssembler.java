@@ -0,0 +1,79 @@
+package netgame.draw;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import netgame.draw.raster.StampCache;
+
+/**
+ * Puts the pieces of stamp images back together as they arrive.  The pieces
+ * of one image come over one connection, in order, but the pieces of several
+ * images can be mixed.  A piece with offset zero starts the image over.  A
+ * transfer that can't be completed, because a piece does not fit or because
+ * the complete data does not match its hash, is reported as a failure, so
+ * that the image can be asked for again.  The rest of the pieces of a failed
+ * transfer are ignored, so each failure is reported once.  This class is
+ * used by one thread at a time.
+ */
+final class StampAssembler {
+
+    private final Map<String,byte[]> partial = new HashMap<String,byte[]>();
+    private final Map<String,Integer> received = new HashMap<String,Integer>();
+    private final Set<String> failed = new HashSet<String>();  // Images whose transfer failed.
+
+    /**
+     * Adds a piece.  If it completes an image whose data matches its hash, the
+     * data is returned; if the image is not complete yet, or the piece belongs
+     * to a transfer that has already failed, the return value is null.
+     * @throws IOException if the transfer of the image has failed.  The pieces
+     *    received so far are discarded.
+     */
+    byte[] add(StampChunk chunk) throws IOException {
+        if (chunk.offset == 0)
+            failed.remove(chunk.hash);
+        else if (failed.contains(chunk.hash))
+            return null;
+        if (chunk.totalSize <= 0 || chunk.totalSize > StampCache.MAX_BYTES || chunk.data == null)
+            throw fail(chunk.hash, "Illegal piece of a stamp image.");
+        byte[] data = partial.get(chunk.hash);
+        int count = data == null ? 0 : received.get(chunk.hash);
+        if (data == null || data.length != chunk.totalSize || chunk.offset != count) {
+            discard(chunk.hash);
+            if (chunk.offset != 0)
+                throw fail(chunk.hash, "Piece of a stamp image out of order.");
+            data = new byte[chunk.totalSize];
+            count = 0;
+            partial.put(chunk.hash, data);
+        }
+        if (chunk.data.length > data.length - count)
+            throw fail(chunk.hash, "Stamp image longer than its stated size.");
+        System.arraycopy(chunk.data, 0, data, count, chunk.data.length);
+        count += chunk.data.length;
+        if (count < data.length) {
+            received.put(chunk.hash, count);
+            return null;
+        }
+        discard(chunk.hash);
+        if (!StampCache.hash(data).equals(chunk.hash))
+            throw fail(chunk.hash, "Stamp image does not match its hash.");
+        return data;
+    }
+
+    private IOException fail(String hash, String message) {
+        discard(hash);
+        failed.add(hash);
+        return new IOException(message);
+    }
+
+    /**
+     * Forgets the pieces of an image that have been received so far.
+     */
+    void discard(String hash) {
+        partial.remove(hash);
+        failed.remove(hash);
+        received.remove(hash);
+    }
+
+}
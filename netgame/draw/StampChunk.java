@@ -0,0 +1,49 @@
+package netgame.draw;
+
+import java.util.ArrayList;
+import java.util.List;
+import netgame.common.BackgroundMessage;
+
+/**
+ * One piece of the PNG data of a custom stamp, sent in answer to a
+ * {@link StampRequest}.  The data is sent in pieces of at most CHUNK_SIZE
+ * bytes, in order, as BackgroundMessages, so that an image never holds up
+ * the drawing items that are sent at the same time for more than the time
+ * that it takes to send one piece.
+ */
+public final class StampChunk implements BackgroundMessage {
+
+    /**
+     * The largest number of bytes in one piece.
+     */
+    public static final int CHUNK_SIZE = 16384;
+
+    public final String hash;     // The hash of the complete data.
+    public final int totalSize;   // The size of the complete data.
+    public final int offset;      // The position of this piece in the data.
+    public final byte[] data;
+
+    public StampChunk(String hash, int totalSize, int offset, byte[] data) {
+        this.hash = hash;
+        this.totalSize = totalSize;
+        this.offset = offset;
+        this.data = data;
+    }
+
+    /**
+     * Splits the data of an image into pieces.
+     */
+    public static List<StampChunk> split(String hash, byte[] png) {
+        List<StampChunk> chunks = new ArrayList<StampChunk>();
+        int offset = 0;
+        do {
+            int size = Math.min(CHUNK_SIZE, png.length - offset);
+            byte[] data = new byte[size];
+            System.arraycopy(png, offset, data, 0, size);
+            chunks.add(new StampChunk(hash, png.length, offset, data));
+            offset += size;
+        } while (offset < png.length);
+        return chunks;
+    }
+
+}
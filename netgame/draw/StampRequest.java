@@ -0,0 +1,20 @@
+package netgame.draw;
+
+import java.io.Serializable;
+
+/**
+ * Asks for the image of a custom stamp, given the hash of its PNG data.  A
+ * client sends this to a {@link DrawHub} when it gets a stamp item whose image
+ * is not in its {@link netgame.draw.raster.StampCache}, and the hub sends it
+ * to the client that used a stamp when the hub does not have the image yet.
+ * The answer is the image's data, in {@link StampChunk StampChunks}.
+ */
+public final class StampRequest implements Serializable {
+
+    public final String hash;
+
+    public StampRequest(String hash) {
+        this.hash = hash;
+    }
+
+}
@@ -0,0 +1,19 @@
+package netgame.draw;
+
+import java.io.Serializable;
+
+/**
+ * The answer to a {@link StampRequest} from a client that does not have the
+ * image, for example because it was removed from the client's cache.  The
+ * {@link DrawHub} then forgets that it asked that client, so that it can ask
+ * again the next time that the stamp is used.
+ */
+public final class StampUnavailable implements Serializable {
+
+    public final String hash;
+
+    public StampUnavailable(String hash) {
+        this.hash = hash;
+    }
+
+}
@@ -0,0 +1,149 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import netgame.common.Conflater;
+import netgame.common.ForwardedMessage;
+import netgame.draw.raster.DrawOp;
+
+/**
+ * A Conflater for a NetDraw hub.  It makes the messages that are waiting for a
+ * client that has fallen behind smaller and fewer, without changing the picture
+ * that the client ends up with.  Two things are done:
+ * 
+ * <ul>
+ * <li>Connected line segments from the same sender, with the same color and
+ * stroke, are merged into one "polyline" message.  The client draws the
+ * segments of a polyline in their original order with their original
+ * endpoints, so the pixels are exactly the same.  Only segments of the same
+ * stroke are merged, since a polyline has one stroke number.  A segment can
+ * be merged into an earlier polyline even if other messages came in
+ * between, but only if none of those messages draws anything in the
+ * segment's bounding box, since only then does moving the segment ahead of
+ * them not matter.</li>
+ * <li>When the queue contains a "clear" from another client, all drawing
+ * messages before it are dropped, since they would be erased anyway.  A
+ * "clear" from the recipient itself is not used this way, because the
+ * recipient ignores its own messages and has already cleared its picture
+ * at an earlier time.  For the same reason, the recipient's own items don't
+ * prevent merging.</li>
+ * </ul>
+ * 
+ * Any message that is not a drawing item, or that is an undo or redo, is left
+ * in place, and nothing is moved across it or dropped before it.
+ */
+public class StrokeConflater implements Conflater {
+
+    /**
+     * A polyline that is being built from the segments of one sender.
+     */
+    private static class Run {
+        final int sender;
+        final List<DrawOp> segments = new ArrayList<DrawOp>();
+        final Object original;   // The message with the first segment.
+        final int position;      // The position of this run in the result list.
+        Rectangle blocked;       // Union of the bounds of the items placed after this run.
+        Run(int sender, DrawOp first, Object original, int position) {
+            this.sender = sender;
+            this.original = original;
+            this.position = position;
+            segments.add(first);
+        }
+    }
+
+    public List<Object> conflate(int recipientID, List<Object> messages) {
+        List<Object> result = new ArrayList<Object>(messages.size());  // Messages and Runs.
+        Map<Integer,Run> open = new HashMap<Integer,Run>();  // Runs that can still be extended, by sender.
+        int barrier = 0;  // Nothing is moved or dropped before this position in result.
+        for (Object message : messages) {
+            List<DrawOp> ops = drawingItems(message);
+            if (ops == null) {
+                open.clear();
+                result.add(message);
+                barrier = result.size();
+                continue;
+            }
+            int sender = ((ForwardedMessage)message).senderID;
+            if (ops.size() == 1 && ops.get(0).isUndoOrRedo()) {
+                open.clear();  // It changes the whole stroke, so nothing is moved across it.
+                result.add(message);
+                barrier = result.size();
+                continue;
+            }
+            if (ops.size() == 1 && ops.get(0).type == DrawOp.CLEAR) {
+                if (sender != recipientID) {
+                    for (int i = result.size() - 1; i >= barrier; i--)
+                        result.remove(i);  // Everything since the barrier is a drawing item.
+                }
+                open.clear();
+                result.add(message);
+                continue;
+            }
+            for (DrawOp op : ops) {
+                Rectangle bounds = op.getBounds();
+                Run run = open.get(sender);
+                int position;  // Where op ends up in the result list.
+                Run placedRun;
+                if (run != null && run.segments.get(run.segments.size() - 1).isContinuedBy(op) 
+                        && (run.blocked == null || !run.blocked.intersects(bounds))) {
+                    run.segments.add(op);
+                    placedRun = run;
+                    position = run.position;
+                }
+                else if (op.type == DrawOp.LINE) {
+                    position = result.size();
+                    placedRun = new Run(sender, op, ops.size() == 1 ? message : null, position);
+                    open.put(sender, placedRun);
+                    result.add(placedRun);
+                }
+                else {
+                    position = result.size();
+                    placedRun = null;
+                    open.remove(sender);
+                    result.add(ops.size() == 1 ? message : new ForwardedMessage(sender, op.toString()));
+                }
+                if (sender == recipientID)
+                    continue;  // The recipient ignores its own items, so they never block a merge.
+                for (Run r : open.values()) {
+                    if (r != placedRun && r.position < position) {
+                        if (r.blocked == null)
+                            r.blocked = new Rectangle(bounds);
+                        else
+                            r.blocked.add(bounds);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < result.size(); i++) {
+            if (result.get(i) instanceof Run) {
+                Run run = (Run)result.get(i);
+                if (run.segments.size() == 1 && run.original != null)
+                    result.set(i, run.original);
+                else if (run.segments.size() == 1)
+                    result.set(i, new ForwardedMessage(run.sender, run.segments.get(0).toString()));
+                else
+                    result.set(i, new ForwardedMessage(run.sender, DrawOp.toPolylineString(run.segments)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the drawing items in a message, if it is a ForwardedMessage that
+     * contains a legal item string, or null if not.
+     */
+    private static List<DrawOp> drawingItems(Object message) {
+        if (!(message instanceof ForwardedMessage) || !(((ForwardedMessage)message).message instanceof String))
+            return null;
+        try {
+            return DrawOp.parseAll((String)((ForwardedMessage)message).message);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,27 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.io.Serializable;
+
+/**
+ * Sent by a client to a {@link DrawHub} to check its picture against the hub's
+ * drawing.  It holds the {@link netgame.draw.raster.TileDigests} of the tiles
+ * that the client shows, which take 8 bytes per tile instead of the tile's
+ * pixels.  The hub answers with a {@link RegionMessage}, marked as a resync, that
+ * refills the tiles whose digests differ from its own, or that has no regions
+ * if they all match.
+ */
+public final class TileDigestMessage implements Serializable {
+
+    public final int width, height;  // The size of the client's drawing.
+    public final Rectangle tiles;    // The tiles, in tile coordinates.
+    public final long[] digests;     // The digests of the tiles, row by row.
+
+    public TileDigestMessage(int width, int height, Rectangle tiles, long[] digests) {
+        this.width = width;
+        this.height = height;
+        this.tiles = tiles;
+        this.digests = digests;
+    }
+
+}
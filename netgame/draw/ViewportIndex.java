@@ -0,0 +1,125 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A spatial index of the viewports of the clients of a {@link DrawHub}.  The
+ * plane is divided into square cells of size CELL_SIZE, and each cell holds
+ * the IDs of the clients whose viewports overlap it, so finding the viewports
+ * that intersect a small rectangle, such as the bounds of a line segment, only
+ * looks at the few clients that are near it, no matter how many clients there
+ * are.  The methods are synchronized, so an index can be used by several threads.
+ */
+public final class ViewportIndex {
+
+    public static final int CELL_SIZE = 256;
+
+    private final Map<Integer,Rectangle> viewports = new HashMap<Integer,Rectangle>();
+    private final Map<Long,List<Integer>> cells = new HashMap<Long,List<Integer>>();
+
+    /**
+     * Sets the viewport of a client, replacing any viewport that it had before.
+     * @return the client's previous viewport, or null if it did not have one.
+     */
+    public synchronized Rectangle put(int id, Rectangle viewport) {
+        Rectangle old = remove(id);
+        Rectangle copy = new Rectangle(viewport);
+        viewports.put(id, copy);
+        int c0 = cell(copy.x), c1 = cell(copy.x + copy.width - 1);
+        int r0 = cell(copy.y), r1 = cell(copy.y + copy.height - 1);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                List<Integer> ids = cells.get(key(c,r));
+                if (ids == null) {
+                    ids = new ArrayList<Integer>(2);
+                    cells.put(key(c,r), ids);
+                }
+                ids.add(id);
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Removes the viewport of a client.
+     * @return the viewport that was removed, or null if the client did not have one.
+     */
+    public synchronized Rectangle remove(int id) {
+        Rectangle old = viewports.remove(id);
+        if (old == null)
+            return null;
+        int c0 = cell(old.x), c1 = cell(old.x + old.width - 1);
+        int r0 = cell(old.y), r1 = cell(old.y + old.height - 1);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                List<Integer> ids = cells.get(key(c,r));
+                ids.remove(Integer.valueOf(id));
+                if (ids.isEmpty())
+                    cells.remove(key(c,r));
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Returns a copy of the viewport of a client, or null if it has none.
+     */
+    public synchronized Rectangle get(int id) {
+        Rectangle viewport = viewports.get(id);
+        return viewport == null ? null : new Rectangle(viewport);
+    }
+
+    /**
+     * Returns the number of clients that have a viewport.
+     */
+    public synchronized int size() {
+        return viewports.size();
+    }
+
+    /**
+     * Adds the IDs of all clients whose viewports intersect a rectangle to a collection.
+     * If the rectangle covers more cells than there are viewports, the viewports are
+     * simply checked one by one.
+     */
+    public synchronized void findIntersecting(Rectangle rect, Collection<Integer> result) {
+        int c0 = cell(rect.x), c1 = cell(rect.x + rect.width - 1);
+        int r0 = cell(rect.y), r1 = cell(rect.y + rect.height - 1);
+        if ((long)(c1 - c0 + 1) * (r1 - r0 + 1) > viewports.size()) {
+            for (Map.Entry<Integer,Rectangle> e : viewports.entrySet()) {
+                if (e.getValue().intersects(rect))
+                    result.add(e.getKey());
+            }
+            return;
+        }
+        Set<Integer> found = null;  // Used to avoid duplicates when more than one cell is checked.
+        if (c0 != c1 || r0 != r1)
+            found = new HashSet<Integer>();
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                List<Integer> ids = cells.get(key(c,r));
+                if (ids == null)
+                    continue;
+                for (Integer id : ids) {
+                    if (viewports.get(id).intersects(rect) && (found == null || found.add(id)))
+                        result.add(id);
+                }
+            }
+        }
+    }
+
+    private static int cell(int coord) {
+        return Math.floorDiv(coord, CELL_SIZE);
+    }
+
+    private static long key(int column, int row) {
+        return ((long)column << 32) | (row & 0xFFFFFFFFL);
+    }
+
+}
@@ -0,0 +1,24 @@
+package netgame.draw;
+
+import java.awt.Rectangle;
+import java.io.Serializable;
+
+/**
+ * A message that a NetDraw client sends to a {@link DrawHub} to report the part
+ * of the drawing that it is showing.  After the hub receives this message, it
+ * only sends the client the drawing items that can change something inside the
+ * viewport.  If the client had reported a viewport before, the hub also replies
+ * with a {@link RegionMessage} for the part of the new viewport that was not in
+ * the old one.
+ */
+public final class ViewportMessage implements Serializable {
+
+    public final Rectangle viewport;  // The visible area, in drawing coordinates.
+
+    public ViewportMessage(Rectangle viewport) {
+        if (viewport == null || viewport.isEmpty())
+            throw new IllegalArgumentException("A viewport must not be empty.");
+        this.viewport = new Rectangle(viewport);
+    }
+
+}
@@ -0,0 +1,413 @@
+package netgame.draw.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Represents one item in a NetDraw drawing.  Five types of item are
+ * supported:  lines, stamps, "clear", which erases the entire drawing, and
+ * "undo" and "redo", which hide and show again all the items of a stroke.
+ * A DrawOp is immutable.  Its toString() method returns the string that
+ * is used to transmit the item over the network, and the static parse()
+ * method converts such a string back into a DrawOp.
+ * 
+ * <p>The string for a line consists of the word "line" followed by eight
+ * numbers: the R, G, and B values of the color, the index of the stroke
+ * in the stroke list of {@link DrawStyle}, and the coordinates x1, y1, x2,
+ * and y2 of the endpoints.  The string for a stamp consists of the word
+ * "stamp" followed by the stamp number and the x and y coordinates of the
+ * center of the stamp.  The string for a clear operation is just "clear".
+ * 
+ * <p>A stamp can also show a custom image, identified by the SHA-256 hash of its
+ * PNG data (see {@link StampCache}).  Its string is "stamp" followed by the hash
+ * with an "@" in front of it, the width and height of the image, and the x and
+ * y coordinates of the center.  The size is part of the item so that its bounds
+ * are known before the image is; until the image has been registered with
+ * {@link DrawStyle}, the item draws nothing.
+ * 
+ * <p>Lines and stamps can belong to a stroke, which is everything drawn by
+ * one user with one mouse press, identified by a number that is made from the
+ * ID of the user and a count; see strokeId().  The stroke number is written as
+ * one more number at the end of the string of a line, stamp, or polyline, and
+ * is left out if the item belongs to no stroke.  The strings for undo and redo
+ * are "undo" and "redo" followed by the stroke number.  An undo makes every
+ * item of the stroke, before and after it, invisible until a redo of the same
+ * stroke; see resolveUndo().
+ * 
+ * <p>Several connected line segments with the same color and stroke can also
+ * be sent as a single "polyline" string, which is created by toPolylineString()
+ * and read by parseAll().  It consists of the word "polyline", the R, G, and B
+ * values of the color, the stroke index, the number of segments, n, and then
+ * the coordinates of n+1 points, p0, p1, ..., pn.  It stands for the n line
+ * items from p1 to p0, p2 to p1, ..., pn to p(n-1), in that order.  This is
+ * the order in which NetDraw produces the segments of a freehand curve, so
+ * the polyline is drawn with exactly the same pixels as the separate items.
+ */
+public final class DrawOp {
+
+    public static final int LINE = 0;
+    public static final int STAMP = 1;
+    public static final int CLEAR = 2;
+    public static final int UNDO = 3;
+    public static final int REDO = 4;
+
+    private static final DrawOp CLEAR_OP = new DrawOp(CLEAR, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    public final int type;         // One of the constants LINE, STAMP, CLEAR, UNDO, or REDO.
+    public final int rgb;          // For a line, the RGB color of the line.
+    public final int strokeIndex;  // For a line, the index of its stroke in DrawStyle.
+    public final int stampNumber;  // For a stamp, the index of the stamp image in DrawStyle.
+    public final int x1, y1;       // For a line, the first endpoint; for a stamp, its center.
+    public final int x2, y2;       // For a line, the second endpoint; for a custom stamp, its size.
+    public final String asset;     // For a custom stamp, the hash of its image; otherwise null.
+    public final long stroke;      // The stroke of a line or stamp, or the stroke that is undone or
+                                   //    redone; 0 if a line or stamp is not part of a stroke.
+
+    private DrawOp(int type, int rgb, int strokeIndex, int stampNumber, 
+            int x1, int y1, int x2, int y2, long stroke) {
+        this(type, rgb, strokeIndex, stampNumber, x1, y1, x2, y2, stroke, null);
+    }
+
+    private DrawOp(int type, int rgb, int strokeIndex, int stampNumber, 
+            int x1, int y1, int x2, int y2, long stroke, String asset) {
+        this.type = type;
+        this.rgb = rgb;
+        this.strokeIndex = strokeIndex;
+        this.stampNumber = stampNumber;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+        this.stroke = stroke;
+        this.asset = asset;
+    }
+
+    /**
+     * Creates a line item.
+     * @throws IllegalArgumentException if strokeIndex is not a legal stroke index.
+     */
+    public static DrawOp line(Color color, int strokeIndex, int x1, int y1, int x2, int y2) {
+        DrawStyle.getStrokeWidth(strokeIndex); // Checks the index.
+        return new DrawOp(LINE, color.getRGB() & 0xFFFFFF, strokeIndex, 0, x1, y1, x2, y2, 0);
+    }
+
+    /**
+     * Creates a stamp item, centered at (x,y).
+     * @throws IllegalArgumentException if stampNumber is not a legal stamp number.
+     */
+    public static DrawOp stamp(int stampNumber, int x, int y) {
+        if (stampNumber < 0 || stampNumber >= DrawStyle.STAMP_COUNT)
+            throw new IllegalArgumentException("Illegal stamp number " + stampNumber);
+        return new DrawOp(STAMP, 0, 0, stampNumber, x, y, 0, 0, 0);
+    }
+
+    /**
+     * Creates a stamp item that shows a custom image, centered at (x,y).
+     * @param hash the hash of the image's PNG data.
+     * @throws IllegalArgumentException if the hash or the size is not legal.
+     */
+    public static DrawOp stamp(String hash, int width, int height, int x, int y) {
+        if (!DrawStyle.isStampHash(hash))
+            throw new IllegalArgumentException("Illegal stamp hash " + hash);
+        if (width < 1 || height < 1 || width > DrawStyle.MAX_CUSTOM_STAMP_SIZE 
+                || height > DrawStyle.MAX_CUSTOM_STAMP_SIZE)
+            throw new IllegalArgumentException("Illegal stamp size " + width + "x" + height);
+        return new DrawOp(STAMP, 0, 0, 0, x, y, width, height, 0, hash);
+    }
+
+    /**
+     * Returns the item that clears the drawing.
+     */
+    public static DrawOp clear() {
+        return CLEAR_OP;
+    }
+
+    /**
+     * Creates an item that hides all the items of a stroke.
+     */
+    public static DrawOp undo(long stroke) {
+        return new DrawOp(UNDO, 0, 0, 0, 0, 0, 0, 0, stroke);
+    }
+
+    /**
+     * Creates an item that shows the items of a stroke that was undone.
+     */
+    public static DrawOp redo(long stroke) {
+        return new DrawOp(REDO, 0, 0, 0, 0, 0, 0, 0, stroke);
+    }
+
+    /**
+     * Returns a copy of this line or stamp that belongs to a given stroke.
+     */
+    public DrawOp inStroke(long stroke) {
+        if (type != LINE && type != STAMP)
+            throw new IllegalStateException("Only lines and stamps belong to strokes.");
+        return new DrawOp(type, rgb, strokeIndex, stampNumber, x1, y1, x2, y2, stroke, asset);
+    }
+
+    /**
+     * Returns the number of a stroke, made from the ID of the user who drew
+     * it and a count that the user increases for each stroke.  Strokes that
+     * are drawn before connecting to a hub use 0 as the ID.
+     */
+    public static long strokeId(int userID, int count) {
+        return ((long)userID << 32) | (count & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the ID of the user who drew a stroke.
+     */
+    public static int strokeOwner(long stroke) {
+        return (int)(stroke >>> 32);
+    }
+
+    /**
+     * Tests whether this item is an undo or a redo.
+     */
+    public boolean isUndoOrRedo() {
+        return type == UNDO || type == REDO;
+    }
+
+    /**
+     * Converts a string in the format produced by toString() back into a DrawOp.
+     * @throws IllegalArgumentException if the string is not a legal item description.
+     */
+    public static DrawOp parse(String str) {
+        Scanner read = new Scanner(str);
+        try {
+            String word = read.next();
+            if (word.equals("line")) {
+                int[] data = new int[8];
+                for (int i = 0; i <= 7; i++)
+                    data[i] = read.nextInt();
+                Color color = new Color(data[0],data[1],data[2]);
+                return line(color, data[3], data[4], data[5], data[6], data[7]).withStroke(read);
+            }
+            else if (word.equals("stamp")) {
+                if (read.hasNextInt())
+                    return stamp(read.nextInt(), read.nextInt(), read.nextInt()).withStroke(read);
+                String hash = read.next();
+                if (!hash.startsWith("@"))
+                    throw new IllegalArgumentException("Illegal stamp \"" + str + "\"");
+                return stamp(hash.substring(1), read.nextInt(), read.nextInt(), read.nextInt(), read.nextInt())
+                        .withStroke(read);
+            }
+            else if (word.equals("clear")) {
+                return CLEAR_OP;
+            }
+            else if (word.equals("undo")) {
+                return undo(read.nextLong());
+            }
+            else if (word.equals("redo")) {
+                return redo(read.nextLong());
+            }
+            else
+                throw new IllegalArgumentException("Unknown drawing item \"" + word + "\"");
+        }
+        catch (NoSuchElementException e) {
+            throw new IllegalArgumentException("Incomplete drawing item \"" + str + "\"");
+        }
+    }
+
+    /**
+     * Converts a string into the list of items that it represents.  This is the
+     * same as parse(), except that a "polyline" string, which stands for several
+     * line items, is also accepted.
+     * @throws IllegalArgumentException if the string is not a legal item description.
+     */
+    public static List<DrawOp> parseAll(String str) {
+        if (!str.startsWith("polyline"))
+            return Collections.singletonList(parse(str));
+        Scanner read = new Scanner(str);
+        try {
+            read.next();
+            Color color = new Color(read.nextInt(), read.nextInt(), read.nextInt());
+            int strokeIndex = read.nextInt();
+            int n = read.nextInt();
+            if (n < 1)
+                throw new IllegalArgumentException("A polyline must have at least one segment.");
+            List<DrawOp> segments = new ArrayList<DrawOp>(n);
+            DrawStyle.getStrokeWidth(strokeIndex); // Checks the index.
+            int[] points = new int[2*n + 2];
+            for (int i = 0; i < points.length; i++)
+                points[i] = read.nextInt();
+            long stroke = read.hasNextLong() ? read.nextLong() : 0;
+            for (int i = 1; i <= n; i++) {
+                segments.add(new DrawOp(LINE, color.getRGB() & 0xFFFFFF, strokeIndex, 0, 
+                        points[2*i], points[2*i+1], points[2*i-2], points[2*i-1], stroke));
+            }
+            return segments;
+        }
+        catch (NoSuchElementException e) {
+            throw new IllegalArgumentException("Incomplete polyline \"" + str + "\"");
+        }
+    }
+
+    /**
+     * Tests whether a line item continues a polyline that ends with this line
+     * item, that is, whether both are lines with the same color and stroke,
+     * they belong to the same stroke of the user, and the second endpoint of
+     * next is the first endpoint of this item.
+     */
+    public boolean isContinuedBy(DrawOp next) {
+        return type == LINE && next.type == LINE && rgb == next.rgb && strokeIndex == next.strokeIndex
+                && stroke == next.stroke && next.x2 == x1 && next.y2 == y1;
+    }
+
+    /**
+     * Returns the "polyline" string that represents a list of connected line
+     * segments, in which each segment after the first continues the one before it.
+     * @throws IllegalArgumentException if the list is empty or if the segments
+     *    are not connected.
+     */
+    public static String toPolylineString(List<DrawOp> segments) {
+        if (segments.isEmpty())
+            throw new IllegalArgumentException("A polyline must have at least one segment.");
+        DrawOp first = segments.get(0);
+        StringBuilder str = new StringBuilder();
+        str.append("polyline ").append((first.rgb >> 16) & 0xFF).append(' ').append((first.rgb >> 8) & 0xFF)
+           .append(' ').append(first.rgb & 0xFF).append(' ').append(first.strokeIndex)
+           .append(' ').append(segments.size()).append(' ').append(first.x2).append(' ').append(first.y2);
+        DrawOp prev = null;
+        for (DrawOp seg : segments) {
+            if (prev == null ? seg.type != LINE : !prev.isContinuedBy(seg))
+                throw new IllegalArgumentException("Segments of a polyline must be connected.");
+            str.append(' ').append(seg.x1).append(' ').append(seg.y1);
+            prev = seg;
+        }
+        if (first.stroke != 0)
+            str.append(' ').append(first.stroke);
+        return str.toString();
+    }
+
+    /**
+     * Returns the items in a list that can be seen after all of them have been
+     * drawn, in order, without the undo and redo items:  each item of a stroke
+     * is left out if the last undo or redo of that stroke in the list is an
+     * undo.  If the list contains no undo or redo, the list itself is returned.
+     */
+    public static List<DrawOp> resolveUndo(List<DrawOp> ops) {
+        Map<Long,Boolean> hidden = null;
+        for (DrawOp op : ops) {
+            if (op.isUndoOrRedo()) {
+                if (hidden == null)
+                    hidden = new HashMap<Long,Boolean>();
+                hidden.put(op.stroke, op.type == UNDO);
+            }
+        }
+        if (hidden == null)
+            return ops;
+        List<DrawOp> visible = new ArrayList<DrawOp>(ops.size());
+        for (DrawOp op : ops) {
+            if (!op.isUndoOrRedo() && (op.stroke == 0 || hidden.get(op.stroke) != Boolean.TRUE))
+                visible.add(op);
+        }
+        return visible;
+    }
+
+    /**
+     * Returns the color of a line item.
+     */
+    public Color getColor() {
+        return new Color(rgb);
+    }
+
+    /**
+     * Returns the rectangle that contains all the pixels that can be changed
+     * when this item is drawn, including the width of a line's stroke and a
+     * margin for antialiasing.  For a clear, undo, or redo, the return value
+     * is null, meaning that the item can affect the entire drawing.
+     */
+    public Rectangle getBounds() {
+        if (type == LINE) {
+            Rectangle rect = new Rectangle(x1,y1,0,0);
+            rect.add(x2,y2);
+            int margin = DrawStyle.getStrokeWidth(strokeIndex)/2 + 2;
+            rect.grow(margin,margin);
+            return rect;
+        }
+        else if (type == STAMP) {
+            if (asset != null)
+                return new Rectangle(x1 - x2/2, y1 - y2/2, x2, y2);
+            BufferedImage img = DrawStyle.getStamp(stampNumber);
+            int w = img == null ? 0 : img.getWidth();
+            int h = img == null ? 0 : img.getHeight();
+            return new Rectangle(x1 - w/2, y1 - h/2, w, h);
+        }
+        else
+            return null;
+    }
+
+    /**
+     * Draws this item using a specified graphics context.  The graphics
+     * context should have antialiasing turned on, to get the same picture
+     * as all other renderers.  For a clear operation, the area inside the
+     * clip of the graphics context is filled with white; if there is no clip,
+     * the entire drawing surface of the graphics context is filled.  Undo and
+     * redo items draw nothing by themselves; see {@link RenderLoop}.
+     */
+    public void paint(Graphics2D g) {
+        if (type == LINE) {
+            g.setColor(new Color(rgb));
+            g.setStroke(DrawStyle.getStroke(strokeIndex));
+            g.drawLine(x1, y1, x2, y2);
+        }
+        else if (type == STAMP) {
+            if (asset != null) {
+                BufferedImage img = DrawStyle.getStamp(asset);
+                if (img != null)
+                    g.drawImage(img, x1 - x2/2, y1 - y2/2, x2, y2, null);
+                return;
+            }
+            BufferedImage img = DrawStyle.getStamp(stampNumber);
+            if (img != null)
+                g.drawImage(img, x1 - img.getWidth()/2, y1 - img.getHeight()/2, null);
+        }
+        else if (type == CLEAR) {
+            Rectangle area = g.getClipBounds();
+            if (area == null)
+                area = g.getDeviceConfiguration().getBounds();
+            g.setColor(Color.WHITE);
+            g.fill(area);
+        }
+    }
+
+    /**
+     * Returns the string that represents this item for transmission over the network.
+     */
+    public String toString() {
+        String suffix = stroke == 0 ? "" : " " + stroke;
+        if (type == LINE) {
+            return "line " + ((rgb >> 16) & 0xFF) + " " + ((rgb >> 8) & 0xFF) + " " + (rgb & 0xFF) 
+                    + " " + strokeIndex + " " + x1 + " " + y1 + " " + x2 + " " + y2 + suffix;
+        }
+        else if (type == STAMP && asset != null)
+            return "stamp @" + asset + " " + x2 + " " + y2 + " " + x1 + " " + y1 + suffix;
+        else if (type == STAMP)
+            return "stamp " + stampNumber + " " + x1 + " " + y1 + suffix;
+        else if (type == UNDO)
+            return "undo " + stroke;
+        else if (type == REDO)
+            return "redo " + stroke;
+        else
+            return "clear";
+    }
+
+    /**
+     * Returns this item, or a copy of it in a stroke if the scanner's next
+     * token is a stroke number.  Used by parse().
+     */
+    private DrawOp withStroke(Scanner read) {
+        return read.hasNextLong() ? inStroke(read.nextLong()) : this;
+    }
+
+}
@@ -0,0 +1,175 @@
+package netgame.draw.raster;
+
+import java.awt.BasicStroke;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Holds the drawing resources that are shared by everything that renders
+ * NetDraw items:  the strokes that can be selected in the "Line Width" menu
+ * and the stamp images that can be selected in the "Tool" menu.  A line
+ * item refers to its stroke, and a stamp item refers to its image, by an
+ * index into these lists, so all renderers must agree on them.  Nothing in
+ * this class depends on Swing, so it can be used in a headless program.
+ *
+ * <p>Custom stamps, which users add to a drawing themselves, are identified by
+ * the SHA-256 hash of their PNG data instead of an index.  Their images are
+ * registered here, usually by a {@link StampCache}, as they become available;
+ * until then, a stamp item that uses one draws nothing.  At most
+ * MAX_CUSTOM_STAMPS images are kept in memory; when there are more, the
+ * least recently used ones are forgotten, and are read again from the
+ * StampCache given to setStampCache() the next time they are needed.
+ */
+public final class DrawStyle {
+
+    /**
+     * The number of built-in stamp images.
+     */
+    public static final int STAMP_COUNT = 12;
+
+    /**
+     * The largest width and height of a custom stamp image.
+     */
+    public static final int MAX_CUSTOM_STAMP_SIZE = 256;
+
+    /**
+     * The largest number of custom stamp images that are kept in memory.
+     * Each one takes up to 256 KB.
+     */
+    public static final int MAX_CUSTOM_STAMPS = 128;
+
+    private static final int[] strokeWidths = { 1, 2, 3, 4, 5, 7, 10, 15, 20 };
+    private static final BasicStroke[] strokeList;  // Strokes with the widths in strokeWidths.
+    private static BufferedImage[] stamps;          // Stamp images, loaded when first needed.
+    private static final Map<String,BufferedImage> customStamps =   // Least recently used first.
+            new LinkedHashMap<String,BufferedImage>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String,BufferedImage> eldest) {
+                    return size() > MAX_CUSTOM_STAMPS;
+                }
+            };
+    private static volatile StampCache stampCache;  // Where forgotten images are read again; can be null.
+
+    static {
+        strokeList = new BasicStroke[strokeWidths.length];
+        for (int i = 0; i < strokeList.length; i++) {
+            strokeList[i] = new BasicStroke(strokeWidths[i],BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
+        }
+    }
+
+    private DrawStyle() {
+    }
+
+    /**
+     * Returns the number of strokes that can be used for drawing lines.
+     */
+    public static int getStrokeCount() {
+        return strokeList.length;
+    }
+
+    /**
+     * Returns the stroke with a given index in the list of strokes.
+     * @throws IllegalArgumentException if the index is not a legal stroke index.
+     */
+    public static BasicStroke getStroke(int strokeIndex) {
+        checkStrokeIndex(strokeIndex);
+        return strokeList[strokeIndex];
+    }
+
+    /**
+     * Returns the line width of the stroke with a given index.
+     * @throws IllegalArgumentException if the index is not a legal stroke index.
+     */
+    public static int getStrokeWidth(int strokeIndex) {
+        checkStrokeIndex(strokeIndex);
+        return strokeWidths[strokeIndex];
+    }
+
+    /**
+     * Returns the stamp image with a given index.  The images are read from
+     * the resources netgame/draw/stamps/icon0.png through icon11.png the first
+     * time this method is called.  If an image can't be read, the value
+     * returned for that index is null.
+     * @throws IllegalArgumentException if the index is not a legal stamp number.
+     */
+    public static synchronized BufferedImage getStamp(int stampNumber) {
+        if (stampNumber < 0 || stampNumber >= STAMP_COUNT)
+            throw new IllegalArgumentException("Illegal stamp number " + stampNumber);
+        if (stamps == null) {
+            stamps = new BufferedImage[STAMP_COUNT];
+            for (int i = 0; i < STAMP_COUNT; i++) {
+                try {
+                    String resname = "netgame/draw/stamps/icon" + i + ".png";
+                    URL resloc = DrawStyle.class.getClassLoader().getResource(resname);
+                    stamps[i] = ImageIO.read(resloc);
+                }
+                catch (Exception e) {
+                }
+            }
+        }
+        return stamps[stampNumber];
+    }
+
+    /**
+     * Returns the image of a custom stamp, given the hash of its data, or null
+     * if it has not been registered.  An image that was registered but has been
+     * forgotten is read again from the stamp cache, if there is one.
+     */
+    public static BufferedImage getStamp(String hash) {
+        BufferedImage image = findStamp(hash);
+        StampCache cache = stampCache;
+        if (image == null && cache != null && cache.load(hash))
+            image = findStamp(hash);
+        return image;
+    }
+
+    /**
+     * Registers the image of a custom stamp.  The caller must make sure that the
+     * hash is really the hash of the image's data; see StampCache.
+     */
+    public static void addStamp(String hash, BufferedImage image) {
+        synchronized (customStamps) {
+            customStamps.put(hash, image);
+        }
+    }
+
+    /**
+     * Sets the cache from which getStamp() reads custom stamp images that are
+     * not in memory, or null for none.
+     */
+    public static void setStampCache(StampCache cache) {
+        stampCache = cache;
+    }
+
+    /**
+     * Returns the image of a custom stamp if it is in memory, without reading it from the cache.
+     */
+    static BufferedImage findStamp(String hash) {
+        synchronized (customStamps) {
+            return customStamps.get(hash);
+        }
+    }
+
+    /**
+     * Tests whether a string has the form of the hash of a custom stamp:
+     * 64 lower-case hexadecimal digits.
+     */
+    public static boolean isStampHash(String hash) {
+        if (hash.length() != 64)
+            return false;
+        for (int i = 0; i < hash.length(); i++) {
+            char ch = hash.charAt(i);
+            if ((ch < '0' || ch > '9') && (ch < 'a' || ch > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private static void checkStrokeIndex(int strokeIndex) {
+        if (strokeIndex < 0 || strokeIndex >= strokeList.length)
+            throw new IllegalArgumentException("Illegal stroke index " + strokeIndex);
+    }
+
+}
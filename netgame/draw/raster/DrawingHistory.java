@@ -0,0 +1,143 @@
+package netgame.draw.raster;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DrawingHistory is the list of all the items that have been drawn in a
+ * drawing, in the order in which they were drawn, together with the size
+ * of the drawing.  Replaying the first n items of the history onto a white
+ * canvas reproduces the state of the drawing after n steps, once the undo
+ * and redo items among them are resolved with DrawOp.resolveUndo().  The methods
+ * in this class are synchronized, so items can be added by one thread
+ * while another thread copies or saves the history.
+ * 
+ * <p>A history can be saved to and loaded from a session file.  A session
+ * file is a text file.  The first line is "NetDraw session" followed by
+ * the width and height of the drawing.  Each following line is one item,
+ * in the format used by DrawOp.toString().
+ */
+public class DrawingHistory {
+
+    private static final String HEADER = "NetDraw session";
+
+    private final int width, height;  // Size of the drawing.
+    private final ArrayList<DrawOp> ops = new ArrayList<DrawOp>();
+
+    /**
+     * Creates an empty history for a drawing of a given size.
+     */
+    public DrawingHistory(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Drawing must have positive width and height.");
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Adds an item to the end of the history.
+     */
+    synchronized public void add(DrawOp op) {
+        ops.add(op);
+    }
+
+    /**
+     * Returns the number of items in the history.
+     */
+    synchronized public int size() {
+        return ops.size();
+    }
+
+    /**
+     * Returns the item at a given position in the history.
+     */
+    synchronized public DrawOp get(int index) {
+        return ops.get(index);
+    }
+
+    /**
+     * Removes all items from the history.
+     */
+    synchronized public void clear() {
+        ops.clear();
+    }
+
+    /**
+     * Returns a new list containing the first count items of the history.
+     * The list is a copy, so it is not affected by later changes to the history.
+     */
+    synchronized public List<DrawOp> toList(int count) {
+        if (count < 0 || count > ops.size())
+            throw new IllegalArgumentException("Illegal item count " + count);
+        return new ArrayList<DrawOp>(ops.subList(0, count));
+    }
+
+    /**
+     * Returns a new list containing all the items in the history.
+     */
+    synchronized public List<DrawOp> toList() {
+        return toList(ops.size());
+    }
+
+    /**
+     * Writes the history in session file format.  The writer is flushed but not closed.
+     */
+    public void save(Writer out) throws IOException {
+        List<DrawOp> items = toList();
+        PrintWriter pw = new PrintWriter(out);
+        pw.println(HEADER + " " + width + " " + height);
+        for (DrawOp op : items)
+            pw.println(op);
+        pw.flush();
+        if (pw.checkError())
+            throw new IOException("Error while writing session file.");
+    }
+
+    /**
+     * Reads a history from a source in session file format.  The reader is not closed.
+     * @throws IOException if an error occurs while reading, or if the data
+     *    is not in the correct format.
+     */
+    public static DrawingHistory load(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        String header = reader.readLine();
+        if (header == null || !header.startsWith(HEADER + " "))
+            throw new IOException("This is not a NetDraw session file.");
+        DrawingHistory history;
+        try {
+            String[] size = header.substring(HEADER.length()).trim().split(" +");
+            history = new DrawingHistory(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        }
+        catch (Exception e) {
+            throw new IOException("Illegal drawing size in session file.");
+        }
+        int lineNumber = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0)
+                continue;
+            try {
+                history.ops.add(DrawOp.parse(line));
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Error on line " + lineNumber + " of session file: " + e.getMessage());
+            }
+        }
+        return history;
+    }
+
+}
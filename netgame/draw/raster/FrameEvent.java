@@ -0,0 +1,43 @@
+package netgame.draw.raster;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for a frame that the render thread of a
+ * {@link RenderLoop} drew and published, with the longest delays from
+ * submitting an item to publishing it.  For a remote item, which is submitted
+ * as soon as it is received, that is the delay from receiving the item to
+ * showing it.  By default, only frames that took the whole frame budget are
+ * recorded, which happens when items are piling up in the queues.
+ */
+@Name("netdraw.FrameRendered")
+@Label("Frame Rendered")
+@Category({"NetGame", "NetDraw"})
+@Description("A batch of items drawn and published by a RenderLoop")
+@Threshold("8 ms")
+@StackTrace(false)
+final class FrameEvent extends jdk.jfr.Event {
+
+    @Label("Local Items")
+    int localItems;
+
+    @Label("Remote Items")
+    int remoteItems;
+
+    @Label("Longest Local Latency")
+    @Description("The longest delay from submitting a local item to publishing it")
+    @Timespan(Timespan.NANOSECONDS)
+    long maxLocalLatency;
+
+    @Label("Longest Remote Latency")
+    @Description("The longest delay from receiving a remote item to publishing it")
+    @Timespan(Timespan.NANOSECONDS)
+    long maxRemoteLatency;
+
+}
@@ -0,0 +1,86 @@
+package netgame.draw.raster;
+
+import java.util.Arrays;
+
+/**
+ * Collects a set of time measurements, such as the time between a user
+ * action and the moment the result appears in a frame, and reports their
+ * count, mean, maximum, and approximate percentiles.  The measurements are
+ * sorted into buckets whose sizes increase by a factor of two, starting at
+ * one microsecond, so a percentile is accurate to within a factor of two.
+ * The methods are synchronized, so measurements can be recorded by one
+ * thread and read by another.
+ */
+public class LatencyRecorder {
+
+    private final long[] buckets = new long[40];  // buckets[i] counts times less than 2^i microseconds.
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    /**
+     * Adds one measurement, given in nanoseconds.
+     */
+    synchronized public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        count++;
+        totalNanos += nanos;
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        buckets[Math.min(bucket, buckets.length - 1)]++;
+    }
+
+    synchronized public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the mean of the measurements in nanoseconds, or 0 if there are none.
+     */
+    synchronized public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    synchronized public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of the measurements,
+     * in nanoseconds.  For example, getPercentileNanos(99) is a time that is
+     * greater than 99% of the measurements.
+     */
+    synchronized public long getPercentileNanos(double percentile) {
+        if (count == 0)
+            return 0;
+        long needed = (long)Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= needed)
+                return Math.min(maxNanos, (1L << i) * 1000);
+        }
+        return maxNanos;
+    }
+
+    /**
+     * Discards all measurements.
+     */
+    synchronized public void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    /**
+     * Returns a short summary of the measurements, in milliseconds.
+     */
+    synchronized public String toString() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", count,
+                getMeanNanos()/1e6, getPercentileNanos(50)/1e6, getPercentileNanos(99)/1e6, maxNanos/1e6);
+    }
+
+}
@@ -0,0 +1,162 @@
+package netgame.draw.raster;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A MipmapPyramid holds smaller copies of a picture, for showing the picture
+ * zoomed out.  Level 0 is the picture itself, which is kept by the caller.
+ * Each pixel of level k, for k &gt;= 1, is the average of a square of four
+ * pixels of level k-1, so level k is 2<sup>k</sup> times smaller than the
+ * picture in each direction.  Levels are added until a level fits in one tile.
+ * Showing the picture at a scale of 1/2<sup>k</sup> is then just copying level k,
+ * which costs as much as the pixels on the screen, and it looks better than
+ * scaling the full picture down, since every pixel of the picture counts.
+ *
+ * <p>The pyramid is kept up to date incrementally.  Each level is divided into
+ * tiles of size TILE_SIZE.  When part of the picture changes, markDirty() marks
+ * the tiles of level 0 that it touches, and update() recomputes only the
+ * ancestors of those tiles:  the tile of level 1 that contains each of them,
+ * the tile of level 2 that contains those, and so on.  So a stroke costs about
+ * a third of its own area more, however big the picture is.
+ *
+ * <p>This class is not thread-safe; a RenderLoop uses it only in its render thread.
+ */
+public class MipmapPyramid {
+
+    /**
+     * The width and height of a tile, in the pixels of its level.
+     */
+    public static final int TILE_SIZE = 64;
+
+    private final int[] widths, heights;      // Size of each level, including level 0.
+    private final int[] tilesAcross;
+    private final int[][] pixels;             // Pixels of each level; pixels[0] is not used.
+    private final boolean[][] dirty;          // Tiles of each level whose parents are out of date.
+
+    /**
+     * Creates a pyramid for a white picture of a given size.
+     */
+    public MipmapPyramid(int width, int height) {
+        int count = 1;
+        for (int w = width, h = height; w > TILE_SIZE || h > TILE_SIZE; w = (w + 1) / 2, h = (h + 1) / 2)
+            count++;
+        widths = new int[count];
+        heights = new int[count];
+        tilesAcross = new int[count];
+        pixels = new int[count][];
+        dirty = new boolean[count][];
+        for (int k = 0; k < count; k++) {
+            widths[k] = k == 0 ? width : (widths[k-1] + 1) / 2;
+            heights[k] = k == 0 ? height : (heights[k-1] + 1) / 2;
+            tilesAcross[k] = (widths[k] + TILE_SIZE - 1) / TILE_SIZE;
+            dirty[k] = new boolean[tilesAcross[k]*((heights[k] + TILE_SIZE - 1) / TILE_SIZE)];
+            if (k > 0) {
+                pixels[k] = new int[widths[k]*heights[k]];
+                Arrays.fill(pixels[k], 0xFFFFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of levels, counting level 0.
+     */
+    public int getLevelCount() {
+        return widths.length;
+    }
+
+    public int getLevelWidth(int level) {
+        return widths[level];
+    }
+
+    public int getLevelHeight(int level) {
+        return heights[level];
+    }
+
+    /**
+     * Returns the pixels of a level, for k &gt;= 1, in row-major order.
+     */
+    int[] getPixels(int level) {
+        return pixels[level];
+    }
+
+    /**
+     * Returns the part of a level that covers a rectangle of the picture,
+     * rounded out to whole pixels of the level.
+     */
+    public static Rectangle toLevel(Rectangle r, int level) {
+        int x1 = r.x >> level, y1 = r.y >> level;
+        int x2 = (r.x + r.width + (1 << level) - 1) >> level;
+        int y2 = (r.y + r.height + (1 << level) - 1) >> level;
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    /**
+     * Records that a rectangle of the picture has changed.
+     */
+    public void markDirty(Rectangle r) {
+        Rectangle clip = r.intersection(new Rectangle(0, 0, widths[0], heights[0]));
+        if (clip.isEmpty())
+            return;
+        for (int row = clip.y / TILE_SIZE; row <= (clip.y + clip.height - 1) / TILE_SIZE; row++) {
+            for (int col = clip.x / TILE_SIZE; col <= (clip.x + clip.width - 1) / TILE_SIZE; col++)
+                dirty[0][row*tilesAcross[0] + col] = true;
+        }
+    }
+
+    /**
+     * Recomputes the tiles of every level that have a dirty descendant.
+     * @param picture the pixels of the picture, in row-major order.
+     */
+    public void update(int[] picture) {
+        for (int k = 1; k < widths.length; k++) {
+            int[] src = k == 1 ? picture : pixels[k-1];
+            boolean any = false;
+            boolean[] below = dirty[k-1];
+            for (int t = 0; t < below.length; t++) {
+                if (below[t]) {
+                    below[t] = false;
+                    int parent = (t / tilesAcross[k-1] / 2)*tilesAcross[k] + (t % tilesAcross[k-1]) / 2;
+                    dirty[k][parent] = true;
+                    any = true;
+                }
+            }
+            if (!any)
+                return;
+            for (int t = 0; t < dirty[k].length; t++) {
+                if (dirty[k][t])
+                    downsample(k, t, src);
+            }
+        }
+        Arrays.fill(dirty[widths.length - 1], false);
+    }
+
+    /**
+     * Computes one tile of level k from level k-1.  At the right and bottom
+     * edges of an odd-sized level, the last column or row is used twice.
+     */
+    private void downsample(int k, int tile, int[] src) {
+        int srcWidth = widths[k-1], srcHeight = heights[k-1];
+        int width = widths[k];
+        int x0 = (tile % tilesAcross[k])*TILE_SIZE, y0 = (tile / tilesAcross[k])*TILE_SIZE;
+        int x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, heights[k]);
+        int[] dst = pixels[k];
+        for (int y = y0; y < y1; y++) {
+            int row0 = 2*y*srcWidth;
+            int row1 = Math.min(2*y + 1, srcHeight - 1)*srcWidth;
+            for (int x = x0; x < x1; x++) {
+                int c0 = 2*x, c1 = Math.min(2*x + 1, srcWidth - 1);
+                dst[y*width + x] = average(src[row0 + c0], src[row0 + c1], src[row1 + c0], src[row1 + c1]);
+            }
+        }
+    }
+
+    private static int average(int p, int q, int r, int s) {
+        int a = ((p >>> 24) + (q >>> 24) + (r >>> 24) + (s >>> 24) + 2) >> 2;
+        int red = (((p >> 16) & 0xFF) + ((q >> 16) & 0xFF) + ((r >> 16) & 0xFF) + ((s >> 16) & 0xFF) + 2) >> 2;
+        int green = (((p >> 8) & 0xFF) + ((q >> 8) & 0xFF) + ((r >> 8) & 0xFF) + ((s >> 8) & 0xFF) + 2) >> 2;
+        int blue = ((p & 0xFF) + (q & 0xFF) + (r & 0xFF) + (s & 0xFF) + 2) >> 2;
+        return (a << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+}
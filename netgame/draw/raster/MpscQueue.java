@@ -0,0 +1,57 @@
+package netgame.draw.raster;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free, unbounded queue for many producer threads and a single
+ * consumer thread.  A producer adds its node to the queue with one atomic
+ * swap of the head pointer and then links the previous node to it, so
+ * producers never block each other or the consumer.  Only the consumer
+ * thread may call poll().  Just after a producer's swap, the new item
+ * can be briefly invisible to poll(); a consumer that sleeps when the 
+ * queue is empty must therefore be woken by the producer after offer()
+ * returns, as the {@link RenderLoop} does.
+ */
+final class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<E>> head;  // The most recently added node.
+    private Node<E> tail;                         // The node before the next item; used only by the consumer.
+
+    MpscQueue() {
+        Node<E> stub = new Node<E>(null);
+        head = new AtomicReference<Node<E>>(stub);
+        tail = stub;
+    }
+
+    /**
+     * Adds an item to the queue.  Can be called by any thread.
+     */
+    void offer(E value) {
+        Node<E> node = new Node<E>(value);
+        Node<E> prev = head.getAndSet(node);
+        prev.next = node;
+    }
+
+    /**
+     * Removes and returns the oldest item, or returns null if no item is
+     * available.  Must only be called by the consumer thread.
+     */
+    E poll() {
+        Node<E> next = tail.next;
+        if (next == null)
+            return null;
+        E value = next.value;
+        next.value = null;
+        tail = next;
+        return value;
+    }
+
+}
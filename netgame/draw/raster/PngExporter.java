@@ -0,0 +1,150 @@
+package netgame.draw.raster;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Exports a drawing to a PNG image file, starting from the list of items in
+ * its history.  The image is rasterized in horizontal bands, TILE_SIZE rows
+ * high, and the rows of each band are passed to a {@link PngWriter} as soon
+ * as the band is done.  Only one band is ever in memory, so the amount of
+ * memory that is used depends on the width of the drawing but not on its
+ * height.  Each band is drawn by a {@link Rasterizer}, so the work is spread
+ * over all available processors.
+ * 
+ * <p>This class can also be run as a command-line program, which exports
+ * a session file that was saved by NetDraw.  See the main() routine.
+ */
+public class PngExporter {
+
+    private final Rasterizer rasterizer;
+
+    /**
+     * Creates an exporter that uses a Rasterizer running in the common ForkJoinPool.
+     */
+    public PngExporter() {
+        this(new Rasterizer());
+    }
+
+    public PngExporter(Rasterizer rasterizer) {
+        this.rasterizer = rasterizer;
+    }
+
+    /**
+     * Draws a list of items onto a white image of the given size and writes
+     * the image to an output stream in PNG format.  The stream is flushed
+     * but not closed.
+     */
+    public void export(List<DrawOp> ops, int width, int height, OutputStream out) throws IOException {
+        ops = DrawOp.resolveUndo(ops);  // Strokes that are undone are left out.
+        int bandHeight = TiledCanvas.TILE_SIZE;
+        int bandCount = (height + bandHeight - 1) / bandHeight;
+        int[][] bands = new int[bandCount][];   // For each band, the indices of the items that it contains.
+        int[] bandSizes = new int[bandCount];
+        for (int i = 0; i < ops.size(); i++) {
+            DrawOp op = ops.get(i);
+            int first, last;
+            if (op.type == DrawOp.CLEAR) {
+                Arrays.fill(bandSizes, 0);  // Nothing drawn before a clear can be seen.
+                first = 0;
+                last = bandCount - 1;
+            }
+            else {
+                Rectangle r = op.getBounds().intersection(new Rectangle(0,0,width,height));
+                if (r.isEmpty())
+                    continue;
+                first = r.y / bandHeight;
+                last = (r.y + r.height - 1) / bandHeight;
+            }
+            for (int b = first; b <= last; b++) {
+                if (bands[b] == null)
+                    bands[b] = new int[16];
+                else if (bandSizes[b] == bands[b].length)
+                    bands[b] = Arrays.copyOf(bands[b], 2*bandSizes[b]);
+                bands[b][bandSizes[b]++] = i;
+            }
+        }
+        PngWriter png = new PngWriter(out, width, height);
+        int[] rgb = new int[width*bandHeight];
+        for (int b = 0; b < bandCount; b++) {
+            int top = b*bandHeight;
+            int rows = Math.min(bandHeight, height - top);
+            TiledCanvas band = new TiledCanvas(new Rectangle(0, top, width, rows));
+            List<DrawOp> bandOps = new ArrayList<DrawOp>(bandSizes[b]);
+            for (int i = 0; i < bandSizes[b]; i++)
+                bandOps.add(ops.get(bands[b][i]));
+            bands[b] = null;
+            rasterizer.render(band, bandOps);
+            band.getRGB(0, top, width, rows, rgb, 0, width);
+            for (int row = 0; row < rows; row++)
+                png.writeRow(rgb, row*width);
+        }
+        png.finish();
+    }
+
+    /**
+     * Exports a saved NetDraw session to a PNG file.  The command-line
+     * arguments are the name of the session file, the name of the PNG file,
+     * and optionally the number of items from the session to include.  If
+     * the number is omitted, the entire session is exported.  A different
+     * size for the image can be given with the options -width and -height.
+     */
+    public static void main(String[] args) {
+        String sessionFile = null, pngFile = null;
+        int count = -1, width = -1, height = -1;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-width"))
+                    width = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-height"))
+                    height = Integer.parseInt(args[++i]);
+                else if (sessionFile == null)
+                    sessionFile = args[i];
+                else if (pngFile == null)
+                    pngFile = args[i];
+                else if (count == -1)
+                    count = Integer.parseInt(args[i]);
+                else
+                    throw new IllegalArgumentException();
+            }
+            if (pngFile == null)
+                throw new IllegalArgumentException();
+        }
+        catch (RuntimeException e) {
+            System.out.println("Usage:  java netgame.draw.raster.PngExporter [-width w] [-height h] "
+                    + "<session-file> <png-file> [item-count]");
+            System.exit(1);
+        }
+        try {
+            DrawingHistory history;
+            try (Reader in = new FileReader(sessionFile)) {
+                history = DrawingHistory.load(in);
+            }
+            if (count == -1 || count > history.size())
+                count = history.size();
+            if (width == -1)
+                width = history.getWidth();
+            if (height == -1)
+                height = history.getHeight();
+            long start = System.currentTimeMillis();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(pngFile))) {
+                new PngExporter().export(history.toList(count), width, height, out);
+            }
+            System.out.println("Exported " + count + " items to " + pngFile + " (" + width + "x" + height 
+                    + ") in " + (System.currentTimeMillis() - start) + " milliseconds.");
+        }
+        catch (IOException e) {
+            System.out.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
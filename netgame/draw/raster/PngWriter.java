@@ -0,0 +1,141 @@
+package netgame.draw.raster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A PngWriter writes an opaque RGB image in PNG format, one row at a time.
+ * Unlike ImageIO, it never needs the whole image in memory:  each row is
+ * filtered and compressed as soon as it is written, and the compressed
+ * data is sent to the output stream in IDAT chunks of limited size.  The
+ * rows must be written from top to bottom, and finish() must be called
+ * after the last row.
+ */
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+    private static final int CHUNK_SIZE = 64*1024;  // Maximum size of an IDAT chunk.
+
+    private final DataOutputStream out;
+    private final int width, height;
+    private final ChunkStream chunks;               // Collects compressed data into IDAT chunks.
+    private final DeflaterOutputStream compressor;  // Compresses rows and sends them to chunks.
+    private final Deflater deflater;
+    private byte[] row;        // The filtered bytes for the current row, including the filter type.
+    private int rowsWritten;
+
+    /**
+     * Creates a PngWriter and writes the PNG header for an image of the
+     * given size.  The output stream is not closed by this class.
+     */
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image must have positive width and height.");
+        if ((long)width*3 + 1 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Image is too wide.");
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(ihdr);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8);  // bit depth
+        data.writeByte(2);  // color type RGB
+        data.writeByte(0);  // compression method
+        data.writeByte(0);  // filter method
+        data.writeByte(0);  // no interlace
+        writeChunk("IHDR", ihdr.toByteArray(), ihdr.size());
+        row = new byte[1 + 3*width];
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        chunks = new ChunkStream();
+        compressor = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the next row of the image.  The colors are taken from the array,
+     * starting at the given offset, in the format used by BufferedImage.getRGB();
+     * the alpha component is ignored.
+     */
+    public void writeRow(int[] rgb, int offset) throws IOException {
+        if (rowsWritten == height)
+            throw new IllegalStateException("All rows of the image have already been written.");
+        row[0] = 1;  // The "Sub" filter: each byte is stored as the difference from the pixel to its left.
+        int prevR = 0, prevG = 0, prevB = 0;
+        for (int x = 0, pos = 1; x < width; x++) {
+            int c = rgb[offset + x];
+            int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
+            row[pos++] = (byte)(r - prevR);
+            row[pos++] = (byte)(g - prevG);
+            row[pos++] = (byte)(b - prevB);
+            prevR = r;
+            prevG = g;
+            prevB = b;
+        }
+        compressor.write(row);
+        rowsWritten++;
+    }
+
+    /**
+     * Finishes the image by flushing the compressed data and writing the
+     * PNG trailer.  All rows must have been written.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height)
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows have been written.");
+        compressor.finish();
+        chunks.flush();
+        deflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int)crc.getValue());
+    }
+
+    /**
+     * Receives compressed data and writes it as a sequence of IDAT chunks.
+     */
+    private class ChunkStream extends OutputStream {
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length)
+                    flush();
+            }
+        }
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
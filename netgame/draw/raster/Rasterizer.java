@@ -0,0 +1,139 @@
+package netgame.draw.raster;
+
+import java.awt.Graphics2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A Rasterizer draws a sequence of items onto a {@link TiledCanvas}, using
+ * a ForkJoinPool so that the work is spread over all available processors.
+ * The items are first sorted into bins, one for each tile, keeping only the
+ * items whose bounds intersect that tile.  A "clear" item empties every bin,
+ * since nothing drawn before it can be seen.  Then each tile draws the items
+ * in its bin, in their original order, drawing each run of connected lines of
+ * a stroke as one path.  Since a tile is only ever touched by one task, the
+ * result is the same as drawing the items one at a time, except for the
+ * antialiasing where lines join; it is just faster for a long list of items,
+ * such as the history of a drawing that is being replayed.  Undo and redo items are applied first,
+ * by leaving out the items of strokes that are undone at the end of the list.
+ */
+public class Rasterizer {
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a Rasterizer that uses the common ForkJoinPool.
+     */
+    public Rasterizer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a Rasterizer that runs its tasks in a specified pool.
+     */
+    public Rasterizer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Draws all the items in a list onto a canvas, in order.
+     */
+    public void render(TiledCanvas canvas, List<DrawOp> ops) {
+        render(canvas, ops, 0, ops.size());
+    }
+
+    /**
+     * Draws the items in positions fromIndex (inclusive) to toIndex (exclusive)
+     * of a list onto a canvas, in order.  The method returns when all the
+     * tiles have been drawn.
+     */
+    public void render(TiledCanvas canvas, List<DrawOp> ops, int fromIndex, int toIndex) {
+        List<DrawOp> items = ops.subList(fromIndex, toIndex);
+        List<DrawOp> visible = DrawOp.resolveUndo(items);
+        if (visible != items) {
+            ops = visible;
+            fromIndex = 0;
+            toIndex = visible.size();
+        }
+        int tileCount = canvas.getTileCount();
+        int[][] bins = new int[tileCount][];
+        int[] binSizes = new int[tileCount];
+        boolean[] cleared = new boolean[tileCount];
+        int across = canvas.getTilesAcross();
+        for (int i = fromIndex; i < toIndex; i++) {
+            DrawOp op = ops.get(i);
+            if (op.type == DrawOp.CLEAR) {
+                Arrays.fill(binSizes, 0);
+                Arrays.fill(cleared, true);
+                continue;
+            }
+            int[] range = canvas.tileRange(op.getBounds());
+            if (range == null)
+                continue;
+            for (int row = range[1]; row <= range[3]; row++) {
+                for (int col = range[0]; col <= range[2]; col++) {
+                    int tile = row*across + col;
+                    if (bins[tile] == null)
+                        bins[tile] = new int[16];
+                    else if (binSizes[tile] == bins[tile].length)
+                        bins[tile] = Arrays.copyOf(bins[tile], 2*binSizes[tile]);
+                    bins[tile][binSizes[tile]++] = i;
+                }
+            }
+        }
+        pool.invoke(new TileTask(canvas, ops, bins, binSizes, cleared, 0, tileCount));
+    }
+
+    /**
+     * Draws the binned items on a range of tiles, splitting the range
+     * in half until it contains just one tile.
+     */
+    private static class TileTask extends RecursiveAction {
+        private final TiledCanvas canvas;
+        private final List<DrawOp> ops;
+        private final int[][] bins;
+        private final int[] binSizes;
+        private final boolean[] cleared;
+        private final int first, last;  // The range of tiles, first inclusive, last exclusive.
+        TileTask(TiledCanvas canvas, List<DrawOp> ops, int[][] bins, int[] binSizes, 
+                boolean[] cleared, int first, int last) {
+            this.canvas = canvas;
+            this.ops = ops;
+            this.bins = bins;
+            this.binSizes = binSizes;
+            this.cleared = cleared;
+            this.first = first;
+            this.last = last;
+        }
+        protected void compute() {
+            if (last - first > 1) {
+                int middle = (first + last) / 2;
+                invokeAll(new TileTask(canvas, ops, bins, binSizes, cleared, first, middle),
+                        new TileTask(canvas, ops, bins, binSizes, cleared, middle, last));
+                return;
+            }
+            if (cleared[first])
+                canvas.clearTile(first);
+            if (binSizes[first] == 0)
+                return;
+            Graphics2D g = canvas.createTileGraphics(first);
+            StrokePath run = new StrokePath();
+            for (int i = 0; i < binSizes[first]; i++) {
+                DrawOp op = ops.get(bins[first][i]);
+                if (run.accepts(op)) {
+                    run.add(op);
+                    continue;
+                }
+                run.paint(g);
+                run.reset();
+                op.paint(g);
+            }
+            run.paint(g);
+            g.dispose();
+            canvas.releaseTile(first);
+        }
+    }
+
+}
@@ -0,0 +1,548 @@
+package netgame.draw.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A RenderLoop owns an off-screen copy of a drawing and a thread, the render
+ * thread, that is the only thread that ever draws on it.  Other threads
+ * submit items to be drawn by adding them to lock-free queues, so a thread
+ * that handles user input or network messages never waits for drawing.
+ * The render thread takes items from the queues in batches, draws them,
+ * adds them to the history of the drawing, and then publishes a frame:  it
+ * copies the pixels that have changed into one of three frame buffers and
+ * makes that buffer the current frame.
+ * 
+ * <p>A thread that wants to show the drawing, such as the Swing event thread,
+ * calls acquireFrame(), draws the frame's image, and calls releaseFrame().
+ * This never locks and never waits for the render thread.  The render thread
+ * only reuses a frame buffer when it is neither the current frame nor in use
+ * by a reader, so the image in an acquired frame does not change while it is
+ * being shown.
+ * 
+ * <p>There are two queues, one for items from local user input and one for
+ * everything else.  The render thread always empties the local queue first,
+ * and checks it again after every few remote items, so the delay between
+ * user input and its appearance on the screen stays small even when a flood
+ * of remote items is waiting.  The delay from submission to publication is
+ * recorded separately for local and remote items, and each frame that takes
+ * the whole frame budget is recorded as a Java Flight Recorder event with the
+ * longest delays in it.
+ * 
+ * <p>Connected lines of the same stroke that are drawn in the same frame,
+ * such as the segments of a freehand curve that arrive in one polyline or
+ * between two frames, are collected in a StrokePath and drawn as one
+ * path when the next item that does not continue them arrives, or before the
+ * frame is published.  Only the new part of the stroke is drawn in each frame.
+ * 
+ * <p>An undo or redo item hides or shows the items of a stroke.  The render
+ * thread keeps {@link TileCheckpoints} for the drawing, so it only has to draw
+ * again the tiles that the stroke touches, starting from a recent copy of
+ * each tile, and an undo takes about as long as drawing a few dozen items,
+ * however long the history is.
+ *
+ * <p>Each frame also holds the levels of a {@link MipmapPyramid} for the
+ * drawing, for showing it zoomed out.  The render thread marks the tiles that
+ * each item changes and brings the pyramid up to date when it publishes a
+ * frame, so only the ancestors of changed tiles are computed again, and it
+ * copies the changed part of each level into the frame buffer along with the
+ * changed pixels.
+ *
+ * <p>The checkpoints also keep {@link TileDigests} of the picture, which
+ * requestDigests() returns, so that it can be compared with the hub's drawing.
+ */
+public class RenderLoop {
+
+    /**
+     * An object that is notified each time a new frame is published.  The method
+     * is called in the render thread, and it is given the rectangle that changed.
+     * A Swing component would just call repaint(dirty).
+     */
+    public interface FrameListener {
+        void frameReady(Rectangle dirty);
+    }
+
+    /**
+     * An object that is given the digests of some tiles of the drawing; see
+     * requestDigests().  The method is called in the render thread.
+     */
+    public interface DigestListener {
+        void digestsReady(Rectangle tiles, long[] digests);
+    }
+
+    /**
+     * One of the frame buffers.  The image must not be modified by readers.
+     */
+    public static final class Frame {
+        private final BufferedImage[] levels;  // levels[0] is the full-size image.
+        private final int[][] levelPixels;
+        private final int[] pixels;
+        private final AtomicInteger readers = new AtomicInteger();
+        private final Rectangle stale = new Rectangle();  // Part of the buffer that is out of date.
+        private long number;  // The number of frames that were published before this one.
+        private Frame(MipmapPyramid pyramid) {
+            levels = new BufferedImage[pyramid.getLevelCount()];
+            levelPixels = new int[levels.length][];
+            for (int k = 0; k < levels.length; k++) {
+                levels[k] = new BufferedImage(pyramid.getLevelWidth(k), pyramid.getLevelHeight(k),
+                        BufferedImage.TYPE_INT_ARGB);
+                levelPixels[k] = ((DataBufferInt)levels[k].getRaster().getDataBuffer()).getData();
+                Arrays.fill(levelPixels[k], 0xFFFFFFFF);
+            }
+            pixels = levelPixels[0];
+        }
+        public BufferedImage getImage() {
+            return levels[0];
+        }
+        /**
+         * Returns the image of one level of the pyramid, which is 2<sup>level</sup>
+         * times smaller than the drawing in each direction.  Level 0 is the drawing itself.
+         */
+        public BufferedImage getLevel(int level) {
+            return levels[level];
+        }
+        public int getLevelCount() {
+            return levels.length;
+        }
+        public long getNumber() {
+            return number;
+        }
+    }
+
+    /**
+     * An item in one of the queues:  either a DrawOp or a task to be run in the render thread.
+     */
+    private static final class Entry {
+        final DrawOp op;
+        final Runnable task;
+        final boolean local;
+        final long submitted;
+        Entry(DrawOp op, Runnable task, boolean local) {
+            this.op = op;
+            this.task = task;
+            this.local = local;
+            submitted = System.nanoTime();
+        }
+    }
+
+    private static final long FRAME_BUDGET_NANOS = 8000000;  // Maximum time spent drawing before publishing a frame.
+    private static final int LOCAL_CHECK_INTERVAL = 32;      // Remote items drawn between checks of the local queue.
+
+    private final int width, height;
+    private final BufferedImage image;      // The working copy of the drawing, used only by the render thread.
+    private final int[] pixels;             // The pixel data of image.
+    private final Graphics2D imageGraphics; // For drawing to the working copy.
+    private final MipmapPyramid pyramid;    // Smaller copies of the working copy.
+    private final Frame[] frames = new Frame[3];
+    private volatile Frame published;       // The current frame.
+    private volatile DrawingHistory history;
+    private volatile TileCheckpoints checkpoints;  // Changed and used only by the render thread.
+    private final StrokePath run = new StrokePath();  // Lines that are added to history but not yet drawn.
+    private int runStart;                   // The position in history of the first item in run.
+
+    private final MpscQueue<Entry> localQueue = new MpscQueue<Entry>();
+    private final MpscQueue<Entry> remoteQueue = new MpscQueue<Entry>();
+    private final Thread renderThread;
+    private volatile boolean sleeping;      // True when the render thread is about to park.
+    private volatile boolean stopped;
+    private final FrameListener listener;
+
+    private final LatencyRecorder localLatency = new LatencyRecorder();
+    private final LatencyRecorder remoteLatency = new LatencyRecorder();
+    private volatile long lastFrameNanos;   // Time spent drawing and copying the most recent frame.
+    private volatile long framesPublished;
+
+    /**
+     * Creates a RenderLoop for a white drawing of the given size and starts
+     * its render thread, which is a daemon thread.
+     * @param listener  notified when a frame is published; can be null.
+     */
+    public RenderLoop(int width, int height, FrameListener listener) {
+        this.width = width;
+        this.height = height;
+        this.listener = listener;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, 0xFFFFFFFF);
+        imageGraphics = image.createGraphics();
+        imageGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        pyramid = new MipmapPyramid(width, height);
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new Frame(pyramid);
+        published = frames[0];
+        history = new DrawingHistory(width, height);
+        checkpoints = new TileCheckpoints(width, height);
+        renderThread = new Thread("NetDraw render thread") {
+            public void run() {
+                renderLoop();
+            }
+        };
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the history of everything drawn by this RenderLoop, in the order
+     * in which it was drawn.  Note that the history is replaced by replace().
+     */
+    public DrawingHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Adds an item to the queue of items to be drawn.  This can be called by
+     * any thread and never blocks.
+     * @param local  true if the item comes from user input in this program.  Local
+     *    items are drawn ahead of remote items that are still waiting.
+     */
+    public void submit(DrawOp op, boolean local) {
+        enqueue(new Entry(op, null, local));
+    }
+
+    /**
+     * Replaces the drawing and its history with a new history.  The history is
+     * rasterized in the render thread, using a {@link Rasterizer}, after all
+     * previously submitted items have been drawn.
+     */
+    public void replace(final DrawingHistory newHistory) {
+        enqueue(new Entry(null, new Runnable() {
+            public void run() {
+                TiledCanvas canvas = new TiledCanvas(width, height);
+                List<DrawOp> ops = newHistory.toList();
+                new Rasterizer().render(canvas, ops);
+                canvas.paint(imageGraphics, 0, 0);
+                history = newHistory;
+                checkpoints = new TileCheckpoints(width, height);
+                for (int i = 0; i < ops.size(); i++)
+                    checkpoints.added(i, ops.get(i), null);
+                checkpoints.refilled(null, null, pixels);  // The loaded strokes stay as they are.
+                checkpoints.recomputeDigests(newHistory);
+            }
+        }, false));
+    }
+
+    /**
+     * Fills some regions of the drawing with white and then draws a list of items,
+     * clipped to those regions, in the render thread, after all previously submitted
+     * items.  This brings part of the drawing up to date when the items that were
+     * drawn there were not received as they happened.  The items are not added to
+     * the history, since they were only drawn in part.
+     */
+    public void refill(final Rectangle[] regions, final List<DrawOp> ops) {
+        enqueue(new Entry(null, new Runnable() {
+            public void run() {
+                Shape oldClip = imageGraphics.getClip();
+                StrokePath refillRun = new StrokePath();
+                for (Rectangle region : regions) {
+                    imageGraphics.setClip(region);
+                    imageGraphics.setColor(Color.WHITE);
+                    imageGraphics.fill(region);
+                    for (DrawOp op : ops) {
+                        Rectangle bounds = op.getBounds();
+                        if (bounds != null && !bounds.intersects(region))
+                            continue;
+                        if (refillRun.accepts(op)) {
+                            refillRun.add(op);
+                            continue;
+                        }
+                        refillRun.paint(imageGraphics);
+                        refillRun.reset();
+                        op.paint(imageGraphics);
+                    }
+                    refillRun.paint(imageGraphics);
+                    refillRun.reset();
+                }
+                imageGraphics.setClip(oldClip);
+                checkpoints.refilled(regions, ops, pixels);
+            }
+        }, false));
+    }
+
+    /**
+     * Asks for the {@link TileDigests} of the tiles that intersect an area of
+     * the drawing, as they are after all previously submitted remote items have
+     * been drawn.  The listener is called in the render thread with the tiles, in
+     * tile coordinates, and their digests, row by row, so it should not take long.
+     * Nothing is called if the area is outside the drawing.
+     */
+    public void requestDigests(final Rectangle area, final DigestListener listener) {
+        enqueue(new Entry(null, new Runnable() {
+            public void run() {
+                TileDigests digests = checkpoints.getDigests();
+                Rectangle tiles = digests.tilesFor(area);
+                if (!tiles.isEmpty())
+                    listener.digestsReady(tiles, digests.get(tiles));
+            }
+        }, false));
+    }
+
+    /**
+     * Returns the current frame, marking it as in use so that the render thread
+     * will not change it.  The caller must call releaseFrame() when done with
+     * the frame, preferably in a finally clause.
+     */
+    public Frame acquireFrame() {
+        while (true) {
+            Frame frame = published;
+            frame.readers.incrementAndGet();
+            if (frame == published)
+                return frame;
+            frame.readers.decrementAndGet();  // A newer frame was published in the meantime.
+        }
+    }
+
+    /**
+     * Releases a frame that was obtained from acquireFrame().
+     */
+    public void releaseFrame(Frame frame) {
+        frame.readers.decrementAndGet();
+    }
+
+    /**
+     * Returns the recorded delays between submitting a local item and the publication
+     * of the first frame that contains it.
+     */
+    public LatencyRecorder getLocalLatency() {
+        return localLatency;
+    }
+
+    /**
+     * Returns the recorded delays between submitting a remote item and the publication
+     * of the first frame that contains it.
+     */
+    public LatencyRecorder getRemoteLatency() {
+        return remoteLatency;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, that was spent drawing and copying the most recent frame.
+     */
+    public long getLastFrameNanos() {
+        return lastFrameNanos;
+    }
+
+    /**
+     * Returns the number of frames that have been published.
+     */
+    public long getFramesPublished() {
+        return framesPublished;
+    }
+
+    /**
+     * Returns the number of items that have been drawn again to undo and redo
+     * strokes.  This is for measuring the cost of undo.
+     */
+    public long getItemsRedrawn() {
+        return checkpoints.getItemsRedrawn();
+    }
+
+    /**
+     * Stops the render thread.  Items that have not yet been drawn are discarded.
+     */
+    public void shutdown() {
+        stopped = true;
+        LockSupport.unpark(renderThread);
+    }
+
+    //------------------------------------------------------------------------------
+
+    private void enqueue(Entry entry) {
+        (entry.local ? localQueue : remoteQueue).offer(entry);
+        if (sleeping)
+            LockSupport.unpark(renderThread);
+    }
+
+    /**
+     * The run() method of the render thread.
+     */
+    private void renderLoop() {
+        Rectangle dirty = new Rectangle();
+        Entry[] batch = new Entry[256];
+        while (!stopped) {
+            Entry entry = localQueue.poll();
+            if (entry == null)
+                entry = remoteQueue.poll();
+            if (entry == null) {
+                sleeping = true;
+                entry = localQueue.poll();
+                if (entry == null)
+                    entry = remoteQueue.poll();
+                if (entry == null) {
+                    LockSupport.park(this);
+                    sleeping = false;
+                    continue;
+                }
+                sleeping = false;
+            }
+            long start = System.nanoTime();
+            FrameEvent event = new FrameEvent();
+            event.begin();
+            dirty.setBounds(0,0,0,0);
+            int count = 0;
+            int sinceLocalCheck = 0;
+            while (entry != null) {
+                draw(entry, dirty);
+                if (count == batch.length)
+                    batch = Arrays.copyOf(batch, 2*count);
+                batch[count++] = entry;
+                if (System.nanoTime() - start > FRAME_BUDGET_NANOS)
+                    break;
+                entry = null;
+                if (batch[count-1].local || ++sinceLocalCheck >= LOCAL_CHECK_INTERVAL) {
+                    sinceLocalCheck = 0;
+                    entry = localQueue.poll();
+                }
+                if (entry == null)
+                    entry = remoteQueue.poll();
+            }
+            drawRun();
+            publish(dirty);
+            long now = System.nanoTime();
+            lastFrameNanos = now - start;
+            int localItems = 0;
+            long maxLocal = 0, maxRemote = 0;
+            for (int i = 0; i < count; i++) {
+                long latency = now - batch[i].submitted;
+                if (batch[i].local) {
+                    localLatency.record(latency);
+                    localItems++;
+                    maxLocal = Math.max(maxLocal, latency);
+                }
+                else {
+                    remoteLatency.record(latency);
+                    maxRemote = Math.max(maxRemote, latency);
+                }
+                batch[i] = null;
+            }
+            if (event.shouldCommit()) {
+                event.localItems = localItems;
+                event.remoteItems = count - localItems;
+                event.maxLocalLatency = maxLocal;
+                event.maxRemoteLatency = maxRemote;
+                event.commit();
+            }
+            if (listener != null)
+                listener.frameReady(new Rectangle(dirty));
+        }
+    }
+
+    /**
+     * Draws one item in the render thread and adds the area that it changed to dirty.
+     */
+    private void draw(Entry entry, Rectangle dirty) {
+        Rectangle bounds;
+        if (entry.op != null && entry.op.type == DrawOp.LINE && !checkpoints.isHidden(entry.op)) {
+            if (!run.accepts(entry.op))
+                drawRun();
+            if (run.isEmpty())
+                runStart = history.size();
+            run.add(entry.op);
+            history.add(entry.op);
+            bounds = entry.op.getBounds();
+        }
+        else if (entry.task != null) {
+            drawRun();
+            entry.task.run();
+            bounds = null;
+        }
+        else if (entry.op.isUndoOrRedo()) {
+            drawRun();
+            history.add(entry.op);
+            bounds = checkpoints.toggle(entry.op, history, imageGraphics, pixels);
+            if (bounds == null)
+                return;  // Nothing changed.
+        }
+        else {
+            drawRun();
+            if (!checkpoints.isHidden(entry.op))
+                entry.op.paint(imageGraphics);
+            history.add(entry.op);
+            checkpoints.added(history.size() - 1, entry.op, pixels);
+            bounds = entry.op.getBounds();
+        }
+        if (bounds == null)
+            bounds = new Rectangle(0, 0, width, height);
+        if (dirty.isEmpty())
+            dirty.setBounds(bounds);
+        else
+            dirty.add(bounds);
+        dirty.setBounds(dirty.intersection(new Rectangle(0, 0, width, height)));
+        pyramid.markDirty(bounds);
+    }
+
+    /**
+     * Draws the lines that have been collected in run, as one path, and tells the
+     * checkpoints about them.  A checkpoint that is taken for one of the lines
+     * then also shows the lines after it in the run; if a tile is drawn again
+     * from that checkpoint, those lines are drawn over themselves, which only
+     * changes the antialiasing at their edges.
+     */
+    private void drawRun() {
+        if (run.isEmpty())
+            return;
+        run.paint(imageGraphics);
+        List<DrawOp> segments = run.getSegments();
+        for (int i = 0; i < segments.size(); i++)
+            checkpoints.added(runStart + i, segments.get(i), pixels);
+        run.reset();
+    }
+
+    /**
+     * Brings a free frame buffer up to date and makes it the current frame.
+     */
+    private void publish(Rectangle dirty) {
+        if (dirty.isEmpty())
+            return;
+        for (Frame f : frames) {
+            if (f.stale.isEmpty())
+                f.stale.setBounds(dirty);
+            else
+                f.stale.add(dirty);
+        }
+        Frame current = published;
+        Frame target = null;
+        while (target == null) {
+            for (Frame f : frames) {
+                if (f != current && f.readers.get() == 0) {
+                    target = f;
+                    break;
+                }
+            }
+            if (target == null)
+                Thread.yield();  // Only possible if there are several readers.
+        }
+        pyramid.update(pixels);
+        Rectangle r = target.stale;
+        for (int y = r.y; y < r.y + r.height; y++)
+            System.arraycopy(pixels, y*width + r.x, target.pixels, y*width + r.x, r.width);
+        for (int k = 1; k < target.levels.length; k++) {
+            int levelWidth = pyramid.getLevelWidth(k);
+            Rectangle s = MipmapPyramid.toLevel(r, k).intersection(
+                    new Rectangle(0, 0, levelWidth, pyramid.getLevelHeight(k)));
+            int[] src = pyramid.getPixels(k);
+            for (int y = s.y; y < s.y + s.height; y++)
+                System.arraycopy(src, y*levelWidth + s.x, target.levelPixels[k], y*levelWidth + s.x, s.width);
+        }
+        r.setBounds(0,0,0,0);
+        target.number = ++framesPublished;
+        published = target;
+    }
+
+}
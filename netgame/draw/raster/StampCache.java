@@ -0,0 +1,231 @@
+package netgame.draw.raster;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * A StampCache keeps the images of custom stamps in a directory, so that they
+ * are kept from one session to the next and only have to be transferred over
+ * the network once.  The images are content-addressed:  each one is stored as
+ * PNG data in a file whose name is the SHA-256 hash of the data, and a stamp
+ * item refers to its image by the same hash, so an image is never stored twice
+ * and its data can always be checked against its name.
+ *
+ * <p>The total size of the files is kept under a limit.  When it goes over,
+ * the images that were least recently used are deleted; the modification time
+ * of a file is set to the current time whenever it is used.  An image that is
+ * added or loaded is also registered with {@link DrawStyle}, so that stamp
+ * items that use it can be drawn.
+ *
+ * <p>The methods of this class are synchronized, so it can be used by several
+ * threads.  It can also be shared with other programs that use the same
+ * directory, since files are only ever created whole, by renaming.
+ */
+public class StampCache {
+
+    /**
+     * The maximum size of the PNG data of a custom stamp.
+     */
+    public static final int MAX_BYTES = 1 << 20;
+
+    /**
+     * The default limit on the total size of the files in the cache.
+     */
+    public static final long DEFAULT_BUDGET = 32L << 20;
+
+    private final File directory;
+    private final long budget;
+
+    /**
+     * Creates a cache that keeps its files in a directory, which is created if
+     * it does not exist.
+     * @param budget the limit on the total size of the files, in bytes.
+     * @throws IOException if the directory does not exist and can't be created.
+     */
+    public StampCache(File directory, long budget) throws IOException {
+        if (budget <= 0)
+            throw new IllegalArgumentException("The budget must be positive.");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create the directory " + directory);
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the SHA-256 hash of some data, as 64 lower-case hexadecimal digits.
+     */
+    public static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Adds an image to the cache, unless it is already there, and registers it
+     * with DrawStyle.
+     * @param png the PNG data of the image.
+     * @return the hash of the data, which identifies the image.
+     * @throws IOException if the data is not a legal stamp image, or if it can't be stored.
+     */
+    synchronized public String add(byte[] png) throws IOException {
+        String hash = hash(png);
+        BufferedImage image = decode(png);
+        File file = fileFor(hash);
+        if (file.exists())
+            touch(file);
+        else {
+            File temp = File.createTempFile("stamp", ".tmp", directory);
+            try {
+                Files.write(temp.toPath(), png);
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                temp.delete();
+            }
+            evict(file);
+        }
+        DrawStyle.addStamp(hash, image);
+        return hash;
+    }
+
+    /**
+     * Makes sure that the image with a given hash is registered with DrawStyle,
+     * reading it from the cache if necessary.
+     * @return true if the image is registered, false if it is not in the cache.
+     */
+    synchronized public boolean load(String hash) {
+        if (DrawStyle.findStamp(hash) != null)
+            return true;
+        byte[] png = get(hash);
+        if (png == null)
+            return false;
+        try {
+            DrawStyle.addStamp(hash, decode(png));
+            return true;
+        }
+        catch (IOException e) {
+            fileFor(hash).delete();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the PNG data of the image with a given hash, or null if it is not
+     * in the cache.  A file whose data does not match its name is deleted.
+     */
+    synchronized public byte[] get(String hash) {
+        if (!DrawStyle.isStampHash(hash))
+            return null;
+        File file = fileFor(hash);
+        try {
+            byte[] png = Files.readAllBytes(file.toPath());
+            if (!hash(png).equals(hash)) {
+                file.delete();
+                return null;
+            }
+            touch(file);
+            return png;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the total size of the files in the cache.
+     */
+    synchronized public long getSize() {
+        long size = 0;
+        for (File f : files())
+            size += f.length();
+        return size;
+    }
+
+    /**
+     * Checks that some data is a PNG image that can be used as a custom stamp,
+     * and returns the image.
+     * @throws IOException if the data is too big or is not a readable image of
+     *    an allowed size.
+     */
+    public static BufferedImage decode(byte[] png) throws IOException {
+        if (png.length > MAX_BYTES)
+            throw new IOException("A stamp image can have at most " + MAX_BYTES + " bytes.");
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null)
+            throw new IOException("The data is not an image.");
+        if (image.getWidth() > DrawStyle.MAX_CUSTOM_STAMP_SIZE || image.getHeight() > DrawStyle.MAX_CUSTOM_STAMP_SIZE)
+            throw new IOException("A stamp image can be at most " + DrawStyle.MAX_CUSTOM_STAMP_SIZE
+                    + " pixels wide and high.");
+        return image;
+    }
+
+    private File fileFor(String hash) {
+        return new File(directory, hash + ".png");
+    }
+
+    /**
+     * Returns the image files in the directory.
+     */
+    private List<File> files() {
+        List<File> list = new ArrayList<File>();
+        File[] all = directory.listFiles();
+        if (all == null)
+            return list;
+        for (File f : all) {
+            String name = f.getName();
+            if (name.endsWith(".png") && DrawStyle.isStampHash(name.substring(0, name.length() - 4)))
+                list.add(f);
+        }
+        return list;
+    }
+
+    private static void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes the least recently used files until the total size is within the
+     * budget, never deleting the file that was just added.
+     */
+    private void evict(File keep) {
+        List<File> list = files();
+        long size = 0;
+        for (File f : list)
+            size += f.length();
+        if (size <= budget)
+            return;
+        Collections.sort(list, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : list) {
+            if (size <= budget)
+                break;
+            if (f.equals(keep))
+                continue;
+            long length = f.length();
+            if (f.delete())
+                size -= length;
+        }
+    }
+
+}
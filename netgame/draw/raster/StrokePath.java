@@ -0,0 +1,85 @@
+package netgame.draw.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A StrokePath collects a run of connected line items, each of which continues
+ * the one before it (see {@link DrawOp#isContinuedBy(DrawOp)}), and draws them
+ * as a single Path2D instead of one drawLine() for each item.  Since the lines
+ * of a stroke have round caps and round joins, the path covers the same area
+ * as the separate lines.  It is about twice as fast to draw for thick lines,
+ * since Java2D sets up its pipeline once for the run instead of once for each
+ * segment, and each joint is covered once, so the antialiased edges are not
+ * darkened where the segments overlap.
+ *
+ * <p>A renderer adds items with add() as long as accepts() returns true, and
+ * otherwise calls paint() and reset() and starts a new run.  A run of one item
+ * is drawn by DrawOp.paint(), with exactly the same pixels as before.  The
+ * result of drawing a stroke depends a little on where it is split into runs,
+ * but only in the antialiasing at the joints between runs.
+ */
+final class StrokePath {
+
+    private final Path2D.Float path = new Path2D.Float();
+    private final List<DrawOp> segments = new ArrayList<DrawOp>();
+    private DrawOp last;  // The most recently added item, or null if the run is empty.
+
+    /**
+     * Tests whether an item can be added to the run:  it is a line, and the
+     * run is empty or the item continues the last item of the run.
+     */
+    boolean accepts(DrawOp op) {
+        return op.type == DrawOp.LINE && (last == null || last.isContinuedBy(op));
+    }
+
+    /**
+     * Adds an item to the run.  The caller must check accepts() first.
+     */
+    void add(DrawOp op) {
+        if (last == null)
+            path.moveTo(op.x2, op.y2);  // An item is drawn from (x2,y2) back to (x1,y1).
+        path.lineTo(op.x1, op.y1);
+        segments.add(op);
+        last = op;
+    }
+
+    boolean isEmpty() {
+        return last == null;
+    }
+
+    /**
+     * Returns the items of the run, in the order in which they were added.
+     */
+    List<DrawOp> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Draws the run, if it is not empty.
+     */
+    void paint(Graphics2D g) {
+        if (last == null)
+            return;
+        if (segments.size() == 1) {
+            last.paint(g);
+            return;
+        }
+        g.setColor(new Color(last.rgb));
+        g.setStroke(DrawStyle.getStroke(last.strokeIndex));
+        g.draw(path);
+    }
+
+    /**
+     * Empties the run.
+     */
+    void reset() {
+        path.reset();
+        segments.clear();
+        last = null;
+    }
+
+}
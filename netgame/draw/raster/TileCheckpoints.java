@@ -0,0 +1,429 @@
+package netgame.draw.raster;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Makes it possible for the render thread of a {@link RenderLoop} to undo and
+ * redo a stroke without drawing the whole history of the drawing again.  The
+ * drawing is divided into tiles of size TILE_SIZE.  For each tile, the positions
+ * in the history of the items that touch it are kept, and after every
+ * CHECKPOINT_INTERVAL of those items, a copy of the tile's pixels is saved.
+ * To undo or redo a stroke, only the tiles that the stroke touches are drawn
+ * again, each one starting from its latest checkpoint before the stroke's
+ * first item in that tile and drawing only the items of that tile.  So the
+ * cost depends on how much has been drawn in those tiles since the stroke,
+ * not on the length of the history; for the usual case, undoing a recent
+ * stroke, it is a few dozen items per tile.
+ *
+ * <p>Only a few checkpoints are kept for each tile.  When there are too many,
+ * the one whose neighbors are closest together compared to its age is dropped,
+ * so the recent checkpoints are close together and the older ones get farther
+ * apart, about in proportion to their age.
+ * Checkpoints after the first item of a stroke that is undone or redone are
+ * no longer correct and are dropped, and new ones are made while the tile is
+ * being drawn again.  A "clear" drops everything, since nothing before it
+ * can be seen.
+ *
+ * <p>The same tiles also have {@link TileDigests}, which record which items
+ * each tile shows, so that the picture can be compared with the hub's drawing.
+ * A tile that is refilled without being covered completely by the refilled
+ * regions is marked unknown, since it then shows parts of items that are not
+ * in the history.
+ *
+ * <p>This class is used only by the render thread, so it is not synchronized,
+ * except that getItemsRedrawn() can be called by any thread.
+ */
+final class TileCheckpoints {
+
+    static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+    static final int CHECKPOINT_INTERVAL = 32;  // Items in a tile between checkpoints.
+    static final int MAX_CHECKPOINTS = 12;      // Checkpoints kept per tile.
+
+    /**
+     * A copy of a tile's pixels after a number of its items had been drawn.
+     */
+    private static final class Checkpoint {
+        final int position;
+        final int[] pixels;
+        Checkpoint(int position, int[] pixels) {
+            this.position = position;
+            this.pixels = pixels;
+        }
+    }
+
+    private static final class Tile {
+        final Rectangle bounds;
+        int[] items = new int[16];  // Positions in the history of the items that touch this tile.
+        int count;                  // Number of entries in items.
+        int floor;                  // Items before this position can't be drawn again, because
+                                    //    the tile was refilled with items that are not in the history.
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        Tile(Rectangle bounds) {
+            this.bounds = bounds;
+        }
+    }
+
+    /**
+     * What is known about a stroke:  where its first item is in the history,
+     * and the bounds of all of its items.
+     */
+    private static final class Stroke {
+        final int first;
+        final Rectangle bounds;
+        Stroke(int first, Rectangle bounds) {
+            this.first = first;
+            this.bounds = bounds;
+        }
+    }
+
+    private final int width, height;
+    private final int tilesAcross, tilesDown;
+    private final Tile[] tiles;
+    private final TileDigests digests;
+    private final Map<Long,Stroke> strokes = new HashMap<Long,Stroke>();  // Strokes since the last clear.
+    private final Set<Long> hidden = new HashSet<Long>();  // Strokes that have been undone.
+    private volatile long itemsRedrawn;  // Total items drawn again by toggle(), for statistics.
+
+    TileCheckpoints(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Tile[tilesAcross*tilesDown];
+        for (int i = 0; i < tiles.length; i++) {
+            int x = (i % tilesAcross)*TILE_SIZE;
+            int y = (i / tilesAcross)*TILE_SIZE;
+            tiles[i] = new Tile(new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y)));
+        }
+        digests = new TileDigests(width, height);
+    }
+
+    /**
+     * Tests whether an item belongs to a stroke that is currently undone, in which
+     * case it must not be drawn.
+     */
+    boolean isHidden(DrawOp op) {
+        return op.stroke != 0 && hidden.contains(op.stroke);
+    }
+
+    /**
+     * Returns the digests of the tiles, which are kept up to date with the
+     * picture.  They must only be used in the render thread.
+     */
+    TileDigests getDigests() {
+        return digests;
+    }
+
+    /**
+     * Returns the number of items that have been drawn again to undo or redo strokes.
+     */
+    long getItemsRedrawn() {
+        return itemsRedrawn;
+    }
+
+    /**
+     * Records an item that has just been added to the history at a given
+     * position, and drawn unless it is hidden, and takes a checkpoint of each
+     * tile that it touches if it is time for one.
+     * @param pixels  the pixels of the drawing, after the item was drawn, or null
+     *    if they don't match the history yet, in which case no checkpoints are taken.
+     */
+    void added(int index, DrawOp op, int[] pixels) {
+        if (op.type == DrawOp.CLEAR) {
+            for (Tile tile : tiles) {
+                tile.count = 0;
+                tile.floor = 0;
+                tile.checkpoints.clear();
+            }
+            strokes.clear();
+            hidden.clear();
+            digests.clear();
+            return;
+        }
+        if (op.isUndoOrRedo()) {
+            if (op.type == DrawOp.UNDO)
+                hidden.add(op.stroke);
+            else
+                hidden.remove(op.stroke);
+            return;
+        }
+        Rectangle bounds = op.getBounds();
+        if (op.stroke != 0) {
+            Stroke s = strokes.get(op.stroke);
+            if (s == null)
+                strokes.put(op.stroke, new Stroke(index, new Rectangle(bounds)));
+            else
+                s.bounds.add(bounds);
+        }
+        int[] range = tileRange(bounds);
+        if (range == null)
+            return;
+        long hash = isHidden(op) ? 0 : TileDigests.hash(op);
+        for (int row = range[1]; row <= range[3]; row++) {
+            for (int col = range[0]; col <= range[2]; col++) {
+                Tile tile = tiles[row*tilesAcross + col];
+                if (tile.count == tile.items.length)
+                    tile.items = Arrays.copyOf(tile.items, 2*tile.count);
+                tile.items[tile.count++] = index;
+                digests.add(row*tilesAcross + col, hash);
+                if (pixels != null && tile.count % CHECKPOINT_INTERVAL == 0)
+                    checkpoint(tile, tile.count, pixels);
+            }
+        }
+    }
+
+    /**
+     * Called after some regions of the drawing have been filled in with items
+     * that are not in the history.  The items of the tiles that intersect the
+     * regions can no longer be drawn again from the history, so each of those
+     * tiles gets a new checkpoint, below which it will never go back.  A null
+     * array means the whole drawing, which then shows exactly the items in the
+     * history; the digests are not changed, and recomputeDigests() should be called.
+     * Otherwise, the digest of each tile that is inside one of the regions becomes
+     * the sum for the refilled items that intersect it, and the other tiles that
+     * were hit become unknown.
+     * @param ops  the items that were drawn in the regions.
+     */
+    void refilled(Rectangle[] regions, List<DrawOp> ops, int[] pixels) {
+        boolean[] covered = new boolean[tiles.length];
+        boolean anyCovered = false;
+        for (int t = 0; t < tiles.length; t++) {
+            Tile tile = tiles[t];
+            boolean hit = regions == null;
+            for (int i = 0; !hit && i < regions.length; i++)
+                hit = regions[i].intersects(tile.bounds);
+            if (!hit)
+                continue;
+            tile.floor = tile.count;
+            tile.checkpoints.clear();
+            checkpoint(tile, tile.count, pixels);
+            if (regions == null)
+                continue;
+            for (int i = 0; !covered[t] && i < regions.length; i++)
+                covered[t] = regions[i].contains(tile.bounds);
+            if (covered[t]) {
+                digests.set(t, 0);
+                anyCovered = true;
+            }
+            else
+                digests.setUnknown(t);
+        }
+        if (!anyCovered)
+            return;
+        for (DrawOp op : ops) {
+            if (op.type == DrawOp.CLEAR) {
+                for (int t = 0; t < tiles.length; t++) {
+                    if (covered[t])
+                        digests.set(t, 0);
+                }
+                continue;
+            }
+            Rectangle bounds = op.getBounds();
+            int[] range = bounds == null ? null : tileRange(bounds);
+            if (range == null)
+                continue;
+            long hash = TileDigests.hash(op);
+            for (int row = range[1]; row <= range[3]; row++) {
+                for (int col = range[0]; col <= range[2]; col++) {
+                    if (covered[row*tilesAcross + col])
+                        digests.add(row*tilesAcross + col, hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the digests of all the tiles from the visible items in the
+     * history, after the whole drawing has been drawn from the history.
+     */
+    void recomputeDigests(DrawingHistory history) {
+        digests.clear();
+        for (int t = 0; t < tiles.length; t++) {
+            Tile tile = tiles[t];
+            for (int i = 0; i < tile.count; i++) {
+                DrawOp item = history.get(tile.items[i]);
+                if (!isHidden(item))
+                    digests.add(t, TileDigests.hash(item));
+            }
+        }
+    }
+
+    /**
+     * Applies an undo or redo item, which has already been added to the history,
+     * by drawing again the tiles that the stroke touches.  The items of the stroke
+     * that are drawn again are added to or removed from the digests of those tiles.
+     * @param g  a graphics context for drawing on the drawing's pixels.
+     * @return the area of the drawing that changed, or null if nothing changed.
+     */
+    Rectangle toggle(DrawOp op, DrawingHistory history, Graphics2D g, int[] pixels) {
+        boolean changed = op.type == DrawOp.UNDO ? hidden.add(op.stroke) : hidden.remove(op.stroke);
+        Stroke s = strokes.get(op.stroke);
+        if (!changed || s == null)
+            return null;
+        int[] range = tileRange(s.bounds);
+        if (range == null)
+            return null;
+        Rectangle dirty = null;
+        Shape oldClip = g.getClip();
+        for (int row = range[1]; row <= range[3]; row++) {
+            for (int col = range[0]; col <= range[2]; col++) {
+                Tile tile = tiles[row*tilesAcross + col];
+                int from = Math.max(tile.floor, firstAtOrAfter(tile, s.first));
+                if (!contains(tile, from, op.stroke, history))
+                    continue;  // The bounds of the stroke cover this tile, but none of its items do.
+                redraw(tile, from, history, g, pixels);
+                long sum = strokeDigest(tile, from, op.stroke, history);
+                digests.add(row*tilesAcross + col, op.type == DrawOp.UNDO ? -sum : sum);
+                if (dirty == null)
+                    dirty = new Rectangle(tile.bounds);
+                else
+                    dirty.add(tile.bounds);
+            }
+        }
+        g.setClip(oldClip);
+        return dirty;
+    }
+
+    /**
+     * Draws a tile again, starting from its latest checkpoint at or before
+     * position "from" in its list of items, and skipping hidden items.
+     */
+    private void redraw(Tile tile, int from, DrawingHistory history, Graphics2D g, int[] pixels) {
+        List<Checkpoint> cps = tile.checkpoints;
+        int c = cps.size() - 1;
+        while (c >= 0 && cps.get(c).position > from)
+            c--;
+        for (int i = cps.size() - 1; i > c; i--)
+            cps.remove(i);  // They show the stroke in its old state.
+        Rectangle b = tile.bounds;
+        int start;
+        if (c >= 0) {
+            Checkpoint cp = cps.get(c);
+            for (int row = 0; row < b.height; row++)
+                System.arraycopy(cp.pixels, row*b.width, pixels, (b.y + row)*width + b.x, b.width);
+            start = cp.position;
+        }
+        else {
+            for (int row = 0; row < b.height; row++) {
+                int pos = (b.y + row)*width + b.x;
+                Arrays.fill(pixels, pos, pos + b.width, 0xFFFFFFFF);
+            }
+            start = 0;
+        }
+        g.setClip(b);
+        StrokePath run = new StrokePath();
+        for (int i = start; i < tile.count; i++) {
+            DrawOp item = history.get(tile.items[i]);
+            if (!isHidden(item)) {
+                if (run.accepts(item))
+                    run.add(item);
+                else {
+                    run.paint(g);
+                    run.reset();
+                    item.paint(g);
+                }
+            }
+            if ((i + 1) % CHECKPOINT_INTERVAL == 0) {
+                run.paint(g);
+                run.reset();
+                checkpoint(tile, i + 1, pixels);
+            }
+        }
+        run.paint(g);
+        itemsRedrawn += tile.count - start;
+    }
+
+    /**
+     * Saves a copy of a tile's pixels as the checkpoint for the first "position"
+     * items of the tile, unless there already is a checkpoint that far along.
+     */
+    private void checkpoint(Tile tile, int position, int[] pixels) {
+        List<Checkpoint> cps = tile.checkpoints;
+        if (!cps.isEmpty() && cps.get(cps.size() - 1).position >= position)
+            return;
+        Rectangle b = tile.bounds;
+        int[] copy = new int[b.width*b.height];
+        for (int row = 0; row < b.height; row++)
+            System.arraycopy(pixels, (b.y + row)*width + b.x, copy, row*b.width, b.width);
+        cps.add(new Checkpoint(position, copy));
+        if (cps.size() > MAX_CHECKPOINTS) {
+            int drop = 1;  // Never the first or the last.
+            long dropGap = 0, dropAge = 1;
+            for (int i = 1; i < cps.size() - 1; i++) {
+                long gap = cps.get(i+1).position - cps.get(i-1).position;  // Gap if i were dropped,
+                long age = position - cps.get(i).position;                //    relative to its age.
+                if (i == 1 || gap*dropAge < dropGap*age) {
+                    drop = i;
+                    dropGap = gap;
+                    dropAge = age;
+                }
+            }
+            cps.remove(drop);
+        }
+    }
+
+    /**
+     * Returns the first position in a tile's list of items whose history
+     * position is at least index.
+     */
+    private static int firstAtOrAfter(Tile tile, int index) {
+        int lo = 0, hi = tile.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tile.items[mid] < index)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Tests whether any item of a stroke is in a tile at or after a position.
+     */
+    private static boolean contains(Tile tile, int from, long stroke, DrawingHistory history) {
+        for (int i = from; i < tile.count; i++) {
+            if (history.get(tile.items[i]).stroke == stroke)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the sum of the hashes of the items of a stroke that are in a tile
+     * at or after a position.
+     */
+    private static long strokeDigest(Tile tile, int from, long stroke, DrawingHistory history) {
+        long sum = 0;
+        for (int i = from; i < tile.count; i++) {
+            DrawOp item = history.get(tile.items[i]);
+            if (item.stroke == stroke)
+                sum += TileDigests.hash(item);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the first column, first row, last column, and last row of the
+     * tiles that intersect a rectangle, or null if it is outside the drawing.
+     */
+    private int[] tileRange(Rectangle r) {
+        Rectangle clip = r.intersection(new Rectangle(0, 0, width, height));
+        if (clip.isEmpty())
+            return null;
+        return new int[] {
+                clip.x / TILE_SIZE, clip.y / TILE_SIZE,
+                (clip.x + clip.width - 1) / TILE_SIZE, (clip.y + clip.height - 1) / TILE_SIZE
+        };
+    }
+
+}
@@ -0,0 +1,210 @@
+package netgame.draw.raster;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Digests of the tiles of a drawing, which let a client and a hub find the
+ * parts of the client's picture that differ from the hub's drawing without
+ * sending the picture.  The drawing is divided into tiles of size TILE_SIZE,
+ * the same tiles as in a {@link TiledCanvas}, and the digest of a tile is the
+ * sum of hash(op) over the visible items whose bounds intersect the tile.
+ *
+ * <p>A digest describes which items a tile shows, not its pixels.  Two
+ * correct copies of a drawing can differ slightly in their pixels, since the
+ * antialiasing where the lines of a stroke meet depends on how the lines
+ * were collected into paths, and a hub does not draw at all.  Since the
+ * digest is a sum, items can be added and removed in any order, which is
+ * what undo and redo need.  A client can also mark a tile as unknown when it
+ * can't tell which items the tile shows; the digest of such a tile is UNKNOWN,
+ * which never matches the digest of a tile that is known.
+ *
+ * <p>For the same reason, a digest does not depend on the order in which the
+ * items were painted.  When two clients draw overlapping items at the same
+ * time, each client paints its own item first, so one of them shows the items
+ * in another order than the hub's drawing, and its pixels differ where the
+ * items overlap, but the digests of the tile are equal.  Comparing digests
+ * does not find that kind of difference.  Making the digest depend on the
+ * order would need each item's position in the hub's list of items, which a
+ * client does not know for the items that it drew itself.
+ *
+ * <p>This class is not synchronized.
+ */
+public final class TileDigests {
+
+    public static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+
+    /**
+     * The digest of a tile whose contents are unknown.
+     */
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    private final int width, height;
+    private final int tilesAcross, tilesDown;
+    private final long[] digests;
+    private final boolean[] unknown;
+
+    /**
+     * Creates the digests for an empty drawing of a given size.
+     */
+    public TileDigests(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Illegal drawing size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        tilesAcross = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesDown = (height + TILE_SIZE - 1) / TILE_SIZE;
+        digests = new long[tilesAcross*tilesDown];
+        unknown = new boolean[tilesAcross*tilesDown];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTilesAcross() {
+        return tilesAcross;
+    }
+
+    public int getTilesDown() {
+        return tilesDown;
+    }
+
+    /**
+     * Returns a 64-bit hash of an item, computed from its fields, so that it is
+     * the same for equal items in every program.
+     */
+    public static long hash(DrawOp op) {
+        long h = mix(op.type);
+        h = mix(h + op.rgb);
+        h = mix(h + op.strokeIndex);
+        h = mix(h + op.stampNumber);
+        h = mix(h + op.x1);
+        h = mix(h + op.y1);
+        h = mix(h + op.x2);
+        h = mix(h + op.y2);
+        h = mix(h + op.stroke);
+        if (op.asset != null)
+            h = mix(h + op.asset.hashCode());
+        return h;
+    }
+
+    /**
+     * Adds an item to the digests of the tiles that it intersects.
+     */
+    public void add(DrawOp op) {
+        addToTiles(op, hash(op));
+    }
+
+    /**
+     * Removes an item from the digests of the tiles that it intersects.
+     */
+    public void remove(DrawOp op) {
+        addToTiles(op, -hash(op));
+    }
+
+    /**
+     * Makes every tile known and empty, as after a "clear".
+     */
+    public void clear() {
+        Arrays.fill(digests, 0);
+        Arrays.fill(unknown, false);
+    }
+
+    /**
+     * Returns the tiles that intersect a rectangle in the drawing, in tile
+     * coordinates:  the column and row of the first tile and the number of
+     * columns and rows.  The rectangle is empty if r is outside the drawing.
+     */
+    public Rectangle tilesFor(Rectangle r) {
+        Rectangle clip = r.intersection(new Rectangle(0, 0, width, height));
+        if (clip.isEmpty())
+            return new Rectangle();
+        int col = clip.x / TILE_SIZE, row = clip.y / TILE_SIZE;
+        return new Rectangle(col, row, (clip.x + clip.width - 1) / TILE_SIZE - col + 1,
+                (clip.y + clip.height - 1) / TILE_SIZE - row + 1);
+    }
+
+    /**
+     * Returns the part of the drawing covered by the tile in a given column and row.
+     */
+    public Rectangle getTileBounds(int col, int row) {
+        int x = col*TILE_SIZE, y = row*TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    /**
+     * Returns the digests of some tiles, row by row.
+     * @param tiles the tiles, in tile coordinates, as returned by tilesFor().
+     * @throws IllegalArgumentException if the tiles are not all in the drawing.
+     */
+    public long[] get(Rectangle tiles) {
+        if (tiles.x < 0 || tiles.y < 0 || tiles.width < 0 || tiles.height < 0
+                || tiles.x + tiles.width > tilesAcross || tiles.y + tiles.height > tilesDown)
+            throw new IllegalArgumentException("Tiles outside the drawing: " + tiles);
+        long[] result = new long[tiles.width*tiles.height];
+        int n = 0;
+        for (int row = tiles.y; row < tiles.y + tiles.height; row++) {
+            for (int col = tiles.x; col < tiles.x + tiles.width; col++)
+                result[n++] = get(row*tilesAcross + col);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the digest of one tile.  A known digest that happens to equal
+     * UNKNOWN is changed, the same way everywhere, so that it still matches.
+     */
+    long get(int tile) {
+        if (unknown[tile])
+            return UNKNOWN;
+        return digests[tile] == UNKNOWN ? UNKNOWN + 1 : digests[tile];
+    }
+
+    /**
+     * Adds a hash to the digest of one tile, given by its index, row by row.
+     */
+    void add(int tile, long hash) {
+        digests[tile] += hash;
+    }
+
+    /**
+     * Sets the digest of one tile, which becomes known.
+     */
+    void set(int tile, long digest) {
+        digests[tile] = digest;
+        unknown[tile] = false;
+    }
+
+    /**
+     * Marks one tile as unknown until set() or clear() is called.
+     */
+    void setUnknown(int tile) {
+        unknown[tile] = true;
+    }
+
+    private void addToTiles(DrawOp op, long hash) {
+        Rectangle bounds = op.getBounds();
+        if (bounds == null)
+            return;
+        Rectangle tiles = tilesFor(bounds);
+        for (int row = tiles.y; row < tiles.y + tiles.height; row++) {
+            for (int col = tiles.x; col < tiles.x + tiles.width; col++)
+                digests[row*tilesAcross + col] += hash;
+        }
+    }
+
+    /**
+     * The finalizer of the SplitMix64 generator, which spreads the bits of its argument.
+     */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+}
@@ -0,0 +1,487 @@
+package netgame.draw.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TileStore keeps the tiles of a {@link TiledCanvas} outside of the Java heap,
+ * so that a very large canvas, or one that lives for a long time, does not need
+ * a huge heap or cause long garbage collection pauses.  Only a small "hot set"
+ * of tiles are kept as images on the heap; they are the tiles that are being
+ * drawn or read, and the ones that were used most recently.  When there are
+ * too many, the least recently used tile is compressed and moved out of the
+ * heap, and it is made into an image again when it is needed.
+ *
+ * <p>A tile that has a single color is kept as just that color, and a white
+ * tile takes no space at all.  Other tiles are compressed by run-length
+ * encoding, which works well for drawings, where most of the pixels are
+ * white or part of a wide stroke, or are kept as raw pixels if that would be
+ * smaller.  The compressed tiles are packed into large slabs of direct
+ * memory.  The space of a tile that is stored again is reused when the slab is
+ * compacted.  Once the slabs of direct memory reach a budget, new slabs are
+ * mapped from a spill file, so the operating system can page them out when
+ * memory is short.  The heap then holds only the hot set and 17 bytes per
+ * tile for finding it, so it stays about the same as the canvas grows.
+ *
+ * <p>A store can be used by one canvas.  All the methods are synchronized, and
+ * an image from the hot set is pinned while a thread uses it, so different
+ * tiles can still be drawn by different threads at the same time.
+ */
+public class TileStore {
+
+    /**
+     * The default number of bytes of direct memory to use before spilling to a file.
+     */
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    /**
+     * The default number of tiles in the hot set.
+     */
+    public static final int DEFAULT_HOT_TILES = 256;
+
+    static final int SLAB_SIZE = 4 << 20;  // Compressed tiles are packed into slabs of this size.
+
+    private static final byte WHITE = 0;    // The states of a tile, apart from being hot.  A hot tile
+    private static final byte UNIFORM = 1;  //    can also have a stored copy, which is still correct
+    private static final byte STORED = 2;   //    if the tile was only read.
+
+    private static final byte RLE = 0;  // The two formats of a stored tile, which are
+    private static final byte RAW = 1;  //    given by its first byte.
+
+    private static final int TILE_PIXELS = TiledCanvas.TILE_SIZE*TiledCanvas.TILE_SIZE;
+
+    /**
+     * A tile that is in the hot set.
+     */
+    private static final class Hot {
+        final BufferedImage image;
+        final int[] pixels;  // The pixels of image.
+        int pins;            // Number of users of the image.
+        boolean dirty;       // True if the image has been changed since it was stored.
+        Hot(BufferedImage image) {
+            this.image = image;
+            pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        }
+    }
+
+    /**
+     * A block of direct or mapped memory in which compressed tiles are packed,
+     * one after the other.  Space that belongs to tiles that were stored again
+     * or cleared is garbage until the slab is compacted.
+     */
+    private static final class Slab {
+        final ByteBuffer buffer;
+        int used;     // Bytes in use, counting garbage.
+        int garbage;  // Bytes that no tile uses any more.
+        Slab(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final long budget;
+    private final int hotCapacity;
+    private final File spillDirectory;
+
+    private int tileCount = -1;  // Set when the store is attached to a canvas.
+    private byte[] state;
+    private int[] color;                   // For a UNIFORM tile.
+    private int[] slabOf, offsetOf, lengthOf;  // For a STORED tile.
+    private final LinkedHashMap<Integer,Hot> hot = new LinkedHashMap<Integer,Hot>(64, 0.75f, true);
+    private final List<BufferedImage> spareImages = new ArrayList<BufferedImage>();  // Evicted full-size tiles.
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+    private Slab current;  // The slab that new tiles are added to.
+    private long directBytes, mappedBytes;
+    private long storedBytes;  // Bytes of the live compressed tiles.
+    private RandomAccessFile spillFile;
+    private File spillFileName;
+    private final byte[] scratch = new byte[1 + 4*TILE_PIXELS];  // For compressing and decompressing tiles.
+    private final byte[] moving = new byte[1 + 4*TILE_PIXELS];   // For moving tiles, while scratch is in use.
+    private long tilesStored, tilesLoaded;
+
+    /**
+     * Creates a store with the default budget and hot set, which spills to
+     * a file in the default temporary directory.
+     */
+    public TileStore() {
+        this(DEFAULT_BUDGET, DEFAULT_HOT_TILES, null);
+    }
+
+    /**
+     * Creates a store.
+     * @param budget the number of bytes of direct memory to use for compressed tiles
+     *    before spilling to a file; zero means to use only the file.
+     * @param hotTiles the number of tiles to keep as images on the heap; more can be
+     *    kept for a while if more than that many are in use at once.
+     * @param spillDirectory the directory for the spill file, or null for the
+     *    default temporary directory.  The file is created when it is needed, and
+     *    deleted by close() or when the program ends.
+     */
+    public TileStore(long budget, int hotTiles, File spillDirectory) {
+        if (budget < 0 || hotTiles < 1)
+            throw new IllegalArgumentException("Invalid budget or hot set size.");
+        this.budget = budget;
+        this.hotCapacity = hotTiles;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns the number of tiles that are now images on the heap.
+     */
+    synchronized public int getHotTiles() {
+        return hot.size();
+    }
+
+    /**
+     * Returns the number of bytes of direct memory that have been allocated for slabs.
+     */
+    synchronized public long getDirectBytes() {
+        return directBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the spill file that have been mapped.
+     */
+    synchronized public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Returns the number of bytes taken by the compressed tiles, not counting garbage.
+     */
+    synchronized public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Returns the number of times that a tile was moved out of the hot set and compressed.
+     */
+    synchronized public long getTilesStored() {
+        return tilesStored;
+    }
+
+    /**
+     * Returns the number of times that a compressed tile was made into an image again.
+     */
+    synchronized public long getTilesLoaded() {
+        return tilesLoaded;
+    }
+
+    /**
+     * Releases the memory of the store and deletes the spill file.  The store
+     * and its canvas must not be used after this.
+     */
+    synchronized public void close() {
+        hot.clear();
+        spareImages.clear();
+        slabs.clear();
+        current = null;
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            }
+            catch (IOException e) {
+            }
+            spillFileName.delete();
+            spillFile = null;
+        }
+    }
+
+    /**
+     * Called by the canvas that uses this store, with its number of tiles.
+     */
+    synchronized void attach(int tiles) {
+        if (tileCount >= 0)
+            throw new IllegalStateException("A TileStore can only be used by one canvas.");
+        tileCount = tiles;
+        state = new byte[tiles];
+        color = new int[tiles];
+        slabOf = new int[tiles];
+        offsetOf = new int[tiles];
+        lengthOf = new int[tiles];
+    }
+
+    /**
+     * Returns the image for a tile and pins it, so that it stays in the hot set
+     * until release() is called.  If the tile is all white and is only going to
+     * be read, null is returned instead, and the tile is not pinned.
+     * @param write true if the image might be changed.
+     */
+    synchronized BufferedImage acquire(int tile, int width, int height, boolean write) {
+        Hot h = hot.get(tile);
+        if (h == null) {
+            if (state[tile] == WHITE && !write)
+                return null;
+            h = load(tile, width, height);
+            hot.put(tile, h);
+        }
+        h.pins++;
+        if (write)
+            h.dirty = true;
+        return h.image;
+    }
+
+    /**
+     * Unpins a tile that was returned by acquire(), and moves the least recently
+     * used tiles out of the hot set if it is too big.
+     */
+    synchronized void release(int tile) {
+        Hot h = hot.get(tile);
+        if (h == null || h.pins == 0)
+            throw new IllegalStateException("Tile " + tile + " is not in use.");
+        h.pins--;
+        if (hot.size() <= hotCapacity)
+            return;
+        Iterator<Map.Entry<Integer,Hot>> iter = hot.entrySet().iterator();
+        while (hot.size() > hotCapacity && iter.hasNext()) {
+            Map.Entry<Integer,Hot> entry = iter.next();  // In order of least recent use.
+            Hot old = entry.getValue();
+            if (old.pins > 0)
+                continue;
+            if (old.dirty)
+                store(entry.getKey(), old.pixels);
+            iter.remove();
+            recycle(old.image);
+        }
+    }
+
+    /**
+     * Makes a tile white.  The tile must not be in use.
+     */
+    synchronized void clear(int tile) {
+        Hot h = hot.remove(tile);
+        if (h != null)
+            recycle(h.image);
+        free(tile);
+    }
+
+    /**
+     * Makes every tile white.  No tile can be in use.
+     */
+    synchronized void clear() {
+        for (Hot h : hot.values())
+            recycle(h.image);
+        hot.clear();
+        Arrays.fill(state, WHITE);
+        for (Slab slab : slabs)
+            slab.used = slab.garbage = 0;
+        storedBytes = 0;
+    }
+
+    /**
+     * Makes an image of a tile from its stored form.
+     */
+    private Hot load(int tile, int width, int height) {
+        BufferedImage image;
+        if (width*height == TILE_PIXELS && !spareImages.isEmpty())
+            image = spareImages.remove(spareImages.size() - 1);
+        else
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Hot h = new Hot(image);
+        int n = width*height;
+        if (state[tile] == WHITE)
+            Arrays.fill(h.pixels, 0, n, 0xFFFFFFFF);
+        else if (state[tile] == UNIFORM)
+            Arrays.fill(h.pixels, 0, n, color[tile]);
+        else {
+            decode(slabs.get(slabOf[tile]).buffer, offsetOf[tile], lengthOf[tile], h.pixels, n);
+            tilesLoaded++;
+        }
+        return h;
+    }
+
+    private void recycle(BufferedImage image) {
+        if (image.getWidth()*image.getHeight() == TILE_PIXELS && spareImages.size() < 16)
+            spareImages.add(image);
+    }
+
+    /**
+     * Stores the pixels of a tile, replacing what was stored for it before.
+     */
+    private void store(int tile, int[] pixels) {
+        free(tile);
+        int n = pixels.length;
+        int first = pixels[0];
+        int i = 1;
+        while (i < n && pixels[i] == first)
+            i++;
+        if (i == n) {
+            if (first != 0xFFFFFFFF) {
+                state[tile] = UNIFORM;
+                color[tile] = first;
+            }
+            return;
+        }
+        int length = encode(pixels, n);
+        if (current == null || current.used + length > SLAB_SIZE)
+            current = nextSlab();
+        current.buffer.put(current.used, scratch, 0, length);
+        state[tile] = STORED;
+        slabOf[tile] = slabs.indexOf(current);
+        offsetOf[tile] = current.used;
+        lengthOf[tile] = length;
+        current.used += length;
+        storedBytes += length;
+        tilesStored++;
+    }
+
+    /**
+     * Forgets what was stored for a tile, which becomes white.
+     */
+    private void free(int tile) {
+        if (state[tile] == STORED) {
+            Slab slab = slabs.get(slabOf[tile]);
+            slab.garbage += lengthOf[tile];
+            storedBytes -= lengthOf[tile];
+            if (slab.garbage == slab.used && slab != current)
+                slab.used = slab.garbage = 0;  // Empty; it can be used again.
+        }
+        state[tile] = WHITE;
+    }
+
+    /**
+     * Returns a slab with room for at least half a slab of tiles.  A slab that is
+     * at least half garbage is compacted and used again; otherwise a new slab is
+     * allocated, from direct memory if that is within the budget, or else from
+     * the spill file.
+     */
+    private Slab nextSlab() {
+        Slab best = null;
+        for (Slab slab : slabs) {
+            if (slab != current && slab.used - slab.garbage <= SLAB_SIZE/2
+                    && (best == null || slab.used - slab.garbage < best.used - best.garbage))
+                best = slab;
+        }
+        if (best != null) {
+            compact(best);
+            return best;
+        }
+        ByteBuffer buffer;
+        if (directBytes + SLAB_SIZE <= budget) {
+            buffer = ByteBuffer.allocateDirect(SLAB_SIZE);
+            directBytes += SLAB_SIZE;
+        }
+        else {
+            try {
+                if (spillFile == null) {
+                    spillFileName = File.createTempFile("netdraw-tiles", ".spill", spillDirectory);
+                    spillFileName.deleteOnExit();
+                    spillFile = new RandomAccessFile(spillFileName, "rw");
+                }
+                buffer = spillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, mappedBytes, SLAB_SIZE);
+                mappedBytes += SLAB_SIZE;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Can't extend the spill file for tiles.", e);
+            }
+        }
+        Slab slab = new Slab(buffer);
+        slabs.add(slab);
+        return slab;
+    }
+
+    /**
+     * Moves the live tiles in a slab to the start of the slab, in the order of
+     * their positions, so that all the garbage is at the end.
+     */
+    private void compact(Slab slab) {
+        int index = slabs.indexOf(slab);
+        List<Integer> tiles = new ArrayList<Integer>();
+        for (int t = 0; t < tileCount; t++) {
+            if (state[t] == STORED && slabOf[t] == index)
+                tiles.add(t);
+        }
+        Collections.sort(tiles, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(offsetOf[a], offsetOf[b]);
+            }
+        });
+        int position = 0;
+        for (int t : tiles) {
+            if (offsetOf[t] != position) {
+                slab.buffer.get(offsetOf[t], moving, 0, lengthOf[t]);
+                slab.buffer.put(position, moving, 0, lengthOf[t]);
+                offsetOf[t] = position;
+            }
+            position += lengthOf[t];
+        }
+        slab.used = position;
+        slab.garbage = 0;
+    }
+
+    /**
+     * Compresses n pixels into scratch and returns the length.  Each run of
+     * pixels of the same color takes six bytes:  the length of the run, as two
+     * bytes, and the color.  If that is longer than the raw pixels, the raw
+     * pixels are used.
+     */
+    private int encode(int[] pixels, int n) {
+        int pos = 1;
+        int i = 0;
+        while (i < n && pos + 6 <= 1 + 4*n) {
+            int c = pixels[i];
+            int run = 1;
+            while (i + run < n && pixels[i + run] == c && run < 0xFFFF)
+                run++;
+            scratch[pos++] = (byte)(run >> 8);
+            scratch[pos++] = (byte)run;
+            pos = putInt(c, pos);
+            i += run;
+        }
+        if (i == n) {
+            scratch[0] = RLE;
+            return pos;
+        }
+        scratch[0] = RAW;
+        pos = 1;
+        for (i = 0; i < n; i++)
+            pos = putInt(pixels[i], pos);
+        return pos;
+    }
+
+    private int putInt(int v, int pos) {
+        scratch[pos] = (byte)(v >> 24);
+        scratch[pos+1] = (byte)(v >> 16);
+        scratch[pos+2] = (byte)(v >> 8);
+        scratch[pos+3] = (byte)v;
+        return pos + 4;
+    }
+
+    private int getInt(int pos) {
+        return (scratch[pos] << 24) | ((scratch[pos+1] & 0xFF) << 16)
+                | ((scratch[pos+2] & 0xFF) << 8) | (scratch[pos+3] & 0xFF);
+    }
+
+    /**
+     * Decompresses a tile that was compressed by encode().
+     */
+    private void decode(ByteBuffer buffer, int offset, int length, int[] pixels, int n) {
+        buffer.get(offset, scratch, 0, length);
+        if (scratch[0] == RAW) {
+            for (int i = 0; i < n; i++)
+                pixels[i] = getInt(1 + 4*i);
+            return;
+        }
+        int i = 0;
+        for (int pos = 1; pos < length; pos += 6) {
+            int run = ((scratch[pos] & 0xFF) << 8) | (scratch[pos+1] & 0xFF);
+            Arrays.fill(pixels, i, i + run, getInt(pos + 2));
+            i += run;
+        }
+    }
+
+}
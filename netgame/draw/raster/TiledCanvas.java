@@ -0,0 +1,304 @@
+package netgame.draw.raster;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * A TiledCanvas is an off-screen picture that is divided into square tiles
+ * of size TILE_SIZE.  (Tiles along the right and bottom edges can be smaller.)
+ * The canvas covers a rectangular area of the drawing, which does not have
+ * to start at (0,0); this makes it possible to render just one part of a
+ * large drawing.  Tiles that have never been drawn on are not allocated;
+ * they are considered to be filled with white.
+ * 
+ * <p>Normally, each tile is an image on the heap.  A canvas can instead keep
+ * its tiles in a {@link TileStore}, which keeps most of them compressed, out
+ * of the heap.  Then a tile is only an image while it is in use, so a caller
+ * of createTileGraphics() must call releaseTile() when it is done drawing.
+ * 
+ * <p>Different tiles can be drawn by different threads at the same time,
+ * which is what the {@link Rasterizer} does, but a single tile must not be
+ * used by two threads at once.
+ */
+public class TiledCanvas {
+
+    /**
+     * The width and height of a tile.
+     */
+    public static final int TILE_SIZE = 64;
+
+    private final Rectangle area;      // The part of the drawing covered by this canvas.
+    private final int tilesAcross;     // Number of columns of tiles.
+    private final int tilesDown;       // Number of rows of tiles.
+    private final BufferedImage[] tiles;  // The tiles, in row-major order; null for an all-white tile.
+                                          //    Not used if there is a store.
+    private final TileStore store;        // Where the tiles are kept, or null.
+
+    /**
+     * Creates a white canvas covering the area from (0,0) to (width,height).
+     */
+    public TiledCanvas(int width, int height) {
+        this(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Creates a white canvas covering a specified area of the drawing.
+     */
+    public TiledCanvas(Rectangle area) {
+        this(area, null);
+    }
+
+    /**
+     * Creates a white canvas covering a specified area of the drawing, which
+     * keeps its tiles in a store.  The store can't be used by another canvas.
+     * @param store the store for the tiles, or null to keep them on the heap.
+     */
+    public TiledCanvas(Rectangle area, TileStore store) {
+        if (area.width <= 0 || area.height <= 0)
+            throw new IllegalArgumentException("Canvas must have positive width and height.");
+        this.area = new Rectangle(area);
+        tilesAcross = (area.width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesDown = (area.height + TILE_SIZE - 1) / TILE_SIZE;
+        if ((long)tilesAcross*tilesDown > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Canvas is too large.");
+        this.store = store;
+        if (store == null)
+            tiles = new BufferedImage[tilesAcross*tilesDown];
+        else {
+            tiles = null;
+            store.attach(tilesAcross*tilesDown);
+        }
+    }
+
+    /**
+     * Returns the area of the drawing that is covered by this canvas.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(area);
+    }
+
+    public int getTilesAcross() {
+        return tilesAcross;
+    }
+
+    public int getTilesDown() {
+        return tilesDown;
+    }
+
+    public int getTileCount() {
+        return tilesAcross*tilesDown;
+    }
+
+    /**
+     * Returns the store that keeps the tiles of this canvas, or null if they are on the heap.
+     */
+    public TileStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the part of the drawing covered by the tile with a given index.
+     */
+    public Rectangle getTileBounds(int tile) {
+        int x = area.x + (tile % tilesAcross)*TILE_SIZE;
+        int y = area.y + (tile / tilesAcross)*TILE_SIZE;
+        int w = Math.min(TILE_SIZE, area.x + area.width - x);
+        int h = Math.min(TILE_SIZE, area.y + area.height - y);
+        return new Rectangle(x,y,w,h);
+    }
+
+    /**
+     * Returns the range of tiles that intersect a rectangle in drawing 
+     * coordinates, as an array containing the first column, first row,
+     * last column and last row; or null if the rectangle is outside the
+     * canvas.  A null rectangle means the entire canvas.
+     */
+    int[] tileRange(Rectangle r) {
+        if (r == null)
+            return new int[] { 0, 0, tilesAcross - 1, tilesDown - 1 };
+        Rectangle clip = r.intersection(area);
+        if (clip.isEmpty())
+            return null;
+        return new int[] {
+                (clip.x - area.x) / TILE_SIZE, 
+                (clip.y - area.y) / TILE_SIZE,
+                (clip.x + clip.width - 1 - area.x) / TILE_SIZE,
+                (clip.y + clip.height - 1 - area.y) / TILE_SIZE
+        };
+    }
+
+    /**
+     * Creates a graphics context for drawing on one tile, using drawing
+     * coordinates.  The clip is set to the tile, and antialiasing is on.
+     * The tile is allocated if it did not already exist.  The caller
+     * should dispose the graphics context when done with it, and then
+     * call releaseTile().
+     */
+    public Graphics2D createTileGraphics(int tile) {
+        Rectangle bounds = getTileBounds(tile);
+        if (store != null) {
+            Graphics2D g = store.acquire(tile, bounds.width, bounds.height, true).createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(-bounds.x, -bounds.y);
+            g.clip(bounds);
+            return g;
+        }
+        if (tiles[tile] == null) {
+            BufferedImage img = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, bounds.width, bounds.height);
+            g.dispose();
+            tiles[tile] = img;
+        }
+        Graphics2D g = tiles[tile].createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.translate(-bounds.x, -bounds.y);
+        g.clip(bounds);
+        return g;
+    }
+
+    /**
+     * Says that the caller of createTileGraphics() is done with a tile.  If
+     * the tiles are in a store, the tile can then be compressed and moved out
+     * of the heap; otherwise, this does nothing.
+     */
+    public void releaseTile(int tile) {
+        if (store != null)
+            store.release(tile);
+    }
+
+    /**
+     * Makes one tile all white again.
+     */
+    public void clearTile(int tile) {
+        if (store != null)
+            store.clear(tile);
+        else
+            tiles[tile] = null;
+    }
+
+    /**
+     * Makes the entire canvas white.
+     */
+    public void clear() {
+        if (store != null)
+            store.clear();
+        else
+            Arrays.fill(tiles, null);
+    }
+
+    /**
+     * Draws one item on the canvas, in the calling thread.  Only the
+     * tiles that intersect the bounds of the item are touched.  Undo and redo
+     * items are ignored, since a canvas does not know what was drawn on it;
+     * use DrawOp.resolveUndo() on a list of items that contains them.
+     */
+    public void apply(DrawOp op) {
+        if (op.type == DrawOp.CLEAR) {
+            clear();
+            return;
+        }
+        if (op.isUndoOrRedo())
+            return;
+        int[] range = tileRange(op.getBounds());
+        if (range == null)
+            return;
+        for (int row = range[1]; row <= range[3]; row++) {
+            for (int col = range[0]; col <= range[2]; col++) {
+                int tile = row*tilesAcross + col;
+                Graphics2D g = createTileGraphics(tile);
+                op.paint(g);
+                g.dispose();
+                releaseTile(tile);
+            }
+        }
+    }
+
+    /**
+     * Copies the colors of the pixels in a rectangle of the canvas into an
+     * array, in the same format as BufferedImage.getRGB().  The rectangle is
+     * given in drawing coordinates and must lie inside the canvas.
+     */
+    public void getRGB(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+        if (!area.contains(new Rectangle(x,y,w,h)))
+            throw new IllegalArgumentException("Rectangle is not inside the canvas.");
+        int[] range = tileRange(new Rectangle(x,y,w,h));
+        if (range == null)
+            return;
+        for (int row = range[1]; row <= range[3]; row++) {
+            for (int col = range[0]; col <= range[2]; col++) {
+                int tile = row*tilesAcross + col;
+                Rectangle part = getTileBounds(tile).intersection(new Rectangle(x,y,w,h));
+                int start = offset + (part.y - y)*scansize + (part.x - x);
+                BufferedImage image = getTile(tile);
+                if (image == null) {
+                    for (int i = 0; i < part.height; i++) {
+                        int pos = start + i*scansize;
+                        for (int j = 0; j < part.width; j++)
+                            rgbArray[pos + j] = 0xFFFFFFFF;
+                    }
+                }
+                else {
+                    Rectangle tb = getTileBounds(tile);
+                    image.getRGB(part.x - tb.x, part.y - tb.y, part.width, part.height, 
+                            rgbArray, start, scansize);
+                    if (store != null)
+                        store.release(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the canvas using a graphics context, with the top left corner of
+     * the canvas at (x,y).
+     */
+    public void paint(Graphics g, int x, int y) {
+        int count = getTileCount();
+        for (int tile = 0; tile < count; tile++) {
+            Rectangle tb = getTileBounds(tile);
+            int tx = x + tb.x - area.x;
+            int ty = y + tb.y - area.y;
+            BufferedImage image = getTile(tile);
+            if (image == null) {
+                g.setColor(Color.WHITE);
+                g.fillRect(tx, ty, tb.width, tb.height);
+            }
+            else {
+                g.drawImage(image, tx, ty, null);
+                if (store != null)
+                    store.release(tile);
+            }
+        }
+    }
+
+    /**
+     * Returns the image of a tile for reading, or null if the tile is white.
+     * If the tiles are in a store, the tile is pinned, and the caller must
+     * release it if the return value is not null.
+     */
+    private BufferedImage getTile(int tile) {
+        if (store == null)
+            return tiles[tile];
+        Rectangle tb = getTileBounds(tile);
+        return store.acquire(tile, tb.width, tb.height, false);
+    }
+
+    /**
+     * Returns a new image containing a copy of the canvas.
+     */
+    public BufferedImage toImage() {
+        BufferedImage img = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = img.createGraphics();
+        paint(g, 0, 0);
+        g.dispose();
+        return img;
+    }
+
+}